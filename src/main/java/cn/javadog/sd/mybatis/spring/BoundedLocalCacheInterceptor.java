@@ -0,0 +1,206 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import cn.javadog.sd.mybatis.executor.BaseExecutor;
+import cn.javadog.sd.mybatis.executor.CachingExecutor;
+import cn.javadog.sd.mybatis.executor.ExecutionPlaceholder;
+import cn.javadog.sd.mybatis.plugin.Interceptor;
+import cn.javadog.sd.mybatis.plugin.Invocation;
+import cn.javadog.sd.mybatis.plugin.Plugin;
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.support.cache.impl.PerpetualCache;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import cn.javadog.sd.mybatis.support.reflection.SystemMetaObject;
+
+/**
+ * @author 余勇
+ * @date 2019-12-29 17:20
+ *
+ * 给 SqlSession 的一级缓存加上容量上限。一级缓存随 SqlSession 存活，Spring 事务里 SqlSession 绑定在 {@link SqlSessionHolder} 上，
+ * 长事务里以大量不同参数执行的查询结果会一直留在缓存里直到提交，对账这类读几百万行的事务会因此 OOM。
+ * <p>
+ * 开启后每个 Executor 的一级缓存换成按访问顺序淘汰的 LRU，超过 {@code maxEntries} 个查询结果时淘汰最久没用到的，
+ * 不用再在业务代码里到处调用 {@link SqlSessionTemplate#clearCache()}。缓存是在 Executor 创建时替换的，查询时没有额外的拦截开销。
+ * 正在执行的查询占位不会被淘汰；有循环引用的嵌套结果映射依赖一级缓存做延迟装配，上限要大于单次查询涉及的结果数。
+ * <p>
+ * 一般通过 {@link SqlSessionFactoryBean#setLocalCacheMaxEntries(int)} 开启，淘汰数据可以用
+ * {@link #forConfiguration(Configuration)} 拿到
+ */
+public class BoundedLocalCacheInterceptor implements Interceptor {
+
+  private static final Log LOGGER = LogFactory.getLog(BoundedLocalCacheInterceptor.class);
+
+  /**
+   * 每个一级缓存最多保存的查询结果数
+   */
+  private int maxEntries;
+
+  /**
+   * 累计淘汰的查询结果数
+   */
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * 单个一级缓存到达过的最大条目数
+   */
+  private final LongAccumulator largestSize = new LongAccumulator(Math::max, 0);
+
+  public BoundedLocalCacheInterceptor() {
+  }
+
+  public BoundedLocalCacheInterceptor(int maxEntries) {
+    setMaxEntries(maxEntries);
+  }
+
+  /*相应的get/set*/
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public void setMaxEntries(int maxEntries) {
+    isTrue(maxEntries > 0, "Property 'maxEntries' must be greater than 0");
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * 累计淘汰的查询结果数
+   */
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * 单个一级缓存到达过的最大条目数
+   */
+  public long getLargestSize() {
+    return this.largestSize.get();
+  }
+
+  /**
+   * 在 mybatis-config.xml 中注册时的配置，支持 maxEntries
+   */
+  @Override
+  public void setProperties(Properties properties) {
+    String value = properties.getProperty("maxEntries");
+    if (value != null) {
+      setMaxEntries(Integer.parseInt(value.trim()));
+    }
+  }
+
+  /**
+   * 不拦截任何方法
+   */
+  @Override
+  public Object intercept(Invocation invocation) throws Throwable {
+    return invocation.proceed();
+  }
+
+  /**
+   * 新建 Executor 时替换它的一级缓存，返回原对象，不做代理
+   */
+  @Override
+  public Object plugin(Object target) {
+    BaseExecutor executor = baseExecutor(target);
+    if (executor != null && this.maxEntries > 0) {
+      SystemMetaObject.forObject(executor).setValue("localCache", new BoundedLocalCache(this));
+    }
+    return target;
+  }
+
+  /**
+   * Configuration 上注册的实例，没有返回 null
+   */
+  public static BoundedLocalCacheInterceptor forConfiguration(Configuration configuration) {
+    for (Interceptor interceptor : configuration.getInterceptors()) {
+      if (interceptor instanceof BoundedLocalCacheInterceptor) {
+        return (BoundedLocalCacheInterceptor) interceptor;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 穿过其它插件的代理和 CachingExecutor，找到持有一级缓存的 BaseExecutor
+   */
+  private static BaseExecutor baseExecutor(Object target) {
+    Object current = target;
+    while (current != null && Proxy.isProxyClass(current.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(current);
+      if (!(handler instanceof Plugin)) {
+        return null;
+      }
+      current = SystemMetaObject.forObject(handler).getValue("target");
+    }
+    if (current instanceof CachingExecutor) {
+      current = SystemMetaObject.forObject(current).getValue("delegate");
+    }
+    return current instanceof BaseExecutor ? (BaseExecutor) current : null;
+  }
+
+  /**
+   * 按访问顺序淘汰的一级缓存，只在 SqlSession 所在的线程上使用
+   */
+  private static final class BoundedLocalCache extends PerpetualCache {
+
+    private final BoundedLocalCacheInterceptor owner;
+
+    private final Map<Object, Object> entries;
+
+    BoundedLocalCache(BoundedLocalCacheInterceptor owner) {
+      super("LocalCache");
+      this.owner = owner;
+      int maxEntries = owner.maxEntries;
+      this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+          if (size() <= maxEntries || eldest.getValue() == ExecutionPlaceholder.EXECUTION_PLACEHOLDER) {
+            return false;
+          }
+          owner.evictions.increment();
+          if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Evicted local cache entry " + eldest.getKey());
+          }
+          return true;
+        }
+      };
+    }
+
+    @Override
+    public int getSize() {
+      return this.entries.size();
+    }
+
+    @Override
+    public void putObject(Object key, Object value) {
+      this.entries.put(key, value);
+      this.owner.largestSize.accumulate(this.entries.size());
+    }
+
+    @Override
+    public Object getObject(Object key) {
+      return this.entries.get(key);
+    }
+
+    @Override
+    public Object removeObject(Object key) {
+      return this.entries.remove(key);
+    }
+
+    @Override
+    public void clear() {
+      this.entries.clear();
+    }
+  }
+
+}
@@ -0,0 +1,317 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 18:20
+ *
+ * 每个 SqlSessionFactory 一个的断路器。
+ * 数据源宕掉时，每次调用都要等到连接池的获取超时才失败，所有请求线程都被拖住。
+ * 断路器统计最近 {@code slidingWindowMillis} 内 SqlSessionTemplate 调用的连接级失败率，超过阈值就打开，
+ * 打开期间调用直接抛出 {@link CircuitBreakerOpenException}，不再去拿连接。
+ * <p>
+ * 连接级失败是指异常链上有 DataAccessResourceFailureException(包括拿不到连接的 CannotGetJdbcConnectionException，
+ * MyBatis 会把它包装成 MyBatisSystemException)，或者 JDBC 的连接类异常；SQL 语法错误、约束冲突等不算失败。
+ * <p>
+ * 打开 {@code openDurationMillis} 之后进入半开状态，由后台线程从数据源拿一个连接探测，
+ * 探测成功就关闭断路器，失败就继续打开，请求线程不用来做试探。
+ * <p>
+ * 局限：断路器只看得到 SqlSessionTemplate 的调用，看不到事务的开启。@Transactional 方法的连接是
+ * DataSourceTransactionManager#doBegin 拿的，拿不到时抛出的 CannotCreateTransactionException 不计入失败率；
+ * 断路器打开后这些方法也照样先在连接池里等到超时，直到事务里第一次调用 mapper 才被拒绝。
+ * 事务为主的应用要靠连接池较短的获取超时兜底。作为Spring的bean声明即可：
+ * <pre class="code">
+ * {@code
+ *   <bean class="cn.javadog.sd.mybatis.spring.CircuitBreaker">
+ *     <property name="sqlSessionFactory" ref="sqlSessionFactory" />
+ *     <property name="failureRateThreshold" value="0.5" />
+ *   </bean>
+ * }
+ * </pre>
+ */
+public class CircuitBreaker implements InitializingBean, DisposableBean {
+
+  private static final Log LOGGER = LogFactory.getLog(CircuitBreaker.class);
+
+  /**
+   * 滑动窗口分成几个桶
+   */
+  private static final int BUCKETS = 10;
+
+  /**
+   * 已安装的断路器，KEY 是 SqlSessionFactory
+   */
+  private static final Map<SqlSessionFactory, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+  /**
+   * 断路器的状态
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private SqlSessionFactory sqlSessionFactory;
+
+  /**
+   * 失败率达到多少时打开
+   */
+  private double failureRateThreshold = 0.5;
+
+  /**
+   * 窗口内至少多少次调用才计算失败率
+   */
+  private int minimumCalls = 20;
+
+  /**
+   * 滑动窗口的长度，毫秒
+   */
+  private long slidingWindowMillis = 10000L;
+
+  /**
+   * 打开后多久开始探测，毫秒
+   */
+  private long openDurationMillis = 5000L;
+
+  /**
+   * 探测连接的超时时间，秒
+   */
+  private int probeTimeoutSeconds = 2;
+
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+  private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKETS);
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  /*相应的get/set*/
+
+  public void setSqlSessionFactory(SqlSessionFactory sqlSessionFactory) {
+    this.sqlSessionFactory = sqlSessionFactory;
+  }
+
+  public void setFailureRateThreshold(double failureRateThreshold) {
+    isTrue(failureRateThreshold > 0 && failureRateThreshold <= 1, "Property 'failureRateThreshold' must be between 0 and 1");
+    this.failureRateThreshold = failureRateThreshold;
+  }
+
+  public void setMinimumCalls(int minimumCalls) {
+    isTrue(minimumCalls > 0, "Property 'minimumCalls' must be positive");
+    this.minimumCalls = minimumCalls;
+  }
+
+  public void setSlidingWindowMillis(long slidingWindowMillis) {
+    isTrue(slidingWindowMillis >= BUCKETS, "Property 'slidingWindowMillis' is too small");
+    this.slidingWindowMillis = slidingWindowMillis;
+  }
+
+  public void setOpenDurationMillis(long openDurationMillis) {
+    this.openDurationMillis = openDurationMillis;
+  }
+
+  public void setProbeTimeoutSeconds(int probeTimeoutSeconds) {
+    this.probeTimeoutSeconds = probeTimeoutSeconds;
+  }
+
+  public State getState() {
+    return this.state.get();
+  }
+
+  /**
+   * 打开期间被直接拒绝的调用数
+   */
+  public long getRejected() {
+    return this.rejected.get();
+  }
+
+  /**
+   * 安装到 SqlSessionFactory 上
+   */
+  @Override
+  public void afterPropertiesSet() {
+    notNull(this.sqlSessionFactory, "Property 'sqlSessionFactory' is required");
+    notNull(this.sqlSessionFactory.getConfiguration().getEnvironment(), "SqlSessionFactory must have an Environment");
+    BREAKERS.put(this.sqlSessionFactory, this);
+  }
+
+  /**
+   * 卸载
+   */
+  @Override
+  public void destroy() {
+    BREAKERS.remove(this.sqlSessionFactory, this);
+  }
+
+  /**
+   * 工厂上安装的断路器，没有返回 null
+   */
+  static CircuitBreaker forSessionFactory(SqlSessionFactory sessionFactory) {
+    return BREAKERS.isEmpty() ? null : BREAKERS.get(sessionFactory);
+  }
+
+  /**
+   * 调用开始前检查，断路器没有关闭时抛出 CircuitBreakerOpenException
+   */
+  void checkAllowed() {
+    State current = this.state.get();
+    if (current != State.CLOSED) {
+      this.rejected.incrementAndGet();
+      throw new CircuitBreakerOpenException("Circuit breaker for " + dataSource() + " is " + current
+          + ", failing fast without acquiring a connection");
+    }
+  }
+
+  /**
+   * 记录一次调用的结果，t 为 null 表示成功
+   */
+  void record(Throwable t) {
+    boolean failure = t != null && isConnectionFailure(t);
+    Bucket bucket = currentBucket();
+    bucket.calls.increment();
+    if (!failure) {
+      return;
+    }
+    bucket.failures.increment();
+    if (this.state.get() != State.CLOSED) {
+      return;
+    }
+    long calls = 0;
+    long failures = 0;
+    long oldest = bucket.epoch - BUCKETS + 1;
+    for (int i = 0; i < BUCKETS; i++) {
+      Bucket b = this.buckets.get(i);
+      if (b != null && b.epoch >= oldest) {
+        calls += b.calls.sum();
+        failures += b.failures.sum();
+      }
+    }
+    if (calls >= this.minimumCalls && failures >= calls * this.failureRateThreshold
+        && this.state.compareAndSet(State.CLOSED, State.OPEN)) {
+      LOGGER.warn("Circuit breaker for " + dataSource() + " opened, " + failures + " of " + calls
+          + " calls failed to reach the database: " + t);
+      scheduleProbe();
+    }
+  }
+
+  /**
+   * 异常链上是否有连接级的失败
+   */
+  static boolean isConnectionFailure(Throwable t) {
+    for (Throwable cause = t; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+      if (cause instanceof CircuitBreakerOpenException) {
+        return false;
+      }
+      if (cause instanceof DataAccessResourceFailureException
+          || cause instanceof SQLTransientConnectionException
+          || cause instanceof SQLNonTransientConnectionException
+          || cause instanceof SQLRecoverableException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Bucket currentBucket() {
+    long epoch = System.currentTimeMillis() / (this.slidingWindowMillis / BUCKETS);
+    int index = (int) (epoch % BUCKETS);
+    while (true) {
+      Bucket bucket = this.buckets.get(index);
+      if (bucket != null && bucket.epoch == epoch) {
+        return bucket;
+      }
+      Bucket fresh = new Bucket(epoch);
+      if (this.buckets.compareAndSet(index, bucket, fresh)) {
+        return fresh;
+      }
+    }
+  }
+
+  private void scheduleProbe() {
+    Prober.EXECUTOR.schedule(this::probe, this.openDurationMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 半开状态，从数据源拿一个连接探测
+   */
+  private void probe() {
+    if (!this.state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+      return;
+    }
+    boolean healthy;
+    try (Connection connection = dataSource().getConnection()) {
+      healthy = connection.isValid(this.probeTimeoutSeconds);
+    } catch (Exception e) {
+      LOGGER.debug("Circuit breaker probe failed: " + e);
+      healthy = false;
+    }
+    if (healthy) {
+      for (int i = 0; i < BUCKETS; i++) {
+        this.buckets.set(i, null);
+      }
+      this.state.set(State.CLOSED);
+      LOGGER.warn("Circuit breaker for " + dataSource() + " closed, database is reachable again");
+    } else {
+      this.state.set(State.OPEN);
+      scheduleProbe();
+    }
+  }
+
+  private DataSource dataSource() {
+    return this.sqlSessionFactory.getConfiguration().getEnvironment().getDataSource();
+  }
+
+  /**
+   * 滑动窗口的一个桶
+   */
+  private static final class Bucket {
+
+    private final long epoch;
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    Bucket(long epoch) {
+      this.epoch = epoch;
+    }
+  }
+
+  /**
+   * 执行探测的守护线程，第一次用到时随类初始化创建
+   */
+  private static final class Prober {
+
+    static final ScheduledExecutorService EXECUTOR;
+
+    static {
+      CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mybatis-circuit-breaker-");
+      threadFactory.setDaemon(true);
+      EXECUTOR = new ScheduledThreadPoolExecutor(1, threadFactory);
+    }
+  }
+
+}
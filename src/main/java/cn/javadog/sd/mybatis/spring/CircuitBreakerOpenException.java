@@ -0,0 +1,20 @@
+package cn.javadog.sd.mybatis.spring;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 18:10
+ *
+ * {@link CircuitBreaker} 打开期间调用直接失败时抛出，没有去连接数据库，也不会计入断路器的失败率
+ */
+@SuppressWarnings("squid:MaximumInheritanceDepth")
+public class CircuitBreakerOpenException extends DataAccessResourceFailureException {
+
+  private static final long serialVersionUID = 4120883512620416135L;
+
+  public CircuitBreakerOpenException(String msg) {
+    super(msg);
+  }
+
+}
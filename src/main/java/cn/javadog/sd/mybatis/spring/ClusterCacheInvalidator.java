@@ -0,0 +1,490 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cn.javadog.sd.mybatis.mapping.MappedStatement;
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.support.cache.Cache;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.datasource.TransactionAwareDataSourceProxy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-30 16:00
+ *
+ * 集群内二级缓存的一致性。每个节点都有自己的二级缓存，一个节点的写操作只会清掉本节点的缓存，
+ * 别的节点会一直读到旧数据，所以可变的数据没法缓存。
+ * <p>
+ * 开启后，写操作提交之后把受影响的缓存(也就是 namespace，cache-ref 时是被引用的那个)作为失效记录追加到共享数据库的一张小表里：
+ * Spring 事务中的写操作由 SqlSessionSynchronization 在事务提交之后登记，非事务的调用在 SqlSessionTemplate 提交之后登记，
+ * 登记的记录由轮询线程写入：请求线程不会在 afterCompletion 里再去连接池借一个连接，连接池用满时也不会卡住。
+ * 每个节点按序号增量轮询这张表，清掉本地对应的缓存，自己写的记录跳过。
+ * <p>
+ * 并发事务拿到的序号和提交的顺序不一定一致，轮询时遇到序号空洞会等 {@code gapTimeoutMillis}，空洞之后的记录照常处理，
+ * 空洞补上后再处理补上的记录，超时还没补上才认为是回滚或者序号预分配留下的空洞。
+ * 失效记录在提交之后异步写入，这中间节点宕机会丢失记录，mapper 的缓存最好同时配置 flushInterval 兜底。
+ * <p>
+ * 表结构如下，开启 {@code createTable} 时不存在会自动创建(语法适用于 Derby、HSQLDB、DB2、PostgreSQL 10+ 等)：
+ * <pre class="code">
+ *   CREATE TABLE MYBATIS_CACHE_INVALIDATION (
+ *     SEQ BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1) PRIMARY KEY,
+ *     CACHE_ID VARCHAR(255) NOT NULL,
+ *     NODE_ID VARCHAR(64) NOT NULL,
+ *     CREATED_AT TIMESTAMP NOT NULL
+ *   )
+ * </pre>
+ * 作为Spring的bean声明即可：
+ * <pre class="code">
+ * {@code
+ *   <bean class="cn.javadog.sd.mybatis.spring.ClusterCacheInvalidator">
+ *     <property name="sqlSessionFactory" ref="sqlSessionFactory" />
+ *     <property name="pollIntervalMillis" value="1000" />
+ *   </bean>
+ * }
+ * </pre>
+ */
+public class ClusterCacheInvalidator implements InitializingBean, DisposableBean {
+
+  private static final Log LOGGER = LogFactory.getLog(ClusterCacheInvalidator.class);
+
+  /**
+   * 默认的表名
+   */
+  public static final String DEFAULT_TABLE_NAME = "MYBATIS_CACHE_INVALIDATION";
+
+  /**
+   * 已安装的实例，KEY 是 SqlSessionFactory
+   */
+  private static final Map<SqlSessionFactory, ClusterCacheInvalidator> INVALIDATORS = new ConcurrentHashMap<>();
+
+  private SqlSessionFactory sqlSessionFactory;
+
+  /**
+   * 共享数据库，默认是 SqlSessionFactory 的数据源
+   */
+  private DataSource dataSource;
+
+  private String tableName = DEFAULT_TABLE_NAME;
+
+  /**
+   * 本节点的标识
+   */
+  private String nodeId = UUID.randomUUID().toString();
+
+  private long pollIntervalMillis = 1000L;
+
+  /**
+   * 序号空洞最多等多久，毫秒
+   */
+  private long gapTimeoutMillis = 10000L;
+
+  /**
+   * 失效记录保留多久，毫秒，0 表示不清理
+   */
+  private long retentionMillis = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * 表不存在时是否创建
+   */
+  private boolean createTable;
+
+  private String insertSql;
+
+  private String pollSql;
+
+  private final ReentrantLock pollLock = new ReentrantLock();
+
+  /**
+   * 同时只有一个线程写入失效记录
+   */
+  private final ReentrantLock flushLock = new ReentrantLock();
+
+  /**
+   * 等待写入的记录，写入失败的也放回这里，下次轮询时重试
+   */
+  private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * 是否已经安排了轮询线程去写入
+   */
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  /**
+   * 已经处理完的最大序号，之前的记录都处理过或者放弃了
+   */
+  private long highWater;
+
+  /**
+   * 大于 highWater 并且已经处理过的序号
+   */
+  private final Set<Long> appliedAboveHighWater = new HashSet<>();
+
+  /**
+   * 当前等待的空洞
+   */
+  private long gapSeq = -1;
+
+  private long gapSinceMillis;
+
+  private long lastPurgeMillis;
+
+  private final LongAdder published = new LongAdder();
+
+  private final LongAdder invalidations = new LongAdder();
+
+  private ScheduledFuture<?> pollTask;
+
+  /*相应的get/set*/
+
+  public void setSqlSessionFactory(SqlSessionFactory sqlSessionFactory) {
+    this.sqlSessionFactory = sqlSessionFactory;
+  }
+
+  public void setDataSource(DataSource dataSource) {
+    if (dataSource instanceof TransactionAwareDataSourceProxy) {
+      // 失效记录要在提交之后单独写入，不能用事务感知的代理
+      this.dataSource = ((TransactionAwareDataSourceProxy) dataSource).getTargetDataSource();
+    } else {
+      this.dataSource = dataSource;
+    }
+  }
+
+  public void setTableName(String tableName) {
+    isTrue(tableName != null && tableName.matches("[A-Za-z_][A-Za-z0-9_.]*"), "Property 'tableName' is not a valid table name");
+    this.tableName = tableName;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public void setNodeId(String nodeId) {
+    isTrue(nodeId != null && !nodeId.isEmpty() && nodeId.length() <= 64, "Property 'nodeId' must be 1 to 64 characters");
+    this.nodeId = nodeId;
+  }
+
+  public void setPollIntervalMillis(long pollIntervalMillis) {
+    isTrue(pollIntervalMillis > 0, "Property 'pollIntervalMillis' must be greater than 0");
+    this.pollIntervalMillis = pollIntervalMillis;
+  }
+
+  public void setGapTimeoutMillis(long gapTimeoutMillis) {
+    isTrue(gapTimeoutMillis >= 0, "Property 'gapTimeoutMillis' must not be negative");
+    this.gapTimeoutMillis = gapTimeoutMillis;
+  }
+
+  public void setRetentionMillis(long retentionMillis) {
+    isTrue(retentionMillis >= 0, "Property 'retentionMillis' must not be negative");
+    this.retentionMillis = retentionMillis;
+  }
+
+  public void setCreateTable(boolean createTable) {
+    this.createTable = createTable;
+  }
+
+  /**
+   * 本节点写入的失效记录数
+   */
+  public long getPublished() {
+    return this.published.sum();
+  }
+
+  /**
+   * 因为别的节点的记录而清空本地缓存的次数
+   */
+  public long getInvalidations() {
+    return this.invalidations.sum();
+  }
+
+  /**
+   * 建表、确定起始序号，开始轮询并安装到 SqlSessionFactory 上
+   */
+  @Override
+  public void afterPropertiesSet() throws SQLException {
+    notNull(this.sqlSessionFactory, "Property 'sqlSessionFactory' is required");
+    if (this.dataSource == null) {
+      notNull(this.sqlSessionFactory.getConfiguration().getEnvironment(), "Property 'dataSource' is required");
+      setDataSource(this.sqlSessionFactory.getConfiguration().getEnvironment().getDataSource());
+    }
+    this.insertSql = "INSERT INTO " + this.tableName + " (CACHE_ID, NODE_ID, CREATED_AT) VALUES (?, ?, ?)";
+    this.pollSql = "SELECT SEQ, CACHE_ID, NODE_ID FROM " + this.tableName + " WHERE SEQ > ? ORDER BY SEQ";
+    if (this.createTable) {
+      createTableIfMissing();
+    }
+    // 只关心启动之后的写操作，之前的缓存本来就是空的；序号从 1 开始，空表时是 0
+    try (Connection connection = this.dataSource.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT MAX(SEQ) FROM " + this.tableName)) {
+      this.highWater = rs.next() ? rs.getLong(1) : 0L;
+    }
+    INVALIDATORS.put(this.sqlSessionFactory, this);
+    this.pollTask = Poller.EXECUTOR.scheduleWithFixedDelay(this::pollQuietly,
+        this.pollIntervalMillis, this.pollIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 停止轮询并卸载
+   */
+  @Override
+  public void destroy() {
+    INVALIDATORS.remove(this.sqlSessionFactory, this);
+    if (this.pollTask != null) {
+      this.pollTask.cancel(false);
+    }
+    // 还没写入的记录尽量写掉
+    flushQuietly();
+  }
+
+  /**
+   * 工厂上安装的实例，没有返回 null
+   */
+  static ClusterCacheInvalidator forSessionFactory(SqlSessionFactory sessionFactory) {
+    return INVALIDATORS.isEmpty() ? null : INVALIDATORS.get(sessionFactory);
+  }
+
+  /**
+   * SqlSession 方法调用会清空哪个二级缓存，不影响缓存时返回 null
+   */
+  String dirtyCache(Object[] args) {
+    if (args == null || args.length == 0 || !(args[0] instanceof String)) {
+      return null;
+    }
+    Configuration configuration = this.sqlSessionFactory.getConfiguration();
+    String statement = (String) args[0];
+    if (!configuration.hasStatement(statement, false)) {
+      return null;
+    }
+    MappedStatement ms = configuration.getMappedStatement(statement, false);
+    Cache cache = ms.getCache();
+    return cache != null && ms.isFlushCacheRequired() ? cache.getId() : null;
+  }
+
+  /**
+   * 登记失效记录，必须在写操作提交之后调用。
+   * 只是放进队列，由轮询线程用单独的连接写入，调用线程不碰连接池
+   */
+  void publish(Collection<String> cacheIds) {
+    if (cacheIds.isEmpty()) {
+      return;
+    }
+    this.pending.addAll(cacheIds);
+    if (this.flushScheduled.compareAndSet(false, true)) {
+      Poller.EXECUTOR.execute(this::flushQuietly);
+    }
+  }
+
+  /**
+   * 写入等待中的记录，测试里也可以直接调用。
+   * 写入失败不影响已经提交的事务，记录放回队列，下次轮询时重试
+   */
+  void flush() {
+    this.flushLock.lock();
+    try {
+      // 先清标记，写入期间新登记的记录会再安排一次
+      this.flushScheduled.set(false);
+      Set<String> cacheIds = new HashSet<>();
+      for (String cacheId = this.pending.poll(); cacheId != null; cacheId = this.pending.poll()) {
+        cacheIds.add(cacheId);
+      }
+      if (cacheIds.isEmpty()) {
+        return;
+      }
+      try {
+        insert(cacheIds);
+      } catch (SQLException e) {
+        LOGGER.error("Could not publish cache invalidation for " + cacheIds + ", will retry: " + e);
+        this.pending.addAll(cacheIds);
+      }
+    } finally {
+      this.flushLock.unlock();
+    }
+  }
+
+  /**
+   * 轮询一次，测试里也可以直接调用
+   */
+  void poll() throws SQLException {
+    if (!this.pollLock.tryLock()) {
+      return;
+    }
+    try {
+      flush();
+      List<Long> sequences = new ArrayList<>();
+      Set<String> stale = new HashSet<>();
+      try (Connection connection = this.dataSource.getConnection();
+          PreparedStatement ps = connection.prepareStatement(this.pollSql)) {
+        ps.setLong(1, this.highWater);
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            long seq = rs.getLong(1);
+            if (this.appliedAboveHighWater.contains(seq)) {
+              continue;
+            }
+            sequences.add(seq);
+            if (!this.nodeId.equals(rs.getString(3))) {
+              stale.add(rs.getString(2));
+            }
+          }
+        }
+      }
+      Configuration configuration = this.sqlSessionFactory.getConfiguration();
+      for (String cacheId : stale) {
+        if (configuration.hasCache(cacheId)) {
+          configuration.getCache(cacheId).clear();
+          this.invalidations.increment();
+          LOGGER.debug("Cleared cache '" + cacheId + "' invalidated by another node");
+        }
+      }
+      long now = System.currentTimeMillis();
+      advanceHighWater(sequences, now);
+      purgeIfDue(now);
+    } finally {
+      this.pollLock.unlock();
+    }
+  }
+
+  /**
+   * 连续处理过的序号推进 highWater，遇到空洞时等一段时间，超时就跳过
+   */
+  private void advanceHighWater(List<Long> sequences, long now) {
+    this.appliedAboveHighWater.addAll(sequences);
+    while (!this.appliedAboveHighWater.isEmpty()) {
+      long expected = this.highWater + 1;
+      if (this.appliedAboveHighWater.remove(expected)) {
+        this.highWater = expected;
+        continue;
+      }
+      if (this.gapSeq != expected) {
+        this.gapSeq = expected;
+        this.gapSinceMillis = now;
+      }
+      if (now - this.gapSinceMillis < this.gapTimeoutMillis) {
+        return;
+      }
+      LOGGER.debug("Skipping cache invalidation sequence " + expected + " that never committed");
+      this.highWater = expected;
+    }
+  }
+
+  private void purgeIfDue(long now) throws SQLException {
+    if (this.retentionMillis == 0 || now - this.lastPurgeMillis < this.retentionMillis / 10) {
+      return;
+    }
+    this.lastPurgeMillis = now;
+    try (Connection connection = this.dataSource.getConnection();
+        PreparedStatement ps = connection.prepareStatement("DELETE FROM " + this.tableName + " WHERE CREATED_AT < ?")) {
+      ps.setTimestamp(1, new Timestamp(now - this.retentionMillis));
+      ps.executeUpdate();
+      commitIfNecessary(connection);
+    }
+  }
+
+  private void insert(Collection<String> cacheIds) throws SQLException {
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    try (Connection connection = this.dataSource.getConnection();
+        PreparedStatement ps = connection.prepareStatement(this.insertSql)) {
+      for (String cacheId : cacheIds) {
+        ps.setString(1, cacheId);
+        ps.setString(2, this.nodeId);
+        ps.setTimestamp(3, now);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      commitIfNecessary(connection);
+    }
+    this.published.add(cacheIds.size());
+  }
+
+  private void createTableIfMissing() throws SQLException {
+    try (Connection connection = this.dataSource.getConnection()) {
+      try (Statement statement = connection.createStatement()) {
+        statement.executeQuery("SELECT COUNT(*) FROM " + this.tableName).close();
+        return;
+      } catch (SQLException e) {
+        LOGGER.debug("Creating cache invalidation table " + this.tableName);
+      }
+      if (!connection.getAutoCommit()) {
+        // 有的数据库查询失败后事务不可用
+        connection.rollback();
+      }
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate("CREATE TABLE " + this.tableName + " ("
+            + "SEQ BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1) PRIMARY KEY, "
+            + "CACHE_ID VARCHAR(255) NOT NULL, "
+            + "NODE_ID VARCHAR(64) NOT NULL, "
+            + "CREATED_AT TIMESTAMP NOT NULL)");
+      }
+      commitIfNecessary(connection);
+    }
+  }
+
+  private static void commitIfNecessary(Connection connection) throws SQLException {
+    if (!connection.getAutoCommit()) {
+      connection.commit();
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      LOGGER.warn("Cache invalidation flush on " + this.tableName + " failed: " + e);
+    }
+  }
+
+  private void pollQuietly() {
+    try {
+      poll();
+    } catch (Exception e) {
+      LOGGER.warn("Cache invalidation poll on " + this.tableName + " failed: " + e);
+    }
+  }
+
+  /**
+   * 执行轮询的守护线程，第一次用到时随类初始化创建
+   */
+  private static final class Poller {
+
+    static final ScheduledExecutorService EXECUTOR;
+
+    static {
+      CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mybatis-cache-invalidation-");
+      threadFactory.setDaemon(true);
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+      executor.setRemoveOnCancelPolicy(true);
+      EXECUTOR = executor;
+    }
+  }
+
+}
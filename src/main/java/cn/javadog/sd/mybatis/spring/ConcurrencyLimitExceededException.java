@@ -0,0 +1,21 @@
+package cn.javadog.sd.mybatis.spring;
+
+import org.springframework.dao.TransientDataAccessException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 14:10
+ *
+ * {@link ConcurrencyLimiter} 的并发数已满并且排队已满或者等待超时时抛出，说明数据库已经过载，调用被直接拒绝。
+ * 不是 TransientDataAccessResourceException，默认的 {@link RetryPolicy} 不会重试，避免在过载时放大请求
+ */
+@SuppressWarnings("squid:MaximumInheritanceDepth")
+public class ConcurrencyLimitExceededException extends TransientDataAccessException {
+
+  private static final long serialVersionUID = -3318224506921706472L;
+
+  public ConcurrencyLimitExceededException(String msg) {
+    super(msg);
+  }
+
+}
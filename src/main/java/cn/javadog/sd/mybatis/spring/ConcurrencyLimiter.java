@@ -0,0 +1,528 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+
+import javax.sql.DataSource;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cn.javadog.sd.mybatis.mapping.Environment;
+import cn.javadog.sd.mybatis.session.SqlSession;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.spring.transaction.Deadline;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.datasource.TransactionAwareDataSourceProxy;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 14:20
+ *
+ * 每个 DataSource 一个的自适应并发限制(舱壁)。
+ * 数据库变慢时，所有请求线程都挤进连接池排队，延迟越来越高，吞吐反而下降。限制同时访问数据库的调用数，
+ * 超出的调用直接失败或者有限地排队，让数据库始终工作在吞吐最高的并发附近。
+ * <p>
+ * 在 {@link SqlSessionUtils#getSqlSession} 创建会话时取得许可：
+ * 1. 没有事务的调用，会话关闭时归还；
+ * 2. 事务中的调用，事务里第一次创建会话时取得，事务结束时归还，同一个事务之后的调用不再占用许可。
+ * <p>
+ * 限制值按 Vegas 算法调整：记录无负载时的最短占用时长 rttNoLoad，每次归还时用本次时长 rtt 估算排队的数量
+ * queue = limit * (1 - rttNoLoad / rtt)，排队很少就增大限制，排队太多就减小限制。
+ * 每 {@code probeInterval} 个样本重置一次 rttNoLoad，适应数据库基线的变化。
+ * <p>
+ * 并发已满时在线请求最多 {@code maxQueueSize} 个排队等待，最多等 {@code maxQueueWaitMillis} 毫秒(不超过当前的
+ * {@link Deadline})，否则抛出 {@link ConcurrencyLimitExceededException}。
+ * <p>
+ * 排队的调用按 {@link WorkloadClass} 分开排队，许可空出来时按权重轮流分配(stride 调度)：默认 OLTP:BATCH = 9:1，
+ * 争用时批处理让出连接，但仍然至少拿到 1/10 的许可，不会饿死。批处理对延迟不敏感，排队时间单独由 {@code batchQueueWaitMillis} 控制，
+ * 排队数也单独由 {@code batchMaxQueueSize} 限制(默认与 maxQueueSize 相同)：批处理等得久，共用一个上限的话很快就把队列占满，
+ * 在线请求连排队的机会都没有。队列上限大于 0 的类别才会排队，也才有优先级。作为Spring的bean声明即可：
+ * <pre class="code">
+ * {@code
+ *   <bean class="cn.javadog.sd.mybatis.spring.ConcurrencyLimiter">
+ *     <property name="dataSource" ref="dataSource" />
+ *     <property name="maxLimit" value="50" />
+ *     <property name="maxQueueSize" value="100" />
+ *   </bean>
+ * }
+ * </pre>
+ * 注意：事务挂起(REQUIRES_NEW)时外层事务的许可不会归还，限制很小时内层事务可能等不到许可
+ */
+public class ConcurrencyLimiter implements InitializingBean, DisposableBean {
+
+  private static final Log LOGGER = LogFactory.getLog(ConcurrencyLimiter.class);
+
+  /**
+   * 已安装的限制器，KEY 是 DataSource
+   */
+  private static final Map<DataSource, ConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+  private DataSource dataSource;
+
+  private int initialLimit = 20;
+
+  private int minLimit = 1;
+
+  private int maxLimit = 200;
+
+  /**
+   * 并发已满时最多排队的在线请求数，0 表示直接失败
+   */
+  private int maxQueueSize;
+
+  /**
+   * 并发已满时最多排队的批处理调用数，小于 0 时与 maxQueueSize 相同
+   */
+  private int batchMaxQueueSize = -1;
+
+  /**
+   * 排队最多等待的时间，毫秒
+   */
+  private long maxQueueWaitMillis = 100L;
+
+  /**
+   * 批处理排队最多等待的时间，毫秒
+   */
+  private long batchQueueWaitMillis = 5000L;
+
+  /**
+   * 每多少个样本重置一次 rttNoLoad
+   */
+  private int probeInterval = 1000;
+
+  /**
+   * 没有事务的会话到许可，会话关闭时归还
+   */
+  private final Map<SqlSession, Permit> sessionPermits = new ConcurrentHashMap<>();
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /*以下状态都由 lock 保护*/
+
+  /**
+   * 每个工作负载类别的等待队列
+   */
+  private final Map<WorkloadClass, WorkloadQueue> queues = new EnumMap<>(WorkloadClass.class);
+
+  private double limit;
+
+  private int inFlight;
+
+  private int queued;
+
+  private long rttNoLoad;
+
+  private int samples;
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  public ConcurrencyLimiter() {
+    this.queues.put(WorkloadClass.OLTP, new WorkloadQueue(9));
+    this.queues.put(WorkloadClass.BATCH, new WorkloadQueue(1));
+  }
+
+  /*相应的get/set*/
+
+  public void setDataSource(DataSource dataSource) {
+    // 与 SqlSessionFactoryBean 一样，使用代理的目标数据源
+    if (dataSource instanceof TransactionAwareDataSourceProxy) {
+      this.dataSource = ((TransactionAwareDataSourceProxy) dataSource).getTargetDataSource();
+    } else {
+      this.dataSource = dataSource;
+    }
+  }
+
+  public void setInitialLimit(int initialLimit) {
+    this.initialLimit = initialLimit;
+  }
+
+  public void setMinLimit(int minLimit) {
+    this.minLimit = minLimit;
+  }
+
+  public void setMaxLimit(int maxLimit) {
+    this.maxLimit = maxLimit;
+  }
+
+  public void setMaxQueueSize(int maxQueueSize) {
+    isTrue(maxQueueSize >= 0, "Property 'maxQueueSize' must not be negative");
+    this.maxQueueSize = maxQueueSize;
+  }
+
+  /**
+   * 设置最多排队的批处理调用数，不设置时与 maxQueueSize 相同
+   */
+  public void setBatchMaxQueueSize(int batchMaxQueueSize) {
+    isTrue(batchMaxQueueSize >= 0, "Property 'batchMaxQueueSize' must not be negative");
+    this.batchMaxQueueSize = batchMaxQueueSize;
+  }
+
+  public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+    this.maxQueueWaitMillis = maxQueueWaitMillis;
+  }
+
+  public void setBatchQueueWaitMillis(long batchQueueWaitMillis) {
+    this.batchQueueWaitMillis = batchQueueWaitMillis;
+  }
+
+  public void setOltpWeight(int oltpWeight) {
+    isTrue(oltpWeight > 0, "Property 'oltpWeight' must be positive");
+    this.queues.get(WorkloadClass.OLTP).weight = oltpWeight;
+  }
+
+  public void setBatchWeight(int batchWeight) {
+    isTrue(batchWeight > 0, "Property 'batchWeight' must be positive");
+    this.queues.get(WorkloadClass.BATCH).weight = batchWeight;
+  }
+
+  public void setProbeInterval(int probeInterval) {
+    isTrue(probeInterval > 0, "Property 'probeInterval' must be positive");
+    this.probeInterval = probeInterval;
+  }
+
+  /**
+   * 当前的并发限制
+   */
+  public int getLimit() {
+    this.lock.lock();
+    try {
+      return (int) this.limit;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * 正在占用许可的调用数
+   */
+  public int getInFlight() {
+    this.lock.lock();
+    try {
+      return this.inFlight;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * 正在排队的调用数
+   */
+  public int getQueued() {
+    this.lock.lock();
+    try {
+      return this.queued;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * 被拒绝的调用数
+   */
+  public long getRejected() {
+    return this.rejected.get();
+  }
+
+  /**
+   * 安装到 DataSource 上
+   */
+  @Override
+  public void afterPropertiesSet() {
+    notNull(this.dataSource, "Property 'dataSource' is required");
+    isTrue(this.minLimit > 0 && this.minLimit <= this.maxLimit, "Property 'minLimit' must be between 1 and 'maxLimit'");
+    this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, this.initialLimit));
+    LIMITERS.put(this.dataSource, this);
+  }
+
+  /**
+   * 卸载
+   */
+  @Override
+  public void destroy() {
+    LIMITERS.remove(this.dataSource, this);
+  }
+
+  /**
+   * 工厂的数据源上安装的限制器，没有返回 null
+   */
+  static ConcurrencyLimiter forSessionFactory(SqlSessionFactory sessionFactory) {
+    if (LIMITERS.isEmpty()) {
+      return null;
+    }
+    Environment environment = sessionFactory.getConfiguration().getEnvironment();
+    return environment == null ? null : LIMITERS.get(environment.getDataSource());
+  }
+
+  /**
+   * 创建会话之前按当前线程的 {@link WorkloadClass} 取得许可，当前事务已经取得过许可时返回 null
+   *
+   * @throws ConcurrencyLimitExceededException 并发已满，排队已满或者等待超时
+   */
+  Permit acquire() {
+    if (TransactionSynchronizationManager.isSynchronizationActive() && TransactionSynchronizationManager.hasResource(this)) {
+      return null;
+    }
+    WorkloadClass workloadClass = WorkloadClass.current();
+    this.lock.lock();
+    try {
+      // 有人在排队时不能插队
+      if (this.inFlight < (int) this.limit && this.queued == 0) {
+        return newPermit();
+      }
+      WorkloadQueue queue = this.queues.get(workloadClass);
+      // 每个类别单独限制排队数，批处理排满了也不影响在线请求排队
+      int maxSize = workloadClass == WorkloadClass.BATCH && this.batchMaxQueueSize >= 0 ? this.batchMaxQueueSize : this.maxQueueSize;
+      if (queue.waiters.size() >= maxSize) {
+        throw reject(workloadClass, "queue is full");
+      }
+      long waitNanos = TimeUnit.MILLISECONDS.toNanos(
+          workloadClass == WorkloadClass.BATCH ? this.batchQueueWaitMillis : this.maxQueueWaitMillis);
+      Deadline deadline = Deadline.current();
+      if (deadline != null) {
+        waitNanos = Math.min(waitNanos, deadline.remainingNanos());
+      }
+      Waiter waiter = new Waiter(this.lock.newCondition());
+      if (queue.waiters.isEmpty()) {
+        catchUp(queue);
+      }
+      queue.waiters.add(waiter);
+      this.queued++;
+      try {
+        while (waiter.permit == null) {
+          if (waitNanos <= 0) {
+            dequeue(queue, waiter);
+            throw reject(workloadClass, "timed out waiting in queue");
+          }
+          waitNanos = waiter.condition.awaitNanos(waitNanos);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (waiter.permit == null) {
+          dequeue(queue, waiter);
+          throw reject(workloadClass, "interrupted while waiting in queue");
+        }
+      }
+      return waiter.permit;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * 会话已经创建，许可交给事务或者会话持有
+   */
+  void bind(SqlSession session, Permit permit, boolean transactional) {
+    if (transactional) {
+      TransactionSynchronizationManager.bindResource(this, permit);
+      TransactionSynchronizationManager.registerSynchronization(new PermitSynchronization(permit));
+    } else {
+      this.sessionPermits.put(session, permit);
+    }
+  }
+
+  /**
+   * 没有事务的会话关闭，归还它的许可
+   */
+  void release(SqlSession session) {
+    Permit permit = this.sessionPermits.remove(session);
+    if (permit != null) {
+      permit.release();
+    }
+  }
+
+  /**
+   * 按 Vegas 算法调整限制，调用方持有 lock
+   *
+   * @param rtt 占用许可的时长，纳秒
+   * @param inFlightAtStart 取得许可时的并发数
+   */
+  void onSample(long rtt, int inFlightAtStart) {
+    if (rtt <= 0) {
+      return;
+    }
+    if (++this.samples >= this.probeInterval) {
+      // 重新测量基线
+      this.samples = 0;
+      this.rttNoLoad = rtt;
+      return;
+    }
+    if (this.rttNoLoad == 0 || rtt < this.rttNoLoad) {
+      this.rttNoLoad = rtt;
+      return;
+    }
+    // 并发远没有用满时，延迟说明不了限制是否合适
+    if (inFlightAtStart * 2 < this.limit) {
+      return;
+    }
+    double threshold = Math.max(1.0, Math.log10(this.limit));
+    double queue = Math.ceil(this.limit * (1 - (double) this.rttNoLoad / rtt));
+    double newLimit;
+    if (queue <= threshold) {
+      newLimit = this.limit + 6 * threshold;
+    } else if (queue < 3 * threshold) {
+      newLimit = this.limit + threshold;
+    } else if (queue > 6 * threshold) {
+      newLimit = this.limit - threshold;
+    } else {
+      return;
+    }
+    newLimit = Math.max(this.minLimit, Math.min(this.maxLimit, newLimit));
+    if ((int) newLimit != (int) this.limit) {
+      LOGGER.debug("Concurrency limit changed from " + (int) this.limit + " to " + (int) newLimit
+          + ", rtt " + TimeUnit.NANOSECONDS.toMicros(rtt) + " us, no load rtt " + TimeUnit.NANOSECONDS.toMicros(this.rttNoLoad) + " us");
+    }
+    this.limit = newLimit;
+  }
+
+  /**
+   * 把空出来的许可分给排队的调用，每次分给 served / weight 最小的类别，调用方持有 lock
+   */
+  private void dispatch() {
+    while (this.queued > 0 && this.inFlight < (int) this.limit) {
+      WorkloadQueue next = null;
+      for (WorkloadQueue queue : this.queues.values()) {
+        if (!queue.waiters.isEmpty() && (next == null || queue.served * next.weight < next.served * queue.weight)) {
+          next = queue;
+        }
+      }
+      Waiter waiter = next.waiters.poll();
+      this.queued--;
+      next.served++;
+      waiter.permit = newPermit();
+      waiter.condition.signal();
+    }
+  }
+
+  /**
+   * 类别从空闲变成排队时，把它的进度追到其它排队类别的水平，空闲期间少用的份额不能攒下来一次用掉
+   */
+  private void catchUp(WorkloadQueue idle) {
+    for (WorkloadQueue queue : this.queues.values()) {
+      if (!queue.waiters.isEmpty()) {
+        idle.served = Math.max(idle.served, queue.served * idle.weight / queue.weight);
+      }
+    }
+  }
+
+  private void dequeue(WorkloadQueue queue, Waiter waiter) {
+    queue.waiters.remove(waiter);
+    this.queued--;
+  }
+
+  private Permit newPermit() {
+    this.inFlight++;
+    return new Permit(this.inFlight);
+  }
+
+  private ConcurrencyLimitExceededException reject(WorkloadClass workloadClass, String reason) {
+    this.rejected.incrementAndGet();
+    return new ConcurrencyLimitExceededException("Concurrency limit " + (int) this.limit + " reached, " + workloadClass + " call " + reason);
+  }
+
+  /**
+   * 一个许可，只能归还一次
+   */
+  final class Permit {
+
+    private final long startNanos = System.nanoTime();
+
+    private final int inFlightAtStart;
+
+    private boolean released;
+
+    private Permit(int inFlightAtStart) {
+      this.inFlightAtStart = inFlightAtStart;
+    }
+
+    void release() {
+      long rtt = System.nanoTime() - this.startNanos;
+      ReentrantLock lock = ConcurrencyLimiter.this.lock;
+      lock.lock();
+      try {
+        if (this.released) {
+          return;
+        }
+        this.released = true;
+        ConcurrencyLimiter.this.inFlight--;
+        onSample(rtt, this.inFlightAtStart);
+        dispatch();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * 一个工作负载类别的等待队列
+   */
+  private static final class WorkloadQueue {
+
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+    private int weight;
+
+    /**
+     * 已经分到的许可数
+     */
+    private long served;
+
+    WorkloadQueue(int weight) {
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * 排队的调用，许可直接交到它手上
+   */
+  private static final class Waiter {
+
+    private final Condition condition;
+
+    private Permit permit;
+
+    Waiter(Condition condition) {
+      this.condition = condition;
+    }
+  }
+
+  /**
+   * 事务结束时归还许可，事务挂起时从线程上解绑
+   */
+  private final class PermitSynchronization extends TransactionSynchronizationAdapter {
+
+    private final Permit permit;
+
+    PermitSynchronization(Permit permit) {
+      this.permit = permit;
+    }
+
+    @Override
+    public void suspend() {
+      TransactionSynchronizationManager.unbindResourceIfPossible(ConcurrencyLimiter.this);
+    }
+
+    @Override
+    public void resume() {
+      TransactionSynchronizationManager.bindResource(ConcurrencyLimiter.this, this.permit);
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+      TransactionSynchronizationManager.unbindResourceIfPossible(ConcurrencyLimiter.this);
+      this.permit.release();
+    }
+  }
+
+}
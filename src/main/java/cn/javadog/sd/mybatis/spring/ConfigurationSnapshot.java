@@ -0,0 +1,1419 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import cn.javadog.sd.mybatis.builder.StaticSqlSource;
+import cn.javadog.sd.mybatis.executor.keygen.Jdbc3KeyGenerator;
+import cn.javadog.sd.mybatis.executor.keygen.KeyGenerator;
+import cn.javadog.sd.mybatis.executor.keygen.NoKeyGenerator;
+import cn.javadog.sd.mybatis.mapping.BoundSql;
+import cn.javadog.sd.mybatis.mapping.CacheBuilder;
+import cn.javadog.sd.mybatis.mapping.Discriminator;
+import cn.javadog.sd.mybatis.mapping.MappedStatement;
+import cn.javadog.sd.mybatis.mapping.ParameterMap;
+import cn.javadog.sd.mybatis.mapping.ParameterMapping;
+import cn.javadog.sd.mybatis.mapping.ParameterMode;
+import cn.javadog.sd.mybatis.mapping.ResultFlag;
+import cn.javadog.sd.mybatis.mapping.ResultMap;
+import cn.javadog.sd.mybatis.mapping.ResultMapping;
+import cn.javadog.sd.mybatis.mapping.ResultSetType;
+import cn.javadog.sd.mybatis.mapping.SqlCommandType;
+import cn.javadog.sd.mybatis.mapping.SqlSource;
+import cn.javadog.sd.mybatis.mapping.StatementType;
+import cn.javadog.sd.mybatis.parsing.PropertyParser;
+import cn.javadog.sd.mybatis.parsing.XNode;
+import cn.javadog.sd.mybatis.parsing.XPathParser;
+import cn.javadog.sd.mybatis.scripting.LanguageDriver;
+import cn.javadog.sd.mybatis.scripting.defaults.RawSqlSource;
+import cn.javadog.sd.mybatis.scripting.xmltags.ChooseSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.DynamicSqlSource;
+import cn.javadog.sd.mybatis.scripting.xmltags.ForEachSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.IfSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.MixedSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.SetSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.SqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.StaticTextSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.TextSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.TrimSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.VarDeclSqlNode;
+import cn.javadog.sd.mybatis.scripting.xmltags.WhereSqlNode;
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.support.cache.Cache;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import cn.javadog.sd.mybatis.support.type.JdbcType;
+import cn.javadog.sd.mybatis.support.type.TypeHandler;
+import cn.javadog.sd.mybatis.support.type.TypeHandlerRegistry;
+import org.springframework.beans.BeanUtils;
+import org.springframework.core.io.Resource;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * @author 余勇
+ * @date 2019-12-25 17:00
+ *
+ * mapper 文件解析结果的磁盘快照，由 {@link SqlSessionFactoryBean#setSnapshotDirectory} 开启。
+ * <p>
+ * 冷启动正常解析所有 mapper 文件，完成后把这一阶段新增到 Configuration 里的 statement、resultMap、parameterMap、
+ * 二级缓存配置、sql 片段、mapper 接口绑定写成紧凑的二进制文件，文件名带上全部输入(配置文件、mapper 文件的内容以及影响解析的设置)
+ * 的 SHA-256。下次启动输入完全一致时，用内存映射读入快照，通过各个 Builder 直接重建对象，跳过 XML 的解析和 XPath 求值。
+ * <p>
+ * 解析结果还取决于 Java 代码：类型处理器和别名在计算哈希时已经注册，它们的类文件和别名表计入哈希；
+ * mapper 接口(连同它的父接口)、解析出来的 javaType、类型处理器、语言驱动要解析完才知道，
+ * 写快照时把这些类文件的 SHA-256 记在文件末尾，读入时逐个比对，有任何一个变了快照作废。
+ * <p>
+ * 快照只覆盖能被如实重建的内容：StaticSqlSource/RawSqlSource/DynamicSqlSource 及 MyBatis 自带的 SqlNode，
+ * NoKeyGenerator/Jdbc3KeyGenerator。遇到 selectKey、ProviderSqlSource、自定义 SqlNode、注解声明的缓存或者还有未完成的解析，
+ * 就不写快照，每次都正常解析。别名照常由 typeAliasesPackage 扫描注册，不在快照里。
+ * 快照不存在、校验不通过、读取或者装配失败，都会回退到正常解析，绝不影响启动。
+ * 装配先在一个临时的 Configuration 上演练一遍，全部成功之后才注册到真正的 Configuration，失败时后者不会被改动。
+ * <p>
+ * 写快照时要通过反射读取 DynamicSqlSource、TrimSqlNode 等类的私有字段，文件头里记下 MyBatis 核心的版本和这些类的字段布局，
+ * 与当前运行的核心不一致时快照作废。
+ */
+final class ConfigurationSnapshot {
+
+  private static final Log LOGGER = LogFactory.getLog(ConfigurationSnapshot.class);
+
+  /**
+   * 文件头魔数，"MBSS"
+   */
+  private static final int MAGIC = 0x4d425353;
+
+  /**
+   * 格式版本，格式变化时加一，同时也参与内容哈希
+   */
+  private static final int VERSION = 3;
+
+  /**
+   * 通过反射读取私有字段的核心类
+   */
+  private static final Class<?>[] REFLECTED_TYPES = { DynamicSqlSource.class, StaticTextSqlNode.class, TextSqlNode.class,
+      MixedSqlNode.class, IfSqlNode.class, TrimSqlNode.class, ForEachSqlNode.class, ChooseSqlNode.class, VarDeclSqlNode.class };
+
+  /**
+   * 当前 MyBatis 核心的版本，加上被反射读取的类的字段布局，SNAPSHOT 版本没有版本号时也能发现变化
+   */
+  private static final String CORE_VERSION = coreVersion();
+
+  private static final String SUFFIX = ".snapshot";
+
+  /*SqlSource 的类型*/
+
+  private static final byte SOURCE_STATIC = 1;
+  private static final byte SOURCE_DYNAMIC = 2;
+
+  /*SqlNode 的类型*/
+
+  private static final byte NODE_NULL = 0;
+  private static final byte NODE_STATIC_TEXT = 1;
+  private static final byte NODE_TEXT = 2;
+  private static final byte NODE_MIXED = 3;
+  private static final byte NODE_IF = 4;
+  private static final byte NODE_TRIM = 5;
+  private static final byte NODE_WHERE = 6;
+  private static final byte NODE_SET = 7;
+  private static final byte NODE_FOREACH = 8;
+  private static final byte NODE_CHOOSE = 9;
+  private static final byte NODE_BIND = 10;
+
+  /*KeyGenerator 的类型*/
+
+  private static final byte KEY_NONE = 0;
+  private static final byte KEY_JDBC3 = 1;
+
+  /**
+   * 快照所在目录
+   */
+  private final Path directory;
+
+  /**
+   * 文件名前缀，一般是 SqlSessionFactoryBean 的 beanName，写新快照时删掉同前缀的旧快照
+   */
+  private final String prefix;
+
+  /**
+   * 全部输入的内容哈希
+   */
+  private final String hash;
+
+  ConfigurationSnapshot(Path directory, String prefix, String hash) {
+    this.directory = directory;
+    this.prefix = prefix;
+    this.hash = hash;
+  }
+
+  /**
+   * 快照文件
+   */
+  Path getFile() {
+    return this.directory.resolve(this.prefix + "-" + this.hash + SUFFIX);
+  }
+
+  /**
+   * 计算全部输入的 SHA-256：配置文件和 mapper 文件的描述与内容、Configuration 中影响解析结果的设置、
+   * 已注册的别名和类型处理器的类文件，以及调用方给的其它设置
+   */
+  static String contentHash(Resource configLocation, Resource[] mapperLocations, Configuration configuration,
+      Object... settings) throws IOException {
+    MessageDigest digest = sha256();
+    update(digest, VERSION);
+    update(digest, CORE_VERSION);
+    update(digest, configuration.getDatabaseId());
+    update(digest, configuration.isUseGeneratedKeys());
+    update(digest, configuration.isUseActualParamName());
+    update(digest, configuration.isLazyLoadingEnabled());
+    update(digest, configuration.getDefaultStatementTimeout());
+    update(digest, configuration.getDefaultFetchSize());
+    update(digest, configuration.getDefaultResultSetType());
+    update(digest, configuration.getDefaultScriptingLanguageInstance().getClass().getName());
+    update(digest, configuration.getVariables() == null ? null : new TreeMap<>(configuration.getVariables()));
+    for (Object setting : settings) {
+      update(digest, setting);
+    }
+    Map<String, String> aliases = new TreeMap<>();
+    configuration.getTypeAliasRegistry().getTypeAliases().forEach((alias, type) -> aliases.put(alias, type.getName()));
+    update(digest, aliases);
+    // typeHandlersPackage 扫出来的类型处理器，@MappedTypes 等注解决定了解析时选中哪个处理器
+    Map<String, Class<?>> typeHandlers = new TreeMap<>();
+    for (TypeHandler<?> typeHandler : configuration.getTypeHandlerRegistry().getTypeHandlers()) {
+      if (typeHandler.getClass().getClassLoader() != null) {
+        typeHandlers.put(typeHandler.getClass().getName(), typeHandler.getClass());
+      }
+    }
+    for (Class<?> type : typeHandlers.values()) {
+      update(digest, type.getName());
+      update(digest, classDigest(type));
+    }
+    if (configLocation != null) {
+      update(digest, configLocation);
+    }
+    for (Resource mapperLocation : mapperLocations) {
+      if (mapperLocation != null) {
+        update(digest, mapperLocation);
+      }
+    }
+    return hex(digest.digest());
+  }
+
+  /**
+   * 类文件内容的 SHA-256，找不到类文件(运行时生成的类)时返回 null
+   */
+  static String classDigest(Class<?> type) throws IOException {
+    String resource = ClassUtils.convertClassNameToResourcePath(type.getName()) + ClassUtils.CLASS_FILE_SUFFIX;
+    InputStream classFile = type.getClassLoader().getResourceAsStream(resource);
+    if (classFile == null) {
+      return null;
+    }
+    MessageDigest digest = sha256();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = new DigestInputStream(classFile, digest)) {
+      while (in.read(buffer) != -1) {
+        // 读的同时更新摘要
+      }
+    }
+    return hex(digest.digest());
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static String coreVersion() {
+    List<String> fields = new ArrayList<>();
+    for (Class<?> type : REFLECTED_TYPES) {
+      for (Field field : type.getDeclaredFields()) {
+        fields.add(type.getName() + "." + field.getName() + ":" + field.getType().getName());
+      }
+    }
+    fields.sort(null);
+    return Configuration.class.getPackage().getImplementationVersion() + "/" + Integer.toHexString(fields.hashCode());
+  }
+
+  private static void update(MessageDigest digest, Object value) {
+    digest.update(String.valueOf(value).getBytes(UTF_8));
+    digest.update((byte) 0);
+  }
+
+  private static void update(MessageDigest digest, Resource resource) throws IOException {
+    update(digest, resource.getDescription());
+    byte[] buffer = new byte[8192];
+    try (InputStream in = new DigestInputStream(resource.getInputStream(), digest)) {
+      while (in.read(buffer) != -1) {
+        // 读的同时更新摘要
+      }
+    }
+    digest.update((byte) 0);
+  }
+
+  /**
+   * 快照存在就读入并装配到 configuration，返回 true；不存在或无法使用返回 false，由调用方正常解析。
+   * 读取、重建以及在临时 Configuration 上的演练都在装配之前完成，任何一步失败 configuration 都不会被改动
+   */
+  boolean restore(Configuration configuration) throws IOException {
+    Path file = getFile();
+    if (!Files.isRegularFile(file)) {
+      return false;
+    }
+    Restored restored;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      restored = new Reader(configuration, buffer).read(this.hash);
+    } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+      LOGGER.warn("Ignoring unusable configuration snapshot '" + file + "': " + e);
+      return false;
+    }
+    String conflict = restored.findConflict(configuration);
+    if (conflict != null) {
+      LOGGER.warn("Ignoring configuration snapshot '" + file + "': " + conflict + " is already configured");
+      return false;
+    }
+    try {
+      restored.applyTo(scratchConfiguration(configuration));
+    } catch (RuntimeException e) {
+      LOGGER.warn("Failed to apply configuration snapshot '" + file + "', parsing mapper files instead: " + e);
+      return false;
+    }
+    // 演练通过，剩下的只是注册，冲突在上面已经排除
+    restored.applyTo(configuration);
+    return true;
+  }
+
+  /**
+   * 演练装配用的临时 Configuration。自定义的 Configuration 子类可能重写了注册方法，能实例化时用同一个类
+   */
+  private static Configuration scratchConfiguration(Configuration configuration) {
+    Class<? extends Configuration> type = configuration.getClass();
+    Configuration scratch = type != Configuration.class && !type.isAnonymousClass() && ClassUtils.hasConstructor(type)
+        ? BeanUtils.instantiateClass(type) : new Configuration();
+    scratch.setVariables(configuration.getVariables());
+    return scratch;
+  }
+
+  /**
+   * 解析 mapper 文件之前调用，记下 configuration 里已有的内容，之后新增的部分就是要写进快照的
+   */
+  Capture capture(Configuration configuration) {
+    return new Capture(configuration);
+  }
+
+  /**
+   * 解析完成后写快照，内容不支持时只打 debug 日志，写文件失败只告警
+   */
+  void write(Capture capture, Configuration configuration, Resource[] mapperLocations) {
+    Path file = getFile();
+    byte[] content;
+    try {
+      content = new Writer(configuration, capture, mapperLocations).write(this.hash);
+    } catch (UnsupportedContentException e) {
+      LOGGER.debug("Configuration snapshot not written: " + e.getMessage());
+      return;
+    } catch (IOException | XMLStreamException | TransformerException | RuntimeException e) {
+      LOGGER.warn("Failed to create configuration snapshot: " + e);
+      return;
+    }
+    try {
+      Files.createDirectories(this.directory);
+      Path temp = Files.createTempFile(this.directory, this.prefix, ".tmp");
+      Files.write(temp, content);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      // 输入变了，旧快照不会再被命中
+      try (DirectoryStream<Path> stale = Files.newDirectoryStream(this.directory, this.prefix + "-*" + SUFFIX)) {
+        for (Path path : stale) {
+          if (!path.equals(file)) {
+            Files.deleteIfExists(path);
+          }
+        }
+      }
+      LOGGER.debug("Wrote configuration snapshot: '" + file + "' (" + content.length + " bytes)");
+    } catch (IOException e) {
+      LOGGER.warn("Failed to write configuration snapshot '" + file + "': " + e);
+    }
+  }
+
+  /**
+   * 解析 mapper 文件之前 configuration 中已有的内容
+   */
+  static final class Capture {
+
+    private final Set<String> statements;
+
+    private final Set<String> resultMaps;
+
+    private final Set<String> parameterMaps;
+
+    private final Set<String> caches;
+
+    private final Set<String> sqlFragments;
+
+    private final Set<Class<?>> mappers;
+
+    /**
+     * 解析之前就有未完成的元素，getMappedStatementNames() 会触发它们的解析，这种情况不做快照
+     */
+    private final boolean complete;
+
+    private Capture(Configuration configuration) {
+      this.complete = isComplete(configuration);
+      this.statements = this.complete ? new HashSet<>(configuration.getMappedStatementNames()) : new HashSet<>();
+      this.resultMaps = new HashSet<>(configuration.getResultMapNames());
+      this.parameterMaps = new HashSet<>(configuration.getParameterMapNames());
+      this.caches = new HashSet<>(configuration.getCacheNames());
+      this.sqlFragments = new HashSet<>(configuration.getSqlFragments().keySet());
+      this.mappers = new HashSet<>(configuration.getMapperRegistry().getMappers());
+    }
+  }
+
+  private static boolean isComplete(Configuration configuration) {
+    return configuration.getIncompleteStatements().isEmpty() && configuration.getIncompleteResultMaps().isEmpty()
+        && configuration.getIncompleteCacheRefs().isEmpty() && configuration.getIncompleteMethods().isEmpty();
+  }
+
+  /**
+   * 取出 StrictMap 中以完整 id 注册的对象，跳过短名称和有歧义的条目
+   */
+  private static <T> List<T> added(Collection<String> names, Set<String> before, Function<String, T> getter,
+      Function<T, String> id) {
+    List<T> result = new ArrayList<>();
+    for (String name : names) {
+      if (before.contains(name)) {
+        continue;
+      }
+      T value;
+      try {
+        value = getter.apply(name);
+      } catch (IllegalArgumentException e) {
+        // 有歧义的短名称
+        continue;
+      }
+      if (value != null && name.equals(id.apply(value))) {
+        result.add(value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * 写快照
+   */
+  private static final class Writer {
+
+    private final Configuration configuration;
+
+    private final Capture capture;
+
+    private final Resource[] mapperLocations;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+
+    private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+    /**
+     * 快照内容依赖的类，写在文件末尾，连同类文件的摘要
+     */
+    private final Map<String, Class<?>> classes = new TreeMap<>();
+
+    Writer(Configuration configuration, Capture capture, Resource[] mapperLocations) {
+      this.configuration = configuration;
+      this.capture = capture;
+      this.mapperLocations = mapperLocations;
+    }
+
+    byte[] write(String hash) throws IOException, XMLStreamException, TransformerException, UnsupportedContentException {
+      if (!this.capture.complete || !isComplete(this.configuration)) {
+        throw new UnsupportedContentException("there are incomplete statements, result maps or cache refs");
+      }
+      Configuration c = this.configuration;
+      List<MappedStatement> statements = added(c.getMappedStatementNames(), this.capture.statements,
+          name -> c.getMappedStatement(name, false), MappedStatement::getId);
+      List<ResultMap> resultMaps = added(c.getResultMapNames(), this.capture.resultMaps, c::getResultMap, ResultMap::getId);
+      List<ParameterMap> parameterMaps = added(c.getParameterMapNames(), this.capture.parameterMaps, c::getParameterMap,
+          ParameterMap::getId);
+      List<Cache> caches = added(c.getCacheNames(), this.capture.caches, c::getCache, Cache::getId);
+      List<Class<?>> mappers = new ArrayList<>(c.getMapperRegistry().getMappers());
+      mappers.removeAll(this.capture.mappers);
+
+      // 缓存的配置在构建后拿不到，从 XML 里再读一遍 <cache> 和 <cache-ref>
+      Map<String, CacheSpec> cacheSpecs = new LinkedHashMap<>();
+      Map<String, String> cacheRefs = new LinkedHashMap<>();
+      Set<String> resources = new LinkedHashSet<>();
+      for (Resource mapperLocation : this.mapperLocations) {
+        if (mapperLocation != null) {
+          scanCaches(mapperLocation, cacheSpecs, cacheRefs);
+          resources.add(mapperLocation.toString());
+        }
+      }
+      for (Cache cache : caches) {
+        if (!cacheSpecs.containsKey(cache.getId())) {
+          throw new UnsupportedContentException("cache '" + cache.getId() + "' was not declared by a <cache> element");
+        }
+      }
+      for (Class<?> mapper : mappers) {
+        resources.add("namespace:" + mapper.getName());
+        resources.add(mapper.toString());
+        // 注解声明的 statement 也在快照里，父接口的方法同样会被解析
+        ClassUtils.getAllInterfacesForClassAsSet(mapper).forEach(this::track);
+      }
+
+      this.out.writeInt(MAGIC);
+      this.out.writeInt(VERSION);
+      writeString(CORE_VERSION);
+      writeString(hash);
+
+      this.out.writeInt(caches.size());
+      for (Cache cache : caches) {
+        cacheSpecs.get(cache.getId()).write(this);
+      }
+      writeMap(cacheRefs);
+
+      Map<String, String> fragments = new LinkedHashMap<>();
+      for (Map.Entry<String, XNode> fragment : c.getSqlFragments().entrySet()) {
+        // 跳过 StrictMap 里的短名称
+        if (fragment.getKey().contains(".") && !this.capture.sqlFragments.contains(fragment.getKey())) {
+          fragments.put(fragment.getKey(), toXml(fragment.getValue()));
+        }
+      }
+      writeMap(fragments);
+
+      this.out.writeInt(parameterMaps.size());
+      for (ParameterMap parameterMap : parameterMaps) {
+        writeParameterMap(parameterMap);
+      }
+      this.out.writeInt(resultMaps.size());
+      for (ResultMap resultMap : resultMaps) {
+        writeResultMap(resultMap);
+      }
+      this.out.writeInt(statements.size());
+      for (MappedStatement statement : statements) {
+        writeStatement(statement);
+      }
+      writeStrings(resources);
+      this.out.writeInt(mappers.size());
+      for (Class<?> mapper : mappers) {
+        writeClass(mapper);
+      }
+      this.out.writeInt(this.classes.size());
+      for (Class<?> type : this.classes.values()) {
+        String digest = classDigest(type);
+        if (digest == null) {
+          throw new UnsupportedContentException("no class file for " + type.getName());
+        }
+        writeString(type.getName());
+        writeString(digest);
+      }
+      this.out.flush();
+      return this.bytes.toByteArray();
+    }
+
+    private void scanCaches(Resource resource, Map<String, CacheSpec> cacheSpecs, Map<String, String> cacheRefs)
+        throws IOException, XMLStreamException {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      try (InputStream in = resource.getInputStream()) {
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+          String namespace = null;
+          CacheSpec current = null;
+          int depth = 0;
+          while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+              depth++;
+              String name = reader.getLocalName();
+              if (depth == 1) {
+                namespace = attribute(reader, "namespace");
+              } else if (depth == 2 && "cache".equals(name)) {
+                current = new CacheSpec(this.configuration, namespace, reader);
+                cacheSpecs.put(namespace, current);
+              } else if (depth == 2 && "cache-ref".equals(name)) {
+                cacheRefs.put(namespace, attribute(reader, "namespace"));
+              } else if (depth == 3 && current != null) {
+                String property = attribute(reader, "name");
+                String value = attribute(reader, "value");
+                if (property != null && value != null) {
+                  current.properties.setProperty(property, value);
+                }
+              }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+              if (depth == 2) {
+                current = null;
+              }
+              depth--;
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      }
+    }
+
+    private String attribute(XMLStreamReader reader, String name) {
+      String value = reader.getAttributeValue(null, name);
+      return value == null ? null : PropertyParser.parse(value, this.configuration.getVariables());
+    }
+
+    private void writeStatement(MappedStatement statement) throws IOException, UnsupportedContentException {
+      writeString(statement.getId());
+      writeString(statement.getResource());
+      writeEnum(statement.getSqlCommandType());
+      writeEnum(statement.getStatementType());
+      writeEnum(statement.getResultSetType());
+      writeInteger(statement.getFetchSize());
+      writeInteger(statement.getTimeout());
+      writeSqlSource(statement.getSqlSource());
+      writeClass(statement.getLang().getClass());
+      writeParameterMapReference(statement.getParameterMap());
+      this.out.writeInt(statement.getResultMaps().size());
+      for (ResultMap resultMap : statement.getResultMaps()) {
+        boolean registered = this.configuration.hasResultMap(resultMap.getId())
+            && this.configuration.getResultMap(resultMap.getId()) == resultMap;
+        this.out.writeBoolean(registered);
+        if (registered) {
+          writeString(resultMap.getId());
+        } else {
+          writeResultMap(resultMap);
+        }
+      }
+      writeString(statement.getCache() == null ? null : statement.getCache().getId());
+      this.out.writeBoolean(statement.isFlushCacheRequired());
+      this.out.writeBoolean(statement.isUseCache());
+      this.out.writeBoolean(statement.isResultOrdered());
+      KeyGenerator keyGenerator = statement.getKeyGenerator();
+      if (keyGenerator == null || keyGenerator instanceof NoKeyGenerator) {
+        this.out.writeByte(KEY_NONE);
+      } else if (keyGenerator instanceof Jdbc3KeyGenerator) {
+        this.out.writeByte(KEY_JDBC3);
+      } else {
+        throw new UnsupportedContentException("statement '" + statement.getId() + "' uses "
+            + keyGenerator.getClass().getSimpleName());
+      }
+      writeString(join(statement.getKeyProperties()));
+      writeString(join(statement.getKeyColumns()));
+      writeString(statement.getDatabaseId());
+      writeString(join(statement.getResultSets()));
+    }
+
+    private void writeParameterMapReference(ParameterMap parameterMap) throws IOException {
+      boolean registered = this.configuration.hasParameterMap(parameterMap.getId())
+          && this.configuration.getParameterMap(parameterMap.getId()) == parameterMap;
+      this.out.writeBoolean(registered);
+      if (registered) {
+        writeString(parameterMap.getId());
+      } else {
+        writeParameterMap(parameterMap);
+      }
+    }
+
+    private void writeParameterMap(ParameterMap parameterMap) throws IOException {
+      writeString(parameterMap.getId());
+      writeClass(parameterMap.getType());
+      writeParameterMappings(parameterMap.getParameterMappings());
+    }
+
+    private void writeParameterMappings(List<ParameterMapping> mappings) throws IOException {
+      this.out.writeInt(mappings.size());
+      for (ParameterMapping mapping : mappings) {
+        writeString(mapping.getProperty());
+        writeEnum(mapping.getMode());
+        writeClass(mapping.getJavaType());
+        writeEnum(mapping.getJdbcType());
+        writeInteger(mapping.getNumericScale());
+        writeClass(mapping.getTypeHandler() == null ? null : mapping.getTypeHandler().getClass());
+        writeString(mapping.getResultMapId());
+        writeString(mapping.getJdbcTypeName());
+        writeString(mapping.getExpression());
+      }
+    }
+
+    private void writeResultMap(ResultMap resultMap) throws IOException {
+      writeString(resultMap.getId());
+      writeClass(resultMap.getType());
+      Boolean autoMapping = resultMap.getAutoMapping();
+      this.out.writeByte(autoMapping == null ? -1 : autoMapping ? 1 : 0);
+      writeResultMappings(resultMap.getResultMappings());
+      Discriminator discriminator = resultMap.getDiscriminator();
+      this.out.writeBoolean(discriminator != null);
+      if (discriminator != null) {
+        writeResultMapping(discriminator.getResultMapping());
+        writeMap(discriminator.getDiscriminatorMap());
+      }
+    }
+
+    private void writeResultMappings(List<ResultMapping> mappings) throws IOException {
+      this.out.writeInt(mappings.size());
+      for (ResultMapping mapping : mappings) {
+        writeResultMapping(mapping);
+      }
+    }
+
+    private void writeResultMapping(ResultMapping mapping) throws IOException {
+      writeString(mapping.getProperty());
+      writeString(mapping.getColumn());
+      writeClass(mapping.getJavaType());
+      writeEnum(mapping.getJdbcType());
+      writeClass(mapping.getTypeHandler() == null ? null : mapping.getTypeHandler().getClass());
+      writeString(mapping.getNestedResultMapId());
+      writeString(mapping.getNestedQueryId());
+      writeStrings(mapping.getNotNullColumns());
+      writeString(mapping.getColumnPrefix());
+      this.out.writeInt(mapping.getFlags().size());
+      for (ResultFlag flag : mapping.getFlags()) {
+        writeEnum(flag);
+      }
+      writeResultMappings(mapping.getComposites());
+      writeString(mapping.getResultSet());
+      writeString(mapping.getForeignColumn());
+      this.out.writeBoolean(mapping.isLazy());
+    }
+
+    private void writeSqlSource(SqlSource sqlSource) throws IOException, UnsupportedContentException {
+      Class<?> type = sqlSource.getClass();
+      if (type == StaticSqlSource.class || type == RawSqlSource.class) {
+        // 静态 SQL 与参数无关，用 null 参数就能拿到解析好的 SQL 和参数映射
+        BoundSql boundSql = sqlSource.getBoundSql(null);
+        this.out.writeByte(SOURCE_STATIC);
+        writeString(boundSql.getSql());
+        writeParameterMappings(boundSql.getParameterMappings());
+      } else if (type == DynamicSqlSource.class) {
+        this.out.writeByte(SOURCE_DYNAMIC);
+        writeSqlNode(field(DynamicSqlSource.class, sqlSource, "rootSqlNode"));
+      } else {
+        throw new UnsupportedContentException("unsupported SqlSource " + type.getName());
+      }
+    }
+
+    private void writeSqlNode(SqlNode node) throws IOException, UnsupportedContentException {
+      Class<?> type = node == null ? null : node.getClass();
+      if (type == null) {
+        this.out.writeByte(NODE_NULL);
+      } else if (type == StaticTextSqlNode.class) {
+        this.out.writeByte(NODE_STATIC_TEXT);
+        writeString(field(StaticTextSqlNode.class, node, "text"));
+      } else if (type == TextSqlNode.class) {
+        if (field(TextSqlNode.class, node, "injectionFilter") != null) {
+          throw new UnsupportedContentException("TextSqlNode with an injection filter");
+        }
+        this.out.writeByte(NODE_TEXT);
+        writeString(field(TextSqlNode.class, node, "text"));
+      } else if (type == MixedSqlNode.class) {
+        this.out.writeByte(NODE_MIXED);
+        writeSqlNodes(field(MixedSqlNode.class, node, "contents"));
+      } else if (type == IfSqlNode.class) {
+        this.out.writeByte(NODE_IF);
+        writeString(field(IfSqlNode.class, node, "test"));
+        writeSqlNode(field(IfSqlNode.class, node, "contents"));
+      } else if (type == WhereSqlNode.class || type == SetSqlNode.class) {
+        this.out.writeByte(type == WhereSqlNode.class ? NODE_WHERE : NODE_SET);
+        writeSqlNode(field(TrimSqlNode.class, node, "contents"));
+      } else if (type == TrimSqlNode.class) {
+        this.out.writeByte(NODE_TRIM);
+        writeString(field(TrimSqlNode.class, node, "prefix"));
+        writeString(joinOverrides(field(TrimSqlNode.class, node, "prefixesToOverride")));
+        writeString(field(TrimSqlNode.class, node, "suffix"));
+        writeString(joinOverrides(field(TrimSqlNode.class, node, "suffixesToOverride")));
+        writeSqlNode(field(TrimSqlNode.class, node, "contents"));
+      } else if (type == ForEachSqlNode.class) {
+        this.out.writeByte(NODE_FOREACH);
+        writeString(field(ForEachSqlNode.class, node, "collectionExpression"));
+        writeString(field(ForEachSqlNode.class, node, "index"));
+        writeString(field(ForEachSqlNode.class, node, "item"));
+        writeString(field(ForEachSqlNode.class, node, "open"));
+        writeString(field(ForEachSqlNode.class, node, "close"));
+        writeString(field(ForEachSqlNode.class, node, "separator"));
+        writeSqlNode(field(ForEachSqlNode.class, node, "contents"));
+      } else if (type == ChooseSqlNode.class) {
+        this.out.writeByte(NODE_CHOOSE);
+        writeSqlNodes(field(ChooseSqlNode.class, node, "ifSqlNodes"));
+        writeSqlNode(field(ChooseSqlNode.class, node, "defaultSqlNode"));
+      } else if (type == VarDeclSqlNode.class) {
+        this.out.writeByte(NODE_BIND);
+        writeString(field(VarDeclSqlNode.class, node, "name"));
+        writeString(field(VarDeclSqlNode.class, node, "expression"));
+      } else {
+        throw new UnsupportedContentException("unsupported SqlNode " + type.getName());
+      }
+    }
+
+    private void writeSqlNodes(List<SqlNode> nodes) throws IOException, UnsupportedContentException {
+      this.out.writeInt(nodes.size());
+      for (SqlNode node : nodes) {
+        writeSqlNode(node);
+      }
+    }
+
+    private void writeString(String value) throws IOException {
+      if (value == null) {
+        this.out.writeInt(-1);
+      } else {
+        byte[] encoded = value.getBytes(UTF_8);
+        this.out.writeInt(encoded.length);
+        this.out.write(encoded);
+      }
+    }
+
+    private void writeStrings(Collection<String> values) throws IOException {
+      this.out.writeInt(values.size());
+      for (String value : values) {
+        writeString(value);
+      }
+    }
+
+    private void writeMap(Map<String, String> values) throws IOException {
+      this.out.writeInt(values.size());
+      for (Map.Entry<String, String> entry : values.entrySet()) {
+        writeString(entry.getKey());
+        writeString(entry.getValue());
+      }
+    }
+
+    private void writeInteger(Integer value) throws IOException {
+      this.out.writeBoolean(value != null);
+      if (value != null) {
+        this.out.writeInt(value);
+      }
+    }
+
+    private void writeLong(Long value) throws IOException {
+      this.out.writeBoolean(value != null);
+      if (value != null) {
+        this.out.writeLong(value);
+      }
+    }
+
+    private void writeEnum(Enum<?> value) throws IOException {
+      writeString(value == null ? null : value.name());
+    }
+
+    private void writeClass(Class<?> type) throws IOException {
+      writeString(type == null ? null : type.getName());
+      track(type);
+    }
+
+    /**
+     * JDK 自己的类不会变，不用记
+     */
+    private void track(Class<?> type) {
+      while (type != null && type.isArray()) {
+        type = type.getComponentType();
+      }
+      if (type != null && type.getClassLoader() != null) {
+        this.classes.put(type.getName(), type);
+      }
+    }
+  }
+
+  /**
+   * 读快照。先把所有对象重建出来，全部成功后再由 {@link Restored#applyTo} 装配
+   */
+  private static final class Reader {
+
+    private final Configuration configuration;
+
+    private final ByteBuffer buffer;
+
+    private final ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+
+    private final Restored restored = new Restored();
+
+    Reader(Configuration configuration, ByteBuffer buffer) {
+      this.configuration = configuration;
+      this.buffer = buffer;
+    }
+
+    Restored read(String hash) throws IOException, ReflectiveOperationException {
+      if (this.buffer.getInt() != MAGIC || this.buffer.getInt() != VERSION) {
+        throw new IllegalStateException("snapshot header does not match");
+      }
+      String coreVersion = readString();
+      if (!CORE_VERSION.equals(coreVersion)) {
+        throw new IllegalStateException("snapshot was written by MyBatis core " + coreVersion + ", running " + CORE_VERSION);
+      }
+      if (!hash.equals(readString())) {
+        throw new IllegalStateException("snapshot header does not match");
+      }
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        Cache cache = CacheSpec.read(this).newCache();
+        this.restored.caches.put(cache.getId(), cache);
+      }
+      this.restored.cacheRefs.putAll(readMap());
+      for (Map.Entry<String, String> fragment : readMap().entrySet()) {
+        XNode node = new XPathParser(fragment.getValue(), false, this.configuration.getVariables(), null).evalNode("/sql");
+        this.restored.sqlFragments.put(fragment.getKey(), node);
+      }
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        ParameterMap parameterMap = readParameterMap();
+        this.restored.parameterMaps.put(parameterMap.getId(), parameterMap);
+      }
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        ResultMap resultMap = readResultMap();
+        this.restored.resultMaps.put(resultMap.getId(), resultMap);
+      }
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        this.restored.statements.add(readStatement());
+      }
+      this.restored.loadedResources.addAll(readStrings());
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        this.restored.mappers.add(readClass());
+      }
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        Class<?> type = readClass();
+        if (!readString().equals(classDigest(type))) {
+          throw new IllegalStateException(type.getName() + " has changed since the snapshot was written");
+        }
+      }
+      if (this.buffer.hasRemaining()) {
+        throw new IllegalStateException("unexpected trailing bytes");
+      }
+      return this.restored;
+    }
+
+    @SuppressWarnings("unchecked")
+    private MappedStatement readStatement() throws ReflectiveOperationException {
+      String id = readString();
+      String resource = readString();
+      SqlCommandType sqlCommandType = readEnum(SqlCommandType.class);
+      StatementType statementType = readEnum(StatementType.class);
+      ResultSetType resultSetType = readEnum(ResultSetType.class);
+      Integer fetchSize = readInteger();
+      Integer timeout = readInteger();
+      SqlSource sqlSource = readSqlSource();
+      LanguageDriver lang = languageDriver((Class<? extends LanguageDriver>) readClass());
+      ParameterMap parameterMap = this.buffer.get() != 0 ? parameterMap(readString()) : readParameterMap();
+      List<ResultMap> resultMaps = new ArrayList<>();
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        resultMaps.add(this.buffer.get() != 0 ? resultMap(readString()) : readResultMap());
+      }
+      String cacheId = readString();
+      MappedStatement.Builder builder = new MappedStatement.Builder(this.configuration, id, sqlSource, sqlCommandType)
+          .resource(resource)
+          .statementType(statementType)
+          .resultSetType(resultSetType)
+          .fetchSize(fetchSize)
+          .timeout(timeout)
+          .lang(lang)
+          .parameterMap(parameterMap)
+          .resultMaps(resultMaps)
+          .cache(cacheId == null ? null : cache(cacheId))
+          .flushCacheRequired(this.buffer.get() != 0)
+          .useCache(this.buffer.get() != 0)
+          .resultOrdered(this.buffer.get() != 0)
+          .keyGenerator(this.buffer.get() == KEY_JDBC3 ? Jdbc3KeyGenerator.INSTANCE : NoKeyGenerator.INSTANCE)
+          .keyProperty(readString())
+          .keyColumn(readString())
+          .databaseId(readString())
+          .resultSets(readString());
+      return builder.build();
+    }
+
+    private ParameterMap readParameterMap() throws ReflectiveOperationException {
+      String id = readString();
+      Class<?> type = readClass();
+      return new ParameterMap.Builder(this.configuration, id, type, readParameterMappings()).build();
+    }
+
+    private List<ParameterMapping> readParameterMappings() throws ReflectiveOperationException {
+      int size = this.buffer.getInt();
+      List<ParameterMapping> mappings = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        String property = readString();
+        ParameterMode mode = readEnum(ParameterMode.class);
+        Class<?> javaType = readClass();
+        JdbcType jdbcType = readEnum(JdbcType.class);
+        Integer numericScale = readInteger();
+        TypeHandler<?> typeHandler = typeHandler(javaType, jdbcType, readClass());
+        ParameterMapping.Builder builder = javaType == null
+            ? new ParameterMapping.Builder(this.configuration, property, typeHandler)
+            : new ParameterMapping.Builder(this.configuration, property, javaType);
+        mappings.add(builder
+            .mode(mode)
+            .jdbcType(jdbcType)
+            .numericScale(numericScale)
+            .typeHandler(typeHandler)
+            .resultMapId(readString())
+            .jdbcTypeName(readString())
+            .expression(readString())
+            .build());
+      }
+      return mappings;
+    }
+
+    private ResultMap readResultMap() throws ReflectiveOperationException {
+      String id = readString();
+      Class<?> type = readClass();
+      byte autoMapping = this.buffer.get();
+      List<ResultMapping> mappings = readResultMappings();
+      ResultMap.Builder builder = new ResultMap.Builder(this.configuration, id, type, mappings,
+          autoMapping < 0 ? null : autoMapping == 1);
+      if (this.buffer.get() != 0) {
+        ResultMapping resultMapping = readResultMapping();
+        builder.discriminator(new Discriminator.Builder(this.configuration, resultMapping, readMap()).build());
+      }
+      return builder.build();
+    }
+
+    private List<ResultMapping> readResultMappings() throws ReflectiveOperationException {
+      int size = this.buffer.getInt();
+      List<ResultMapping> mappings = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        mappings.add(readResultMapping());
+      }
+      return mappings;
+    }
+
+    private ResultMapping readResultMapping() throws ReflectiveOperationException {
+      ResultMapping.Builder builder = new ResultMapping.Builder(this.configuration, readString());
+      String column = readString();
+      Class<?> javaType = readClass();
+      JdbcType jdbcType = readEnum(JdbcType.class);
+      TypeHandler<?> typeHandler = typeHandler(javaType, jdbcType, readClass());
+      builder.column(column)
+          .javaType(javaType)
+          .jdbcType(jdbcType)
+          .typeHandler(typeHandler)
+          .nestedResultMapId(readString())
+          .nestedQueryId(readString())
+          .notNullColumns(new HashSet<>(readStrings()))
+          .columnPrefix(readString());
+      List<ResultFlag> flags = new ArrayList<>();
+      for (int i = this.buffer.getInt(); i > 0; i--) {
+        flags.add(readEnum(ResultFlag.class));
+      }
+      return builder.flags(flags)
+          .composites(readResultMappings())
+          .resultSet(readString())
+          .foreignColumn(readString())
+          .lazy(this.buffer.get() != 0)
+          .build();
+    }
+
+    private SqlSource readSqlSource() throws ReflectiveOperationException {
+      byte type = this.buffer.get();
+      if (type == SOURCE_STATIC) {
+        String sql = readString();
+        return new StaticSqlSource(this.configuration, sql, readParameterMappings());
+      } else if (type == SOURCE_DYNAMIC) {
+        return new DynamicSqlSource(this.configuration, readSqlNode());
+      }
+      throw new IllegalStateException("unknown SqlSource type " + type);
+    }
+
+    private SqlNode readSqlNode() {
+      byte type = this.buffer.get();
+      switch (type) {
+        case NODE_NULL:
+          return null;
+        case NODE_STATIC_TEXT:
+          return new StaticTextSqlNode(readString());
+        case NODE_TEXT:
+          return new TextSqlNode(readString());
+        case NODE_MIXED:
+          return new MixedSqlNode(readSqlNodes());
+        case NODE_IF: {
+          String test = readString();
+          return new IfSqlNode(readSqlNode(), test);
+        }
+        case NODE_WHERE:
+          return new WhereSqlNode(this.configuration, readSqlNode());
+        case NODE_SET:
+          return new SetSqlNode(this.configuration, readSqlNode());
+        case NODE_TRIM: {
+          String prefix = readString();
+          String prefixOverrides = readString();
+          String suffix = readString();
+          String suffixOverrides = readString();
+          return new TrimSqlNode(this.configuration, readSqlNode(), prefix, prefixOverrides, suffix, suffixOverrides);
+        }
+        case NODE_FOREACH: {
+          String collection = readString();
+          String index = readString();
+          String item = readString();
+          String open = readString();
+          String close = readString();
+          String separator = readString();
+          return new ForEachSqlNode(this.configuration, readSqlNode(), collection, index, item, open, close, separator);
+        }
+        case NODE_CHOOSE: {
+          List<SqlNode> ifSqlNodes = readSqlNodes();
+          return new ChooseSqlNode(ifSqlNodes, readSqlNode());
+        }
+        case NODE_BIND: {
+          String name = readString();
+          return new VarDeclSqlNode(name, readString());
+        }
+        default:
+          throw new IllegalStateException("unknown SqlNode type " + type);
+      }
+    }
+
+    private List<SqlNode> readSqlNodes() {
+      int size = this.buffer.getInt();
+      List<SqlNode> nodes = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        nodes.add(readSqlNode());
+      }
+      return nodes;
+    }
+
+    /**
+     * 与解析时一致：没有显式指定时用注册表里的默认处理器，显式指定的按类型取注册过的实例，否则新建
+     */
+    @SuppressWarnings("unchecked")
+    private TypeHandler<?> typeHandler(Class<?> javaType, JdbcType jdbcType, Class<?> handlerType) {
+      if (handlerType == null) {
+        return null;
+      }
+      TypeHandlerRegistry registry = this.configuration.getTypeHandlerRegistry();
+      TypeHandler<?> handler = javaType == null ? null : registry.getTypeHandler(javaType, jdbcType);
+      if (handler == null || handler.getClass() != handlerType) {
+        handler = registry.getMappingTypeHandler((Class<? extends TypeHandler<?>>) handlerType);
+      }
+      return handler != null ? handler : registry.getInstance(javaType, handlerType);
+    }
+
+    private ResultMap resultMap(String id) {
+      ResultMap resultMap = this.restored.resultMaps.get(id);
+      return resultMap != null ? resultMap : this.configuration.getResultMap(id);
+    }
+
+    private ParameterMap parameterMap(String id) {
+      ParameterMap parameterMap = this.restored.parameterMaps.get(id);
+      return parameterMap != null ? parameterMap : this.configuration.getParameterMap(id);
+    }
+
+    private Cache cache(String id) {
+      Cache cache = this.restored.caches.get(id);
+      return cache != null ? cache : this.configuration.getCache(id);
+    }
+
+    String readString() {
+      int length = this.buffer.getInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] encoded = new byte[length];
+      this.buffer.get(encoded);
+      return new String(encoded, UTF_8);
+    }
+
+    private List<String> readStrings() {
+      int size = this.buffer.getInt();
+      List<String> values = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        values.add(readString());
+      }
+      return values;
+    }
+
+    private Map<String, String> readMap() {
+      int size = this.buffer.getInt();
+      Map<String, String> values = new LinkedHashMap<>(size * 2);
+      for (int i = 0; i < size; i++) {
+        values.put(readString(), readString());
+      }
+      return values;
+    }
+
+    Integer readInteger() {
+      return this.buffer.get() != 0 ? this.buffer.getInt() : null;
+    }
+
+    Long readLong() {
+      return this.buffer.get() != 0 ? this.buffer.getLong() : null;
+    }
+
+    boolean readBoolean() {
+      return this.buffer.get() != 0;
+    }
+
+    private <E extends Enum<E>> E readEnum(Class<E> type) {
+      String name = readString();
+      return name == null ? null : Enum.valueOf(type, name);
+    }
+
+    Class<?> readClass() throws ClassNotFoundException {
+      String name = readString();
+      return name == null ? null : ClassUtils.forName(name, this.classLoader);
+    }
+
+    /**
+     * 与 Configuration#getLanguageDriver 一致，但是还没注册的驱动留到装配时再注册
+     */
+    private LanguageDriver languageDriver(Class<? extends LanguageDriver> type) throws ReflectiveOperationException {
+      if (type == null) {
+        return this.configuration.getDefaultScriptingLanguageInstance();
+      }
+      LanguageDriver driver = this.configuration.getLanguageRegistry().getDriver(type);
+      if (driver == null) {
+        driver = this.restored.languageDrivers.get(type);
+      }
+      if (driver == null) {
+        driver = type.getDeclaredConstructor().newInstance();
+        this.restored.languageDrivers.put(type, driver);
+      }
+      return driver;
+    }
+  }
+
+  /**
+   * 从快照重建出来、还没有装配的对象
+   */
+  private static final class Restored {
+
+    private final Map<Class<?>, LanguageDriver> languageDrivers = new LinkedHashMap<>();
+
+    private final Map<String, Cache> caches = new LinkedHashMap<>();
+
+    private final Map<String, String> cacheRefs = new LinkedHashMap<>();
+
+    private final Map<String, XNode> sqlFragments = new LinkedHashMap<>();
+
+    private final Map<String, ParameterMap> parameterMaps = new LinkedHashMap<>();
+
+    private final Map<String, ResultMap> resultMaps = new LinkedHashMap<>();
+
+    private final List<MappedStatement> statements = new ArrayList<>();
+
+    private final List<String> loadedResources = new ArrayList<>();
+
+    private final List<Class<?>> mappers = new ArrayList<>();
+
+    /**
+     * 按 XMLMapperBuilder 的顺序装配。loadedResources 里有 mapper 接口的 toString()，
+     * addMapper 时 MapperAnnotationBuilder 会认为注解已经解析过，不会重复注册 statement
+     */
+    void applyTo(Configuration configuration) {
+      this.languageDrivers.values().forEach(configuration.getLanguageRegistry()::register);
+      this.caches.values().forEach(configuration::addCache);
+      this.cacheRefs.forEach(configuration::addCacheRef);
+      // StrictMap 只重写了 put，putAll 不会注册短名称
+      this.sqlFragments.forEach(configuration.getSqlFragments()::put);
+      this.parameterMaps.values().forEach(configuration::addParameterMap);
+      this.resultMaps.values().forEach(configuration::addResultMap);
+      this.statements.forEach(configuration::addMappedStatement);
+      this.loadedResources.forEach(configuration::addLoadedResource);
+      this.mappers.forEach(configuration::addMapper);
+    }
+
+    /**
+     * 装配前检查，configuration 里已经有同名的内容时装配一定会失败，返回冲突的内容，没有冲突返回 null
+     */
+    String findConflict(Configuration configuration) {
+      for (String id : this.caches.keySet()) {
+        if (configuration.hasCache(id)) {
+          return "cache '" + id + "'";
+        }
+      }
+      for (String id : this.sqlFragments.keySet()) {
+        if (configuration.getSqlFragments().containsKey(id)) {
+          return "sql fragment '" + id + "'";
+        }
+      }
+      for (String id : this.parameterMaps.keySet()) {
+        if (configuration.hasParameterMap(id)) {
+          return "parameterMap '" + id + "'";
+        }
+      }
+      for (String id : this.resultMaps.keySet()) {
+        if (configuration.hasResultMap(id)) {
+          return "resultMap '" + id + "'";
+        }
+      }
+      for (MappedStatement statement : this.statements) {
+        if (configuration.hasStatement(statement.getId(), false)) {
+          return "statement '" + statement.getId() + "'";
+        }
+      }
+      for (Class<?> mapper : this.mappers) {
+        if (configuration.hasMapper(mapper)) {
+          return "mapper " + mapper.getName();
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * {@code <cache>} 元素的配置，与 XMLMapperBuilder#cacheElement 的默认值一致
+   */
+  private static final class CacheSpec {
+
+    private final String id;
+
+    private final String implementation;
+
+    private final String eviction;
+
+    private final Long flushInterval;
+
+    private final Integer size;
+
+    private final boolean readWrite;
+
+    private final boolean blocking;
+
+    private final Properties properties = new Properties();
+
+    CacheSpec(Configuration configuration, String id, XMLStreamReader element) {
+      Properties variables = configuration.getVariables();
+      this.id = id;
+      this.implementation = configuration.getTypeAliasRegistry()
+          .resolveAlias(attribute(element, "type", "PERPETUAL", variables)).getName();
+      this.eviction = configuration.getTypeAliasRegistry()
+          .resolveAlias(attribute(element, "eviction", "LRU", variables)).getName();
+      String flushInterval = attribute(element, "flushInterval", null, variables);
+      this.flushInterval = flushInterval == null ? null : Long.valueOf(flushInterval);
+      String size = attribute(element, "size", null, variables);
+      this.size = size == null ? null : Integer.valueOf(size);
+      this.readWrite = !Boolean.parseBoolean(attribute(element, "readOnly", "false", variables));
+      this.blocking = Boolean.parseBoolean(attribute(element, "blocking", "false", variables));
+    }
+
+    private CacheSpec(Reader reader) throws ClassNotFoundException {
+      this.id = reader.readString();
+      this.implementation = reader.readString();
+      this.eviction = reader.readString();
+      this.flushInterval = reader.readLong();
+      this.size = reader.readInteger();
+      this.readWrite = reader.readBoolean();
+      this.blocking = reader.readBoolean();
+      for (int i = reader.buffer.getInt(); i > 0; i--) {
+        this.properties.setProperty(reader.readString(), reader.readString());
+      }
+    }
+
+    static CacheSpec read(Reader reader) throws ClassNotFoundException {
+      return new CacheSpec(reader);
+    }
+
+    private static String attribute(XMLStreamReader element, String name, String defaultValue, Properties variables) {
+      String value = element.getAttributeValue(null, name);
+      return value == null ? defaultValue : PropertyParser.parse(value, variables);
+    }
+
+    void write(Writer writer) throws IOException {
+      writer.writeString(this.id);
+      writer.writeString(this.implementation);
+      writer.writeString(this.eviction);
+      writer.writeLong(this.flushInterval);
+      writer.writeInteger(this.size);
+      writer.out.writeBoolean(this.readWrite);
+      writer.out.writeBoolean(this.blocking);
+      Map<String, String> properties = new LinkedHashMap<>();
+      this.properties.stringPropertyNames().forEach(name -> properties.put(name, this.properties.getProperty(name)));
+      writer.writeMap(properties);
+    }
+
+    @SuppressWarnings("unchecked")
+    Cache newCache() throws ClassNotFoundException {
+      ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+      return new CacheBuilder(this.id)
+          .implementation((Class<? extends Cache>) ClassUtils.forName(this.implementation, classLoader))
+          .addDecorator((Class<? extends Cache>) ClassUtils.forName(this.eviction, classLoader))
+          .clearInterval(this.flushInterval)
+          .size(this.size)
+          .readWrite(this.readWrite)
+          .blocking(this.blocking)
+          .properties(this.properties)
+          .build();
+    }
+  }
+
+  /**
+   * 快照无法如实表示的内容
+   */
+  private static final class UnsupportedContentException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedContentException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * 读取 MyBatis 对象的私有字段，字段不存在时视为不支持
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T field(Class<?> owner, Object target, String name) throws UnsupportedContentException {
+    Field field = ReflectionUtils.findField(owner, name);
+    if (field == null) {
+      throw new UnsupportedContentException(owner.getSimpleName() + " has no field '" + name + "'");
+    }
+    ReflectionUtils.makeAccessible(field);
+    return (T) ReflectionUtils.getField(field, target);
+  }
+
+  /**
+   * TrimSqlNode 构造时按 "|" 切分覆盖项，这里拼回去
+   */
+  private static String joinOverrides(List<String> overrides) {
+    return overrides == null || overrides.isEmpty() ? null : String.join("|", overrides);
+  }
+
+  private static String join(String[] values) {
+    return values == null ? null : StringUtils.arrayToCommaDelimitedString(values);
+  }
+
+  private static String toXml(XNode node) throws TransformerException {
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    StringWriter xml = new StringWriter();
+    transformer.transform(new DOMSource(node.getNode()), new StreamResult(xml));
+    return xml.toString();
+  }
+
+}
@@ -0,0 +1,475 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notEmpty;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import cn.javadog.sd.mybatis.session.RowBounds;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.spring.transaction.CancellationScope;
+import cn.javadog.sd.mybatis.spring.transaction.Deadline;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-29 10:20
+ *
+ * 在多个只读副本上对冲(hedge)的查询模板，用来削减个别副本抖动造成的长尾延迟。
+ * <p>
+ * 每次查询按轮询选一个副本执行，超过这个 statement 历史延迟的 {@code hedgePercentile} 分位还没有返回的话，
+ * 在下一个副本上再发一次同样的查询，先成功返回的胜出，另一个被取消，正在执行的 Statement 由
+ * {@link CancellationScope} 调用 {@link java.sql.Statement#cancel()}。
+ * 对冲受令牌桶限制：每次查询存入 {@code maxHedgeRatio} 个令牌，每次对冲取出一个，最多攒 {@code maxHedgeTokens} 个。
+ * 长期看对冲不超过查询次数的 maxHedgeRatio，副本整体变慢时令牌很快用完，不会把负载翻倍，
+ * 也不会因为之前很久没有对冲而攒下一大笔额度。
+ * <p>
+ * 失败和被取消的查询也计入延迟分布，耗时按不少于对冲等待时间计：被取消的输家真实耗时未知，
+ * 只记成功的样本会让分布偏向快的副本，等待时间越算越短。
+ * 首选副本在对冲等待时间内就以连接级失败(判定和 {@link CircuitBreaker} 相同)返回时，
+ * 不消耗令牌，直接转到下一个副本重查；其它失败照常抛出。
+ * <p>
+ * 查询在 executor 的线程上通过各副本共享的 {@link SqlSessionTemplate} 执行，走的是没有事务的会话，
+ * 调用线程上的 {@link Deadline} 会带过去。默认的 executor 最多 {@code maxPoolSize} 个线程，线程用完时
+ * 不再对冲，第一次查询直接在调用线程上执行。样本不足 {@code minSamples} 时使用 {@code defaultHedgeDelayMillis}。例如：
+ * <pre class="code">
+ * {@code
+ *   <bean id="replicaReads" class="cn.javadog.sd.mybatis.spring.HedgedReadTemplate">
+ *     <property name="replicas">
+ *       <list>
+ *         <ref bean="replica1SqlSessionFactory" />
+ *         <ref bean="replica2SqlSessionFactory" />
+ *       </list>
+ *     </property>
+ *   </bean>
+ * }
+ * </pre>
+ */
+public class HedgedReadTemplate implements InitializingBean, DisposableBean {
+
+  private static final Log LOGGER = LogFactory.getLog(HedgedReadTemplate.class);
+
+  /**
+   * 令牌的精度，千分之一
+   */
+  private static final long TOKEN = 1000L;
+
+  private List<SqlSessionFactory> replicas;
+
+  /**
+   * 用哪个分位的延迟作为对冲的等待时间
+   */
+  private double hedgePercentile = 0.95;
+
+  /**
+   * 样本不足时的对冲等待时间，毫秒
+   */
+  private long defaultHedgeDelayMillis = 50L;
+
+  /**
+   * 至少多少个样本才使用分位延迟
+   */
+  private int minSamples = 100;
+
+  /**
+   * 对冲次数最多占查询次数的比例
+   */
+  private double maxHedgeRatio = 0.1;
+
+  /**
+   * 最多攒多少个对冲令牌
+   */
+  private int maxHedgeTokens = 10;
+
+  /**
+   * 默认 executor 的最大线程数
+   */
+  private int maxPoolSize = 64;
+
+  private Executor executor;
+
+  /**
+   * 自己创建的 executor，销毁时关闭
+   */
+  private ExecutorService ownedExecutor;
+
+  private final List<SqlSessionTemplate> templates = new ArrayList<>();
+
+  /**
+   * 每个 statement 的延迟分布
+   */
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+  private final AtomicInteger nextReplica = new AtomicInteger();
+
+  private final LongAdder requests = new LongAdder();
+
+  private final LongAdder hedgedRequests = new LongAdder();
+
+  private final LongAdder failedOverRequests = new LongAdder();
+
+  /**
+   * 当前的对冲令牌，千分之一个为单位，初始是满的
+   */
+  private final AtomicLong hedgeTokens = new AtomicLong(this.maxHedgeTokens * TOKEN);
+
+  /*相应的get/set*/
+
+  public void setReplicas(List<SqlSessionFactory> replicas) {
+    this.replicas = replicas;
+  }
+
+  public void setHedgePercentile(double hedgePercentile) {
+    isTrue(hedgePercentile > 0 && hedgePercentile < 1, "Property 'hedgePercentile' must be between 0 and 1");
+    this.hedgePercentile = hedgePercentile;
+  }
+
+  public void setDefaultHedgeDelayMillis(long defaultHedgeDelayMillis) {
+    this.defaultHedgeDelayMillis = defaultHedgeDelayMillis;
+  }
+
+  public void setMinSamples(int minSamples) {
+    this.minSamples = minSamples;
+  }
+
+  public void setMaxHedgeRatio(double maxHedgeRatio) {
+    isTrue(maxHedgeRatio >= 0 && maxHedgeRatio <= 1, "Property 'maxHedgeRatio' must be between 0 and 1");
+    this.maxHedgeRatio = maxHedgeRatio;
+  }
+
+  /**
+   * 设置令牌的上限，同时把令牌重新装满
+   */
+  public void setMaxHedgeTokens(int maxHedgeTokens) {
+    isTrue(maxHedgeTokens > 0, "Property 'maxHedgeTokens' must be positive");
+    this.maxHedgeTokens = maxHedgeTokens;
+    this.hedgeTokens.set(maxHedgeTokens * TOKEN);
+  }
+
+  /**
+   * 设置默认 executor 的最大线程数，设置了 executor 时不生效
+   */
+  public void setMaxPoolSize(int maxPoolSize) {
+    isTrue(maxPoolSize > 0, "Property 'maxPoolSize' must be positive");
+    this.maxPoolSize = maxPoolSize;
+  }
+
+  /**
+   * 设置执行查询的 executor，不设置时使用内部的守护线程池。
+   * executor 拒绝任务时抛出 RejectedExecutionException 即可，不要在调用线程上执行
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  public long getRequests() {
+    return this.requests.sum();
+  }
+
+  /**
+   * 发出过对冲查询的次数
+   */
+  public long getHedgedRequests() {
+    return this.hedgedRequests.sum();
+  }
+
+  /**
+   * 首选副本连接失败、转到下一个副本的次数
+   */
+  public long getFailedOverRequests() {
+    return this.failedOverRequests.sum();
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    notEmpty(this.replicas, "Property 'replicas' is required");
+    for (SqlSessionFactory replica : this.replicas) {
+      this.templates.add(SqlSessionTemplateRegistry.getSqlSessionTemplate(replica));
+    }
+    if (this.executor == null) {
+      CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mybatis-hedged-read-");
+      threadFactory.setDaemon(true);
+      // 不排队，线程用完时拒绝，由调用方降级
+      this.ownedExecutor = new ThreadPoolExecutor(0, this.maxPoolSize, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory);
+      this.executor = this.ownedExecutor;
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (this.ownedExecutor != null) {
+      this.ownedExecutor.shutdownNow();
+    }
+  }
+
+  /*对冲的查询方法*/
+
+  public <T> T selectOne(String statement) {
+    return hedged(statement, template -> template.selectOne(statement));
+  }
+
+  public <T> T selectOne(String statement, Object parameter) {
+    return hedged(statement, template -> template.selectOne(statement, parameter));
+  }
+
+  public <E> List<E> selectList(String statement) {
+    return hedged(statement, template -> template.selectList(statement));
+  }
+
+  public <E> List<E> selectList(String statement, Object parameter) {
+    return hedged(statement, template -> template.selectList(statement, parameter));
+  }
+
+  public <E> List<E> selectList(String statement, Object parameter, RowBounds rowBounds) {
+    return hedged(statement, template -> template.selectList(statement, parameter, rowBounds));
+  }
+
+  private <T> T hedged(String statement, Function<SqlSessionTemplate, T> query) {
+    this.requests.increment();
+    depositHedgeToken();
+    int size = this.templates.size();
+    int primary = Math.floorMod(this.nextReplica.getAndIncrement(), size);
+    int next = (primary + 1) % size;
+    long delayMicros = hedgeDelayMicros(statement);
+    CompletableFuture<T> first;
+    try {
+      first = attempt(statement, this.templates.get(primary), query, delayMicros);
+    } catch (RejectedExecutionException e) {
+      // 线程用完了，不对冲，直接在调用线程上查
+      LOGGER.debug("Hedged read executor saturated, querying " + statement + " on the calling thread");
+      return query.apply(this.templates.get(primary));
+    }
+    CompletableFuture<T> second = null;
+    try {
+      if (size == 1) {
+        return first.get();
+      }
+      try {
+        return first.get(delayMicros, TimeUnit.MICROSECONDS);
+      } catch (TimeoutException e) {
+        if (!tryHedge()) {
+          return first.get();
+        }
+        LOGGER.debug("Hedging " + statement + " to replica " + next);
+      } catch (ExecutionException e) {
+        // 副本连不上时马上换下一个，不用等对冲
+        if (!CircuitBreaker.isConnectionFailure(e.getCause())) {
+          throw e;
+        }
+        this.failedOverRequests.increment();
+        LOGGER.debug("Replica " + primary + " failed to connect, failing over " + statement + " to replica " + next);
+      }
+      try {
+        second = attempt(statement, this.templates.get(next), query, delayMicros);
+      } catch (RejectedExecutionException e) {
+        return first.get();
+      }
+      return firstSuccessful(first, second).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Interrupted while waiting for " + statement);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      // 已经完成的 future 不受影响，没完成的就是输家
+      first.cancel(true);
+      if (second != null) {
+        second.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * 在 executor 上执行一次查询，耗时计入延迟分布，失败或被取消的至少按 hedgeDelayMicros 计
+   */
+  private <T> CompletableFuture<T> attempt(String statement, SqlSessionTemplate template, Function<SqlSessionTemplate, T> query,
+      long hedgeDelayMicros) {
+    Deadline deadline = Deadline.current();
+    return CancellationScope.supplyAsync(() -> {
+      long startNanos = System.nanoTime();
+      boolean succeeded = false;
+      try {
+        T result = deadline == null
+            ? query.apply(template)
+            : Deadline.call(Duration.ofNanos(Math.max(0L, deadline.remainingNanos())), () -> query.apply(template));
+        succeeded = true;
+        return result;
+      } finally {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        recordLatency(statement, succeeded ? elapsedNanos : Math.max(elapsedNanos, TimeUnit.MICROSECONDS.toNanos(hedgeDelayMicros)));
+      }
+    }, this.executor);
+  }
+
+  /**
+   * 先成功的结果，都失败时是后失败的异常
+   */
+  private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T> first, CompletableFuture<T> second) {
+    CompletableFuture<T> winner = new CompletableFuture<>();
+    first.whenComplete((result, t) -> complete(winner, result, t, second));
+    second.whenComplete((result, t) -> complete(winner, result, t, first));
+    return winner;
+  }
+
+  private static <T> void complete(CompletableFuture<T> winner, T result, Throwable t, CompletableFuture<T> other) {
+    if (t == null) {
+      winner.complete(result);
+    } else if (other.isCompletedExceptionally()) {
+      winner.completeExceptionally(t);
+    }
+  }
+
+  /**
+   * 每次查询存入 maxHedgeRatio 个令牌
+   */
+  void depositHedgeToken() {
+    long deposit = (long) (this.maxHedgeRatio * TOKEN);
+    long max = this.maxHedgeTokens * TOKEN;
+    long current;
+    do {
+      current = this.hedgeTokens.get();
+      if (current >= max) {
+        return;
+      }
+    } while (!this.hedgeTokens.compareAndSet(current, Math.min(max, current + deposit)));
+  }
+
+  /**
+   * 取一个令牌，取不到就不对冲
+   */
+  boolean tryHedge() {
+    long current;
+    do {
+      current = this.hedgeTokens.get();
+      if (current < TOKEN) {
+        return false;
+      }
+    } while (!this.hedgeTokens.compareAndSet(current, current - TOKEN));
+    this.hedgedRequests.increment();
+    return true;
+  }
+
+  void recordLatency(String statement, long nanos) {
+    this.latencies.computeIfAbsent(statement, key -> new LatencyHistogram()).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  /**
+   * statement 的对冲等待时间，微秒
+   */
+  long hedgeDelayMicros(String statement) {
+    LatencyHistogram histogram = this.latencies.get(statement);
+    if (histogram == null || histogram.count() < this.minSamples) {
+      return TimeUnit.MILLISECONDS.toMicros(this.defaultHedgeDelayMillis);
+    }
+    return histogram.percentile(this.hedgePercentile);
+  }
+
+  /**
+   * 对数分桶的延迟分布，每个 2 的幂区间分成 4 个桶，误差不超过 25%。
+   * 样本超过 {@link #DECAY_THRESHOLD} 时所有桶减半，近似地让旧样本衰减。
+   * 同时只有一个线程衰减，每个桶用 CAS 减半，衰减期间并发记录的样本不会丢
+   */
+  private static final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+
+    private static final long DECAY_THRESHOLD = 10000L;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicBoolean decaying = new AtomicBoolean();
+
+    void record(long micros) {
+      this.buckets.incrementAndGet(index(Math.max(0L, micros)));
+      if (this.count.incrementAndGet() > DECAY_THRESHOLD && this.decaying.compareAndSet(false, true)) {
+        try {
+          // 拿到标记之前别的线程可能刚衰减完
+          if (this.count.get() > DECAY_THRESHOLD) {
+            decay();
+          }
+        } finally {
+          this.decaying.set(false);
+        }
+      }
+    }
+
+    long count() {
+      return this.count.get();
+    }
+
+    long percentile(double percentile) {
+      long total = 0;
+      for (int i = 0; i < this.buckets.length(); i++) {
+        total += this.buckets.get(i);
+      }
+      long target = (long) Math.ceil(total * percentile);
+      long seen = 0;
+      for (int i = 0; i < this.buckets.length(); i++) {
+        seen += this.buckets.get(i);
+        if (seen >= target && seen > 0) {
+          return upperBound(i);
+        }
+      }
+      return upperBound(this.buckets.length() - 1);
+    }
+
+    private void decay() {
+      for (int i = 0; i < this.buckets.length(); i++) {
+        long old = this.buckets.getAndUpdate(i, value -> value / 2);
+        this.count.addAndGet(-(old - old / 2));
+      }
+    }
+
+    private static int index(long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) micros;
+      }
+      int octave = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) ((micros >>> (octave - 2)) & (SUB_BUCKETS - 1));
+      return octave * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+      if (index < SUB_BUCKETS) {
+        return index + 1L;
+      }
+      int octave = index / SUB_BUCKETS;
+      int sub = index % SUB_BUCKETS;
+      return (long) (SUB_BUCKETS + sub + 1) << (octave - 2);
+    }
+  }
+
+}
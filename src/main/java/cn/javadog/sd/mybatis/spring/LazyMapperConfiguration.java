@@ -0,0 +1,449 @@
+package cn.javadog.sd.mybatis.spring;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import cn.javadog.sd.mybatis.builder.BuilderException;
+import cn.javadog.sd.mybatis.builder.xml.XMLMapperBuilder;
+import cn.javadog.sd.mybatis.mapping.MappedStatement;
+import cn.javadog.sd.mybatis.mapping.ParameterMap;
+import cn.javadog.sd.mybatis.mapping.ResultMap;
+import cn.javadog.sd.mybatis.parsing.XNode;
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.support.cache.Cache;
+import cn.javadog.sd.mybatis.support.exceptions.ErrorContext;
+import cn.javadog.sd.mybatis.support.io.Resources;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.core.io.Resource;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 10:20
+ *
+ * 按需解析 mapper 文件的 Configuration。
+ * 启动时只用 StAX 把每个 mapper 文件流式扫一遍，记下 namespace 和其中声明的 id，不构建 DOM，不解析 SQL；
+ * 某个 namespace 下的 statement、resultMap、parameterMap、sql 片段或缓存第一次被访问时，才完整解析该 namespace 对应的文件。
+ * 跨 namespace 的引用(include、resultMap extends、cache-ref)在解析过程中会递归触发被引用 namespace 的解析。
+ * <p>
+ * 还有 namespace 待解析时，所有写入都在写锁内进行，读取都在 {@link StampedLock} 的读锁内进行。
+ * StrictMap 是普通的 HashMap，和扩容并发的读可能死循环或者读到错乱的结构，不能用乐观读事后校验。
+ * 全部解析完后锁就不再参与，与普通的 Configuration 开销一致。
+ * <p>
+ * 一般通过 {@link SqlSessionFactoryBean#setLazyMapperParsing(boolean)} 开启
+ */
+public class LazyMapperConfiguration extends Configuration {
+
+  private static final Log LOGGER = LogFactory.getLog(LazyMapperConfiguration.class);
+
+  /**
+   * 待解析的 namespace 到 mapper 文件的映射，同一个 namespace 可以分散在多个文件里
+   */
+  private final Map<String, List<Resource>> pendingResources = new ConcurrentHashMap<>();
+
+  /**
+   * 不带 namespace 的短 id 到声明了它的 namespace 的映射，启动时写入，请求线程不加锁读
+   */
+  private final Map<String, List<String>> shortIdNamespaces = new ConcurrentHashMap<>();
+
+  /**
+   * 保护 Configuration 里的各个 StrictMap
+   */
+  private final StampedLock lock = new StampedLock();
+
+  /**
+   * 持有写锁的线程，解析过程中会重入各种 get 方法
+   */
+  private volatile Thread loader;
+
+  /**
+   * 是否还有待解析的 namespace，为 false 时完全不加锁
+   */
+  private volatile boolean pending;
+
+  /**
+   * sql 片段的包装，XMLIncludeTransformer 直接从这个 Map 里取片段，取之前先解析片段所在的 namespace
+   */
+  private final Map<String, XNode> sqlFragments = new LazySqlFragments();
+
+  /**
+   * 启动耗时报告，由 SqlSessionFactoryBean 设置，按需解析的 mapper 文件补记到这里
+   */
+  private volatile StartupTimingReport startupTimingReport;
+
+  void setStartupTimingReport(StartupTimingReport startupTimingReport) {
+    this.startupTimingReport = startupTimingReport;
+  }
+
+  /**
+   * 流式扫描 mapper 文件，登记它的 namespace。
+   * 顺带把 namespace 对应的 mapper 接口注册上，与立即解析时 XMLMapperBuilder#bindMapperForNamespace 的效果一致
+   */
+  void addLazyMapper(Resource resource) throws IOException {
+    String namespace;
+    List<String> ids = new ArrayList<>();
+    try {
+      namespace = scan(resource, ids);
+    } catch (XMLStreamException e) {
+      throw new BuilderException("Failed to index mapping resource: '" + resource + "'", e);
+    }
+    if (namespace == null || namespace.isEmpty()) {
+      // 没有 namespace 的文件交给 XMLMapperBuilder 报错
+      parse(resource);
+      return;
+    }
+    this.pendingResources.computeIfAbsent(namespace, k -> new ArrayList<>()).add(resource);
+    for (String id : ids) {
+      this.shortIdNamespaces.computeIfAbsent(id, k -> new CopyOnWriteArrayList<>()).add(namespace);
+    }
+    this.pending = true;
+    // 标记 namespace 已加载，MapperAnnotationBuilder 就不会再去 mapper 接口旁边找同名的 XML
+    addLoadedResource("namespace:" + namespace);
+    Class<?> boundType = null;
+    try {
+      boundType = Resources.classForName(namespace);
+    } catch (ClassNotFoundException e) {
+      // namespace 不一定是 mapper 接口
+    }
+    if (boundType != null && !hasMapper(boundType)) {
+      addMapper(boundType);
+    }
+  }
+
+  /**
+   * 还未解析的 namespace
+   */
+  public Set<String> getPendingNamespaces() {
+    return Collections.unmodifiableSet(this.pendingResources.keySet());
+  }
+
+  @Override
+  public MappedStatement getMappedStatement(String id, boolean validateIncompleteStatements) {
+    loadFor(id);
+    if (!this.pending) {
+      return super.getMappedStatement(id, validateIncompleteStatements);
+    }
+    if (validateIncompleteStatements) {
+      buildIncompleteStatements();
+    }
+    return read(() -> super.getMappedStatement(id, false));
+  }
+
+  @Override
+  public boolean hasStatement(String statementName, boolean validateIncompleteStatements) {
+    loadFor(statementName);
+    if (!this.pending) {
+      return super.hasStatement(statementName, validateIncompleteStatements);
+    }
+    if (validateIncompleteStatements) {
+      buildIncompleteStatements();
+    }
+    return read(() -> super.hasStatement(statementName, false));
+  }
+
+  @Override
+  public Collection<String> getMappedStatementNames() {
+    loadAll();
+    return super.getMappedStatementNames();
+  }
+
+  @Override
+  public Collection<MappedStatement> getMappedStatements() {
+    loadAll();
+    return super.getMappedStatements();
+  }
+
+  @Override
+  public void addMappedStatement(MappedStatement ms) {
+    write(() -> super.addMappedStatement(ms));
+  }
+
+  @Override
+  public ResultMap getResultMap(String id) {
+    loadFor(id);
+    return read(() -> super.getResultMap(id));
+  }
+
+  @Override
+  public boolean hasResultMap(String id) {
+    loadFor(id);
+    return read(() -> super.hasResultMap(id));
+  }
+
+  @Override
+  public Collection<String> getResultMapNames() {
+    loadAll();
+    return super.getResultMapNames();
+  }
+
+  @Override
+  public Collection<ResultMap> getResultMaps() {
+    loadAll();
+    return super.getResultMaps();
+  }
+
+  @Override
+  public void addResultMap(ResultMap rm) {
+    write(() -> super.addResultMap(rm));
+  }
+
+  @Override
+  public ParameterMap getParameterMap(String id) {
+    loadFor(id);
+    return read(() -> super.getParameterMap(id));
+  }
+
+  @Override
+  public boolean hasParameterMap(String id) {
+    loadFor(id);
+    return read(() -> super.hasParameterMap(id));
+  }
+
+  @Override
+  public Collection<String> getParameterMapNames() {
+    loadAll();
+    return super.getParameterMapNames();
+  }
+
+  @Override
+  public Collection<ParameterMap> getParameterMaps() {
+    loadAll();
+    return super.getParameterMaps();
+  }
+
+  @Override
+  public void addParameterMap(ParameterMap pm) {
+    write(() -> super.addParameterMap(pm));
+  }
+
+  /**
+   * 缓存的 id 就是 namespace
+   */
+  @Override
+  public Cache getCache(String id) {
+    load(id);
+    return read(() -> super.getCache(id));
+  }
+
+  @Override
+  public boolean hasCache(String id) {
+    load(id);
+    return read(() -> super.hasCache(id));
+  }
+
+  @Override
+  public Collection<String> getCacheNames() {
+    loadAll();
+    return super.getCacheNames();
+  }
+
+  @Override
+  public Collection<Cache> getCaches() {
+    loadAll();
+    return super.getCaches();
+  }
+
+  @Override
+  public void addCache(Cache cache) {
+    write(() -> super.addCache(cache));
+  }
+
+  @Override
+  public <T> void addMapper(Class<T> type) {
+    write(() -> super.addMapper(type));
+  }
+
+  @Override
+  public Map<String, XNode> getSqlFragments() {
+    return this.sqlFragments;
+  }
+
+  /**
+   * 解析 id 所在的 namespace，短 id 则解析所有声明过它的 namespace
+   */
+  private void loadFor(String id) {
+    if (!this.pending || id == null) {
+      return;
+    }
+    int dot = id.lastIndexOf('.');
+    if (dot > 0) {
+      load(id.substring(0, dot));
+    } else {
+      this.shortIdNamespaces.getOrDefault(id, Collections.emptyList()).forEach(this::load);
+    }
+  }
+
+  /**
+   * 解析一个 namespace，先从待解析集合里移除，解析过程中自己引用自己不会重入
+   */
+  private void load(String namespace) {
+    if (!this.pending || namespace == null || !this.pendingResources.containsKey(namespace)) {
+      return;
+    }
+    write(() -> {
+      List<Resource> resources = this.pendingResources.remove(namespace);
+      if (resources != null) {
+        try {
+          resources.forEach(this::parse);
+        } finally {
+          this.pending = !this.pendingResources.isEmpty();
+        }
+      }
+    });
+  }
+
+  /**
+   * 全量访问之前解析所有剩下的 namespace
+   */
+  private void loadAll() {
+    if (this.pending) {
+      write(() -> new ArrayList<>(this.pendingResources.keySet()).forEach(this::load));
+    }
+  }
+
+  /**
+   * 解析 mapper 文件，耗时计入启动耗时报告
+   */
+  private void parse(Resource resource) {
+    long start = System.nanoTime();
+    try (InputStream inputStream = resource.getInputStream()) {
+      new XMLMapperBuilder(inputStream, this, resource.toString(), this.sqlFragments).parse();
+    } catch (IOException e) {
+      throw new BuilderException("Failed to parse mapping resource: '" + resource + "'", e);
+    } finally {
+      ErrorContext.instance().reset();
+    }
+    StartupTimingReport report = this.startupTimingReport;
+    if (report != null) {
+      report.record(StartupTimingReport.PHASE_MAPPER_PARSE, resource.toString(), start);
+    }
+    LOGGER.debug("Lazily parsed mapper file: '" + resource + "'");
+  }
+
+  /**
+   * 有未完成的 statement 时才去补全，补全会修改 Configuration，需要写锁
+   */
+  private void buildIncompleteStatements() {
+    if (!this.incompleteResultMaps.isEmpty() || !this.incompleteCacheRefs.isEmpty()
+        || !this.incompleteStatements.isEmpty() || !this.incompleteMethods.isEmpty()) {
+      write(this::buildAllStatements);
+    }
+  }
+
+  /**
+   * 写锁内执行，持有写锁的线程重入时直接执行
+   */
+  private void write(Runnable action) {
+    if (!this.pending || this.loader == Thread.currentThread()) {
+      action.run();
+      return;
+    }
+    long stamp = this.lock.writeLock();
+    this.loader = Thread.currentThread();
+    try {
+      action.run();
+    } finally {
+      this.loader = null;
+      this.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * 读锁内执行，持有写锁的线程重入时直接执行
+   */
+  private <T> T read(Supplier<T> action) {
+    if (!this.pending || this.loader == Thread.currentThread()) {
+      return action.get();
+    }
+    long stamp = this.lock.readLock();
+    try {
+      return action.get();
+    } finally {
+      this.lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * 流式读取根元素的 namespace 和第二层元素的 id
+   */
+  private static String scan(Resource resource, List<String> ids) throws IOException, XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try (InputStream in = resource.getInputStream()) {
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        String namespace = null;
+        int depth = 0;
+        while (reader.hasNext()) {
+          int event = reader.next();
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            depth++;
+            if (depth == 1) {
+              namespace = reader.getAttributeValue(null, "namespace");
+            } else if (depth == 2) {
+              String id = reader.getAttributeValue(null, "id");
+              if (id != null) {
+                ids.add(id);
+              }
+            }
+          } else if (event == XMLStreamConstants.END_ELEMENT) {
+            depth--;
+          }
+        }
+        return namespace;
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * sql 片段的视图，读之前先解析片段所在的 namespace
+   */
+  private final class LazySqlFragments extends AbstractMap<String, XNode> {
+
+    private final Map<String, XNode> delegate = LazyMapperConfiguration.super.getSqlFragments();
+
+    @Override
+    public XNode get(Object key) {
+      loadFor((String) key);
+      return read(() -> this.delegate.get(key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      loadFor((String) key);
+      return read(() -> this.delegate.containsKey(key));
+    }
+
+    @Override
+    public XNode put(String key, XNode value) {
+      XNode[] previous = new XNode[1];
+      write(() -> previous[0] = this.delegate.put(key, value));
+      return previous[0];
+    }
+
+    @Override
+    public Set<Entry<String, XNode>> entrySet() {
+      loadAll();
+      return this.delegate.entrySet();
+    }
+  }
+
+}
@@ -1,12 +1,21 @@
 package cn.javadog.sd.mybatis.spring;
 
 import javax.sql.DataSource;
+import java.sql.BatchUpdateException;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import cn.javadog.sd.mybatis.support.exceptions.PersistenceException;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.jdbc.support.CustomSQLErrorCodesTranslation;
 import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
+import org.springframework.jdbc.support.SQLErrorCodes;
 import org.springframework.jdbc.support.SQLExceptionTranslator;
 import org.springframework.transaction.TransactionException;
 
@@ -15,7 +24,13 @@ import org.springframework.transaction.TransactionException;
  * @date 2019-12-22 14:10
  *
  * 异常转换器。
- * 将 MyBatis SqlSession 的异常转换成Spring的异常
+ * 将 MyBatis SqlSession 的异常转换成Spring的异常。
+ * <p>
+ * 初始化时把数据源的 SQLErrorCodes 预先展开成一张不可变的 错误码(或SQLState) -> 异常分类 的表，
+ * 命中的错误码直接查表创建异常，不再逐个分类二分查找；表之外的错误码(自定义转换、未知错误码)仍交给 Spring 的转换器。
+ * 转换过程不加锁，并发初始化最多重复计算一次。
+ * <p>
+ * 可以通过 {@link #setStacklessErrorCodes} 配置预期内的错误码(比如 upsert 流程里的主键冲突)，这些错误码转换出来的异常不填充异常栈
  */
 public class MyBatisExceptionTranslator implements PersistenceExceptionTranslator {
 
@@ -25,9 +40,14 @@ public class MyBatisExceptionTranslator implements PersistenceExceptionTranslato
   private final DataSource dataSource;
 
   /**
-   * 异常翻译器
+   * 错误码表，初始化后不再变化
    */
-  private SQLExceptionTranslator exceptionTranslator;
+  private volatile ErrorCodeTable errorCodeTable;
+
+  /**
+   * 转换时不填充异常栈的错误码
+   */
+  private volatile Set<String> stacklessErrorCodes = Collections.emptySet();
 
   /**
    * 构造函数
@@ -41,6 +61,14 @@ public class MyBatisExceptionTranslator implements PersistenceExceptionTranslato
     }
   }
 
+  /**
+   * 设置预期内的错误码，与 SQLErrorCodes 的格式一致(按 SQLState 转换的数据库填 SQLState)。
+   * 这些错误码转换出来的异常是对应 Spring 异常的子类，不填充异常栈，创建开销只剩消息拼接；只对查表命中的错误码生效
+   */
+  public void setStacklessErrorCodes(String... stacklessErrorCodes) {
+    this.stacklessErrorCodes = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(stacklessErrorCodes)));
+  }
+
   /**
    * 转换异常
    */
@@ -51,22 +79,99 @@ public class MyBatisExceptionTranslator implements PersistenceExceptionTranslato
         e = (PersistenceException) e.getCause();
       }
       if (e.getCause() instanceof SQLException) {
-        this.initExceptionTranslator();
-        return this.exceptionTranslator.translate(e.getMessage() + "\n", null, (SQLException) e.getCause());
+        return this.initExceptionTranslator().translate(e.getMessage() + "\n", (SQLException) e.getCause(), this.stacklessErrorCodes);
       } else if (e.getCause() instanceof TransactionException) {
         throw (TransactionException) e.getCause();
       }
       return new MyBatisSystemException(e);
-    } 
+    }
     return null;
   }
 
   /**
-   * 初始化异常转换器的真正实现
+   * 初始化异常转换器的真正实现，不加锁，并发时多算一次也没关系，SQLErrorCodesFactory 按数据源缓存了元数据
+   */
+  private ErrorCodeTable initExceptionTranslator() {
+    ErrorCodeTable table = this.errorCodeTable;
+    if (table == null) {
+      table = new ErrorCodeTable(new SQLErrorCodeSQLExceptionTranslator(this.dataSource));
+      this.errorCodeTable = table;
+    }
+    return table;
+  }
+
+  /**
+   * 预先展开的错误码表
    */
-  private synchronized void initExceptionTranslator() {
-    if (this.exceptionTranslator == null) {
-      this.exceptionTranslator = new SQLErrorCodeSQLExceptionTranslator(this.dataSource);
+  private static final class ErrorCodeTable {
+
+    /**
+     * 表里没有的错误码交给它
+     */
+    private final SQLExceptionTranslator delegate;
+
+    /**
+     * 按 SQLState 还是按错误码查表
+     */
+    private final boolean useSqlState;
+
+    private final Map<String, SqlErrorCategory> categories;
+
+    ErrorCodeTable(SQLErrorCodeSQLExceptionTranslator delegate) {
+      this.delegate = delegate;
+      SQLErrorCodes sqlErrorCodes = delegate.getSqlErrorCodes();
+      Map<String, SqlErrorCategory> categories = new HashMap<>();
+      // 自定义的转换器优先于所有错误码，没法预先计算，全部交给 Spring
+      if (sqlErrorCodes != null && sqlErrorCodes.getCustomSqlExceptionTranslator() == null) {
+        for (SqlErrorCategory category : SqlErrorCategory.values()) {
+          for (String code : category.codes(sqlErrorCodes)) {
+            categories.putIfAbsent(code, category);
+          }
+        }
+        // 自定义的错误码转换优先于分类，这些错误码也交给 Spring
+        CustomSQLErrorCodesTranslation[] customTranslations = sqlErrorCodes.getCustomTranslations();
+        if (customTranslations != null) {
+          for (CustomSQLErrorCodesTranslation customTranslation : customTranslations) {
+            for (String code : customTranslation.getErrorCodes()) {
+              categories.remove(code);
+            }
+          }
+        }
+      }
+      this.useSqlState = sqlErrorCodes != null && sqlErrorCodes.isUseSqlStateForTranslation();
+      this.categories = Collections.unmodifiableMap(categories);
+    }
+
+    /**
+     * 与 SQLErrorCodeSQLExceptionTranslator#doTranslate 一样取错误码，命中就直接创建异常
+     */
+    DataAccessException translate(String task, SQLException ex, Set<String> stacklessErrorCodes) {
+      if (!this.categories.isEmpty()) {
+        SQLException sqlEx = ex;
+        if (sqlEx instanceof BatchUpdateException && sqlEx.getNextException() != null) {
+          SQLException nestedSqlEx = sqlEx.getNextException();
+          if (nestedSqlEx.getErrorCode() > 0 || nestedSqlEx.getSQLState() != null) {
+            sqlEx = nestedSqlEx;
+          }
+        }
+        String code = errorCode(sqlEx);
+        SqlErrorCategory category = code == null ? null : this.categories.get(code);
+        if (category != null) {
+          return category.create(task, sqlEx, stacklessErrorCodes.contains(code));
+        }
+      }
+      return this.delegate.translate(task, null, ex);
+    }
+
+    private String errorCode(SQLException sqlEx) {
+      if (this.useSqlState) {
+        return sqlEx.getSQLState();
+      }
+      SQLException current = sqlEx;
+      while (current.getErrorCode() == 0 && current.getCause() instanceof SQLException) {
+        current = (SQLException) current.getCause();
+      }
+      return Integer.toString(current.getErrorCode());
     }
   }
 
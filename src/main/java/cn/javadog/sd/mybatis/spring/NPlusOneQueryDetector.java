@@ -0,0 +1,237 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cn.javadog.sd.mybatis.executor.result.ResultHandler;
+import cn.javadog.sd.mybatis.mapping.BoundSql;
+import cn.javadog.sd.mybatis.mapping.MappedStatement;
+import cn.javadog.sd.mybatis.mapping.ParameterMapping;
+import cn.javadog.sd.mybatis.mapping.ParameterMode;
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.support.cache.CacheKey;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import cn.javadog.sd.mybatis.support.reflection.MetaObject;
+import cn.javadog.sd.mybatis.support.type.TypeHandlerRegistry;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author 余勇
+ * @date 2019-12-23 14:30
+ *
+ * N+1 查询检测器，由 {@link SqlSessionTemplate#setNPlusOneQueryDetector(NPlusOneQueryDetector)} 开启，默认关闭。
+ * <p>
+ * 在同一个Spring事务里(也就是同一个 {@link SqlSessionHolder})，同一个 statement 以超过 {@code threshold} 个不同的参数被执行，
+ * 基本就是在循环里查库了。此时打印告警，带上调用位置和次数；开启 {@code failFast} 时直接抛出 {@link NPlusOneQueryException}，
+ * 适合在测试环境打开。
+ * <p>
+ * 参数是否相同按绑定到 SQL 上的值判断，与 BaseExecutor#createCacheKey 一样，
+ * 没有重写 equals/hashCode 的实体、DTO 只要绑定的值相同就算同一个参数
+ * <p>
+ * 不在事务中的调用不做检测，因为没有一个合适的范围去计数
+ */
+public class NPlusOneQueryDetector {
+
+  private static final Log LOGGER = LogFactory.getLog(NPlusOneQueryDetector.class);
+
+  /**
+   * 默认阈值
+   */
+  public static final int DEFAULT_THRESHOLD = 20;
+
+  /**
+   * 寻找调用位置时需要跳过的类(含内部类)，都是框架自身的栈帧
+   */
+  private static final String[] FRAMEWORK_CLASSES = {
+      SqlSessionTemplate.class.getName(), NPlusOneQueryDetector.class.getName()
+  };
+
+  /**
+   * 寻找调用位置时需要跳过的包
+   */
+  private static final String[] FRAMEWORK_PACKAGES = {
+      "cn.javadog.sd.mybatis.binding.", "cn.javadog.sd.mybatis.session.",
+      "com.sun.proxy.", "jdk.proxy", "java.", "jdk.", "sun."
+  };
+
+  /**
+   * 同一 statement 允许的不同参数个数
+   */
+  private int threshold = DEFAULT_THRESHOLD;
+
+  /**
+   * 超过阈值时是否直接抛出异常
+   */
+  private boolean failFast;
+
+  /*相应的get/set*/
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  public void setThreshold(int threshold) {
+    isTrue(threshold > 0, "Property 'threshold' must be greater than 0");
+    this.threshold = threshold;
+  }
+
+  public boolean isFailFast() {
+    return failFast;
+  }
+
+  public void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  /**
+   * 检查一次 SqlSession 的方法调用，由 {@link SqlSessionTemplate} 的拦截器在执行 SQL 之前调用
+   */
+  void inspect(SqlSessionFactory sessionFactory, Method method, Object[] args) {
+    // 只关心第一个参数是 statement 的方法，select*/insert/update/delete
+    if (args == null || args.length == 0 || !(args[0] instanceof String)) {
+      return;
+    }
+    SqlSessionHolder holder = (SqlSessionHolder) TransactionSynchronizationManager.getResource(sessionFactory);
+    if (holder == null || !holder.isSynchronizedWithTransaction()) {
+      return;
+    }
+    String statement = (String) args[0];
+    Object parameter = args.length > 1 && !(args[1] instanceof ResultHandler) ? args[1] : null;
+    StatementExecutions executions = holder.getStatementExecutions()
+        .computeIfAbsent(statement, key -> new StatementExecutions());
+    if (executions.reported) {
+      return;
+    }
+    // 已经报过的 statement 不用再绑定参数了
+    Object parameterKey = parameterKey(sessionFactory.getConfiguration(), statement, parameter);
+    int count = executions.record(parameterKey, this.threshold);
+    if (count > this.threshold) {
+      executions.reported = true;
+      String message = "Possible N+1 query: statement '" + statement + "' executed with " + count
+          + " different parameters in one transaction, called from " + callSite();
+      if (this.failFast) {
+        throw new NPlusOneQueryException(message);
+      }
+      LOGGER.warn(message);
+    }
+  }
+
+  /**
+   * 参数绑定到 SQL 上的值组成的 key，做法同 BaseExecutor#createCacheKey。找不到 statement 时就用参数本身
+   */
+  static Object parameterKey(Configuration configuration, String statement, Object parameter) {
+    if (!configuration.hasStatement(statement, false)) {
+      return parameter;
+    }
+    MappedStatement ms = configuration.getMappedStatement(statement, false);
+    Object parameterObject = wrapCollection(parameter);
+    BoundSql boundSql = ms.getBoundSql(parameterObject);
+    TypeHandlerRegistry typeHandlerRegistry = configuration.getTypeHandlerRegistry();
+    CacheKey key = new CacheKey();
+    key.update(boundSql.getSql());
+    MetaObject metaObject = null;
+    for (ParameterMapping parameterMapping : boundSql.getParameterMappings()) {
+      if (parameterMapping.getMode() == ParameterMode.OUT) {
+        continue;
+      }
+      String property = parameterMapping.getProperty();
+      Object value;
+      if (boundSql.hasAdditionalParameter(property)) {
+        value = boundSql.getAdditionalParameter(property);
+      } else if (parameterObject == null) {
+        value = null;
+      } else if (typeHandlerRegistry.hasTypeHandler(parameterObject.getClass())) {
+        value = parameterObject;
+      } else {
+        if (metaObject == null) {
+          metaObject = configuration.newMetaObject(parameterObject);
+        }
+        value = metaObject.getValue(property);
+      }
+      key.update(value);
+    }
+    return key;
+  }
+
+  /**
+   * 与 DefaultSqlSession#wrapCollection 一致，集合和数组包装成 Map 之后才能绑定
+   */
+  private static Object wrapCollection(Object parameter) {
+    if (parameter instanceof Collection) {
+      Map<String, Object> map = new HashMap<>();
+      map.put("collection", parameter);
+      if (parameter instanceof List) {
+        map.put("list", parameter);
+      }
+      return map;
+    }
+    if (parameter != null && parameter.getClass().isArray()) {
+      Map<String, Object> map = new HashMap<>();
+      map.put("array", parameter);
+      return map;
+    }
+    return parameter;
+  }
+
+  /**
+   * 找到第一个业务代码的栈帧，只有超过阈值时才会调用，不影响正常路径的性能
+   */
+  private static String callSite() {
+    for (StackTraceElement element : new Throwable().getStackTrace()) {
+      if (!isFrameworkFrame(element.getClassName())) {
+        return element.toString();
+      }
+    }
+    return "<unknown>";
+  }
+
+  private static boolean isFrameworkFrame(String className) {
+    for (String frameworkClass : FRAMEWORK_CLASSES) {
+      if (className.equals(frameworkClass) || className.startsWith(frameworkClass + "$")) {
+        return true;
+      }
+    }
+    for (String prefix : FRAMEWORK_PACKAGES) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 一个事务内，单个 statement 的执行统计，保存在 {@link SqlSessionHolder} 上
+   */
+  static final class StatementExecutions {
+
+    /**
+     * 不同参数的 key，最多保存 threshold + 1 个，够判断就行
+     */
+    private final Set<Object> parameterKeys = new HashSet<>();
+
+    /**
+     * 是否已经报告过，一个事务里每个 statement 只报告一次
+     */
+    private boolean reported;
+
+    /**
+     * 记录一次执行，返回目前为止不同参数的个数
+     */
+    int record(Object parameterKey, int threshold) {
+      if (this.parameterKeys.size() <= threshold) {
+        this.parameterKeys.add(parameterKey);
+      }
+      return this.parameterKeys.size();
+    }
+  }
+
+}
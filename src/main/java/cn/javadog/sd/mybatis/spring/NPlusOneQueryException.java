@@ -0,0 +1,20 @@
+package cn.javadog.sd.mybatis.spring;
+
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-23 14:26
+ *
+ * {@link NPlusOneQueryDetector} 开启 failFast 时抛出，说明同一个事务里同一个 statement 被循环执行了太多次
+ */
+@SuppressWarnings("squid:MaximumInheritanceDepth")
+public class NPlusOneQueryException extends InvalidDataAccessApiUsageException {
+
+  private static final long serialVersionUID = 2837593024815736401L;
+
+  public NPlusOneQueryException(String msg) {
+    super(msg);
+  }
+
+}
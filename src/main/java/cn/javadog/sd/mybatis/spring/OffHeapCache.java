@@ -0,0 +1,804 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+import static org.springframework.util.Assert.state;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import cn.javadog.sd.mybatis.support.cache.Cache;
+import cn.javadog.sd.mybatis.support.cache.CacheException;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.util.ClassUtils;
+
+/**
+ * @author 余勇
+ * @date 2019-12-30 10:30
+ *
+ * 堆外的二级缓存。默认的 PerpetualCache 把查询结果放在堆上，几千万个条目会让老年代很大，GC 停顿很长。
+ * 这里把 key 和查询结果序列化后存放在堆外的 direct ByteBuffer 里，堆上只留下基本类型数组做索引和淘汰策略，
+ * GC 不需要扫描其中的对象。可以通过 {@link SqlSessionFactoryBean#setCache(Cache)} 注册后用 {@code <cache-ref>} 共享，
+ * 也可以在 mapper 文件里按 namespace 声明：
+ * <pre class="code">
+ * {@code
+ *   <cache type="cn.javadog.sd.mybatis.spring.OffHeapCache">
+ *     <property name="capacityBytes" value="1073741824"/>
+ *     <property name="compressionThreshold" value="4096"/>
+ *   </cache>
+ * }
+ * </pre>
+ * <p>
+ * 缓存分成若干段，每段一块 slab 和一把锁。slab 切成固定大小的块，条目按块链式存放，不会产生碎片；
+ * 段内的索引是开放寻址的哈希表，只存 64 位哈希和首块下标，命中后再比对序列化的 key。
+ * 淘汰按 W-TinyLFU 的思路：新条目先进窗口 LRU，挤出窗口后进入主区的试用段，再次访问晋升到保护段；
+ * 空间不够时拿刚进入试用段的候选者和试用段末尾的条目比较频率(4 位 Count-Min Sketch，定期减半)，
+ * 低频的被淘汰，一次性的扫描不会把热点挤出去。
+ * <p>
+ * 放入的 key 和结果必须可以序列化，和 {@code readOnly="false"} 的缓存一样，每次读取都反序列化出新的对象。
+ * 堆外内存在缓存对象被回收时释放
+ */
+public class OffHeapCache implements Cache {
+
+  private static final Log LOGGER = LogFactory.getLog(OffHeapCache.class);
+
+  /**
+   * 条目头：key 长度、value 长度、标志位
+   */
+  private static final int HEADER_BYTES = 9;
+
+  /**
+   * 标志位：value 经过压缩
+   */
+  private static final byte FLAG_COMPRESSED = 1;
+
+  private final String id;
+
+  /**
+   * 堆外内存的总大小，字节
+   */
+  private long capacityBytes = 64L * 1024 * 1024;
+
+  /**
+   * 段数，2 的幂
+   */
+  private int segmentCount = 16;
+
+  /**
+   * 块大小，字节
+   */
+  private int blockSize = 256;
+
+  /**
+   * 序列化后超过多少字节时压缩，0 表示不压缩
+   */
+  private int compressionThreshold;
+
+  private final ReentrantLock initLock = new ReentrantLock();
+
+  private volatile Segment[] segments;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  public OffHeapCache(String id) {
+    notNull(id, "Cache instances require an ID");
+    this.id = id;
+  }
+
+  /*相应的get/set*/
+
+  @Override
+  public String getId() {
+    return this.id;
+  }
+
+  public void setCapacityBytes(long capacityBytes) {
+    checkNotStarted();
+    isTrue(capacityBytes > 0, "Property 'capacityBytes' must be greater than 0");
+    this.capacityBytes = capacityBytes;
+  }
+
+  public void setSegmentCount(int segmentCount) {
+    checkNotStarted();
+    isTrue(segmentCount > 0 && Integer.bitCount(segmentCount) == 1, "Property 'segmentCount' must be a power of 2");
+    this.segmentCount = segmentCount;
+  }
+
+  public void setBlockSize(int blockSize) {
+    checkNotStarted();
+    isTrue(blockSize >= 32, "Property 'blockSize' must be at least 32");
+    this.blockSize = blockSize;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    checkNotStarted();
+    isTrue(compressionThreshold >= 0, "Property 'compressionThreshold' must not be negative");
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * 因为空间不够被淘汰或者没有被准入的条目数
+   */
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * 已经使用的堆外字节数，按块计算
+   */
+  public long getUsedBytes() {
+    Segment[] current = this.segments;
+    if (current == null) {
+      return 0;
+    }
+    long used = 0;
+    for (Segment segment : current) {
+      used += (long) (segment.totalBlocks - segment.freeBlocks) * this.blockSize;
+    }
+    return used;
+  }
+
+  @Override
+  public void putObject(Object key, Object value) {
+    byte[] keyBytes = serialize(key);
+    byte[] valueBytes = serialize(value);
+    byte flags = 0;
+    if (this.compressionThreshold > 0 && valueBytes.length >= this.compressionThreshold) {
+      byte[] compressed = compress(valueBytes);
+      if (compressed.length < valueBytes.length) {
+        valueBytes = compressed;
+        flags = FLAG_COMPRESSED;
+      }
+    }
+    long hash = hash(keyBytes);
+    segmentFor(hash).put(hash, keyBytes, valueBytes, flags);
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    byte[] keyBytes = serialize(key);
+    long hash = hash(keyBytes);
+    byte[] entry = segmentFor(hash).get(hash, keyBytes);
+    if (entry == null) {
+      this.misses.increment();
+      return null;
+    }
+    this.hits.increment();
+    // 第一个字节是标志位，后面是 value
+    return deserialize(entry, (entry[0] & FLAG_COMPRESSED) != 0);
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    byte[] keyBytes = serialize(key);
+    long hash = hash(keyBytes);
+    segmentFor(hash).remove(hash, keyBytes);
+    return null;
+  }
+
+  @Override
+  public void clear() {
+    Segment[] current = this.segments;
+    if (current != null) {
+      for (Segment segment : current) {
+        segment.clear();
+      }
+    }
+  }
+
+  @Override
+  public int getSize() {
+    Segment[] current = this.segments;
+    if (current == null) {
+      return 0;
+    }
+    int size = 0;
+    for (Segment segment : current) {
+      size += segment.count;
+    }
+    return size;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Cache)) {
+      return false;
+    }
+    return this.id.equals(((Cache) o).getId());
+  }
+
+  @Override
+  public int hashCode() {
+    return this.id.hashCode();
+  }
+
+  private void checkNotStarted() {
+    state(this.segments == null, "OffHeapCache '" + this.id + "' is already in use");
+  }
+
+  private Segment segmentFor(long hash) {
+    Segment[] current = this.segments;
+    if (current == null) {
+      current = initialize();
+    }
+    return current[(int) (hash >>> 40) & (current.length - 1)];
+  }
+
+  /**
+   * 第一次用到时分配堆外内存，这时 mapper 文件里的属性已经设置完了
+   */
+  private Segment[] initialize() {
+    this.initLock.lock();
+    try {
+      if (this.segments == null) {
+        long segmentBytes = this.capacityBytes / this.segmentCount;
+        isTrue(segmentBytes <= Integer.MAX_VALUE, "Each segment must be smaller than 2GB, increase 'segmentCount'");
+        int blocks = (int) (segmentBytes / this.blockSize);
+        isTrue(blocks >= 16, "Property 'capacityBytes' is too small for " + this.segmentCount + " segments");
+        Segment[] created = new Segment[this.segmentCount];
+        for (int i = 0; i < created.length; i++) {
+          created[i] = new Segment(blocks, this.blockSize, this.evictions);
+        }
+        LOGGER.debug("Allocated " + (long) blocks * this.blockSize * this.segmentCount
+            + " off-heap bytes for cache '" + this.id + "'");
+        this.segments = created;
+      }
+      return this.segments;
+    } finally {
+      this.initLock.unlock();
+    }
+  }
+
+  private static byte[] serialize(Object object) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(object);
+    } catch (IOException e) {
+      throw new CacheException("Error serializing object: " + object + ". Cause: " + e, e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] compress(byte[] data) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (OutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+      out.write(data);
+    } catch (IOException e) {
+      throw new CacheException("Error compressing cache value. Cause: " + e, e);
+    } finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] entry, boolean compressed) {
+    InputStream in = new ByteArrayInputStream(entry, 1, entry.length - 1);
+    if (compressed) {
+      in = new InflaterInputStream(in);
+    }
+    try (ObjectInputStream objectIn = new ClassLoaderAwareObjectInputStream(in)) {
+      return objectIn.readObject();
+    } catch (IOException | ClassNotFoundException e) {
+      throw new CacheException("Error deserializing cache value. Cause: " + e, e);
+    }
+  }
+
+  /**
+   * FNV-1a 加上 MurmurHash3 的收尾混合，0 留给空槽
+   */
+  static long hash(byte[] bytes) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : bytes) {
+      h ^= b;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+
+  /**
+   * 一个段：一块 slab，块链表，开放寻址索引和 W-TinyLFU 的三个队列。
+   * 所有数组都以块下标为下标，条目用首块的下标表示
+   */
+  private static final class Segment {
+
+    private static final int WINDOW = 0;
+
+    private static final int PROBATION = 1;
+
+    private static final int PROTECTED = 2;
+
+    private static final int NONE = -1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ByteBuffer slab;
+
+    private final int blockSize;
+
+    private final int totalBlocks;
+
+    private final LongAdder evictions;
+
+    /**
+     * 块链表：条目内的下一块，或者空闲链表的下一块
+     */
+    private final int[] nextBlock;
+
+    private int freeHead;
+
+    private int freeBlocks;
+
+    /*条目元数据*/
+
+    private final long[] entryHash;
+
+    private final int[] entryBlocks;
+
+    private final int[] prev;
+
+    private final int[] next;
+
+    private final byte[] queue;
+
+    /*索引*/
+
+    private final long[] slotHash;
+
+    private final int[] slotHead;
+
+    private final int slotMask;
+
+    private int count;
+
+    /*淘汰策略*/
+
+    private final int[] heads = { NONE, NONE, NONE };
+
+    private final int[] tails = { NONE, NONE, NONE };
+
+    private final int[] queueBlocks = new int[3];
+
+    private final int windowMax;
+
+    private final int protectedMax;
+
+    private final FrequencySketch sketch;
+
+    Segment(int blocks, int blockSize, LongAdder evictions) {
+      this.slab = ByteBuffer.allocateDirect(blocks * blockSize);
+      this.blockSize = blockSize;
+      this.totalBlocks = blocks;
+      this.evictions = evictions;
+      this.nextBlock = new int[blocks];
+      this.entryHash = new long[blocks];
+      this.entryBlocks = new int[blocks];
+      this.prev = new int[blocks];
+      this.next = new int[blocks];
+      this.queue = new byte[blocks];
+      // 条目数不会超过块数，负载因子不超过 0.75
+      int slots = Integer.highestOneBit(Math.max(blocks * 4 / 3, 16) - 1) << 1;
+      this.slotHash = new long[slots];
+      this.slotHead = new int[slots];
+      this.slotMask = slots - 1;
+      this.windowMax = Math.max(1, blocks / 100);
+      this.protectedMax = (blocks - this.windowMax) * 4 / 5;
+      this.sketch = new FrequencySketch(blocks);
+      resetFreeList();
+    }
+
+    void put(long hash, byte[] key, byte[] value, byte flags) {
+      int needed = (HEADER_BYTES + key.length + value.length + this.blockSize - 1) / this.blockSize;
+      if (needed > this.totalBlocks / 2) {
+        LOGGER.debug("Cache value of " + value.length + " bytes is too large for a segment, not cached");
+        this.evictions.increment();
+        return;
+      }
+      this.lock.lock();
+      try {
+        this.sketch.increment(hash);
+        int slot = find(hash, key);
+        if (slot != NONE) {
+          removeEntry(this.slotHead[slot], slot);
+        }
+        while (this.freeBlocks < needed) {
+          evict();
+        }
+        int head = write(key, value, flags, needed);
+        this.entryHash[head] = hash;
+        this.entryBlocks[head] = needed;
+        insertSlot(hash, head);
+        this.count++;
+        link(head, WINDOW);
+        // 挤出窗口的条目进入试用段的头部，成为下一次淘汰时的候选者
+        while (this.queueBlocks[WINDOW] > this.windowMax && this.tails[WINDOW] != head) {
+          int candidate = this.tails[WINDOW];
+          unlink(candidate);
+          link(candidate, PROBATION);
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    /**
+     * 返回标志位加上 value，没有命中返回 null
+     */
+    byte[] get(long hash, byte[] key) {
+      this.lock.lock();
+      try {
+        this.sketch.increment(hash);
+        int slot = find(hash, key);
+        if (slot == NONE) {
+          return null;
+        }
+        int head = this.slotHead[slot];
+        onHit(head);
+        int valueLength = this.slab.getInt(head * this.blockSize + 4);
+        byte[] entry = new byte[valueLength + 1];
+        entry[0] = this.slab.get(head * this.blockSize + 8);
+        read(head, HEADER_BYTES + key.length, entry, 1, valueLength);
+        return entry;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    void remove(long hash, byte[] key) {
+      this.lock.lock();
+      try {
+        int slot = find(hash, key);
+        if (slot != NONE) {
+          removeEntry(this.slotHead[slot], slot);
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    void clear() {
+      this.lock.lock();
+      try {
+        Arrays.fill(this.slotHash, 0L);
+        Arrays.fill(this.heads, NONE);
+        Arrays.fill(this.tails, NONE);
+        Arrays.fill(this.queueBlocks, 0);
+        this.count = 0;
+        resetFreeList();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    /**
+     * 试用段的候选者(刚挤出窗口的)和试用段末尾的条目比较频率，淘汰低频的一个；
+     * 试用段只有一个条目时依次从保护段、窗口的末尾淘汰
+     */
+    private void evict() {
+      int victim;
+      int probationTail = this.tails[PROBATION];
+      int candidate = this.heads[PROBATION];
+      if (probationTail != NONE && candidate != probationTail) {
+        boolean admit = this.sketch.frequency(this.entryHash[candidate]) > this.sketch.frequency(this.entryHash[probationTail]);
+        victim = admit ? probationTail : candidate;
+      } else if (probationTail != NONE) {
+        victim = probationTail;
+      } else if (this.tails[PROTECTED] != NONE) {
+        victim = this.tails[PROTECTED];
+      } else {
+        victim = this.tails[WINDOW];
+      }
+      removeEntry(victim, slotOf(victim));
+      this.evictions.increment();
+    }
+
+    private void onHit(int head) {
+      int q = this.queue[head];
+      unlink(head);
+      if (q != PROBATION) {
+        link(head, q);
+        return;
+      }
+      link(head, PROTECTED);
+      while (this.queueBlocks[PROTECTED] > this.protectedMax && this.tails[PROTECTED] != head) {
+        int demoted = this.tails[PROTECTED];
+        unlink(demoted);
+        link(demoted, PROBATION);
+      }
+    }
+
+    private void link(int head, int q) {
+      this.queue[head] = (byte) q;
+      this.prev[head] = NONE;
+      this.next[head] = this.heads[q];
+      if (this.heads[q] != NONE) {
+        this.prev[this.heads[q]] = head;
+      } else {
+        this.tails[q] = head;
+      }
+      this.heads[q] = head;
+      this.queueBlocks[q] += this.entryBlocks[head];
+    }
+
+    private void unlink(int head) {
+      int q = this.queue[head];
+      if (this.prev[head] != NONE) {
+        this.next[this.prev[head]] = this.next[head];
+      } else {
+        this.heads[q] = this.next[head];
+      }
+      if (this.next[head] != NONE) {
+        this.prev[this.next[head]] = this.prev[head];
+      } else {
+        this.tails[q] = this.prev[head];
+      }
+      this.queueBlocks[q] -= this.entryBlocks[head];
+    }
+
+    private void removeEntry(int head, int slot) {
+      unlink(head);
+      deleteSlot(slot);
+      this.count--;
+      int last = head;
+      while (this.nextBlock[last] != NONE) {
+        last = this.nextBlock[last];
+      }
+      this.nextBlock[last] = this.freeHead;
+      this.freeHead = head;
+      this.freeBlocks += this.entryBlocks[head];
+    }
+
+    /**
+     * 从空闲链表取出 needed 块，写入条目头、key 和 value
+     */
+    private int write(byte[] key, byte[] value, byte flags, int needed) {
+      int head = this.freeHead;
+      int last = head;
+      for (int i = 1; i < needed; i++) {
+        last = this.nextBlock[last];
+      }
+      this.freeHead = this.nextBlock[last];
+      this.nextBlock[last] = NONE;
+      this.freeBlocks -= needed;
+
+      int base = head * this.blockSize;
+      this.slab.putInt(base, key.length);
+      this.slab.putInt(base + 4, value.length);
+      this.slab.put(base + 8, flags);
+      int offset = scatter(head, HEADER_BYTES, key);
+      scatter(head, offset, value);
+      return head;
+    }
+
+    /**
+     * 把 src 写到条目内 offset 开始的位置，返回写完后的 offset
+     */
+    private int scatter(int head, int offset, byte[] src) {
+      int block = skip(head, offset);
+      int inBlock = offset % this.blockSize;
+      int written = 0;
+      while (written < src.length) {
+        int length = Math.min(this.blockSize - inBlock, src.length - written);
+        ((Buffer) this.slab).position(block * this.blockSize + inBlock);
+        this.slab.put(src, written, length);
+        written += length;
+        inBlock = 0;
+        block = this.nextBlock[block];
+      }
+      return offset + src.length;
+    }
+
+    /**
+     * 从条目内 offset 开始读 length 个字节到 dst
+     */
+    private void read(int head, int offset, byte[] dst, int dstOffset, int length) {
+      int block = skip(head, offset);
+      int inBlock = offset % this.blockSize;
+      int copied = 0;
+      while (copied < length) {
+        int chunk = Math.min(this.blockSize - inBlock, length - copied);
+        ((Buffer) this.slab).position(block * this.blockSize + inBlock);
+        this.slab.get(dst, dstOffset + copied, chunk);
+        copied += chunk;
+        inBlock = 0;
+        block = this.nextBlock[block];
+      }
+    }
+
+    private int skip(int head, int offset) {
+      int block = head;
+      for (int i = offset / this.blockSize; i > 0; i--) {
+        block = this.nextBlock[block];
+      }
+      return block;
+    }
+
+    private boolean keyEquals(int head, byte[] key) {
+      if (this.slab.getInt(head * this.blockSize) != key.length) {
+        return false;
+      }
+      byte[] stored = new byte[key.length];
+      read(head, HEADER_BYTES, stored, 0, key.length);
+      return Arrays.equals(stored, key);
+    }
+
+    private int home(long hash) {
+      return (int) hash & this.slotMask;
+    }
+
+    private int find(long hash, byte[] key) {
+      for (int i = home(hash); this.slotHash[i] != 0; i = (i + 1) & this.slotMask) {
+        if (this.slotHash[i] == hash && keyEquals(this.slotHead[i], key)) {
+          return i;
+        }
+      }
+      return NONE;
+    }
+
+    private int slotOf(int head) {
+      int i = home(this.entryHash[head]);
+      while (this.slotHead[i] != head || this.slotHash[i] == 0) {
+        i = (i + 1) & this.slotMask;
+      }
+      return i;
+    }
+
+    private void insertSlot(long hash, int head) {
+      int i = home(hash);
+      while (this.slotHash[i] != 0) {
+        i = (i + 1) & this.slotMask;
+      }
+      this.slotHash[i] = hash;
+      this.slotHead[i] = head;
+    }
+
+    /**
+     * 线性探测的删除，把后面探测链上的槽往前移，不留墓碑
+     */
+    private void deleteSlot(int slot) {
+      int hole = slot;
+      int i = slot;
+      while (true) {
+        i = (i + 1) & this.slotMask;
+        if (this.slotHash[i] == 0) {
+          break;
+        }
+        int home = home(this.slotHash[i]);
+        boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+        if (movable) {
+          this.slotHash[hole] = this.slotHash[i];
+          this.slotHead[hole] = this.slotHead[i];
+          hole = i;
+        }
+      }
+      this.slotHash[hole] = 0;
+    }
+
+    private void resetFreeList() {
+      for (int i = 0; i < this.totalBlocks; i++) {
+        this.nextBlock[i] = i + 1 < this.totalBlocks ? i + 1 : NONE;
+      }
+      this.freeHead = 0;
+      this.freeBlocks = this.totalBlocks;
+    }
+  }
+
+  /**
+   * 4 位计数的 Count-Min Sketch，每个 long 存 16 个计数器，
+   * 累计增加次数达到样本数时所有计数减半，让频率随时间衰减
+   */
+  private static final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    FrequencySketch(int maximum) {
+      int length = Integer.highestOneBit(Math.max(maximum, 16) - 1) << 1;
+      this.table = new long[length];
+      this.tableMask = length - 1;
+      this.sampleSize = 10 * length;
+    }
+
+    int frequency(long hash) {
+      int start = ((int) hash & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        int count = (int) ((this.table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    void increment(long hash) {
+      int start = ((int) hash & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(hash, i);
+        int offset = (start + i) << 2;
+        long mask = 0xfL << offset;
+        if ((this.table[index] & mask) != mask) {
+          this.table[index] += 1L << offset;
+          added = true;
+        }
+      }
+      if (added && ++this.size == this.sampleSize) {
+        for (int i = 0; i < this.table.length; i++) {
+          this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+        }
+        this.size /= 2;
+      }
+    }
+
+    private int indexOf(long hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return (int) h & this.tableMask;
+    }
+  }
+
+  /**
+   * 用线程上下文类加载器解析类，应用服务器里缓存的是应用自己的类型
+   */
+  private static final class ClassLoaderAwareObjectInputStream extends ObjectInputStream {
+
+    ClassLoaderAwareObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      try {
+        return ClassUtils.forName(desc.getName(), ClassUtils.getDefaultClassLoader());
+      } catch (ClassNotFoundException e) {
+        return super.resolveClass(desc);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,451 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.hasText;
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cn.javadog.sd.mybatis.executor.Executor;
+import cn.javadog.sd.mybatis.executor.result.ResultHandler;
+import cn.javadog.sd.mybatis.mapping.BoundSql;
+import cn.javadog.sd.mybatis.mapping.MappedStatement;
+import cn.javadog.sd.mybatis.mapping.ParameterMapping;
+import cn.javadog.sd.mybatis.mapping.ParameterMode;
+import cn.javadog.sd.mybatis.mapping.ResultMap;
+import cn.javadog.sd.mybatis.mapping.SqlCommandType;
+import cn.javadog.sd.mybatis.mapping.SqlSource;
+import cn.javadog.sd.mybatis.mapping.StatementType;
+import cn.javadog.sd.mybatis.plugin.Interceptor;
+import cn.javadog.sd.mybatis.plugin.Intercepts;
+import cn.javadog.sd.mybatis.plugin.Invocation;
+import cn.javadog.sd.mybatis.plugin.Signature;
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.session.RowBounds;
+import cn.javadog.sd.mybatis.session.SqlSession;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import cn.javadog.sd.mybatis.support.reflection.MetaObject;
+import cn.javadog.sd.mybatis.support.reflection.SystemMetaObject;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-29 14:00
+ *
+ * 物理分页插件。MyBatis 对 RowBounds 的处理是把整个结果集查出来，在客户端跳过 offset 行，
+ * 翻到后面几页时数据库和网络都在做无用功。这个插件在执行前把 SELECT 改写成数据库的分页语法，
+ * 再以 {@link RowBounds#DEFAULT} 执行，只有需要的那一页会从数据库返回。
+ * <p>
+ * 改写的语法由 {@link Dialect} 决定，没有指定时按数据源的 DatabaseProductName 识别：
+ * Derby、HSQLDB、Oracle、DB2、SQL Server 用 {@code OFFSET n ROWS FETCH NEXT m ROWS ONLY}，其它数据库用 {@code LIMIT m OFFSET n}。
+ * 注意 SQL Server 的 OFFSET 要求语句带 ORDER BY。存储过程调用不改写。
+ * <p>
+ * {@link #count(SqlSession, String, Object)} 把同一个 statement 包装成 {@code SELECT COUNT(*) FROM (...)} 查询总数，
+ * 设置了 {@code countCacheMillis} 时按 SQL 和参数值缓存总数，翻页时不用每页都数一遍。
+ * 总数查询的 statement 只保存在插件自己的 Map 里，不注册到 Configuration(Configuration 的 Map 在运行期不是线程安全的)，
+ * 以原 statement 带着一个标记 RowBounds 执行，拦截时换成总数查询，所以 SqlSession 所在的工厂必须注册了这个插件。
+ * 通过 SqlSessionFactoryBean 注册：
+ * <pre class="code">
+ * {@code
+ *   <bean id="paginationInterceptor" class="cn.javadog.sd.mybatis.spring.PaginationInterceptor">
+ *     <property name="countCacheMillis" value="30000" />
+ *   </bean>
+ *   <bean id="sqlSessionFactory" class="cn.javadog.sd.mybatis.spring.SqlSessionFactoryBean">
+ *     <property name="dataSource" ref="dataSource" />
+ *     <property name="plugins" ref="paginationInterceptor" />
+ *   </bean>
+ * }
+ * </pre>
+ */
+@Intercepts({
+    @Signature(type = Executor.class, method = "query", args = { MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class }),
+    @Signature(type = Executor.class, method = "queryCursor", args = { MappedStatement.class, Object.class, RowBounds.class })
+})
+public class PaginationInterceptor implements Interceptor {
+
+  private static final Log LOGGER = LogFactory.getLog(PaginationInterceptor.class);
+
+  /**
+   * 总数查询的 statement id 后缀
+   */
+  public static final String COUNT_SUFFIX = "_COUNT";
+
+  /**
+   * 分页语法
+   */
+  public enum Dialect {
+
+    /**
+     * SQL:2008 标准语法
+     */
+    OFFSET_FETCH {
+      @Override
+      String paginate(String sql, int offset, int limit) {
+        StringBuilder paged = new StringBuilder(sql.length() + 48).append(sql);
+        paged.append(" OFFSET ").append(offset).append(" ROWS");
+        if (limit != RowBounds.NO_ROW_LIMIT) {
+          paged.append(" FETCH NEXT ").append(limit).append(" ROWS ONLY");
+        }
+        return paged.toString();
+      }
+    },
+
+    /**
+     * MySQL、PostgreSQL、H2、SQLite 等
+     */
+    LIMIT_OFFSET {
+      @Override
+      String paginate(String sql, int offset, int limit) {
+        StringBuilder paged = new StringBuilder(sql.length() + 32).append(sql);
+        // 没有上限时给一个足够大的 LIMIT，MySQL 不支持单独的 OFFSET
+        paged.append(" LIMIT ").append(limit == RowBounds.NO_ROW_LIMIT ? Long.MAX_VALUE : limit);
+        if (offset > 0) {
+          paged.append(" OFFSET ").append(offset);
+        }
+        return paged.toString();
+      }
+    };
+
+    /**
+     * 改写成只返回指定页的 SQL，offset 和 limit 是整数，直接拼成字面量
+     */
+    abstract String paginate(String sql, int offset, int limit);
+
+    /**
+     * 按 DatabaseMetaData#getDatabaseProductName 识别
+     */
+    public static Dialect forDatabaseProductName(String productName) {
+      String name = productName == null ? "" : productName.toLowerCase(Locale.ENGLISH);
+      if (name.contains("derby") || name.contains("hsql") || name.contains("oracle")
+          || name.startsWith("db2") || name.contains("sql server")) {
+        return OFFSET_FETCH;
+      }
+      return LIMIT_OFFSET;
+    }
+  }
+
+  /**
+   * 识别出来的分页语法，KEY 是数据源
+   */
+  private final Map<DataSource, Dialect> detectedDialects = new ConcurrentHashMap<>();
+
+  /**
+   * 缓存的总数
+   */
+  private final Map<List<Object>, CachedCount> countCache = new ConcurrentHashMap<>();
+
+  /**
+   * 总数查询的 statement，KEY 是原 statement
+   */
+  private final Map<MappedStatement, MappedStatement> countStatements = new ConcurrentHashMap<>();
+
+  /**
+   * 指定的分页语法，为 null 时按数据源识别
+   */
+  private Dialect dialect;
+
+  /**
+   * 总数的缓存时间，毫秒，0 表示不缓存
+   */
+  private long countCacheMillis;
+
+  /**
+   * 最多缓存多少个总数
+   */
+  private int maxCachedCounts = 1024;
+
+  /*相应的get/set*/
+
+  public Dialect getDialect() {
+    return dialect;
+  }
+
+  public void setDialect(Dialect dialect) {
+    this.dialect = dialect;
+  }
+
+  public long getCountCacheMillis() {
+    return countCacheMillis;
+  }
+
+  public void setCountCacheMillis(long countCacheMillis) {
+    isTrue(countCacheMillis >= 0, "Property 'countCacheMillis' must not be negative");
+    this.countCacheMillis = countCacheMillis;
+  }
+
+  public void setMaxCachedCounts(int maxCachedCounts) {
+    isTrue(maxCachedCounts > 0, "Property 'maxCachedCounts' must be greater than 0");
+    this.maxCachedCounts = maxCachedCounts;
+  }
+
+  /**
+   * 在 mybatis-config.xml 中注册时的配置，支持 dialect、countCacheMillis、maxCachedCounts
+   */
+  @Override
+  public void setProperties(Properties properties) {
+    String dialectName = properties.getProperty("dialect");
+    if (dialectName != null) {
+      setDialect(Dialect.valueOf(dialectName.trim().toUpperCase(Locale.ENGLISH)));
+    }
+    String countCache = properties.getProperty("countCacheMillis");
+    if (countCache != null) {
+      setCountCacheMillis(Long.parseLong(countCache.trim()));
+    }
+    String maxCounts = properties.getProperty("maxCachedCounts");
+    if (maxCounts != null) {
+      setMaxCachedCounts(Integer.parseInt(maxCounts.trim()));
+    }
+  }
+
+  /**
+   * 带 RowBounds 的查询改写成物理分页
+   */
+  @Override
+  public Object intercept(Invocation invocation) throws Throwable {
+    Object[] args = invocation.getArgs();
+    MappedStatement ms = (MappedStatement) args[0];
+    RowBounds rowBounds = (RowBounds) args[2];
+    if (rowBounds == CountRowBounds.INSTANCE) {
+      args[0] = countStatement(ms);
+      args[2] = RowBounds.DEFAULT;
+      return invocation.proceed();
+    }
+    if (rowBounds == null
+        || rowBounds.getOffset() == RowBounds.NO_ROW_OFFSET && rowBounds.getLimit() == RowBounds.NO_ROW_LIMIT
+        || ms.getSqlCommandType() != SqlCommandType.SELECT
+        || ms.getStatementType() == StatementType.CALLABLE) {
+      return invocation.proceed();
+    }
+    Dialect pagingDialect = resolveDialect(ms.getConfiguration());
+    SqlSource pagedSqlSource = parameterObject -> {
+      BoundSql boundSql = ms.getBoundSql(parameterObject);
+      String sql = pagingDialect.paginate(boundSql.getSql(), rowBounds.getOffset(), rowBounds.getLimit());
+      return copy(ms.getConfiguration(), boundSql, sql, parameterObject);
+    };
+    // 同一个 id，一级缓存和二级缓存的 key 里有改写后的 SQL，不同页不会混在一起
+    args[0] = copy(ms, ms.getId(), pagedSqlSource).build();
+    args[2] = RowBounds.DEFAULT;
+    return invocation.proceed();
+  }
+
+  /**
+   * 查询 statement 在给定参数下的总行数
+   */
+  public long count(SqlSession sqlSession, String statement, Object parameter) {
+    notNull(sqlSession, "SqlSession must not be null");
+    hasText(statement, "Statement must not be empty");
+    Configuration configuration = sqlSession.getConfiguration();
+    isTrue(configuration.getInterceptors().contains(this),
+        "PaginationInterceptor is not registered with the SqlSessionFactory of this SqlSession");
+    MappedStatement ms = configuration.getMappedStatement(statement);
+    isTrue(ms.getSqlCommandType() == SqlCommandType.SELECT, "Statement '" + statement + "' is not a SELECT");
+    if (this.countCacheMillis == 0) {
+      return selectCount(sqlSession, statement, parameter);
+    }
+    List<Object> key = countCacheKey(countStatement(ms), wrapCollection(parameter));
+    long now = System.currentTimeMillis();
+    CachedCount cached = this.countCache.get(key);
+    if (cached != null && cached.expiresAt > now) {
+      return cached.count;
+    }
+    long count = selectCount(sqlSession, statement, parameter);
+    if (this.countCache.size() >= this.maxCachedCounts) {
+      this.countCache.values().removeIf(c -> c.expiresAt <= now);
+      if (this.countCache.size() >= this.maxCachedCounts) {
+        this.countCache.clear();
+      }
+    }
+    this.countCache.put(key, new CachedCount(count, now + this.countCacheMillis));
+    return count;
+  }
+
+  /**
+   * 清空缓存的总数，数据有大的变动时调用
+   */
+  public void clearCountCache() {
+    this.countCache.clear();
+  }
+
+  /**
+   * 以原 statement 执行，拦截时换成总数查询
+   */
+  private static long selectCount(SqlSession sqlSession, String statement, Object parameter) {
+    List<Long> counts = sqlSession.selectList(statement, parameter, CountRowBounds.INSTANCE);
+    Long count = counts.isEmpty() ? null : counts.get(0);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * 总数查询的 statement，第一次用到时创建，只保存在插件里
+   */
+  private MappedStatement countStatement(MappedStatement ms) {
+    return this.countStatements.computeIfAbsent(ms, key -> {
+      Configuration configuration = ms.getConfiguration();
+      String countId = ms.getId() + COUNT_SUFFIX;
+      SqlSource countSqlSource = parameterObject -> {
+        BoundSql boundSql = ms.getBoundSql(parameterObject);
+        String sql = "SELECT COUNT(*) FROM (" + boundSql.getSql() + ") count_";
+        return copy(configuration, boundSql, sql, parameterObject);
+      };
+      ResultMap resultMap = new ResultMap.Builder(configuration, countId + "-Inline", Long.class,
+          Collections.emptyList()).build();
+      return copy(ms, countId, countSqlSource)
+          .resultMaps(Collections.singletonList(resultMap))
+          .cache(null)
+          .useCache(false)
+          .build();
+    });
+  }
+
+  /**
+   * 缓存 key 是总数 SQL 加上所有参数值，参数值的取法和 DefaultParameterHandler 一致
+   */
+  private static List<Object> countCacheKey(MappedStatement countMs, Object parameter) {
+    Configuration configuration = countMs.getConfiguration();
+    BoundSql boundSql = countMs.getBoundSql(parameter);
+    List<ParameterMapping> mappings = boundSql.getParameterMappings();
+    List<Object> key = new ArrayList<>(mappings.size() + 2);
+    key.add(countMs.getId());
+    key.add(boundSql.getSql());
+    MetaObject metaParameter = null;
+    for (ParameterMapping mapping : mappings) {
+      if (mapping.getMode() == ParameterMode.OUT) {
+        continue;
+      }
+      String property = mapping.getProperty();
+      if (boundSql.hasAdditionalParameter(property)) {
+        key.add(boundSql.getAdditionalParameter(property));
+      } else if (parameter == null) {
+        key.add(null);
+      } else if (configuration.getTypeHandlerRegistry().hasTypeHandler(parameter.getClass())) {
+        key.add(parameter);
+      } else {
+        if (metaParameter == null) {
+          metaParameter = configuration.newMetaObject(parameter);
+        }
+        key.add(metaParameter.getValue(property));
+      }
+    }
+    return key;
+  }
+
+  /**
+   * 和 DefaultSqlSession 一样包装集合和数组参数，动态 SQL 里才能以 list、collection、array 引用
+   */
+  private static Object wrapCollection(Object parameter) {
+    Map<String, Object> map = new HashMap<>();
+    if (parameter instanceof Collection) {
+      map.put("collection", parameter);
+      if (parameter instanceof List) {
+        map.put("list", parameter);
+      }
+      return map;
+    } else if (parameter != null && parameter.getClass().isArray()) {
+      map.put("array", parameter);
+      return map;
+    }
+    return parameter;
+  }
+
+  /**
+   * 以原 statement 的属性构建新的 statement
+   */
+  private static MappedStatement.Builder copy(MappedStatement ms, String id, SqlSource sqlSource) {
+    return new MappedStatement.Builder(ms.getConfiguration(), id, sqlSource, ms.getSqlCommandType())
+        .resource(ms.getResource())
+        .parameterMap(ms.getParameterMap())
+        .resultMaps(ms.getResultMaps())
+        .fetchSize(ms.getFetchSize())
+        .timeout(ms.getTimeout())
+        .statementType(ms.getStatementType())
+        .resultSetType(ms.getResultSetType())
+        .cache(ms.getCache())
+        .flushCacheRequired(ms.isFlushCacheRequired())
+        .useCache(ms.isUseCache())
+        .resultOrdered(ms.isResultOrdered())
+        .keyGenerator(ms.getKeyGenerator())
+        .keyProperty(join(ms.getKeyProperties()))
+        .keyColumn(join(ms.getKeyColumns()))
+        .databaseId(ms.getDatabaseId())
+        .lang(ms.getLang())
+        .resultSets(join(ms.getResultSets()));
+  }
+
+  /**
+   * 换掉 SQL，参数映射和动态 SQL 生成的附加参数(foreach 的元素等)保持不变
+   */
+  @SuppressWarnings("unchecked")
+  private static BoundSql copy(Configuration configuration, BoundSql boundSql, String sql, Object parameterObject) {
+    BoundSql copied = new BoundSql(configuration, sql, boundSql.getParameterMappings(), parameterObject);
+    MetaObject metaBoundSql = SystemMetaObject.forObject(boundSql);
+    Map<String, Object> additionalParameters = (Map<String, Object>) metaBoundSql.getValue("additionalParameters");
+    if (additionalParameters != null) {
+      additionalParameters.forEach(copied::setAdditionalParameter);
+    }
+    return copied;
+  }
+
+  private static String join(String[] values) {
+    return values == null ? null : String.join(",", values);
+  }
+
+  private Dialect resolveDialect(Configuration configuration) {
+    if (this.dialect != null) {
+      return this.dialect;
+    }
+    DataSource dataSource = configuration.getEnvironment().getDataSource();
+    Dialect detected = this.detectedDialects.get(dataSource);
+    if (detected == null) {
+      detected = detectDialect(dataSource);
+      this.detectedDialects.put(dataSource, detected);
+    }
+    return detected;
+  }
+
+  private static Dialect detectDialect(DataSource dataSource) {
+    try {
+      String productName = JdbcUtils.extractDatabaseMetaData(dataSource, "getDatabaseProductName");
+      Dialect detected = Dialect.forDatabaseProductName(productName);
+      LOGGER.debug("Using " + detected + " pagination for " + productName);
+      return detected;
+    } catch (MetaDataAccessException e) {
+      LOGGER.warn("Could not detect database product name, falling back to LIMIT/OFFSET pagination: " + e);
+      return Dialect.LIMIT_OFFSET;
+    }
+  }
+
+  /**
+   * 标记总数查询，只比较引用
+   */
+  private static final class CountRowBounds extends RowBounds {
+
+    private static final CountRowBounds INSTANCE = new CountRowBounds();
+  }
+
+  /**
+   * 缓存的总数
+   */
+  private static final class CachedCount {
+
+    private final long count;
+
+    private final long expiresAt;
+
+    CachedCount(long count, long expiresAt) {
+      this.count = count;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notEmpty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.javadog.sd.mybatis.spring.transaction.Deadline;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.CannotSerializeTransactionException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 14:30
+ *
+ * 瞬时故障的重试策略，按转换后的异常类型决定是否重试。
+ * <p>
+ * 退避时间是指数退避加全抖动：第 n 次重试随机等待 [0, min(maxBackoff, initialBackoff * multiplier^(n-1))] 毫秒，
+ * 大量客户端同时失败时不会在同一时刻一起重试。每次调用的重试次数受 maxAttempts 限制，等待的总时间受 maxRetryTime 限制。
+ * <p>
+ * 另外所有调用共享一个重试预算：每次成功的调用存入 retryBudgetRatio 个令牌，每次重试取出一个，最多攒 maxRetryTokens 个。
+ * 数据库真正故障时成功的调用很少，令牌很快用完，重试自然停下来，不会把故障放大成重试风暴。
+ * <p>
+ * 只能用在没有事务的调用上：事务中的一条语句失败后整个事务都已经回滚或者不可用了，单独重试这条语句没有意义。
+ * 默认只重试读：写操作失败时可能已经在数据库生效(例如提交成功但连接在返回结果前断开)，重试会重复写入，
+ * 确认写操作幂等后才通过 {@link #setRetryWrites(boolean)} 打开。
+ * 由 {@link SqlSessionTemplate#setRetryPolicy} 对非事务调用生效，或者通过
+ * {@link cn.javadog.sd.mybatis.spring.transaction.RetryInterceptor} 在 @Transactional 边界外整体重试
+ */
+public class RetryPolicy {
+
+  private static final Log LOGGER = LogFactory.getLog(RetryPolicy.class);
+
+  /**
+   * 令牌的精度，千分之一
+   */
+  private static final long TOKEN = 1000L;
+
+  /**
+   * 可以重试的异常，默认是死锁、序列化失败、拿不到锁、瞬时资源故障和连接重置这类可恢复的异常
+   */
+  private List<Class<? extends Throwable>> retryableExceptions = Arrays.asList(
+      DeadlockLoserDataAccessException.class,
+      CannotSerializeTransactionException.class,
+      CannotAcquireLockException.class,
+      TransientDataAccessResourceException.class,
+      RecoverableDataAccessException.class);
+
+  /**
+   * 最多执行几次，包括第一次
+   */
+  private int maxAttempts = 3;
+
+  /**
+   * 第一次重试的退避上限，毫秒
+   */
+  private long initialBackoff = 50L;
+
+  /**
+   * 单次退避上限，毫秒
+   */
+  private long maxBackoff = 1000L;
+
+  /**
+   * 退避的增长倍数
+   */
+  private double multiplier = 2.0;
+
+  /**
+   * 一次调用所有退避加起来的上限，毫秒
+   */
+  private long maxRetryTime = 2000L;
+
+  /**
+   * 每次成功调用存入的令牌数
+   */
+  private double retryBudgetRatio = 0.1;
+
+  /**
+   * 最多攒多少个令牌
+   */
+  private int maxRetryTokens = 10;
+
+  /**
+   * 当前的令牌，千分之一个为单位，初始是满的
+   */
+  private final AtomicLong tokens = new AtomicLong(this.maxRetryTokens * TOKEN);
+
+  /**
+   * 是否重试写操作，默认 false
+   */
+  private boolean retryWrites;
+
+  public void setRetryableExceptions(List<Class<? extends Throwable>> retryableExceptions) {
+    notEmpty(retryableExceptions, "At least one retryable exception is required");
+    this.retryableExceptions = Collections.unmodifiableList(new ArrayList<>(retryableExceptions));
+  }
+
+  /**
+   * 设置是否重试写操作。模板上是 insert、update、delete 和 flushStatements，
+   * {@link cn.javadog.sd.mybatis.spring.transaction.RetryInterceptor} 上是非只读的事务方法
+   */
+  public void setRetryWrites(boolean retryWrites) {
+    this.retryWrites = retryWrites;
+  }
+
+  public boolean isRetryWrites() {
+    return this.retryWrites;
+  }
+
+  public void setMaxAttempts(int maxAttempts) {
+    isTrue(maxAttempts > 0, "Property 'maxAttempts' must be positive");
+    this.maxAttempts = maxAttempts;
+  }
+
+  public void setInitialBackoff(long initialBackoff) {
+    this.initialBackoff = initialBackoff;
+  }
+
+  public void setMaxBackoff(long maxBackoff) {
+    this.maxBackoff = maxBackoff;
+  }
+
+  public void setMultiplier(double multiplier) {
+    isTrue(multiplier >= 1.0, "Property 'multiplier' must not be less than 1");
+    this.multiplier = multiplier;
+  }
+
+  public void setMaxRetryTime(long maxRetryTime) {
+    this.maxRetryTime = maxRetryTime;
+  }
+
+  /**
+   * 设置每次成功调用存入的令牌数，0.1 就是重试最多占成功调用的 10%
+   */
+  public void setRetryBudgetRatio(double retryBudgetRatio) {
+    this.retryBudgetRatio = retryBudgetRatio;
+  }
+
+  /**
+   * 设置令牌的上限，同时把令牌重新装满
+   */
+  public void setMaxRetryTokens(int maxRetryTokens) {
+    this.maxRetryTokens = maxRetryTokens;
+    this.tokens.set(maxRetryTokens * TOKEN);
+  }
+
+  /**
+   * 开始一次调用
+   */
+  public Retry start() {
+    return new Retry();
+  }
+
+  /**
+   * 是否是可以重试的异常
+   */
+  public boolean isRetryable(Throwable t) {
+    for (Class<? extends Throwable> retryableException : this.retryableExceptions) {
+      if (retryableException.isInstance(t)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * 调用成功，存入令牌
+   */
+  public void recordSuccess() {
+    long deposit = (long) (this.retryBudgetRatio * TOKEN);
+    long max = this.maxRetryTokens * TOKEN;
+    long current;
+    do {
+      current = this.tokens.get();
+      if (current >= max) {
+        return;
+      }
+    } while (!this.tokens.compareAndSet(current, Math.min(max, current + deposit)));
+  }
+
+  /**
+   * 当前剩余的令牌
+   */
+  public double getAvailableRetryTokens() {
+    return (double) this.tokens.get() / TOKEN;
+  }
+
+  private boolean acquireToken() {
+    long current;
+    do {
+      current = this.tokens.get();
+      if (current < TOKEN) {
+        return false;
+      }
+    } while (!this.tokens.compareAndSet(current, current - TOKEN));
+    return true;
+  }
+
+  /**
+   * 一次调用的重试状态，非线程安全
+   */
+  public final class Retry {
+
+    /**
+     * 已经执行的次数
+     */
+    private int attempts = 1;
+
+    /**
+     * 已经退避的总时间，毫秒
+     */
+    private long backedOff;
+
+    private Retry() {
+    }
+
+    public int getAttempts() {
+      return this.attempts;
+    }
+
+    /**
+     * 失败后判断是否重试，需要重试就退避一段时间后返回 true。
+     * 等待时被中断会恢复中断标记并返回 false
+     */
+    public boolean backOff(Throwable t) {
+      if (!isRetryable(t) || this.attempts >= RetryPolicy.this.maxAttempts) {
+        return false;
+      }
+      double ceiling = RetryPolicy.this.initialBackoff * Math.pow(RetryPolicy.this.multiplier, this.attempts - 1);
+      long sleep = ThreadLocalRandom.current().nextLong((long) Math.min(RetryPolicy.this.maxBackoff, ceiling) + 1);
+      if (this.backedOff + sleep > RetryPolicy.this.maxRetryTime) {
+        return false;
+      }
+      // 退避完已经过了截止时间的话，不用再试了
+      Deadline deadline = Deadline.current();
+      if (deadline != null && deadline.remainingNanos() <= TimeUnit.MILLISECONDS.toNanos(sleep)) {
+        return false;
+      }
+      if (!acquireToken()) {
+        LOGGER.debug("Retry budget exhausted, not retrying " + t.getClass().getName());
+        return false;
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(sleep);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      this.backedOff += sleep;
+      this.attempts++;
+      LOGGER.debug("Retrying after " + t.getClass().getName() + ", attempt " + this.attempts + ", backed off " + sleep + " ms");
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,312 @@
+package cn.javadog.sd.mybatis.spring;
+
+import java.sql.SQLException;
+
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.CannotSerializeTransactionException;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.PermissionDeniedDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.InvalidResultSetAccessException;
+import org.springframework.jdbc.support.SQLErrorCodes;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 11:20
+ *
+ * SQLErrorCodes 里的错误码分类，顺序与 SQLErrorCodeSQLExceptionTranslator 的判断顺序一致，一个码落在多个分类时取前面的。
+ * 创建的异常与 Spring 完全一样；无栈模式下创建的是对应异常的子类，不填充异常栈，instanceof 判断不受影响
+ */
+enum SqlErrorCategory {
+
+  BAD_SQL_GRAMMAR {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getBadSqlGrammarCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      return stackless ? new StacklessBadSqlGrammarException(task, ex) : new BadSqlGrammarException(task, "", ex);
+    }
+  },
+
+  INVALID_RESULT_SET_ACCESS {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getInvalidResultSetAccessCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      return stackless ? new StacklessInvalidResultSetAccessException(task, ex) : new InvalidResultSetAccessException(task, "", ex);
+    }
+  },
+
+  DUPLICATE_KEY {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getDuplicateKeyCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessDuplicateKeyException(msg, ex) : new DuplicateKeyException(msg, ex);
+    }
+  },
+
+  DATA_INTEGRITY_VIOLATION {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getDataIntegrityViolationCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessDataIntegrityViolationException(msg, ex) : new DataIntegrityViolationException(msg, ex);
+    }
+  },
+
+  PERMISSION_DENIED {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getPermissionDeniedCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessPermissionDeniedDataAccessException(msg, ex) : new PermissionDeniedDataAccessException(msg, ex);
+    }
+  },
+
+  DATA_ACCESS_RESOURCE_FAILURE {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getDataAccessResourceFailureCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessDataAccessResourceFailureException(msg, ex) : new DataAccessResourceFailureException(msg, ex);
+    }
+  },
+
+  TRANSIENT_DATA_ACCESS_RESOURCE {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getTransientDataAccessResourceCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessTransientDataAccessResourceException(msg, ex) : new TransientDataAccessResourceException(msg, ex);
+    }
+  },
+
+  CANNOT_ACQUIRE_LOCK {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getCannotAcquireLockCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessCannotAcquireLockException(msg, ex) : new CannotAcquireLockException(msg, ex);
+    }
+  },
+
+  DEADLOCK_LOSER {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getDeadlockLoserCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessDeadlockLoserDataAccessException(msg, ex) : new DeadlockLoserDataAccessException(msg, ex);
+    }
+  },
+
+  CANNOT_SERIALIZE_TRANSACTION {
+    @Override
+    String[] codes(SQLErrorCodes sqlErrorCodes) {
+      return sqlErrorCodes.getCannotSerializeTransactionCodes();
+    }
+
+    @Override
+    DataAccessException create(String task, SQLException ex, boolean stackless) {
+      String msg = buildMessage(task, ex);
+      return stackless ? new StacklessCannotSerializeTransactionException(msg, ex) : new CannotSerializeTransactionException(msg, ex);
+    }
+  };
+
+  /**
+   * 该分类的错误码
+   */
+  abstract String[] codes(SQLErrorCodes sqlErrorCodes);
+
+  /**
+   * 创建该分类对应的异常
+   */
+  abstract DataAccessException create(String task, SQLException ex, boolean stackless);
+
+  /**
+   * 与 SQLErrorCodeSQLExceptionTranslator#buildMessage 一致，这里没有sql
+   */
+  private static String buildMessage(String task, SQLException ex) {
+    return task + "; " + ex.getMessage();
+  }
+
+  private static class StacklessBadSqlGrammarException extends BadSqlGrammarException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessBadSqlGrammarException(String task, SQLException ex) {
+      super(task, "", ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessInvalidResultSetAccessException extends InvalidResultSetAccessException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessInvalidResultSetAccessException(String task, SQLException ex) {
+      super(task, "", ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessDuplicateKeyException extends DuplicateKeyException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessDuplicateKeyException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessDataIntegrityViolationException extends DataIntegrityViolationException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessDataIntegrityViolationException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessPermissionDeniedDataAccessException extends PermissionDeniedDataAccessException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessPermissionDeniedDataAccessException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessDataAccessResourceFailureException extends DataAccessResourceFailureException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessDataAccessResourceFailureException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessTransientDataAccessResourceException extends TransientDataAccessResourceException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessTransientDataAccessResourceException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessCannotAcquireLockException extends CannotAcquireLockException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessCannotAcquireLockException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessDeadlockLoserDataAccessException extends DeadlockLoserDataAccessException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessDeadlockLoserDataAccessException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessCannotSerializeTransactionException extends CannotSerializeTransactionException {
+
+    private static final long serialVersionUID = 1L;
+
+    StacklessCannotSerializeTransactionException(String msg, SQLException ex) {
+      super(msg, ex);
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+}
@@ -1,5 +1,6 @@
 package cn.javadog.sd.mybatis.spring;
 
+import static org.springframework.util.Assert.isTrue;
 import static org.springframework.util.Assert.notNull;
 import static org.springframework.util.Assert.state;
 import static org.springframework.util.ObjectUtils.isEmpty;
@@ -8,8 +9,17 @@ import static org.springframework.util.StringUtils.tokenizeToStringArray;
 
 import javax.sql.DataSource;
 import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import cn.javadog.sd.mybatis.builder.xml.XMLConfigBuilder;
@@ -19,6 +29,8 @@ import cn.javadog.sd.mybatis.plugin.Interceptor;
 import cn.javadog.sd.mybatis.session.Configuration;
 import cn.javadog.sd.mybatis.session.SqlSessionFactory;
 import cn.javadog.sd.mybatis.session.SqlSessionFactoryBuilder;
+import cn.javadog.sd.mybatis.spring.mapper.MapperFactoryBean;
+import cn.javadog.sd.mybatis.spring.support.ClassPathScanCache;
 import cn.javadog.sd.mybatis.spring.transaction.SpringManagedTransactionFactory;
 import cn.javadog.sd.mybatis.support.cache.Cache;
 import cn.javadog.sd.mybatis.support.exceptions.ErrorContext;
@@ -29,15 +41,25 @@ import cn.javadog.sd.mybatis.support.reflection.factory.ObjectFactory;
 import cn.javadog.sd.mybatis.support.reflection.wrapper.ObjectWrapperFactory;
 import cn.javadog.sd.mybatis.support.transaction.TransactionFactory;
 import cn.javadog.sd.mybatis.support.type.TypeHandler;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.BeanFactoryUtils;
+import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.core.NestedIOException;
+import org.springframework.core.io.DefaultResourceLoader;
 import org.springframework.core.io.Resource;
 import org.springframework.jdbc.datasource.TransactionAwareDataSourceProxy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.ClassUtils;
 
 /**
  * @author 余勇
@@ -50,7 +72,8 @@ import org.springframework.jdbc.datasource.TransactionAwareDataSourceProxy;
  * {@code DataSourceTransactionManager} 和 {@code JtaTransactionManager} 都可以用作给 {@code SqlSessionFactory} 提供事务支持。
  * 当使用容器管理事务或者事务跨数据库时，必须使用 JTA。
  */
-public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, InitializingBean, ApplicationListener<ApplicationEvent> {
+public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, InitializingBean, ApplicationListener<ApplicationEvent>, BeanNameAware,
+    BeanFactoryAware {
 
   /**
    * 日志
@@ -157,8 +180,65 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
    */
   private ObjectWrapperFactory objectWrapperFactory;
 
+  /**
+   * 并行解析 mapper 文件的线程数，默认 1，即串行解析
+   */
+  private int mapperParsingThreads = 1;
+
+  /**
+   * mapper 文件解析结果的快照目录，为 null 时不使用快照
+   */
+  private Path snapshotDirectory;
+
+  /**
+   * 是否按需解析 mapper 文件
+   */
+  private boolean lazyMapperParsing;
+
+  /**
+   * 当前bean的名称
+   */
+  private String beanName;
+
+  /**
+   * 启动耗时报告
+   */
+  private StartupTimingReport startupTimingReport;
+
+  /**
+   * 所在的容器，用来共享类路径扫描缓存
+   */
+  private BeanFactory beanFactory;
+
+  /**
+   * 类路径扫描缓存，别名包和类型处理器包共用
+   */
+  private ClassPathScanCache classPathScanCache;
+
+  /**
+   * 一级缓存的容量上限，0 表示不限制
+   */
+  private int localCacheMaxEntries;
+
   /*相应的get/set*/
 
+  @Override
+  public void setBeanName(String beanName) {
+    this.beanName = beanName;
+  }
+
+  @Override
+  public void setBeanFactory(BeanFactory beanFactory) {
+    this.beanFactory = beanFactory;
+  }
+
+  /**
+   * 获取启动耗时报告，构建完成前为 null
+   */
+  public StartupTimingReport getStartupTimingReport() {
+    return this.startupTimingReport;
+  }
+
   public void setObjectFactory(ObjectFactory objectFactory) {
     this.objectFactory = objectFactory;
   }
@@ -225,6 +305,40 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
     this.mapperLocations = mapperLocations;
   }
 
+  /**
+   * 设置并行解析 mapper 文件的线程数。大于 1 时，每个 mapper 文件的 XML 读取和 DOM 构建在有界线程池里并发执行，
+   * 注册到 Configuration 依然按 mapperLocations 的顺序串行进行。mapper 文件很多时能明显缩短启动时间
+   */
+  public void setMapperParsingThreads(int mapperParsingThreads) {
+    this.mapperParsingThreads = mapperParsingThreads;
+  }
+
+  /**
+   * 设置快照目录，开启 mapper 文件解析结果的磁盘快照。
+   * 配置文件、mapper 文件和相关设置都没有变化时，重启直接从快照恢复，跳过 XML 解析，见 {@link ConfigurationSnapshot}
+   */
+  public void setSnapshotDirectory(Path snapshotDirectory) {
+    this.snapshotDirectory = snapshotDirectory;
+  }
+
+  /**
+   * 设置是否按需解析 mapper 文件。开启后启动时只流式扫描每个 mapper 文件的 namespace，
+   * 某个 namespace 第一次被用到时才完整解析，见 {@link LazyMapperConfiguration}。
+   * 需要由当前bean创建 Configuration，或者直接指定一个 {@link LazyMapperConfiguration}；开启 failFast 或快照时仍然立即解析
+   */
+  public void setLazyMapperParsing(boolean lazyMapperParsing) {
+    this.lazyMapperParsing = lazyMapperParsing;
+  }
+
+  /**
+   * 设置每个 SqlSession 一级缓存最多保存的查询结果数，超过时按 LRU 淘汰，见 {@link BoundedLocalCacheInterceptor}。
+   * 长事务里以大量不同参数查询时用来避免一级缓存无限增长，默认 0 不限制
+   */
+  public void setLocalCacheMaxEntries(int localCacheMaxEntries) {
+    isTrue(localCacheMaxEntries >= 0, "Property 'localCacheMaxEntries' must not be negative");
+    this.localCacheMaxEntries = localCacheMaxEntries;
+  }
+
   public void setConfigurationProperties(Properties sqlSessionFactoryProperties) {
     this.configurationProperties = sqlSessionFactoryProperties;
   }
@@ -281,7 +395,14 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
               "Property 'configuration' and 'configLocation' can not specified with together");
 
     // 创建 SqlSessionFactory 对象
-    this.sqlSessionFactory = buildSqlSessionFactory();
+    try {
+      this.sqlSessionFactory = buildSqlSessionFactory();
+    } finally {
+      // mapper 扫描在这之前已经完成，缓存可能是在容器注册监听器之后才创建的，收不到刷新事件，这里主动释放
+      if (this.classPathScanCache != null) {
+        this.classPathScanCache.clear();
+      }
+    }
   }
 
   /**
@@ -292,6 +413,9 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
   protected SqlSessionFactory buildSqlSessionFactory() throws IOException {
 
     final Configuration targetConfiguration;
+    final StartupTimingReport report = new StartupTimingReport();
+    this.startupTimingReport = report;
+    long start;
 
     // 初始化 configuration 对象，和设置其 `configuration.variables` 属性
     XMLConfigBuilder xmlConfigBuilder = null;
@@ -305,14 +429,16 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
       }
     }
     else if (this.configLocation != null) {
+      start = System.nanoTime();
       xmlConfigBuilder = new XMLConfigBuilder(this.configLocation.getInputStream(), null, this.configurationProperties);
+      report.record(StartupTimingReport.PHASE_CONFIG_LOCATION_LOAD, this.configLocation.toString(), start);
       // 这个时候的 Configuration 只是个空，还没有解析
       targetConfiguration = xmlConfigBuilder.getConfiguration();
     }
     // 啥也没有，就是个空
     else {
       LOGGER.debug("Property 'configuration' or 'configLocation' not specified, using default MyBatis Configuration");
-      targetConfiguration = new Configuration();
+      targetConfiguration = this.lazyMapperParsing ? new LazyMapperConfiguration() : new Configuration();
       Optional.ofNullable(this.configurationProperties).ifPresent(targetConfiguration::setVariables);
     }
 
@@ -320,6 +446,9 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
     Optional.ofNullable(this.objectFactory).ifPresent(targetConfiguration::setObjectFactory);
     Optional.ofNullable(this.objectWrapperFactory).ifPresent(targetConfiguration::setObjectWrapperFactory);
     Optional.ofNullable(this.vfs).ifPresent(targetConfiguration::setVfsImpl);
+    if (targetConfiguration instanceof LazyMapperConfiguration) {
+      ((LazyMapperConfiguration) targetConfiguration).setStartupTimingReport(report);
+    }
 
     // 扫描包注册别名
     if (hasLength(this.typeAliasesPackage)) {
@@ -328,24 +457,39 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
           ConfigurableApplicationContext.CONFIG_LOCATION_DELIMITERS);
       // 逐个扫描，并没有觉得stream更好看
       Stream.of(typeAliasPackageArray).forEach(packageToScan -> {
-        targetConfiguration.getTypeAliasRegistry().registerAliases(packageToScan,
-            typeAliasesSuperType == null ? Object.class : typeAliasesSuperType);
+        long packageStart = System.nanoTime();
+        if (this.vfs == null) {
+          registerTypeAliases(targetConfiguration, packageToScan);
+        } else {
+          targetConfiguration.getTypeAliasRegistry().registerAliases(packageToScan,
+              typeAliasesSuperType == null ? Object.class : typeAliasesSuperType);
+        }
+        report.record(StartupTimingReport.PHASE_TYPE_ALIASES_PACKAGE, packageToScan, packageStart);
         LOGGER.debug("Scanned package: '" + packageToScan + "' for aliases");
       });
     }
     // 注册别名
     if (!isEmpty(this.typeAliases)) {
+      start = System.nanoTime();
       Stream.of(this.typeAliases).forEach(typeAlias -> {
         targetConfiguration.getTypeAliasRegistry().registerAlias(typeAlias);
         LOGGER.debug( "Registered type alias: '" + typeAlias + "'");
       });
+      report.record(StartupTimingReport.PHASE_TYPE_ALIASES, null, start);
+    }
+    // 一级缓存的容量上限，排在其它插件前面，拿到的是没有被代理的 Executor
+    if (this.localCacheMaxEntries > 0) {
+      targetConfiguration.addInterceptor(new BoundedLocalCacheInterceptor(this.localCacheMaxEntries));
+      LOGGER.debug("Bounded local cache to " + this.localCacheMaxEntries + " entries per SqlSession");
     }
     // 注册插件
     if (!isEmpty(this.plugins)) {
+      start = System.nanoTime();
       Stream.of(this.plugins).forEach(plugin -> {
         targetConfiguration.addInterceptor(plugin);
         LOGGER.debug("Registered plugin: '" + plugin + "'");
       });
+      report.record(StartupTimingReport.PHASE_PLUGINS, null, start);
     }
     // 扫描包注册类型处理器
     if (hasLength(this.typeHandlersPackage)) {
@@ -353,16 +497,24 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
       String[] typeHandlersPackageArray = tokenizeToStringArray(this.typeHandlersPackage,
           ConfigurableApplicationContext.CONFIG_LOCATION_DELIMITERS);
       Stream.of(typeHandlersPackageArray).forEach(packageToScan -> {
-        targetConfiguration.getTypeHandlerRegistry().register(packageToScan);
+        long packageStart = System.nanoTime();
+        if (this.vfs == null) {
+          registerTypeHandlers(targetConfiguration, packageToScan);
+        } else {
+          targetConfiguration.getTypeHandlerRegistry().register(packageToScan);
+        }
+        report.record(StartupTimingReport.PHASE_TYPE_HANDLERS_PACKAGE, packageToScan, packageStart);
         LOGGER.debug("Scanned package: '" + packageToScan + "' for type handlers");
       });
     }
     // 注册类型处理器
     if (!isEmpty(this.typeHandlers)) {
+      start = System.nanoTime();
       Stream.of(this.typeHandlers).forEach(typeHandler -> {
         targetConfiguration.getTypeHandlerRegistry().register(typeHandler);
         LOGGER.debug("Registered type handler: '" + typeHandler + "'");
       });
+      report.record(StartupTimingReport.PHASE_TYPE_HANDLERS, null, start);
     }
     // 添加缓存
     Optional.ofNullable(this.cache).ifPresent(targetConfiguration::addCache);
@@ -370,7 +522,9 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
     // 真正开始解析，会覆盖上面的设置，不过一般我们不使用全局配置文件，直接设置Spring的属性
     if (xmlConfigBuilder != null) {
       try {
+        start = System.nanoTime();
         xmlConfigBuilder.parse();
+        report.record(StartupTimingReport.PHASE_CONFIG_PARSE, this.configLocation.toString(), start);
         LOGGER.debug("Parsed configuration file: '" + this.configLocation + "'");
       } catch (Exception ex) {
         throw new NestedIOException("Failed to parse config resource: " + this.configLocation, ex);
@@ -384,16 +538,170 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
         this.transactionFactory == null ? new SpringManagedTransactionFactory() : this.transactionFactory,
         this.dataSource));
 
-    // 逐个解析mapper.xml
+    // 逐个解析mapper.xml，开启快照时输入没变就直接从快照恢复，按需解析时只建索引
     if (!isEmpty(this.mapperLocations)) {
-      for (Resource mapperLocation : this.mapperLocations) {
+      if (isLazyMapperParsing(targetConfiguration)) {
+        indexMapperLocations((LazyMapperConfiguration) targetConfiguration, report);
+      } else if (this.snapshotDirectory == null) {
+        parseMapperLocations(targetConfiguration, report);
+      } else {
+        parseMapperLocationsWithSnapshot(targetConfiguration, report);
+      }
+    } else {
+      LOGGER.debug("Property 'mapperLocations' was not specified or no matching resources found");
+    }
+
+    start = System.nanoTime();
+    SqlSessionFactory factory = this.sqlSessionFactoryBuilder.build(targetConfiguration);
+    report.record(StartupTimingReport.PHASE_BUILD, null, start);
+    return factory;
+  }
+
+  /**
+   * 从共享的扫描缓存里取包下的类注册别名，过滤条件与 TypeAliasRegistry#registerAliases 一致。
+   * 显式指定了 VFS 时依然走 MyBatis 自己的扫描
+   */
+  private void registerTypeAliases(Configuration targetConfiguration, String packageToScan) {
+    Class<?> superType = this.typeAliasesSuperType == null ? Object.class : this.typeAliasesSuperType;
+    for (String className : classPathScanCache().getTypeAliasCandidates(packageToScan)) {
+      Class<?> type = loadScannedClass(className);
+      if (type != null && superType.isAssignableFrom(type) && !type.isAnonymousClass() && !type.isMemberClass()) {
+        targetConfiguration.getTypeAliasRegistry().registerAlias(type);
+      }
+    }
+  }
+
+  /**
+   * 从共享的扫描缓存里取包下的类注册类型处理器，过滤条件与 TypeHandlerRegistry#register(String) 一致
+   */
+  private void registerTypeHandlers(Configuration targetConfiguration, String packageToScan) {
+    for (String className : classPathScanCache().getTypeHandlerCandidates(packageToScan)) {
+      Class<?> type = loadScannedClass(className);
+      if (type != null && TypeHandler.class.isAssignableFrom(type) && !type.isAnonymousClass()
+          && !type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+        targetConfiguration.getTypeHandlerRegistry().register(type);
+      }
+    }
+  }
+
+  private ClassPathScanCache classPathScanCache() {
+    if (this.classPathScanCache == null) {
+      this.classPathScanCache = ClassPathScanCache.of(this.beanFactory, new DefaultResourceLoader(beanClassLoader()));
+    }
+    return this.classPathScanCache;
+  }
+
+  private ClassLoader beanClassLoader() {
+    return this.beanFactory instanceof ConfigurableBeanFactory
+        ? ((ConfigurableBeanFactory) this.beanFactory).getBeanClassLoader() : ClassUtils.getDefaultClassLoader();
+  }
+
+  /**
+   * 加载失败的类与 ResolverUtil 一样只打日志
+   */
+  private Class<?> loadScannedClass(String className) {
+    try {
+      return ClassUtils.forName(className, beanClassLoader());
+    } catch (Throwable t) {
+      LOGGER.warn("Could not examine class '" + className + "'" + " due to a " + t.getClass().getName()
+          + " with message: " + t.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * 能否按需解析，failFast 要求启动时就暴露 mapper 文件的错误，快照本身已经跳过了解析，这两种情况都立即解析
+   */
+  private boolean isLazyMapperParsing(Configuration targetConfiguration) {
+    if (!this.lazyMapperParsing || this.failFast || this.snapshotDirectory != null) {
+      return false;
+    }
+    if (!(targetConfiguration instanceof LazyMapperConfiguration)) {
+      LOGGER.warn("Property 'lazyMapperParsing' requires a LazyMapperConfiguration, parsing mapper files eagerly");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * 只登记每个 mapper 文件的 namespace，真正的解析推迟到第一次使用
+   */
+  private void indexMapperLocations(LazyMapperConfiguration targetConfiguration, StartupTimingReport report)
+      throws IOException {
+    for (Resource mapperLocation : this.mapperLocations) {
+      if (mapperLocation == null) {
+        continue;
+      }
+      long start = System.nanoTime();
+      try {
+        targetConfiguration.addLazyMapper(mapperLocation);
+      } catch (Exception e) {
+        throw new NestedIOException("Failed to index mapping resource: '" + mapperLocation + "'", e);
+      } finally {
+        ErrorContext.instance().reset();
+      }
+      report.record(StartupTimingReport.PHASE_MAPPER_INDEX, mapperLocation.toString(), start);
+      LOGGER.debug("Indexed mapper file: '" + mapperLocation + "'");
+    }
+  }
+
+  /**
+   * 快照的内容哈希与本次输入一致就从快照恢复，否则正常解析，解析完写入新的快照
+   */
+  private void parseMapperLocationsWithSnapshot(Configuration targetConfiguration, StartupTimingReport report)
+      throws IOException {
+    long start = System.nanoTime();
+    String hash = ConfigurationSnapshot.contentHash(this.configLocation, this.mapperLocations, targetConfiguration,
+        this.typeAliasesPackage, this.typeAliasesSuperType, this.typeHandlersPackage,
+        Arrays.toString(this.typeAliases), Arrays.toString(this.typeHandlers));
+    ConfigurationSnapshot snapshot = new ConfigurationSnapshot(this.snapshotDirectory,
+        this.beanName == null ? "sqlSessionFactory" : this.beanName, hash);
+    boolean restored = snapshot.restore(targetConfiguration);
+    report.record(StartupTimingReport.PHASE_SNAPSHOT_LOAD, snapshot.getFile().toString(), start);
+    if (restored) {
+      LOGGER.debug("Restored mapper files from snapshot: '" + snapshot.getFile() + "'");
+      return;
+    }
+    ConfigurationSnapshot.Capture capture = snapshot.capture(targetConfiguration);
+    parseMapperLocations(targetConfiguration, report);
+    start = System.nanoTime();
+    snapshot.write(capture, targetConfiguration, this.mapperLocations);
+    report.record(StartupTimingReport.PHASE_SNAPSHOT_WRITE, snapshot.getFile().toString(), start);
+  }
+
+  /**
+   * 逐个解析 mapper 文件
+   */
+  private void parseMapperLocations(Configuration targetConfiguration, StartupTimingReport report) throws IOException {
+    long start;
+    // 开启并行时，所有 mapper 文件的 DOM 解析先丢到线程池里并发执行
+    ExecutorService executor = this.mapperParsingThreads > 1 && this.mapperLocations.length > 1
+        ? newMapperParsingExecutor() : null;
+    try {
+      List<Future<XMLMapperBuilder>> loaded = new ArrayList<>(this.mapperLocations.length);
+      if (executor != null) {
+        for (Resource mapperLocation : this.mapperLocations) {
+          loaded.add(mapperLocation == null ? null
+              : executor.submit(() -> loadMapper(mapperLocation, targetConfiguration, report)));
+        }
+      }
+      // 注册到 Configuration 始终按声明顺序串行进行，跨文件的 <include>、resultMap、cache-ref 解析结果与串行完全一致
+      for (int i = 0; i < this.mapperLocations.length; i++) {
+        Resource mapperLocation = this.mapperLocations[i];
         if (mapperLocation == null) {
           continue;
         }
         try {
-          XMLMapperBuilder xmlMapperBuilder = new XMLMapperBuilder(mapperLocation.getInputStream(),
-              targetConfiguration, mapperLocation.toString(), targetConfiguration.getSqlFragments());
+          XMLMapperBuilder xmlMapperBuilder = executor == null
+              ? loadMapper(mapperLocation, targetConfiguration, report) : loaded.get(i).get();
+          start = System.nanoTime();
           xmlMapperBuilder.parse();
+          report.record(StartupTimingReport.PHASE_MAPPER_PARSE, mapperLocation.toString(), start);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new NestedIOException("Interrupted while parsing mapping resource: '" + mapperLocation + "'", e);
+        } catch (ExecutionException e) {
+          throw new NestedIOException("Failed to parse mapping resource: '" + mapperLocation + "'", e.getCause());
         } catch (Exception e) {
           throw new NestedIOException("Failed to parse mapping resource: '" + mapperLocation + "'", e);
         } finally {
@@ -401,11 +709,34 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
         }
         LOGGER.debug("Parsed mapper file: '" + mapperLocation + "'");
       }
-    } else {
-      LOGGER.debug("Property 'mapperLocations' was not specified or no matching resources found");
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * 读取并解析 mapper 文件的 DOM，XMLMapperBuilder 在构造时完成这一步，并不会修改 Configuration，因此可以并发执行
+   */
+  private static XMLMapperBuilder loadMapper(Resource mapperLocation, Configuration configuration,
+      StartupTimingReport report) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return new XMLMapperBuilder(mapperLocation.getInputStream(),
+          configuration, mapperLocation.toString(), configuration.getSqlFragments());
+    } finally {
+      report.record(StartupTimingReport.PHASE_MAPPER_LOAD, mapperLocation.toString(), start);
     }
+  }
 
-    return this.sqlSessionFactoryBuilder.build(targetConfiguration);
+  /**
+   * 创建解析 mapper 文件用的有界线程池，守护线程，用完即关
+   */
+  private ExecutorService newMapperParsingExecutor() {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mybatis-mapper-parser-");
+    threadFactory.setDaemon(true);
+    return Executors.newFixedThreadPool(Math.min(this.mapperParsingThreads, this.mapperLocations.length), threadFactory);
   }
 
   /**
@@ -437,7 +768,7 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
   }
 
   /**
-   * 监听容器刷新事件，会去 fail-fast 检查
+   * 监听容器刷新事件，会去 fail-fast 检查，然后打印并注册启动耗时报告
    */
   @Override
   public void onApplicationEvent(ApplicationEvent event) {
@@ -445,6 +776,48 @@ public class SqlSessionFactoryBean implements FactoryBean<SqlSessionFactory>, In
       // 检查所有的 MappedStatement 能否被加载
       this.sqlSessionFactory.getConfiguration().getMappedStatementNames();
     }
+    if (event instanceof ContextRefreshedEvent && this.startupTimingReport != null) {
+      // 此时所有非懒加载的 mapper 都已经 addMapper 完了
+      ApplicationContext applicationContext = ((ContextRefreshedEvent) event).getApplicationContext();
+      collectAddMapperTimings(applicationContext);
+      LOGGER.debug(this.startupTimingReport.toString());
+      registerStartupTimingReport(applicationContext);
+    }
+  }
+
+  /**
+   * 从已经创建的 MapperFactoryBean 收集 addMapper 的耗时，还没创建的懒加载 mapper 不去触发
+   */
+  private void collectAddMapperTimings(ApplicationContext applicationContext) {
+    if (!(applicationContext instanceof ConfigurableApplicationContext) || this.sqlSessionFactory == null) {
+      return;
+    }
+    ConfigurableListableBeanFactory beanFactory = ((ConfigurableApplicationContext) applicationContext).getBeanFactory();
+    Configuration configuration = this.sqlSessionFactory.getConfiguration();
+    for (String name : beanFactory.getBeanNamesForType(MapperFactoryBean.class, false, false)) {
+      if (!beanFactory.containsSingleton(BeanFactoryUtils.transformedBeanName(name))) {
+        continue;
+      }
+      MapperFactoryBean<?> mapperFactoryBean = beanFactory.getBean(name, MapperFactoryBean.class);
+      if (mapperFactoryBean.getAddMapperNanos() > 0 && mapperFactoryBean.getSqlSession().getConfiguration() == configuration) {
+        this.startupTimingReport.add(StartupTimingReport.PHASE_ADD_MAPPER, mapperFactoryBean.getMapperInterface().getName(),
+            mapperFactoryBean.getAddMapperNanos());
+      }
+    }
+  }
+
+  /**
+   * 将启动耗时报告注册为单例bean，名称为 beanName.startupTimingReport
+   */
+  private void registerStartupTimingReport(ApplicationContext applicationContext) {
+    if (this.beanName == null || !(applicationContext instanceof ConfigurableApplicationContext)) {
+      return;
+    }
+    String reportBeanName = this.beanName + ".startupTimingReport";
+    ConfigurableListableBeanFactory beanFactory = ((ConfigurableApplicationContext) applicationContext).getBeanFactory();
+    if (!beanFactory.containsBean(reportBeanName)) {
+      beanFactory.registerSingleton(reportBeanName, this.startupTimingReport);
+    }
   }
 
 }
@@ -2,6 +2,11 @@ package cn.javadog.sd.mybatis.spring;
 
 import static org.springframework.util.Assert.notNull;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import cn.javadog.sd.mybatis.session.ExecutorType;
 import cn.javadog.sd.mybatis.session.SqlSession;
 import org.springframework.dao.support.PersistenceExceptionTranslator;
@@ -32,6 +37,16 @@ public final class SqlSessionHolder extends ResourceHolderSupport {
    */
   private final PersistenceExceptionTranslator exceptionTranslator;
 
+  /**
+   * 本事务内每个 statement 的执行统计，{@link NPlusOneQueryDetector} 使用，用到时才创建
+   */
+  private Map<String, NPlusOneQueryDetector.StatementExecutions> statementExecutions;
+
+  /**
+   * 本事务内写操作影响到的二级缓存，提交之后由 {@link ClusterCacheInvalidator} 通知其它节点，用到时才创建
+   */
+  private Set<String> dirtyCaches;
+
   /**
    * 持有器的构造
    */
@@ -61,4 +76,22 @@ public final class SqlSessionHolder extends ResourceHolderSupport {
     return exceptionTranslator;
   }
 
+  Map<String, NPlusOneQueryDetector.StatementExecutions> getStatementExecutions() {
+    if (statementExecutions == null) {
+      statementExecutions = new HashMap<>();
+    }
+    return statementExecutions;
+  }
+
+  Set<String> getDirtyCaches() {
+    if (dirtyCaches == null) {
+      dirtyCaches = new HashSet<>();
+    }
+    return dirtyCaches;
+  }
+
+  boolean hasDirtyCaches() {
+    return dirtyCaches != null && !dirtyCaches.isEmpty();
+  }
+
 }
@@ -0,0 +1,308 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.isTrue;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.javadog.sd.mybatis.cursor.Cursor;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-24 09:40
+ *
+ * SqlSession 和 Cursor 泄漏检测器。
+ * 在模板之外直接通过 {@link SqlSessionUtils#getSqlSession} 拿会话却忘了 {@link SqlSessionUtils#closeSqlSession}，
+ * 或者 Cursor 没有关闭，都会一直占着连接池里的连接。
+ * <p>
+ * 参考 Netty 的 ResourceLeakDetector，只按 {@code samplingRate} 抽样跟踪，被抽中的会话记录打开时的调用栈，
+ * 用弱引用持有，不影响GC。以下情况会打印告警：
+ * 1. 会话/游标打开超过 {@code leakThresholdMillis} 还没有关闭；
+ * 2. 会话没有关闭就被GC回收了；
+ * 3. 事务结束时，SqlSessionHolder 的 requested 次数多于 released，即有人拿了事务中的会话没有释放。
+ * <p>
+ * 注意：会话必须通过 {@link SqlSessionUtils#closeSqlSession} 释放才能被感知，直接调用 SqlSession#close() 会被当作泄漏。
+ * 被抽中的游标会包装一层，关闭时通知检测器；跟踪时还持有原始游标，随会话一起关闭的游标被回收时不会误报。
+ * <p>
+ * 作为Spring的bean声明即可，初始化时安装到 {@link SqlSessionUtils}，销毁时卸载：
+ * <pre class="code">
+ * {@code
+ *   <bean class="cn.javadog.sd.mybatis.spring.SqlSessionLeakDetector">
+ *     <property name="samplingRate" value="0.01" />
+ *     <property name="leakThresholdMillis" value="60000" />
+ *   </bean>
+ * }
+ * </pre>
+ */
+public class SqlSessionLeakDetector implements InitializingBean, DisposableBean {
+
+  private static final Log LOGGER = LogFactory.getLog(SqlSessionLeakDetector.class);
+
+  /**
+   * 抽样比例，1 表示全部跟踪
+   */
+  private double samplingRate = 0.01;
+
+  /**
+   * 打开超过多久算泄漏，单位毫秒
+   */
+  private long leakThresholdMillis = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * 后台检查的间隔，单位毫秒，不大于 0 时不启动后台线程，需要手动调用 {@link #checkLeaks()}
+   */
+  private long checkIntervalMillis = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * 正在跟踪的资源，KEY 是 identityHashCode，冲突时后来者不跟踪，反正是抽样
+   */
+  private final Map<Integer, Tracker> trackers = new ConcurrentHashMap<>();
+
+  /**
+   * 被GC回收的资源会进入这个队列
+   */
+  private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<>();
+
+  /**
+   * 已报告的泄漏数量
+   */
+  private final AtomicLong reportedLeaks = new AtomicLong();
+
+  /**
+   * 后台检查线程
+   */
+  private ScheduledExecutorService scheduler;
+
+  /*相应的get/set*/
+
+  public void setSamplingRate(double samplingRate) {
+    isTrue(samplingRate >= 0 && samplingRate <= 1, "Property 'samplingRate' must be between 0 and 1");
+    this.samplingRate = samplingRate;
+  }
+
+  public void setLeakThresholdMillis(long leakThresholdMillis) {
+    this.leakThresholdMillis = leakThresholdMillis;
+  }
+
+  public void setCheckIntervalMillis(long checkIntervalMillis) {
+    this.checkIntervalMillis = checkIntervalMillis;
+  }
+
+  public long getReportedLeaks() {
+    return reportedLeaks.get();
+  }
+
+  /**
+   * 正在跟踪的资源数量
+   */
+  public int getTrackedCount() {
+    return trackers.size();
+  }
+
+  /**
+   * 安装到 SqlSessionUtils，并启动后台检查
+   */
+  @Override
+  public void afterPropertiesSet() {
+    SqlSessionUtils.setLeakDetector(this);
+    if (this.checkIntervalMillis > 0) {
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory());
+      this.scheduler.scheduleWithFixedDelay(this::checkLeaks, this.checkIntervalMillis, this.checkIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * 卸载，停止后台检查
+   */
+  @Override
+  public void destroy() {
+    SqlSessionUtils.setLeakDetector(null);
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * 会话被打开，按比例抽样跟踪
+   */
+  void opened(Object resource) {
+    if (this.samplingRate < 1 && ThreadLocalRandom.current().nextDouble() >= this.samplingRate) {
+      return;
+    }
+    Tracker tracker = new Tracker(resource, this.referenceQueue, null);
+    this.trackers.putIfAbsent(tracker.identity, tracker);
+  }
+
+  /**
+   * 游标被打开，按比例抽样跟踪，抽中时返回包装过的游标，关闭时停止跟踪
+   */
+  <T> Cursor<T> track(Cursor<T> cursor) {
+    if (this.samplingRate < 1 && ThreadLocalRandom.current().nextDouble() >= this.samplingRate) {
+      return cursor;
+    }
+    TrackedCursor<T> tracked = new TrackedCursor<>(cursor, this);
+    Tracker tracker = new Tracker(tracked, this.referenceQueue, cursor);
+    this.trackers.putIfAbsent(tracker.identity, tracker);
+    return tracked;
+  }
+
+  /**
+   * 会话或游标被关闭，停止跟踪
+   */
+  void closed(Object resource) {
+    if (this.trackers.isEmpty()) {
+      return;
+    }
+    int identity = System.identityHashCode(resource);
+    Tracker tracker = this.trackers.get(identity);
+    if (tracker != null && tracker.get() == resource) {
+      this.trackers.remove(identity, tracker);
+      tracker.clear();
+    }
+  }
+
+  /**
+   * 事务结束时，SqlSessionHolder 依然处于打开状态，说明 requested 和 released 不配对
+   */
+  void unbalanced(SqlSessionHolder holder) {
+    reportedLeaks.incrementAndGet();
+    LOGGER.warn("SqlSession [" + holder.getSqlSession() + "] was requested more often than released in a Spring transaction. "
+        + "Every SqlSessionUtils.getSqlSession() must be paired with SqlSessionUtils.closeSqlSession()");
+  }
+
+  /**
+   * 检查一次泄漏，由后台线程定时调用，也可以手动调用
+   */
+  public void checkLeaks() {
+    // 1. 没关闭就被回收的
+    Tracker collected;
+    while ((collected = (Tracker) this.referenceQueue.poll()) != null) {
+      // 游标可能随会话一起关闭了，没有经过包装对象
+      if (this.trackers.remove(collected.identity, collected) && !collected.isClosedCursor()) {
+        report(collected, collected.description + " was garbage collected without being closed");
+      }
+    }
+    // 2. 打开太久的
+    long now = System.currentTimeMillis();
+    for (Tracker tracker : this.trackers.values()) {
+      Object resource = tracker.get();
+      if (tracker.isClosedCursor()) {
+        // 随会话一起关闭的游标感知不到，只能在这里检查
+        this.trackers.remove(tracker.identity, tracker);
+        tracker.clear();
+      } else if (resource != null && !tracker.reported && now - tracker.openedAt > this.leakThresholdMillis) {
+        tracker.reported = true;
+        report(tracker, tracker.description + " has been open for " + (now - tracker.openedAt) + " ms");
+      }
+    }
+  }
+
+  private void report(Tracker tracker, String message) {
+    reportedLeaks.incrementAndGet();
+    LOGGER.error("Possible resource leak: " + message + ". Allocation stack trace:", tracker.allocationTrace);
+  }
+
+  private static CustomizableThreadFactory daemonThreadFactory() {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mybatis-leak-detector-");
+    threadFactory.setDaemon(true);
+    return threadFactory;
+  }
+
+  /**
+   * 被跟踪的资源，弱引用持有，记录打开时间和调用栈
+   */
+  private static final class Tracker extends WeakReference<Object> {
+
+    private final int identity;
+
+    private final String description;
+
+    /**
+     * 被包装的原始游标，强引用，用来判断被回收的游标是否已经关闭；跟踪会话时为 null
+     */
+    private final Cursor<?> cursor;
+
+    private final long openedAt = System.currentTimeMillis();
+
+    /**
+     * 打开时的调用栈，只有抽中的才会创建，所以可以放心记录
+     */
+    private final Throwable allocationTrace = new Throwable("Opened here");
+
+    /**
+     * 是否已报告过打开太久，只报告一次
+     */
+    private volatile boolean reported;
+
+    Tracker(Object resource, ReferenceQueue<Object> queue, Cursor<?> cursor) {
+      super(resource, queue);
+      this.identity = System.identityHashCode(resource);
+      this.cursor = cursor;
+      this.description = (cursor != null ? cursor : resource).getClass().getSimpleName() + "@" + Integer.toHexString(this.identity);
+    }
+
+    boolean isClosedCursor() {
+      return this.cursor != null && !this.cursor.isOpen();
+    }
+  }
+
+  /**
+   * 被跟踪的游标，关闭时通知检测器
+   */
+  private static final class TrackedCursor<T> implements Cursor<T> {
+
+    private final Cursor<T> delegate;
+
+    private final SqlSessionLeakDetector detector;
+
+    TrackedCursor(Cursor<T> delegate, SqlSessionLeakDetector detector) {
+      this.delegate = delegate;
+      this.detector = detector;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return this.delegate.isOpen();
+    }
+
+    @Override
+    public boolean isConsumed() {
+      return this.delegate.isConsumed();
+    }
+
+    @Override
+    public int getCurrentIndex() {
+      return this.delegate.getCurrentIndex();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return this.delegate.iterator();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        this.delegate.close();
+      } finally {
+        this.detector.closed(this);
+      }
+    }
+  }
+
+}
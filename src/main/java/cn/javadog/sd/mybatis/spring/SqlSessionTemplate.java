@@ -3,10 +3,12 @@ package cn.javadog.sd.mybatis.spring;
 import static cn.javadog.sd.mybatis.support.util.ExceptionUtil.unwrapThrowable;
 import static java.lang.reflect.Proxy.newProxyInstance;
 import static org.springframework.util.Assert.notNull;
+import static org.springframework.util.Assert.state;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.sql.Connection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -18,6 +20,9 @@ import cn.javadog.sd.mybatis.session.ExecutorType;
 import cn.javadog.sd.mybatis.session.RowBounds;
 import cn.javadog.sd.mybatis.session.SqlSession;
 import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.spring.audit.AsyncAuditLog;
+import cn.javadog.sd.mybatis.spring.transaction.CancellationScope;
+import cn.javadog.sd.mybatis.spring.transaction.Deadline;
 import cn.javadog.sd.mybatis.support.exceptions.PersistenceException;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.dao.support.PersistenceExceptionTranslator;
@@ -69,6 +74,31 @@ public class SqlSessionTemplate implements SqlSession, DisposableBean {
    */
   private final PersistenceExceptionTranslator exceptionTranslator;
 
+  /**
+   * N+1 查询检测器，为 null 时不检测
+   */
+  private NPlusOneQueryDetector nPlusOneQueryDetector;
+
+  /**
+   * 非事务调用的重试策略，为 null 时不重试
+   */
+  private RetryPolicy retryPolicy;
+
+  /**
+   * 线程被中断时是否取消正在执行的 Statement
+   */
+  private boolean cancelOnInterrupt;
+
+  /**
+   * 工作负载类别，为 null 时使用线程上指定的类别
+   */
+  private WorkloadClass workloadClass;
+
+  /**
+   * 是否是 {@link SqlSessionTemplateRegistry} 共享的模板，共享的模板不允许再修改配置
+   */
+  private volatile boolean shared;
+
   /**
    * 构造方法
    */
@@ -118,6 +148,70 @@ public class SqlSessionTemplate implements SqlSession, DisposableBean {
     return this.exceptionTranslator;
   }
 
+  public NPlusOneQueryDetector getNPlusOneQueryDetector() {
+    return this.nPlusOneQueryDetector;
+  }
+
+  /**
+   * 设置 N+1 查询检测器，只对Spring事务中的调用生效
+   */
+  public void setNPlusOneQueryDetector(NPlusOneQueryDetector nPlusOneQueryDetector) {
+    checkNotShared();
+    this.nPlusOneQueryDetector = nPlusOneQueryDetector;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return this.retryPolicy;
+  }
+
+  /**
+   * 设置重试策略，只对不在Spring事务中的调用生效，事务中的调用见 {@link cn.javadog.sd.mybatis.spring.transaction.RetryInterceptor}
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    checkNotShared();
+    this.retryPolicy = retryPolicy;
+  }
+
+  public boolean isCancelOnInterrupt() {
+    return this.cancelOnInterrupt;
+  }
+
+  /**
+   * 设置线程被中断时是否取消正在执行的 Statement，见 {@link CancellationScope}。
+   * 打开后每次调用都在可取消的范围内执行，调用开始时线程已经被中断就直接抛出 CancellationException，不再获取会话
+   */
+  public void setCancelOnInterrupt(boolean cancelOnInterrupt) {
+    checkNotShared();
+    this.cancelOnInterrupt = cancelOnInterrupt;
+  }
+
+  public WorkloadClass getWorkloadClass() {
+    return this.workloadClass;
+  }
+
+  /**
+   * 设置这个模板上的调用的工作负载类别，优先于线程上指定的类别，见 {@link ConcurrencyLimiter}
+   */
+  public void setWorkloadClass(WorkloadClass workloadClass) {
+    checkNotShared();
+    this.workloadClass = workloadClass;
+  }
+
+  /**
+   * 标记为共享的模板，只由 {@link SqlSessionTemplateRegistry} 调用
+   */
+  void markShared() {
+    this.shared = true;
+  }
+
+  /**
+   * 共享的模板被同一个工厂的所有 mapper 使用，在它上面修改配置会悄悄影响所有 mapper，直接拒绝
+   */
+  private void checkNotShared() {
+    state(!this.shared, "The SqlSessionTemplate shared by SqlSessionTemplateRegistry cannot be modified, "
+        + "set 'shareSqlSessionTemplate' to false and configure a template of your own");
+  }
+
   /*所有数据库的操作交给sqlSessionProxy去完成*/
 
   @Override
@@ -308,19 +402,127 @@ public class SqlSessionTemplate implements SqlSession, DisposableBean {
   private class SqlSessionInterceptor implements InvocationHandler {
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-      // 获得 SqlSession 对象，此处，和 Spring 事务托管的事务已经相关。
-      SqlSession sqlSession = SqlSessionUtils.getSqlSession(
-          SqlSessionTemplate.this.sqlSessionFactory,
-          SqlSessionTemplate.this.executorType,
-          SqlSessionTemplate.this.exceptionTranslator);
+      WorkloadClass workloadClass = SqlSessionTemplate.this.workloadClass;
+      if (workloadClass == null) {
+        return invokeCancellable(method, args);
+      }
+      WorkloadClass outer = WorkloadClass.enter(workloadClass);
+      try {
+        return invokeCancellable(method, args);
+      } finally {
+        WorkloadClass.exit(outer);
+      }
+    }
+
+    private Object invokeCancellable(Method method, Object[] args) throws Throwable {
+      if (!SqlSessionTemplate.this.cancelOnInterrupt || CancellationScope.current() != null) {
+        return invokeWithRetry(method, args);
+      }
+      CancellationScope scope = CancellationScope.open();
+      try {
+        return invokeWithRetry(method, args);
+      } finally {
+        scope.close();
+      }
+    }
+
+    private Object invokeWithRetry(Method method, Object[] args) throws Throwable {
+      RetryPolicy policy = SqlSessionTemplate.this.retryPolicy;
+      // 结果已经部分交给 ResultHandler 的调用不能重试，写操作需要显式打开
+      RetryPolicy.Retry retry = policy == null || hasResultHandler(args) || !(policy.isRetryWrites() || isRead(method))
+          ? null : policy.start();
+      CircuitBreaker breaker = CircuitBreaker.forSessionFactory(SqlSessionTemplate.this.sqlSessionFactory);
+      while (true) {
+        // 截止时间已过，或者已经取消、线程已经被中断，不再获取会话和连接
+        Deadline.checkCurrent();
+        CancellationScope.checkCurrent();
+        // 断路器打开时直接失败，不去等连接池超时
+        if (breaker != null) {
+          breaker.checkAllowed();
+        }
+        // 获得 SqlSession 对象，此处，和 Spring 事务托管的事务已经相关。
+        SqlSession sqlSession = SqlSessionUtils.getSqlSession(
+            SqlSessionTemplate.this.sqlSessionFactory,
+            SqlSessionTemplate.this.executorType,
+            SqlSessionTemplate.this.exceptionTranslator);
+        // 只重试非事务的调用，事务中的失败交给事务边界处理
+        boolean retryable = retry != null
+            && !SqlSessionUtils.isSqlSessionTransactional(sqlSession, SqlSessionTemplate.this.sqlSessionFactory);
+        try {
+          Object result = invoke(sqlSession, method, args);
+          if (breaker != null) {
+            breaker.record(null);
+          }
+          if (retryable) {
+            policy.recordSuccess();
+          }
+          return result;
+        } catch (Throwable t) {
+          if (breaker != null) {
+            breaker.record(t);
+          }
+          if (!retryable || !retry.backOff(t)) {
+            throw t;
+          }
+        }
+      }
+    }
+
+    /**
+     * mapper 按 MappedStatement 的类型调用对应的方法，select 开头的就是读
+     */
+    private boolean isRead(Method method) {
+      return method.getName().startsWith("select");
+    }
+
+    private boolean hasResultHandler(Object[] args) {
+      if (args != null) {
+        for (Object arg : args) {
+          if (arg instanceof ResultHandler) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * 使用会话执行一次，异常已经转换过
+     */
+    private Object invoke(SqlSession sqlSession, Method method, Object[] args) throws Throwable {
+      // 审计日志关闭时不取时间，只有 statement 类方法才记录
+      boolean audited = AsyncAuditLog.isEnabled() && args != null && args.length > 0 && args[0] instanceof String;
+      long startNanos = audited ? System.nanoTime() : 0L;
+      boolean success = false;
       try {
+        // N+1 检测，failFast 时会抛出异常，由下面的 finally 释放会话
+        if (SqlSessionTemplate.this.nPlusOneQueryDetector != null) {
+          SqlSessionTemplate.this.nPlusOneQueryDetector.inspect(SqlSessionTemplate.this.sqlSessionFactory, method, args);
+        }
         // 执行 SQL 操作
         Object result = method.invoke(sqlSession, args);
+        // 游标交给泄漏检测器跟踪，抽中的游标换成包装对象，关闭时通知检测器
+        if (result instanceof Cursor) {
+          SqlSessionLeakDetector detector = SqlSessionUtils.getLeakDetector();
+          if (detector != null) {
+            result = detector.track((Cursor<?>) result);
+          }
+        }
+        // 集群缓存失效：事务中的写操作记在 holder 上，提交之后再通知
+        ClusterCacheInvalidator invalidator = ClusterCacheInvalidator.forSessionFactory(SqlSessionTemplate.this.sqlSessionFactory);
+        String dirtyCache = invalidator == null ? null : invalidator.dirtyCache(args);
+        if (dirtyCache != null && SqlSessionUtils.markCacheDirty(sqlSession, SqlSessionTemplate.this.sqlSessionFactory, dirtyCache)) {
+          dirtyCache = null;
+        }
         // 如果非 Spring 托管的 SqlSession 对象，则提交事务
         if (!SqlSessionUtils.isSqlSessionTransactional(sqlSession, SqlSessionTemplate.this.sqlSessionFactory)) {
           // 强制提交，哪怕是一个干净的会话(也就是没有对数据库的更新操作), 因为某些数据库要求会话在关闭之前，必须调用 commit/rollback
           sqlSession.commit(true);
+          if (dirtyCache != null) {
+            invalidator.publish(Collections.singleton(dirtyCache));
+          }
         }
+        success = true;
         return result;
       } catch (Throwable t) {
         Throwable unwrapped = unwrapThrowable(t);
@@ -344,6 +546,9 @@ public class SqlSessionTemplate implements SqlSession, DisposableBean {
         if (sqlSession != null) {
           SqlSessionUtils.closeSqlSession(sqlSession, SqlSessionTemplate.this.sqlSessionFactory);
         }
+        if (audited) {
+          AsyncAuditLog.statement((String) args[0], startNanos, success);
+        }
       }
     }
   }
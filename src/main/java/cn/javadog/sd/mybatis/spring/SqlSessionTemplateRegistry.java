@@ -0,0 +1,87 @@
+package cn.javadog.sd.mybatis.spring;
+
+import javax.sql.DataSource;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 10:10
+ *
+ * 每个 SqlSessionFactory 一个规范的 SqlSessionTemplate，每个 DataSource 一个规范的 MyBatisExceptionTranslator。
+ * <p>
+ * 每个 MapperFactoryBean 自己 new 一个 SqlSessionTemplate，就是一个 JDK 代理加一个异常转换器，
+ * 转换器第一次转换异常时还要各自展开一张错误码表(元数据由 SQLErrorCodesFactory 按数据源缓存，只读一次)。
+ * 800 个 mapper 就是 800 个模板、800 个转换器和 800 张错误码表，共享之后各一份。
+ * SqlSessionTemplate 本身是线程安全、无状态的，同一个工厂的 mapper 完全可以共用一个。
+ * 扫描出来的 mapper 默认共享，见 {@link cn.javadog.sd.mybatis.spring.mapper.ClassPathMapperScanner#setShareSqlSessionTemplate(boolean)}；
+ * 共享的模板拒绝一切配置修改，不会悄悄影响别的 mapper。
+ * 共享的异常转换器只在这里使用，直接 new 出来的 SqlSessionTemplate 仍然各自持有自己的转换器。
+ * <p>
+ * key 是弱引用，value 也是弱引用(value 强引用着 key)，工厂或者数据源不再使用后随之回收。
+ * 用 ReentrantLock 而不是 synchronized，虚拟线程在这里等待时不会钉住载体线程
+ */
+public final class SqlSessionTemplateRegistry {
+
+  /**
+   * SqlSessionFactory 到它的 SqlSessionTemplate
+   */
+  private static final Map<SqlSessionFactory, WeakReference<SqlSessionTemplate>> TEMPLATES = new WeakHashMap<>();
+
+  /**
+   * DataSource 到它的异常转换器
+   */
+  private static final Map<DataSource, WeakReference<MyBatisExceptionTranslator>> TRANSLATORS = new WeakHashMap<>();
+
+  private static final Lock TEMPLATES_LOCK = new ReentrantLock();
+
+  private static final Lock TRANSLATORS_LOCK = new ReentrantLock();
+
+  private SqlSessionTemplateRegistry() {
+  }
+
+  /**
+   * 获取工厂的规范模板，使用工厂默认的 ExecutorType 和数据源共享的异常转换器。
+   * 返回的模板被所有共享者共用，不允许再修改配置，调用它的 setter 会抛出 IllegalStateException
+   */
+  public static SqlSessionTemplate getSqlSessionTemplate(SqlSessionFactory sqlSessionFactory) {
+    TEMPLATES_LOCK.lock();
+    try {
+      WeakReference<SqlSessionTemplate> reference = TEMPLATES.get(sqlSessionFactory);
+      SqlSessionTemplate template = reference == null ? null : reference.get();
+      if (template == null) {
+        template = new SqlSessionTemplate(sqlSessionFactory, sqlSessionFactory.getConfiguration().getDefaultExecutorType(),
+            getExceptionTranslator(sqlSessionFactory.getConfiguration().getEnvironment().getDataSource()));
+        template.markShared();
+        TEMPLATES.put(sqlSessionFactory, new WeakReference<>(template));
+      }
+      return template;
+    } finally {
+      TEMPLATES_LOCK.unlock();
+    }
+  }
+
+  /**
+   * 获取数据源的规范异常转换器，懒加载，第一次转换 SQLException 时才读取数据库元数据
+   */
+  public static MyBatisExceptionTranslator getExceptionTranslator(DataSource dataSource) {
+    TRANSLATORS_LOCK.lock();
+    try {
+      WeakReference<MyBatisExceptionTranslator> reference = TRANSLATORS.get(dataSource);
+      MyBatisExceptionTranslator translator = reference == null ? null : reference.get();
+      if (translator == null) {
+        translator = new MyBatisExceptionTranslator(dataSource, true);
+        TRANSLATORS.put(dataSource, new WeakReference<>(translator));
+      }
+      return translator;
+    } finally {
+      TRANSLATORS_LOCK.unlock();
+    }
+  }
+
+}
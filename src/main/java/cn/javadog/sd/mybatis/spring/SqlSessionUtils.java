@@ -6,6 +6,8 @@ import cn.javadog.sd.mybatis.mapping.Environment;
 import cn.javadog.sd.mybatis.session.ExecutorType;
 import cn.javadog.sd.mybatis.session.SqlSession;
 import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.spring.audit.AsyncAuditLog;
+import cn.javadog.sd.mybatis.spring.audit.AuditEvent;
 import cn.javadog.sd.mybatis.spring.transaction.SpringManagedTransactionFactory;
 import cn.javadog.sd.mybatis.support.exceptions.PersistenceException;
 import cn.javadog.sd.mybatis.support.logging.Log;
@@ -21,6 +23,14 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
  * @author 余勇
  * @date 2019-12-21 22:16
  * 操作 SqlSession 的生命周期。可以从 {@code TransactionSynchronizationManager} 中获取/注册 SqlSession，即使没有事务，也可以工作
+ * <p>
+ * 会话绑定在线程上，每个请求一个虚拟线程时，每个线程的 ThreadLocal 占用：
+ * 1. {@code TransactionSynchronizationManager} 的 resources/synchronizations 等 6 个 ThreadLocal，只在事务(或事务同步)期间有值，
+ *    里面是 SqlSessionHolder 和 ConnectionHolder 各一个，外加一个 SqlSessionSynchronization，事务结束时全部清除；没有事务的调用不写入；
+ * 2. {@link cn.javadog.sd.mybatis.spring.transaction.Deadline}、{@link cn.javadog.sd.mybatis.spring.transaction.CancellationScope}、
+ *    {@link cn.javadog.sd.mybatis.spring.transaction.RoundTripCounter}、{@link WorkloadClass} 各一个，只在各自的范围内有值，离开最外层范围时 remove；
+ * 3. MyBatis 的 {@code ErrorContext} 一个，第一次执行语句时创建，之后只 reset 不 remove，随线程结束回收，虚拟线程用完即弃，不会累积。
+ * 请求路径上没有 synchronized，虚拟线程等待锁或者 JDBC 时不会钉住载体线程(JDBC 驱动和连接池内部的 synchronized 除外)
  */
 public final class SqlSessionUtils {
 
@@ -30,6 +40,11 @@ public final class SqlSessionUtils {
   private static final String NO_SQL_SESSION_FACTORY_SPECIFIED = "No SqlSessionFactory specified";
   private static final String NO_SQL_SESSION_SPECIFIED = "No SqlSession specified";
 
+  /**
+   * 泄漏检测器，由 {@link SqlSessionLeakDetector} 初始化时安装，为 null 时不检测
+   */
+  private static volatile SqlSessionLeakDetector leakDetector;
+
   /**
    * 不对外暴露的构造
    */
@@ -37,6 +52,17 @@ public final class SqlSessionUtils {
     // do nothing
   }
 
+  /**
+   * 安装泄漏检测器，传 null 卸载
+   */
+  static void setLeakDetector(SqlSessionLeakDetector detector) {
+    leakDetector = detector;
+  }
+
+  static SqlSessionLeakDetector getLeakDetector() {
+    return leakDetector;
+  }
+
   /**
    * 通过参数中的 {@code SqlSessionFactory}，获取到它的 {@code DataSource}和{@code ExecutorType}，
    * 以此来创建一个 SQL会话，
@@ -72,11 +98,31 @@ public final class SqlSessionUtils {
       return session;
     }
 
+    // 数据源上有并发限制的话先取得许可，事务中已经取得过的不再取
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.forSessionFactory(sessionFactory);
+    ConcurrencyLimiter.Permit permit = limiter == null ? null : limiter.acquire();
+
     LOGGER.debug("Creating a new SqlSession");
-    // 创建 SqlSession 对象
-    session = sessionFactory.openSession(executorType);
-    // 注册到 TransactionSynchronizationManager 中
-    registerSessionHolder(sessionFactory, executorType, exceptionTranslator, session);
+    try {
+      // 创建 SqlSession 对象
+      session = sessionFactory.openSession(executorType);
+      AsyncAuditLog.event(AuditEvent.SESSION_OPEN, session);
+      // 交给泄漏检测器跟踪
+      SqlSessionLeakDetector detector = leakDetector;
+      if (detector != null) {
+        detector.opened(session);
+      }
+      // 注册到 TransactionSynchronizationManager 中
+      registerSessionHolder(sessionFactory, executorType, exceptionTranslator, session);
+    } catch (RuntimeException e) {
+      if (permit != null) {
+        permit.release();
+      }
+      throw e;
+    }
+    if (permit != null) {
+      limiter.bind(session, permit, isSqlSessionTransactional(session, sessionFactory));
+    }
 
     return session;
   }
@@ -112,6 +158,7 @@ public final class SqlSessionUtils {
         holder.setSynchronizedWithTransaction(true);
         // 增加计数
         holder.requested();
+        AsyncAuditLog.event(AuditEvent.SESSION_REGISTER, session);
       }
       // 环境所使用的事务工厂不是Spring管理的
       else {
@@ -164,11 +211,32 @@ public final class SqlSessionUtils {
     if ((holder != null) && (holder.getSqlSession() == session)) {
       LOGGER.debug("Releasing transactional SqlSession [" + session + "]");
       holder.released();
+      AsyncAuditLog.event(AuditEvent.SESSION_RELEASE, session);
     }
     // 如果不相等，说明不在 Spring 托管的事务中，直接关闭 SqlSession 对象
     else {
       LOGGER.debug("Closing non transactional SqlSession [" + session + "]");
-      session.close();
+      try {
+        session.close();
+        notifyClosed(session);
+      } finally {
+        // 关闭失败也要归还许可，否则许可一直被占着
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.forSessionFactory(sessionFactory);
+        if (limiter != null) {
+          limiter.release(session);
+        }
+      }
+    }
+  }
+
+  /**
+   * 通知审计日志和泄漏检测器会话已关闭
+   */
+  private static void notifyClosed(SqlSession session) {
+    AsyncAuditLog.event(AuditEvent.SESSION_CLOSE, session);
+    SqlSessionLeakDetector detector = leakDetector;
+    if (detector != null) {
+      detector.closed(session);
     }
   }
 
@@ -184,6 +252,18 @@ public final class SqlSessionUtils {
     return (holder != null) && (holder.getSqlSession() == session);
   }
 
+  /**
+   * 记下事务中的写操作影响到的二级缓存，事务提交之后通知其它节点。会话不在 Spring 事务中时返回 false
+   */
+  static boolean markCacheDirty(SqlSession session, SqlSessionFactory sessionFactory, String cacheId) {
+    SqlSessionHolder holder = (SqlSessionHolder) TransactionSynchronizationManager.getResource(sessionFactory);
+    if (holder == null || holder.getSqlSession() != session) {
+      return false;
+    }
+    holder.getDirtyCaches().add(cacheId);
+    return true;
+  }
+
   /**
    * 内部类，继承 TransactionSynchronizationAdapter 抽象类，SqlSession 的 同步器，基于 Spring Transaction 体系。
    * 提供清除资源的回调，它会清空 TransactionSynchronizationManager，并且 提交/关闭 会话。
@@ -295,6 +375,7 @@ public final class SqlSessionUtils {
         LOGGER.debug("Transaction synchronization closing SqlSession [" + this.holder.getSqlSession() + "]");
         // 关闭 SqlSession 对象
         this.holder.getSqlSession().close();
+        notifyClosed(this.holder.getSqlSession());
       }
     }
 
@@ -303,14 +384,28 @@ public final class SqlSessionUtils {
      */
     @Override
     public void afterCompletion(int status) {
+      // 已经提交的写操作通知其它节点清缓存，回滚的不用
+      if (this.holder.hasDirtyCaches()) {
+        ClusterCacheInvalidator invalidator = ClusterCacheInvalidator.forSessionFactory(this.sessionFactory);
+        if (invalidator != null && status == STATUS_COMMITTED) {
+          invalidator.publish(this.holder.getDirtyCaches());
+        }
+        this.holder.getDirtyCaches().clear();
+      }
       // 处于有效状态
       if (this.holderActive) {
+        // beforeCompletion 时 holder 依然被引用，说明 requested/released 不配对
+        SqlSessionLeakDetector detector = leakDetector;
+        if (detector != null && this.holder.isOpen()) {
+          detector.unbalanced(this.holder);
+        }
         // afterCompletion 可能是由别的线程调用的，因此为了避免失败，将上面的逻辑再走一波
         LOGGER.debug("Transaction synchronization deregistering SqlSession [" + this.holder.getSqlSession() + "]");
         TransactionSynchronizationManager.unbindResourceIfPossible(sessionFactory);
         this.holderActive = false;
         LOGGER.debug("Transaction synchronization closing SqlSession [" + this.holder.getSqlSession() + "]");
         this.holder.getSqlSession().close();
+        notifyClosed(this.holder.getSqlSession());
       }
       // 重置
       this.holder.reset();
@@ -0,0 +1,161 @@
+package cn.javadog.sd.mybatis.spring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 余勇
+ * @date 2019-12-25 10:10
+ *
+ * SqlSessionFactory 启动耗时报告。
+ * 由 {@link SqlSessionFactoryBean#buildSqlSessionFactory()} 记录每个阶段的耗时：别名包扫描、类型处理器包扫描、插件注册、
+ * XMLConfigBuilder#parse、每个 mapper 文件的读取(XMLMapperBuilder 的构造，可能是并行的)和 XMLMapperBuilder#parse、
+ * 快照的读写、按需解析时 mapper 文件的索引、SqlSessionFactoryBuilder#build；
+ * 按需解析的 mapper 文件在第一次使用时补记 XMLMapperBuilder#parse；
+ * 容器刷新完成时再从已经创建的 {@code MapperFactoryBean} 收集每个 mapper 的 Configuration#addMapper 耗时。
+ * <p>
+ * 容器刷新完成后打印 debug 日志，并以 {@code <sqlSessionFactory的beanName>.startupTimingReport} 注册为单例bean
+ */
+public class StartupTimingReport {
+
+  /*阶段名*/
+
+  public static final String PHASE_CONFIG_LOCATION_LOAD = "configLocation.load";
+  public static final String PHASE_TYPE_ALIASES_PACKAGE = "typeAliasesPackage.scan";
+  public static final String PHASE_TYPE_ALIASES = "typeAliases.register";
+  public static final String PHASE_PLUGINS = "plugins.register";
+  public static final String PHASE_TYPE_HANDLERS_PACKAGE = "typeHandlersPackage.scan";
+  public static final String PHASE_TYPE_HANDLERS = "typeHandlers.register";
+  public static final String PHASE_CONFIG_PARSE = "XMLConfigBuilder.parse";
+  public static final String PHASE_MAPPER_LOAD = "XMLMapperBuilder.load";
+  public static final String PHASE_MAPPER_INDEX = "LazyMapperConfiguration.index";
+  public static final String PHASE_MAPPER_PARSE = "XMLMapperBuilder.parse";
+  public static final String PHASE_SNAPSHOT_LOAD = "ConfigurationSnapshot.load";
+  public static final String PHASE_SNAPSHOT_WRITE = "ConfigurationSnapshot.write";
+  public static final String PHASE_BUILD = "SqlSessionFactoryBuilder.build";
+  public static final String PHASE_ADD_MAPPER = "Configuration.addMapper";
+
+  /**
+   * 报告打印时，明细最多列出的条数
+   */
+  private static final int MAX_DETAIL_LINES = 20;
+
+  /**
+   * 所有阶段，按记录顺序
+   */
+  private final List<Phase> phases = Collections.synchronizedList(new ArrayList<>());
+
+  /**
+   * 记录一个阶段，startNanos 为 System.nanoTime() 的起始值
+   */
+  public void record(String phase, String target, long startNanos) {
+    add(phase, target, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * 记录一个别处测好的阶段，单位纳秒
+   */
+  void add(String phase, String target, long nanos) {
+    this.phases.add(new Phase(phase, target, nanos));
+  }
+
+  /**
+   * 所有阶段的快照
+   */
+  public List<Phase> getPhases() {
+    synchronized (this.phases) {
+      return new ArrayList<>(this.phases);
+    }
+  }
+
+  /**
+   * 某个阶段的总耗时，单位毫秒
+   */
+  public long getMillis(String phase) {
+    long nanos = 0;
+    for (Phase p : getPhases()) {
+      if (p.getName().equals(phase)) {
+        nanos += p.getNanos();
+      }
+    }
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /**
+   * 所有阶段的总耗时，单位毫秒
+   */
+  public long getTotalMillis() {
+    long nanos = 0;
+    for (Phase p : getPhases()) {
+      nanos += p.getNanos();
+    }
+    return TimeUnit.NANOSECONDS.toMillis(nanos);
+  }
+
+  /**
+   * 先按阶段汇总，再列出最慢的明细
+   */
+  @Override
+  public String toString() {
+    List<Phase> snapshot = getPhases();
+    StringBuilder sb = new StringBuilder("MyBatis startup timing: total ").append(getTotalMillis()).append(" ms");
+    snapshot.stream().map(Phase::getName).distinct().forEach(name ->
+        sb.append("\n  ").append(name).append(": ").append(getMillis(name)).append(" ms"));
+    sb.append("\n  slowest:");
+    snapshot.stream()
+        .filter(p -> p.getTarget() != null)
+        .sorted(Comparator.comparingLong(Phase::getNanos).reversed())
+        .limit(MAX_DETAIL_LINES)
+        .forEach(p -> sb.append("\n    ").append(p));
+    return sb.toString();
+  }
+
+  /**
+   * 一个阶段的耗时
+   */
+  public static final class Phase {
+
+    /**
+     * 阶段名
+     */
+    private final String name;
+
+    /**
+     * 阶段处理的对象，包名/资源/mapper 接口，可以为 null
+     */
+    private final String target;
+
+    /**
+     * 耗时，单位纳秒
+     */
+    private final long nanos;
+
+    Phase(String name, String target, long nanos) {
+      this.name = name;
+      this.target = target;
+      this.nanos = nanos;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getTarget() {
+      return target;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    @Override
+    public String toString() {
+      return name + (target == null ? "" : " [" + target + "]") + ": "
+          + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.springframework.util.Assert.notNull;
+
+import java.util.concurrent.Callable;
+
+import org.springframework.core.NamedThreadLocal;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 16:40
+ *
+ * 工作负载类别。{@link ConcurrencyLimiter} 并发已满时按类别的权重分配许可，
+ * 在线请求优先，批处理让出连接但是按权重保证一定的份额，不会饿死。
+ * <p>
+ * 类别可以声明在模板上({@link SqlSessionTemplate#setWorkloadClass})，也可以在线程范围内指定：
+ * <pre class="code">
+ *   WorkloadClass.call(WorkloadClass.BATCH, () -> reportMapper.rebuildDailyReport(day));
+ * </pre>
+ * 模板上声明的类别优先，都没有指定时是 {@link #OLTP}
+ */
+public enum WorkloadClass {
+
+  /**
+   * 对延迟敏感的在线请求
+   */
+  OLTP,
+
+  /**
+   * 批处理、报表等吞吐优先的后台工作
+   */
+  BATCH;
+
+  private static final ThreadLocal<WorkloadClass> CURRENT = new NamedThreadLocal<>("MyBatis workload class");
+
+  /**
+   * 以指定的类别执行 action，受检异常包装成 IllegalStateException 抛出
+   */
+  public static <T> T call(WorkloadClass workloadClass, Callable<T> action) {
+    notNull(workloadClass, "Workload class must not be null");
+    notNull(action, "Action must not be null");
+    WorkloadClass outer = enter(workloadClass);
+    try {
+      return action.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      exit(outer);
+    }
+  }
+
+  /**
+   * 以指定的类别执行 action
+   */
+  public static void run(WorkloadClass workloadClass, Runnable action) {
+    notNull(action, "Action must not be null");
+    call(workloadClass, () -> {
+      action.run();
+      return null;
+    });
+  }
+
+  /**
+   * 当前线程的类别，没有指定时是 {@link #OLTP}
+   */
+  public static WorkloadClass current() {
+    WorkloadClass workloadClass = CURRENT.get();
+    return workloadClass == null ? OLTP : workloadClass;
+  }
+
+  /**
+   * 进入指定类别的范围，返回外层的类别(可能为 null)，必须在 finally 里调用 {@link #exit}
+   */
+  static WorkloadClass enter(WorkloadClass workloadClass) {
+    WorkloadClass outer = CURRENT.get();
+    CURRENT.set(workloadClass);
+    return outer;
+  }
+
+  /**
+   * 离开范围，恢复外层的类别
+   */
+  static void exit(WorkloadClass outer) {
+    if (outer == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(outer);
+    }
+  }
+
+}
@@ -8,6 +8,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+import cn.javadog.sd.mybatis.spring.mapper.ClassPathMapperScanner;
 import cn.javadog.sd.mybatis.spring.mapper.MapperFactoryBean;
 import cn.javadog.sd.mybatis.spring.mapper.MapperScannerConfigurer;
 import org.springframework.beans.factory.support.BeanNameGenerator;
@@ -114,4 +115,14 @@ public @interface MapperScan {
    */
   Class<? extends MapperFactoryBean> factoryBean() default MapperFactoryBean.class;
 
+  /**
+   * 是否懒加载 mapper bean，默认 false。支持 {@code ${...}} 占位符，见 {@link ClassPathMapperScanner#setLazyInitialization(boolean)}
+   */
+  String lazyInitialization() default "";
+
+  /**
+   * mapper 是否共用工厂的 SqlSessionTemplate，默认 true。支持 {@code ${...}} 占位符，见 {@link ClassPathMapperScanner#setShareSqlSessionTemplate(boolean)}
+   */
+  String shareSqlSessionTemplate() default "";
+
 }
@@ -89,6 +89,16 @@ public class MapperScannerRegistrar implements ImportBeanDefinitionRegistrar, Re
     scanner.setSqlSessionTemplateBeanName(annoAttrs.getString("sqlSessionTemplateRef"));
     // 拿到 sqlSessionFactoryRef
     scanner.setSqlSessionFactoryBeanName(annoAttrs.getString("sqlSessionFactoryRef"));
+    // 拿到 lazyInitialization，可以是占位符
+    String lazyInitialization = scanner.getEnvironment().resolvePlaceholders(annoAttrs.getString("lazyInitialization"));
+    if (StringUtils.hasText(lazyInitialization)) {
+      scanner.setLazyInitialization(Boolean.parseBoolean(lazyInitialization));
+    }
+    // 拿到 shareSqlSessionTemplate，可以是占位符
+    String shareSqlSessionTemplate = scanner.getEnvironment().resolvePlaceholders(annoAttrs.getString("shareSqlSessionTemplate"));
+    if (StringUtils.hasText(shareSqlSessionTemplate)) {
+      scanner.setShareSqlSessionTemplate(Boolean.parseBoolean(shareSqlSessionTemplate));
+    }
     // 拿到 basePackages
     List<String> basePackages = new ArrayList<>();
     basePackages.addAll(
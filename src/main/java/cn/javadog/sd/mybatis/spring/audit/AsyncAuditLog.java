@@ -0,0 +1,383 @@
+package cn.javadog.sd.mybatis.spring.audit;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * @author 余勇
+ * @date 2019-12-24 14:40
+ *
+ * 异步的 SQL 审计日志。
+ * 打开 SqlSessionUtils、SpringManagedTransaction 的 debug 日志，每次调用都要在请求线程上拼字符串，吞吐量直接腰斩。
+ * 这里换一种方式：请求线程只把事件的几个字段写进预先分配好的环形缓冲区的槽位里，不拼字符串，不加锁；
+ * 后台线程按顺序读出来，格式化后通过 NIO 写到按大小滚动的文件里。
+ * <p>
+ * 槽位里只有基本类型：事件类型的序号、线程 id、statement 的编号、identityHashCode 和耗时，
+ * 不持有线程、会话、连接的引用，等待写出的事件不会让它们(以及线程上绑定的资源)无法回收，写入时也不分配对象。
+ * statement 第一次出现时分配一个编号，之后只是一次 ConcurrentHashMap 查找。
+ * <p>
+ * 缓冲区写满时直接丢弃事件并计数，绝不阻塞请求线程，因此可以放心在生产环境打开。
+ * <p>
+ * 作为Spring的bean声明即可，初始化时安装，销毁时把剩下的事件写完再卸载：
+ * <pre class="code">
+ * {@code
+ *   <bean class="cn.javadog.sd.mybatis.spring.audit.AsyncAuditLog">
+ *     <property name="file" value="/var/log/app/mybatis-audit.log" />
+ *   </bean>
+ * }
+ * </pre>
+ */
+public class AsyncAuditLog implements InitializingBean, DisposableBean {
+
+  private static final Log LOGGER = LogFactory.getLog(AsyncAuditLog.class);
+
+  private static final DateTimeFormatter TIME_FORMATTER =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+  private static final AuditEvent[] EVENTS = AuditEvent.values();
+
+  /**
+   * 没有 statement 的事件的编号
+   */
+  private static final int NO_STATEMENT = -1;
+
+  /**
+   * 已安装的实例，为 null 表示没有开启，热路径上只有这一次 volatile 读
+   */
+  private static volatile AsyncAuditLog installed;
+
+  /**
+   * 日志文件
+   */
+  private Path file;
+
+  /**
+   * 环形缓冲区的槽位数，必须是 2 的幂
+   */
+  private int bufferSize = 1 << 16;
+
+  /**
+   * 单个日志文件的最大字节数
+   */
+  private long maxFileSize = 64L * 1024 * 1024;
+
+  /**
+   * 保留的历史文件个数
+   */
+  private int maxBackups = 5;
+
+  /**
+   * 预先分配的槽位
+   */
+  private Slot[] slots;
+
+  /**
+   * 下标掩码，bufferSize - 1
+   */
+  private int mask;
+
+  /**
+   * 下一个可以被生产者占用的序号
+   */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * 消费者已经处理完的序号，生产者据此判断缓冲区是否已满
+   */
+  private volatile long consumed;
+
+  /**
+   * 因缓冲区满被丢弃的事件数
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * statement 到编号
+   */
+  private final Map<String, Integer> statementCodes = new ConcurrentHashMap<>();
+
+  /**
+   * 编号到 statement，下标就是编号
+   */
+  private final List<String> statementNames = new CopyOnWriteArrayList<>();
+
+  /**
+   * 分配编号的锁，保证编号和下标一致
+   */
+  private final ReentrantLock statementLock = new ReentrantLock();
+
+  /**
+   * 后台写线程
+   */
+  private Thread writerThread;
+
+  /**
+   * 是否正在运行
+   */
+  private volatile boolean running;
+
+  /*相应的get/set*/
+
+  public void setFile(Path file) {
+    this.file = file;
+  }
+
+  public void setBufferSize(int bufferSize) {
+    isTrue(bufferSize > 0 && Integer.bitCount(bufferSize) == 1, "Property 'bufferSize' must be a power of 2");
+    this.bufferSize = bufferSize;
+  }
+
+  public void setMaxFileSize(long maxFileSize) {
+    this.maxFileSize = maxFileSize;
+  }
+
+  public void setMaxBackups(int maxBackups) {
+    this.maxBackups = maxBackups;
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * 是否开启了审计日志，调用方可以据此跳过 System.nanoTime() 之类的准备工作
+   */
+  public static boolean isEnabled() {
+    return installed != null;
+  }
+
+  /**
+   * 记录会话/连接事件，subject 是会话或连接对象，只记录它的 identityHashCode
+   */
+  public static void event(AuditEvent event, Object subject) {
+    AsyncAuditLog log = installed;
+    if (log != null) {
+      log.publish(event, NO_STATEMENT, System.identityHashCode(subject), 0L, true);
+    }
+  }
+
+  /**
+   * 记录一次 statement 的执行
+   */
+  public static void statement(String statement, long startNanos, boolean success) {
+    AsyncAuditLog log = installed;
+    if (log != null) {
+      log.publish(AuditEvent.STATEMENT, log.statementCode(statement), 0, System.nanoTime() - startNanos, success);
+    }
+  }
+
+  /**
+   * 分配槽位，打开文件，启动后台线程，最后安装
+   */
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    notNull(this.file, "Property 'file' is required");
+    this.slots = new Slot[this.bufferSize];
+    for (int i = 0; i < this.bufferSize; i++) {
+      this.slots[i] = new Slot();
+    }
+    this.mask = this.bufferSize - 1;
+    RollingFileChannel channel = new RollingFileChannel(this.file, this.maxFileSize, this.maxBackups);
+    this.running = true;
+    this.writerThread = new Thread(() -> drainLoop(channel), "mybatis-audit-log-writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+    installed = this;
+  }
+
+  /**
+   * 先卸载，不再接收新事件，然后等后台线程把剩下的写完
+   */
+  @Override
+  public void destroy() throws InterruptedException {
+    if (installed == this) {
+      installed = null;
+    }
+    this.running = false;
+    if (this.writerThread != null) {
+      LockSupport.unpark(this.writerThread);
+      this.writerThread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+  }
+
+  /**
+   * statement 的编号，第一次出现时分配
+   */
+  private int statementCode(String statement) {
+    Integer code = this.statementCodes.get(statement);
+    return code != null ? code : registerStatement(statement);
+  }
+
+  private int registerStatement(String statement) {
+    this.statementLock.lock();
+    try {
+      Integer code = this.statementCodes.get(statement);
+      if (code == null) {
+        code = this.statementNames.size();
+        // 先放进列表再公开编号，消费者拿到编号时一定查得到
+        this.statementNames.add(statement);
+        this.statementCodes.put(statement, code);
+      }
+      return code;
+    } finally {
+      this.statementLock.unlock();
+    }
+  }
+
+  /**
+   * 生产者：占一个槽位，写入字段，最后发布序号。缓冲区满则丢弃
+   */
+  private void publish(AuditEvent event, int statement, int subject, long elapsedNanos, boolean success) {
+    long sequence;
+    do {
+      sequence = this.claimed.get();
+      if (sequence - this.consumed >= this.bufferSize) {
+        this.dropped.incrementAndGet();
+        return;
+      }
+    } while (!this.claimed.compareAndSet(sequence, sequence + 1));
+
+    Slot slot = this.slots[(int) sequence & this.mask];
+    slot.event = event.ordinal();
+    slot.timeMillis = System.currentTimeMillis();
+    slot.threadId = Thread.currentThread().getId();
+    slot.statement = statement;
+    slot.subject = subject;
+    slot.elapsedNanos = elapsedNanos;
+    slot.success = success;
+    // volatile 写，保证上面的字段对消费者可见
+    slot.published = sequence;
+  }
+
+  /**
+   * 消费者：按序号顺序读取槽位，格式化后批量写入文件
+   */
+  private void drainLoop(RollingFileChannel channel) {
+    StringBuilder line = new StringBuilder(256);
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    long next = this.consumed;
+    try {
+      while (true) {
+        Slot slot = this.slots[(int) next & this.mask];
+        if (slot.published == next) {
+          line.setLength(0);
+          format(slot, line);
+          // 读完才允许生产者复用这个槽位
+          this.consumed = ++next;
+          encode(line, encoder, buffer, channel);
+        } else {
+          // 没有新事件，先把攒着的写出去
+          flush(buffer, channel);
+          if (!this.running && this.claimed.get() == next) {
+            break;
+          }
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.error("Failed to write audit log '" + this.file + "', audit log disabled", e);
+      if (installed == this) {
+        installed = null;
+      }
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOGGER.warn("Failed to close audit log '" + this.file + "': " + e);
+      }
+    }
+  }
+
+  private void format(Slot slot, StringBuilder line) {
+    AuditEvent event = EVENTS[slot.event];
+    TIME_FORMATTER.formatTo(Instant.ofEpochMilli(slot.timeMillis), line);
+    line.append(" [thread-").append(slot.threadId).append("] ").append(event);
+    if (event == AuditEvent.STATEMENT) {
+      line.append(' ').append(this.statementNames.get(slot.statement))
+          .append(" elapsed=").append(TimeUnit.NANOSECONDS.toMicros(slot.elapsedNanos)).append("us")
+          .append(slot.success ? " ok" : " failed");
+    } else {
+      line.append(" @").append(Integer.toHexString(slot.subject));
+    }
+    line.append('\n');
+  }
+
+  private static void encode(StringBuilder line, CharsetEncoder encoder, ByteBuffer buffer, RollingFileChannel channel)
+      throws IOException {
+    CharBuffer chars = CharBuffer.wrap(line);
+    while (true) {
+      CoderResult result = encoder.encode(chars, buffer, true);
+      if (result.isOverflow()) {
+        flush(buffer, channel);
+      } else {
+        break;
+      }
+    }
+    encoder.reset();
+  }
+
+  private static void flush(ByteBuffer buffer, RollingFileChannel channel) throws IOException {
+    if (buffer.position() > 0) {
+      buffer.flip();
+      channel.write(buffer);
+      buffer.clear();
+    }
+  }
+
+  /**
+   * 环形缓冲区的槽位，固定的几个基本类型字段，反复复用
+   */
+  private static final class Slot {
+
+    /**
+     * 发布的序号，消费者看到它等于自己期望的序号才读取
+     */
+    private volatile long published = -1;
+
+    /**
+     * AuditEvent 的序号
+     */
+    private int event;
+
+    private long timeMillis;
+
+    private long threadId;
+
+    /**
+     * statement 的编号，没有时是 NO_STATEMENT
+     */
+    private int statement;
+
+    private int subject;
+
+    private long elapsedNanos;
+
+    private boolean success;
+  }
+
+}
@@ -0,0 +1,56 @@
+package cn.javadog.sd.mybatis.spring.audit;
+
+/**
+ * @author 余勇
+ * @date 2019-12-24 14:05
+ *
+ * 审计日志的事件类型
+ */
+public enum AuditEvent {
+
+  /**
+   * 创建 SqlSession
+   */
+  SESSION_OPEN,
+
+  /**
+   * SqlSession 注册到Spring事务
+   */
+  SESSION_REGISTER,
+
+  /**
+   * 释放事务中的 SqlSession，只是减少 holder 的计数
+   */
+  SESSION_RELEASE,
+
+  /**
+   * 关闭 SqlSession
+   */
+  SESSION_CLOSE,
+
+  /**
+   * 通过 SqlSessionTemplate 执行一个 statement
+   */
+  STATEMENT,
+
+  /**
+   * SpringManagedTransaction 获取连接
+   */
+  CONNECTION_OPEN,
+
+  /**
+   * SpringManagedTransaction 提交
+   */
+  CONNECTION_COMMIT,
+
+  /**
+   * SpringManagedTransaction 回滚
+   */
+  CONNECTION_ROLLBACK,
+
+  /**
+   * SpringManagedTransaction 释放连接
+   */
+  CONNECTION_CLOSE
+
+}
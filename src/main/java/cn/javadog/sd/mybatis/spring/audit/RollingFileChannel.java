@@ -0,0 +1,102 @@
+package cn.javadog.sd.mybatis.spring.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author 余勇
+ * @date 2019-12-24 14:20
+ *
+ * 按大小滚动的日志文件，只由 {@link AsyncAuditLog} 的后台线程使用，不需要考虑线程安全。
+ * 当前文件写满 {@code maxFileSize} 后，依次重命名为 file.1、file.2 ...，最多保留 {@code maxBackups} 个
+ */
+class RollingFileChannel implements Closeable {
+
+  /**
+   * 日志文件
+   */
+  private final Path file;
+
+  /**
+   * 单个文件的最大字节数
+   */
+  private final long maxFileSize;
+
+  /**
+   * 保留的历史文件个数
+   */
+  private final int maxBackups;
+
+  /**
+   * 当前文件的通道
+   */
+  private FileChannel channel;
+
+  /**
+   * 当前文件已写的字节数
+   */
+  private long size;
+
+  RollingFileChannel(Path file, long maxFileSize, int maxBackups) throws IOException {
+    this.file = file;
+    this.maxFileSize = maxFileSize;
+    this.maxBackups = maxBackups;
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    open();
+  }
+
+  /**
+   * 写出 buffer 中的全部内容，写之前检查是否需要滚动
+   */
+  void write(ByteBuffer buffer) throws IOException {
+    if (this.size > 0 && this.size + buffer.remaining() > this.maxFileSize) {
+      roll();
+    }
+    while (buffer.hasRemaining()) {
+      this.size += this.channel.write(buffer);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+
+  private void open() throws IOException {
+    this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    this.size = this.channel.size();
+  }
+
+  /**
+   * 滚动：file.(n-1) -> file.n ... file -> file.1，然后重新打开 file
+   */
+  private void roll() throws IOException {
+    this.channel.close();
+    if (this.maxBackups > 0) {
+      for (int i = this.maxBackups - 1; i > 0; i--) {
+        Path source = backup(i);
+        if (Files.exists(source)) {
+          Files.move(source, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(this.file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(this.file);
+    }
+    open();
+  }
+
+  private Path backup(int index) {
+    return this.file.resolveSibling(this.file.getFileName() + "." + index);
+  }
+
+}
@@ -9,6 +9,7 @@ import cn.javadog.sd.mybatis.executor.BatchResult;
 import cn.javadog.sd.mybatis.session.ExecutorType;
 import cn.javadog.sd.mybatis.session.SqlSessionFactory;
 import cn.javadog.sd.mybatis.spring.SqlSessionTemplate;
+import cn.javadog.sd.mybatis.spring.WorkloadClass;
 import cn.javadog.sd.mybatis.support.logging.Log;
 import cn.javadog.sd.mybatis.support.logging.LogFactory;
 import org.springframework.batch.item.ItemWriter;
@@ -59,6 +60,8 @@ public class MyBatisBatchItemWriter<T> implements ItemWriter<T>, InitializingBea
   public void setSqlSessionFactory(SqlSessionFactory sqlSessionFactory) {
     if (sqlSessionTemplate == null) {
       this.sqlSessionTemplate = new SqlSessionTemplate(sqlSessionFactory, ExecutorType.BATCH);
+      // 与在线请求共用数据源时，批处理让出连接
+      this.sqlSessionTemplate.setWorkloadClass(WorkloadClass.BATCH);
     }
   }
 
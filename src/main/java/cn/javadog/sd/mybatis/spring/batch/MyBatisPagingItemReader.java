@@ -10,6 +10,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import cn.javadog.sd.mybatis.session.ExecutorType;
 import cn.javadog.sd.mybatis.session.SqlSessionFactory;
 import cn.javadog.sd.mybatis.spring.SqlSessionTemplate;
+import cn.javadog.sd.mybatis.spring.WorkloadClass;
 import org.springframework.batch.item.database.AbstractPagingItemReader;
 
 /**
@@ -71,6 +72,8 @@ public class MyBatisPagingItemReader<T> extends AbstractPagingItemReader<T> {
     super.afterPropertiesSet();
     notNull(sqlSessionFactory, "A SqlSessionFactory is required.");
     sqlSessionTemplate = new SqlSessionTemplate(sqlSessionFactory, ExecutorType.BATCH);
+    // 与在线请求共用数据源时，批处理让出连接
+    sqlSessionTemplate.setWorkloadClass(WorkloadClass.BATCH);
     notNull(queryId, "A queryId is required.");
   }
 
@@ -1,6 +1,8 @@
 package cn.javadog.sd.mybatis.spring.config;
 
 import java.lang.annotation.Annotation;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import cn.javadog.sd.mybatis.spring.mapper.ClassPathMapperScanner;
 import cn.javadog.sd.mybatis.spring.mapper.MapperFactoryBean;
@@ -31,12 +33,28 @@ public class MapperScannerBeanDefinitionParser implements BeanDefinitionParser {
   private static final String ATTRIBUTE_TEMPLATE_REF = "template-ref";
   private static final String ATTRIBUTE_FACTORY_REF = "factory-ref";
   private static final String ATTRIBUTE_MAPPER_FACTORY_BEAN_CLASS = "mapper-factory-bean-class";
+  private static final String ATTRIBUTE_LAZY_INITIALIZATION = "lazy-initialization";
+  private static final String ATTRIBUTE_SHARE_SQL_SESSION_TEMPLATE = "share-sql-session-template";
+
+  /**
+   * 同一个解析器同时只解析一个元素，用 ReentrantLock 不用 synchronized，在虚拟线程上刷新上下文时不会钉住载体线程
+   */
+  private final Lock lock = new ReentrantLock();
 
   /**
    * 解析xml，扫描包，注册mapper
    */
   @Override
-  public synchronized BeanDefinition parse(Element element, ParserContext parserContext) {
+  public BeanDefinition parse(Element element, ParserContext parserContext) {
+    this.lock.lock();
+    try {
+      return doParse(element, parserContext);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private BeanDefinition doParse(Element element, ParserContext parserContext) {
     // 创建 ClassPathMapperScanner 对象
     ClassPathMapperScanner scanner = new ClassPathMapperScanner(parserContext.getRegistry());
     ClassLoader classLoader = scanner.getResourceLoader().getClassLoader();
@@ -81,6 +99,16 @@ public class MapperScannerBeanDefinitionParser implements BeanDefinitionParser {
     // 解析 factory-ref 属性
     String sqlSessionFactoryBeanName = element.getAttribute(ATTRIBUTE_FACTORY_REF);
     scanner.setSqlSessionFactoryBeanName(sqlSessionFactoryBeanName);
+    // 解析 lazy-initialization 属性，可以是占位符
+    String lazyInitialization = scanner.getEnvironment().resolvePlaceholders(element.getAttribute(ATTRIBUTE_LAZY_INITIALIZATION));
+    if (StringUtils.hasText(lazyInitialization)) {
+      scanner.setLazyInitialization(Boolean.parseBoolean(lazyInitialization));
+    }
+    // 解析 share-sql-session-template 属性，可以是占位符
+    String shareSqlSessionTemplate = scanner.getEnvironment().resolvePlaceholders(element.getAttribute(ATTRIBUTE_SHARE_SQL_SESSION_TEMPLATE));
+    if (StringUtils.hasText(shareSqlSessionTemplate)) {
+      scanner.setShareSqlSessionTemplate(Boolean.parseBoolean(shareSqlSessionTemplate));
+    }
     // 注册 scanner 的过滤器
     scanner.registerFilters();
     // 解析 base-package
@@ -1,13 +1,19 @@
 package cn.javadog.sd.mybatis.spring.mapper;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import cn.javadog.sd.mybatis.session.SqlSessionFactory;
 import cn.javadog.sd.mybatis.spring.SqlSessionTemplate;
+import cn.javadog.sd.mybatis.spring.support.ClassPathScanCache;
 import cn.javadog.sd.mybatis.support.logging.Log;
 import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.config.BeanDefinitionHolder;
@@ -16,8 +22,11 @@ import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionRegistry;
 import org.springframework.beans.factory.support.GenericBeanDefinition;
 import org.springframework.context.annotation.ClassPathBeanDefinitionScanner;
+import org.springframework.context.annotation.ScannedGenericBeanDefinition;
+import org.springframework.core.type.classreading.MetadataReader;
 import org.springframework.core.type.filter.AnnotationTypeFilter;
 import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.StringUtils;
 
 /**
@@ -26,7 +35,9 @@ import org.springframework.util.StringUtils;
  *
  * 通过 {@code basePackage}, {@code annotationClass},  {@code markerInterface} 三种方式注册mapper。
  * 如果指定了 {@code annotationClass} 和/或 {@code markerInterface} ，会同时生效。
- * 此类之前是{@link MapperScannerConfigurer}的似有类，1.2.0版本之后移出来了
+ * 此类之前是{@link MapperScannerConfigurer}的似有类，1.2.0版本之后移出来了。
+ * 类路径上有编译期生成的 {@link MapperIndex} 时，直接从索引里取候选接口，不再扫描类路径；
+ * 否则通过 {@link ClassPathScanCache} 扫描，同一个容器里每个包根只遍历一次
  */
 public class ClassPathMapperScanner extends ClassPathBeanDefinitionScanner {
 
@@ -75,6 +86,16 @@ public class ClassPathMapperScanner extends ClassPathBeanDefinitionScanner {
    */
   private Class<? extends MapperFactoryBean> mapperFactoryBeanClass = MapperFactoryBean.class;
 
+  /**
+   * 是否懒加载 mapper bean
+   */
+  private boolean lazyInitialization;
+
+  /**
+   * mapper 是否共用工厂的 SqlSessionTemplate，默认 true
+   */
+  private boolean shareSqlSessionTemplate = true;
+
   /**
    * 构造函数
    */
@@ -88,6 +109,22 @@ public class ClassPathMapperScanner extends ClassPathBeanDefinitionScanner {
     this.addToConfig = addToConfig;
   }
 
+  /**
+   * 设置是否懒加载 mapper bean。开启后 MapperFactoryBean 直到第一次被注入或者 getBean 时才创建，
+   * checkDaoConfig 里的 Configuration#addMapper 也随之推迟。注入点再加上 {@code @Lazy}，就能推迟到第一次调用
+   */
+  public void setLazyInitialization(boolean lazyInitialization) {
+    this.lazyInitialization = lazyInitialization;
+  }
+
+  /**
+   * 设置 mapper 是否共用工厂的 SqlSessionTemplate，见 {@link cn.javadog.sd.mybatis.spring.SqlSessionTemplateRegistry}。
+   * 默认开启，共享的模板不允许再修改配置，修改时直接抛出异常；需要单独配置 N+1 检测、重试等的 mapper 要关闭
+   */
+  public void setShareSqlSessionTemplate(boolean shareSqlSessionTemplate) {
+    this.shareSqlSessionTemplate = shareSqlSessionTemplate;
+  }
+
   public void setAnnotationClass(Class<? extends Annotation> annotationClass) {
     this.annotationClass = annotationClass;
   }
@@ -184,6 +221,50 @@ public class ClassPathMapperScanner extends ClassPathBeanDefinitionScanner {
     return beanDefinitions;
   }
 
+  /**
+   * 有索引时只读取索引里匹配的接口的元数据；没有索引时从容器共享的 {@link ClassPathScanCache} 里取包下的接口，
+   * 多个 @MapperScan 以及别名、类型处理器的包扫描共用一次遍历。两种方式都再走一遍过滤器，结果与扫描一致
+   */
+  @Override
+  public Set<BeanDefinition> findCandidateComponents(String basePackage) {
+    Set<BeanDefinition> candidates = new LinkedHashSet<>();
+    String resolvedPackage = getEnvironment().resolveRequiredPlaceholders(basePackage);
+    MapperIndex index = MapperIndex.load(getResourceLoader().getClassLoader());
+    if (index == null) {
+      for (MetadataReader metadataReader : ClassPathScanCache.of(getRegistry(), getResourceLoader())
+          .getInterfaces(resolvedPackage)) {
+        addCandidate(metadataReader, candidates);
+      }
+      return candidates;
+    }
+    LOGGER.debug("Using mapper index instead of scanning package: '" + basePackage + "'");
+    for (String type : index.getCandidateTypes(resolvedPackage, this.annotationClass, this.markerInterface)) {
+      try {
+        addCandidate(getMetadataReaderFactory().getMetadataReader(type), candidates);
+      } catch (FileNotFoundException e) {
+        LOGGER.warn("Ignoring stale mapper index entry '" + type + "': " + e.getMessage());
+      } catch (IOException e) {
+        throw new BeanDefinitionStoreException("Failed to read candidate mapper interface: " + type, e);
+      }
+    }
+    return candidates;
+  }
+
+  private void addCandidate(MetadataReader metadataReader, Set<BeanDefinition> candidates) {
+    try {
+      if (isCandidateComponent(metadataReader)) {
+        ScannedGenericBeanDefinition sbd = new ScannedGenericBeanDefinition(metadataReader);
+        sbd.setSource(metadataReader.getResource());
+        if (isCandidateComponent(sbd)) {
+          candidates.add(sbd);
+        }
+      }
+    } catch (IOException e) {
+      throw new BeanDefinitionStoreException(
+          "Failed to read candidate mapper interface: " + metadataReader.getClassMetadata().getClassName(), e);
+    }
+  }
+
   /**
    * 处理 BeanDefinitionHolder 对象的集合
    */
@@ -204,6 +285,13 @@ public class ClassPathMapperScanner extends ClassPathBeanDefinitionScanner {
       definition.setBeanClass(this.mapperFactoryBeanClass);
       // 设置 addToConfig 属性
       definition.getPropertyValues().add("addToConfig", this.addToConfig);
+      definition.getPropertyValues().add("shareSqlSessionTemplate", this.shareSqlSessionTemplate);
+      if (this.lazyInitialization) {
+        definition.setLazyInit(true);
+        // 直接告诉容器 FactoryBean 的产品类型，按类型注入时不用为了判断类型去实例化 MapperFactoryBean
+        Class<?> mapperInterface = ClassUtils.resolveClassName(beanClassName, getResourceLoader().getClassLoader());
+        definition.setAttribute(FactoryBean.OBJECT_TYPE_ATTRIBUTE, mapperInterface);
+      }
       // 是否已经显式设置了 sqlSessionFactoryBeanName 或 sqlSessionFactory 属性
       boolean explicitFactoryUsed = false;
       if (StringUtils.hasText(this.sqlSessionFactoryBeanName)) {
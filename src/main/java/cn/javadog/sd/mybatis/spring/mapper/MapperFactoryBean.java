@@ -46,6 +46,11 @@ public class MapperFactoryBean<T> extends SqlSessionDaoSupport implements Factor
    */
   private boolean addToConfig = true;
 
+  /**
+   * 注册 mapper 的耗时，单位纳秒，容器刷新时由 SqlSessionFactoryBean 收集到启动耗时报告里
+   */
+  private long addMapperNanos;
+
   /**
    * 空构造
    */
@@ -70,8 +75,10 @@ public class MapperFactoryBean<T> extends SqlSessionDaoSupport implements Factor
     Configuration configuration = getSqlSession().getConfiguration();
     if (this.addToConfig && !configuration.hasMapper(this.mapperInterface)) {
       try {
-        // 注册
+        // 注册，记下耗时
+        long start = System.nanoTime();
         configuration.addMapper(this.mapperInterface);
+        this.addMapperNanos = System.nanoTime() - start;
       } catch (Exception e) {
         logger.error("Error while adding the mapper '" + this.mapperInterface + "' to configuration.", e);
         throw new IllegalArgumentException(e);
@@ -111,6 +118,13 @@ public class MapperFactoryBean<T> extends SqlSessionDaoSupport implements Factor
     this.mapperInterface = mapperInterface;
   }
 
+  /**
+   * 注册 mapper 的耗时，单位纳秒，没有注册过时为 0
+   */
+  public long getAddMapperNanos() {
+    return this.addMapperNanos;
+  }
+
   public Class<T> getMapperInterface() {
     return mapperInterface;
   }
@@ -0,0 +1,127 @@
+package cn.javadog.sd.mybatis.spring.mapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.core.SpringProperties;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.ConcurrentReferenceHashMap;
+import org.springframework.util.StringUtils;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 14:30
+ *
+ * 编译期生成的 mapper 接口索引，由 {@link MapperIndexProcessor} 写入 {@value #INDEX_LOCATION}。
+ * 每一行是 {@code 接口名=注解和父接口}，类路径上所有 jar 的索引合并在一起。
+ * <p>
+ * 类路径上存在索引时，{@link ClassPathMapperScanner} 只读取索引里匹配的接口，不再遍历基础包下的所有 class 文件，
+ * 启动耗时与 jar 的大小无关。和 Spring 的 spring.components 一样，索引一旦存在就是权威的，
+ * 没有参与编译期索引的模块里的 mapper 不会被发现，此时可以通过系统属性 {@value #IGNORE_INDEX} 关掉索引
+ */
+public final class MapperIndex {
+
+  private static final Log LOGGER = LogFactory.getLog(MapperIndex.class);
+
+  /**
+   * 索引文件的位置
+   */
+  public static final String INDEX_LOCATION = "META-INF/mybatis-mappers.index";
+
+  /**
+   * 为 true 时忽略索引，总是扫描类路径
+   */
+  public static final String IGNORE_INDEX = "mybatis.index.ignore";
+
+  /**
+   * 每个 ClassLoader 只加载一次，没有索引的也缓存下来
+   */
+  private static final ConcurrentMap<ClassLoader, MapperIndex> CACHE = new ConcurrentReferenceHashMap<>();
+
+  private static final MapperIndex NONE = new MapperIndex(Collections.emptyMap());
+
+  private static final AntPathMatcher PACKAGE_MATCHER = new AntPathMatcher(".");
+
+  /**
+   * 接口名到它的注解和父接口
+   */
+  private final Map<String, Set<String>> entries;
+
+  private MapperIndex(Map<String, Set<String>> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * 加载 ClassLoader 上的索引，没有索引或者被忽略时返回 null
+   */
+  public static MapperIndex load(ClassLoader classLoader) {
+    if (SpringProperties.getFlag(IGNORE_INDEX)) {
+      return null;
+    }
+    ClassLoader loader = classLoader == null ? MapperIndex.class.getClassLoader() : classLoader;
+    MapperIndex index = CACHE.computeIfAbsent(loader, MapperIndex::doLoad);
+    return index == NONE ? null : index;
+  }
+
+  private static MapperIndex doLoad(ClassLoader classLoader) {
+    try {
+      Enumeration<URL> urls = classLoader.getResources(INDEX_LOCATION);
+      if (!urls.hasMoreElements()) {
+        return NONE;
+      }
+      Map<String, Set<String>> entries = new LinkedHashMap<>();
+      while (urls.hasMoreElements()) {
+        URL url = urls.nextElement();
+        Properties properties = new Properties();
+        try (InputStream in = url.openStream()) {
+          properties.load(in);
+        }
+        for (String type : properties.stringPropertyNames()) {
+          entries.computeIfAbsent(type, k -> new LinkedHashSet<>())
+              .addAll(StringUtils.commaDelimitedListToSet(properties.getProperty(type)));
+        }
+        LOGGER.debug("Loaded mapper index: '" + url + "'");
+      }
+      return new MapperIndex(entries);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to load mapper index from location [" + INDEX_LOCATION + "]", e);
+    }
+  }
+
+  /**
+   * 基础包(支持 ant 风格的通配符)下符合条件的接口。
+   * 与 {@link ClassPathMapperScanner#registerFilters()} 一致：注解和父接口满足一个即可，都没有指定时返回所有接口
+   */
+  public List<String> getCandidateTypes(String basePackage, Class<? extends Annotation> annotationClass,
+      Class<?> markerInterface) {
+    String pattern = basePackage + ".**";
+    List<String> candidates = new ArrayList<>();
+    this.entries.forEach((type, stereotypes) -> {
+      if (!PACKAGE_MATCHER.match(pattern, type)) {
+        return;
+      }
+      boolean acceptAll = annotationClass == null && markerInterface == null;
+      if (acceptAll
+          || (annotationClass != null && stereotypes.contains(annotationClass.getName()))
+          || (markerInterface != null && stereotypes.contains(markerInterface.getName()))) {
+        candidates.add(type);
+      }
+    });
+    return candidates;
+  }
+
+}
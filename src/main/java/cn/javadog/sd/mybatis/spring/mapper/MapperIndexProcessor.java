@@ -0,0 +1,173 @@
+package cn.javadog.sd.mybatis.spring.mapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 14:50
+ *
+ * 编译期生成 {@link MapperIndex} 的注解处理器。
+ * 记录本次编译的所有接口，连同它们的注解(含元注解)和全部父接口，写到 {@value MapperIndex#INDEX_LOCATION}。
+ * 增量编译时会合并已有的索引，删掉已经不存在的接口。处理器只依赖 JDK，可以单独放在 processor path 上。
+ * <p>
+ * 没有通过 META-INF/services 自动注册，需要在 mapper 所在模块里显式开启，例如：
+ * <pre class="code">
+ * {@code
+ *   <plugin>
+ *     <artifactId>maven-compiler-plugin</artifactId>
+ *     <configuration>
+ *       <annotationProcessors>
+ *         <annotationProcessor>cn.javadog.sd.mybatis.spring.mapper.MapperIndexProcessor</annotationProcessor>
+ *       </annotationProcessors>
+ *     </configuration>
+ *   </plugin>
+ * }
+ * </pre>
+ */
+public class MapperIndexProcessor extends AbstractProcessor {
+
+  /**
+   * 接口名到它的注解和父接口，按名称排序，保证输出稳定
+   */
+  private final Map<String, Set<String>> entries = new TreeMap<>();
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton("*");
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getRootElements()) {
+      collect(element);
+    }
+    if (roundEnv.processingOver()) {
+      writeIndex();
+    }
+    // 不认领任何注解，不影响其它处理器
+    return false;
+  }
+
+  /**
+   * 递归处理嵌套类型，接口都是静态的，可以独立实例化代理
+   */
+  private void collect(Element element) {
+    if (!(element instanceof TypeElement)) {
+      return;
+    }
+    TypeElement type = (TypeElement) element;
+    if (type.getKind() == ElementKind.INTERFACE) {
+      Set<String> stereotypes = new LinkedHashSet<>();
+      collectAnnotations(type, stereotypes);
+      collectInterfaces(type, stereotypes);
+      this.entries.put(binaryName(type), stereotypes);
+    }
+    for (Element enclosed : type.getEnclosedElements()) {
+      collect(enclosed);
+    }
+  }
+
+  /**
+   * 注解和元注解，跳过 java.lang.annotation 下的
+   */
+  private void collectAnnotations(Element element, Set<String> stereotypes) {
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      Element annotationType = annotation.getAnnotationType().asElement();
+      String name = ((TypeElement) annotationType).getQualifiedName().toString();
+      if (!name.startsWith("java.lang.annotation.") && stereotypes.add(name)) {
+        collectAnnotations(annotationType, stereotypes);
+      }
+    }
+  }
+
+  private void collectInterfaces(TypeElement type, Set<String> stereotypes) {
+    for (TypeMirror parent : type.getInterfaces()) {
+      if (parent instanceof DeclaredType) {
+        TypeElement parentType = (TypeElement) ((DeclaredType) parent).asElement();
+        if (stereotypes.add(binaryName(parentType))) {
+          collectInterfaces(parentType, stereotypes);
+        }
+      }
+    }
+  }
+
+  private String binaryName(TypeElement type) {
+    return this.processingEnv.getElementUtils().getBinaryName(type).toString();
+  }
+
+  /**
+   * 合并上次编译的索引后整体写出
+   */
+  private void writeIndex() {
+    Map<String, Set<String>> merged = new TreeMap<>();
+    readPreviousIndex(merged);
+    merged.putAll(this.entries);
+    if (merged.isEmpty()) {
+      return;
+    }
+    try {
+      FileObject file = this.processingEnv.getFiler()
+          .createResource(StandardLocation.CLASS_OUTPUT, "", MapperIndex.INDEX_LOCATION);
+      try (Writer writer = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.ISO_8859_1)) {
+        for (Map.Entry<String, Set<String>> entry : merged.entrySet()) {
+          writer.write(entry.getKey() + "=" + String.join(",", entry.getValue()) + "\n");
+        }
+      }
+    } catch (IOException e) {
+      this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Unable to write mapper index " + MapperIndex.INDEX_LOCATION + ": " + e);
+    }
+  }
+
+  /**
+   * 增量编译时保留上次的条目，已经删除的接口丢掉
+   */
+  private void readPreviousIndex(Map<String, Set<String>> merged) {
+    Properties previous = new Properties();
+    try {
+      FileObject file = this.processingEnv.getFiler()
+          .getResource(StandardLocation.CLASS_OUTPUT, "", MapperIndex.INDEX_LOCATION);
+      try (InputStream in = file.openInputStream()) {
+        previous.load(in);
+      }
+    } catch (IOException e) {
+      // 第一次编译
+      return;
+    }
+    for (String type : previous.stringPropertyNames()) {
+      if (this.processingEnv.getElementUtils().getTypeElement(type.replace('$', '.')) != null) {
+        String value = previous.getProperty(type);
+        merged.put(type, value.isEmpty() ? new LinkedHashSet<>() : new LinkedHashSet<>(Arrays.asList(value.split(","))));
+      }
+    }
+  }
+
+}
@@ -114,6 +114,16 @@ public class MapperScannerConfigurer implements BeanDefinitionRegistryPostProces
    */
   private BeanNameGenerator nameGenerator;
 
+  /**
+   * 是否懒加载 mapper bean，字符串是为了支持占位符
+   */
+  private String lazyInitialization;
+
+  /**
+   * mapper 是否共用工厂的 SqlSessionTemplate，字符串是为了支持占位符
+   */
+  private String shareSqlSessionTemplate;
+
   public void setBasePackage(String basePackage) {
     this.basePackage = basePackage;
   }
@@ -122,6 +132,20 @@ public class MapperScannerConfigurer implements BeanDefinitionRegistryPostProces
     this.addToConfig = addToConfig;
   }
 
+  /**
+   * 设置是否懒加载 mapper bean，见 {@link ClassPathMapperScanner#setLazyInitialization(boolean)}
+   */
+  public void setLazyInitialization(String lazyInitialization) {
+    this.lazyInitialization = lazyInitialization;
+  }
+
+  /**
+   * 设置 mapper 是否共用工厂的 SqlSessionTemplate，默认共用，见 {@link ClassPathMapperScanner#setShareSqlSessionTemplate(boolean)}
+   */
+  public void setShareSqlSessionTemplate(String shareSqlSessionTemplate) {
+    this.shareSqlSessionTemplate = shareSqlSessionTemplate;
+  }
+
   public void setAnnotationClass(Class<? extends Annotation> annotationClass) {
     this.annotationClass = annotationClass;
   }
@@ -255,6 +279,12 @@ public class MapperScannerConfigurer implements BeanDefinitionRegistryPostProces
     scanner.setResourceLoader(this.applicationContext);
     scanner.setBeanNameGenerator(this.nameGenerator);
     scanner.setMapperFactoryBeanClass(this.mapperFactoryBeanClass);
+    if (StringUtils.hasText(this.lazyInitialization)) {
+      scanner.setLazyInitialization(Boolean.parseBoolean(this.lazyInitialization));
+    }
+    if (StringUtils.hasText(this.shareSqlSessionTemplate)) {
+      scanner.setShareSqlSessionTemplate(Boolean.parseBoolean(this.shareSqlSessionTemplate));
+    }
     // 注册 scanner 过滤器
     scanner.registerFilters();
     // 执行扫描
@@ -289,6 +319,8 @@ public class MapperScannerConfigurer implements BeanDefinitionRegistryPostProces
       this.basePackage = updatePropertyValue("basePackage", values);
       this.sqlSessionFactoryBeanName = updatePropertyValue("sqlSessionFactoryBeanName", values);
       this.sqlSessionTemplateBeanName = updatePropertyValue("sqlSessionTemplateBeanName", values);
+      this.lazyInitialization = updatePropertyValue("lazyInitialization", values);
+      this.shareSqlSessionTemplate = updatePropertyValue("shareSqlSessionTemplate", values);
     }
   }
 
@@ -0,0 +1,229 @@
+package cn.javadog.sd.mybatis.spring.support;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.config.SingletonBeanRegistry;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternUtils;
+import org.springframework.core.type.ClassMetadata;
+import org.springframework.core.type.classreading.MetadataReader;
+import org.springframework.core.type.classreading.MetadataReaderFactory;
+import org.springframework.core.type.classreading.SimpleMetadataReaderFactory;
+import org.springframework.util.ClassUtils;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 19:20
+ *
+ * 容器级别的类路径扫描缓存。
+ * 启动时 typeAliasesPackage、typeHandlersPackage 各自通过 VFS 遍历一遍类路径，每个 @MapperScan 又用 ASM 扫一遍，
+ * 包有重叠时同一批 class 文件会被读好几次。这里每个包根只遍历一次，读一次元数据就把 class 分好类：
+ * 接口留下元数据给 mapper 扫描用，其它类只留类名给别名、类型处理器注册用；后续的包如果落在已经遍历过的包根下面，直接按前缀过滤。
+ * <p>
+ * 以 {@value #BEAN_NAME} 注册为容器的单例，容器刷新完成后清空。
+ * 在容器注册监听器之后才创建的缓存收不到刷新事件，所以 SqlSessionFactoryBean 构建完成后也会主动清空
+ */
+public class ClassPathScanCache implements ApplicationListener<ContextRefreshedEvent> {
+
+  private static final Log LOGGER = LogFactory.getLog(ClassPathScanCache.class);
+
+  /**
+   * 注册到容器里的bean名称
+   */
+  public static final String BEAN_NAME = ClassPathScanCache.class.getName();
+
+  private final ResourcePatternResolver resourcePatternResolver;
+
+  private final MetadataReaderFactory metadataReaderFactory;
+
+  /**
+   * 包根到遍历结果
+   */
+  private final Map<String, List<ScannedClass>> roots = new ConcurrentHashMap<>();
+
+  public ClassPathScanCache(ResourceLoader resourceLoader) {
+    this.resourcePatternResolver = ResourcePatternUtils.getResourcePatternResolver(resourceLoader);
+    this.metadataReaderFactory = new SimpleMetadataReaderFactory(resourceLoader);
+  }
+
+  /**
+   * 获取容器里共享的缓存，没有就创建并注册；registry 不是单例注册表时返回一个不共享的缓存
+   */
+  public static ClassPathScanCache of(Object registry, ResourceLoader resourceLoader) {
+    ResourceLoader loader = resourceLoader == null ? new PathMatchingResourcePatternResolver() : resourceLoader;
+    if (!(registry instanceof SingletonBeanRegistry)) {
+      return new ClassPathScanCache(loader);
+    }
+    SingletonBeanRegistry singletonRegistry = (SingletonBeanRegistry) registry;
+    Object existing = singletonRegistry.getSingleton(BEAN_NAME);
+    if (existing instanceof ClassPathScanCache) {
+      return (ClassPathScanCache) existing;
+    }
+    ClassPathScanCache cache = new ClassPathScanCache(loader);
+    try {
+      singletonRegistry.registerSingleton(BEAN_NAME, cache);
+      return cache;
+    } catch (IllegalStateException e) {
+      // 别的线程先注册了，用它的
+      existing = singletonRegistry.getSingleton(BEAN_NAME);
+      if (existing instanceof ClassPathScanCache) {
+        return (ClassPathScanCache) existing;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * 包下所有独立的接口(顶层接口或者嵌套接口)，mapper 扫描的候选
+   */
+  public List<MetadataReader> getInterfaces(String basePackage) {
+    List<MetadataReader> interfaces = new ArrayList<>();
+    for (ScannedClass scanned : scan(basePackage)) {
+      if (scanned.metadataReader != null) {
+        interfaces.add(scanned.metadataReader);
+      }
+    }
+    return interfaces;
+  }
+
+  /**
+   * 包下所有顶层的类，别名注册的候选，与 TypeAliasRegistry#registerAliases 一样跳过接口、内部类和匿名类
+   */
+  public List<String> getTypeAliasCandidates(String basePackage) {
+    List<String> classNames = new ArrayList<>();
+    for (ScannedClass scanned : scan(basePackage)) {
+      if (!scanned.isInterface && !scanned.hasEnclosingClass) {
+        classNames.add(scanned.className);
+      }
+    }
+    return classNames;
+  }
+
+  /**
+   * 包下所有具体类，类型处理器注册的候选，与 TypeHandlerRegistry#register(String) 一样跳过接口和抽象类
+   */
+  public List<String> getTypeHandlerCandidates(String basePackage) {
+    List<String> classNames = new ArrayList<>();
+    for (ScannedClass scanned : scan(basePackage)) {
+      if (!scanned.isInterface && !scanned.isAbstract) {
+        classNames.add(scanned.className);
+      }
+    }
+    return classNames;
+  }
+
+  /**
+   * 已经遍历过的包根
+   */
+  public Set<String> getScannedPackages() {
+    return Collections.unmodifiableSet(this.roots.keySet());
+  }
+
+  /**
+   * 释放遍历结果，之后再用到会重新遍历
+   */
+  public void clear() {
+    this.roots.clear();
+  }
+
+  /**
+   * 容器刷新完成，扫描都结束了，释放元数据
+   */
+  @Override
+  public void onApplicationEvent(ContextRefreshedEvent event) {
+    clear();
+  }
+
+  /**
+   * 已经遍历过的包根覆盖了这个包就按前缀过滤，否则遍历一次
+   */
+  private List<ScannedClass> scan(String basePackage) {
+    List<ScannedClass> cached = this.roots.get(basePackage);
+    if (cached != null) {
+      return cached;
+    }
+    if (!isPattern(basePackage)) {
+      for (Map.Entry<String, List<ScannedClass>> root : this.roots.entrySet()) {
+        if (!isPattern(root.getKey()) && basePackage.startsWith(root.getKey() + ".")) {
+          List<ScannedClass> filtered = new ArrayList<>();
+          for (ScannedClass scanned : root.getValue()) {
+            if (scanned.className.startsWith(basePackage + ".")) {
+              filtered.add(scanned);
+            }
+          }
+          return filtered;
+        }
+      }
+    }
+    return this.roots.computeIfAbsent(basePackage, this::walk);
+  }
+
+  private List<ScannedClass> walk(String basePackage) {
+    String pattern = ResourcePatternResolver.CLASSPATH_ALL_URL_PREFIX
+        + ClassUtils.convertClassNameToResourcePath(basePackage) + "/**/*.class";
+    List<ScannedClass> scanned = new ArrayList<>();
+    try {
+      for (Resource resource : this.resourcePatternResolver.getResources(pattern)) {
+        if (!resource.isReadable()) {
+          continue;
+        }
+        MetadataReader metadataReader = this.metadataReaderFactory.getMetadataReader(resource);
+        ClassMetadata metadata = metadataReader.getClassMetadata();
+        if (metadata.getClassName().endsWith("package-info")) {
+          continue;
+        }
+        scanned.add(new ScannedClass(metadata, metadata.isInterface() && metadata.isIndependent() ? metadataReader : null));
+      }
+    } catch (IOException e) {
+      throw new BeanDefinitionStoreException("I/O failure during classpath scanning of '" + basePackage + "'", e);
+    }
+    LOGGER.debug("Scanned package: '" + basePackage + "', " + scanned.size() + " classes");
+    return Collections.unmodifiableList(scanned);
+  }
+
+  private static boolean isPattern(String basePackage) {
+    return basePackage.indexOf('*') >= 0 || basePackage.indexOf('?') >= 0;
+  }
+
+  /**
+   * 一个 class 文件的分类结果
+   */
+  private static final class ScannedClass {
+
+    private final String className;
+
+    private final boolean isInterface;
+
+    private final boolean isAbstract;
+
+    private final boolean hasEnclosingClass;
+
+    /**
+     * 只有接口才保留元数据
+     */
+    private final MetadataReader metadataReader;
+
+    ScannedClass(ClassMetadata metadata, MetadataReader metadataReader) {
+      this.className = metadata.getClassName();
+      this.isInterface = metadata.isInterface();
+      this.isAbstract = metadata.isAbstract();
+      this.hasEnclosingClass = metadata.hasEnclosingClass();
+      this.metadataReader = metadataReader;
+    }
+  }
+
+}
@@ -5,6 +5,7 @@ import static org.springframework.util.Assert.notNull;
 import cn.javadog.sd.mybatis.session.SqlSession;
 import cn.javadog.sd.mybatis.session.SqlSessionFactory;
 import cn.javadog.sd.mybatis.spring.SqlSessionTemplate;
+import cn.javadog.sd.mybatis.spring.SqlSessionTemplateRegistry;
 import org.springframework.dao.support.DaoSupport;
 
 /**
@@ -26,14 +27,34 @@ public abstract class SqlSessionDaoSupport extends DaoSupport {
   private SqlSessionTemplate sqlSessionTemplate;
 
   /**
-   * 设置 SqlSessionFactory，然后使用该工厂创建 sqlSessionTemplate
+   * 用来创建 sqlSessionTemplate 的工厂，模板推迟到属性全部设置完(或者第一次使用)时再创建，与属性的设置顺序无关
+   */
+  private SqlSessionFactory sqlSessionFactory;
+
+  /**
+   * 是否使用工厂共享的 sqlSessionTemplate
+   */
+  private boolean shareSqlSessionTemplate;
+
+  /**
+   * 设置 SqlSessionFactory，之后由该工厂创建 sqlSessionTemplate，开启共享时取工厂的规范模板
    */
   public void setSqlSessionFactory(SqlSessionFactory sqlSessionFactory) {
     if (this.sqlSessionTemplate == null || sqlSessionFactory != this.sqlSessionTemplate.getSqlSessionFactory()) {
-      this.sqlSessionTemplate = createSqlSessionTemplate(sqlSessionFactory);
+      this.sqlSessionFactory = sqlSessionFactory;
+      this.sqlSessionTemplate = null;
     }
   }
 
+  /**
+   * 设置是否使用 {@link SqlSessionTemplateRegistry} 里工厂共享的 sqlSessionTemplate，而不是每个DAO创建一个。
+   * 共享时不再调用 {@link #createSqlSessionTemplate}，显式设置的 sqlSessionTemplate 不受影响。
+   * 默认关闭，扫描出来的 mapper 默认开启，共享的模板不允许再修改配置
+   */
+  public void setShareSqlSessionTemplate(boolean shareSqlSessionTemplate) {
+    this.shareSqlSessionTemplate = shareSqlSessionTemplate;
+  }
+
   /**
    * 通过 SqlSessionFactory 创建 SqlSessionTemplate。
    * 只有当给DAO设置SqlSessionFactory时，才会调用此方法。
@@ -48,7 +69,7 @@ public abstract class SqlSessionDaoSupport extends DaoSupport {
    * 获取 SqlSessionFactory
    */
   public final SqlSessionFactory getSqlSessionFactory() {
-    return (this.sqlSessionTemplate != null ? this.sqlSessionTemplate.getSqlSessionFactory() : null);
+    return (this.sqlSessionTemplate != null ? this.sqlSessionTemplate.getSqlSessionFactory() : this.sqlSessionFactory);
   }
 
 
@@ -57,6 +78,19 @@ public abstract class SqlSessionDaoSupport extends DaoSupport {
    */
   public void setSqlSessionTemplate(SqlSessionTemplate sqlSessionTemplate) {
     this.sqlSessionTemplate = sqlSessionTemplate;
+    this.sqlSessionFactory = null;
+  }
+
+  /**
+   * 按工厂创建或者取共享的 sqlSessionTemplate，显式设置过的直接返回
+   */
+  private SqlSessionTemplate resolveSqlSessionTemplate() {
+    if (this.sqlSessionTemplate == null && this.sqlSessionFactory != null) {
+      this.sqlSessionTemplate = this.shareSqlSessionTemplate
+          ? SqlSessionTemplateRegistry.getSqlSessionTemplate(this.sqlSessionFactory)
+          : createSqlSessionTemplate(this.sqlSessionFactory);
+    }
+    return this.sqlSessionTemplate;
   }
 
   /**
@@ -65,7 +99,7 @@ public abstract class SqlSessionDaoSupport extends DaoSupport {
    * 码农们不应该手动的去调用 commit/rollback/close 方法，因为Spring会自动完成相关操作
    */
   public SqlSession getSqlSession() {
-    return this.sqlSessionTemplate;
+    return resolveSqlSessionTemplate();
   }
 
   /**
@@ -78,15 +112,15 @@ public abstract class SqlSessionDaoSupport extends DaoSupport {
    * {@code new SqlSessionTemplate(getSqlSessionFactory())} 的方式
    */
   public SqlSessionTemplate getSqlSessionTemplate() {
-    return this.sqlSessionTemplate;
+    return resolveSqlSessionTemplate();
   }
 
   /**
-   * 检查 sqlSessionTemplate 是否注入
+   * 检查 sqlSessionTemplate 是否注入，这时所有属性都已经设置，按工厂创建模板
    */
   @Override
   protected void checkDaoConfig() {
-    notNull(this.sqlSessionTemplate, "Property 'sqlSessionFactory' or 'sqlSessionTemplate' are required");
+    notNull(resolveSqlSessionTemplate(), "Property 'sqlSessionFactory' or 'sqlSessionTemplate' are required");
   }
 
 }
@@ -0,0 +1,208 @@
+package cn.javadog.sd.mybatis.spring.transaction;
+
+import static org.springframework.util.Assert.notNull;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.core.NamedThreadLocal;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 09:40
+ *
+ * 可取消的范围。
+ * 线程在范围内被中断，或者范围被 {@link #cancel()}(比如对应的 CompletableFuture 被取消或者超时)时，
+ * 范围内还在执行的 JDBC Statement 会被 {@link java.sql.Statement#cancel()}，数据库不会在请求放弃之后继续干活。
+ * 失败的调用照常由 SqlSessionTemplate 通过 SqlSessionUtils#closeSqlSession 释放会话。
+ * <p>
+ * Java 的中断没有回调，由一个守护线程每 {@value #POLL_INTERVAL_MILLIS} 毫秒检查一次所有范围所属线程的中断标记，
+ * 虚拟线程也一样适用。
+ * <p>
+ * {@link cn.javadog.sd.mybatis.spring.SqlSessionTemplate#setCancelOnInterrupt} 打开后每次调用都在范围内执行，线程被中断时取消；
+ * 异步执行时用 {@link #supplyAsync}，future 被取消或者超时时取消：
+ * <pre class="code">
+ *   CancellationScope.supplyAsync(() -> orderMapper.findByUser(userId), executor).orTimeout(300, TimeUnit.MILLISECONDS);
+ * </pre>
+ */
+public final class CancellationScope implements AutoCloseable {
+
+  /**
+   * 检查中断标记的间隔
+   */
+  static final long POLL_INTERVAL_MILLIS = 20L;
+
+  private static final ThreadLocal<CancellationScope> CURRENT = new NamedThreadLocal<>("MyBatis cancellation scope");
+
+  /**
+   * 正在执行的范围，守护线程检查它们的中断标记
+   */
+  private static final Set<CancellationScope> ACTIVE = ConcurrentHashMap.newKeySet();
+
+  /**
+   * 范围所属的线程，在线程上执行之后才有值
+   */
+  private volatile Thread owner;
+
+  private final RunningStatements runningStatements = new RunningStatements();
+
+  private CancellationScope outer;
+
+  private CancellationScope() {
+  }
+
+  /**
+   * 在当前线程上开启一个范围，必须在 finally 里 {@link #close()}：
+   * <pre class="code">
+   *   try (CancellationScope scope = CancellationScope.open()) {
+   *     ...
+   *   }
+   * </pre>
+   */
+  public static CancellationScope open() {
+    CancellationScope scope = new CancellationScope();
+    scope.bind();
+    return scope;
+  }
+
+  /**
+   * 在可取消的范围内执行
+   */
+  public static <T> T call(Callable<T> action) throws Exception {
+    CancellationScope scope = open();
+    try {
+      return action.call();
+    } finally {
+      scope.close();
+    }
+  }
+
+  /**
+   * 在 executor 上异步执行，返回的 future 被取消或者异常完成(比如 orTimeout 超时)时，取消还在执行的 Statement。
+   * 开始执行之前 future 已经完成的话就不再执行
+   */
+  public static <T> CompletableFuture<T> supplyAsync(Supplier<T> action, Executor executor) {
+    notNull(action, "Action must not be null");
+    notNull(executor, "Executor must not be null");
+    CancellationScope scope = new CancellationScope();
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.whenComplete((result, t) -> {
+      if (t != null) {
+        scope.cancel();
+      }
+    });
+    executor.execute(() -> {
+      if (future.isDone()) {
+        return;
+      }
+      scope.bind();
+      try {
+        future.complete(action.get());
+      } catch (Throwable t) {
+        future.completeExceptionally(t);
+      } finally {
+        scope.close();
+      }
+    });
+    return future;
+  }
+
+  /**
+   * 当前线程的范围，没有返回 null
+   */
+  public static CancellationScope current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * 当前线程的范围已经取消，或者线程已经被中断的话抛出 CancellationException，开始新的数据库工作之前调用。
+   * 不清除中断标记
+   */
+  public static void checkCurrent() {
+    CancellationScope scope = CURRENT.get();
+    if (scope != null && (scope.isCancelled() || Thread.currentThread().isInterrupted())) {
+      throw new CancellationException("Database work cancelled" + (scope.isCancelled() ? "" : ", thread interrupted"));
+    }
+  }
+
+  /**
+   * 取消范围内正在执行的 Statement，之后开始执行的 Statement 也会马上被取消，可以从任意线程调用
+   */
+  public void cancel() {
+    this.runningStatements.cancel("scope cancelled");
+  }
+
+  public boolean isCancelled() {
+    return this.runningStatements.isCancelled();
+  }
+
+  /**
+   * 当前范围以及外层范围
+   */
+  void collect(List<RunningStatements> scopes) {
+    for (CancellationScope scope = this; scope != null; scope = scope.outer) {
+      scopes.add(scope.runningStatements);
+    }
+  }
+
+  /**
+   * 结束范围，恢复外层范围
+   */
+  @Override
+  public void close() {
+    ACTIVE.remove(this);
+    this.owner = null;
+    if (this.outer == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(this.outer);
+    }
+  }
+
+  private void bind() {
+    this.outer = CURRENT.get();
+    this.owner = Thread.currentThread();
+    CURRENT.set(this);
+    ACTIVE.add(this);
+    Watchdog.start();
+  }
+
+  /**
+   * 守护线程，检查所有范围所属线程的中断标记
+   */
+  private static void poll() {
+    for (CancellationScope scope : ACTIVE) {
+      Thread owner = scope.owner;
+      if (owner != null && owner.isInterrupted() && !scope.isCancelled()) {
+        scope.runningStatements.cancel("thread " + owner.getName() + " interrupted");
+      }
+    }
+  }
+
+  /**
+   * 检查中断标记的守护线程，第一次用到时随类初始化启动，不需要加锁
+   */
+  private static final class Watchdog {
+
+    static {
+      CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mybatis-cancellation-");
+      threadFactory.setDaemon(true);
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+      executor.scheduleWithFixedDelay(CancellationScope::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    static void start() {
+      // 触发类初始化
+    }
+  }
+
+}
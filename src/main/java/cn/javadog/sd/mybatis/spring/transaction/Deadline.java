@@ -0,0 +1,179 @@
+package cn.javadog.sd.mybatis.spring.transaction;
+
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notNull;
+
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.core.NamedThreadLocal;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 16:50
+ *
+ * 线程范围的截止时间。
+ * 在 {@link #run}/{@link #call} 的范围内：
+ * 1. {@link SpringManagedTransaction#getTimeout()} 返回剩余时间(向上取整到秒，与Spring事务的超时取较小值)，
+ *    MyBatis 准备 Statement 时据此设置 queryTimeout，每条语句都不会超出剩余预算；
+ * 2. 截止时间已过就不再开始新的工作，SqlSessionTemplate 不再获取会话，SpringManagedTransaction 不再给出连接；
+ * 3. 到期时由守护线程对范围内还在执行的 Statement 调用 cancel，queryTimeout 只能精确到秒，这里补上亚秒的部分，
+ *    已经注定失败的请求不会继续占着数据库连接。
+ * <p>
+ * 范围可以嵌套，内层的截止时间不会晚于外层。例如：
+ * <pre class="code">
+ *   List&lt;Order&gt; orders = Deadline.call(Duration.ofMillis(300), () -> orderMapper.findByUser(userId));
+ * </pre>
+ */
+public final class Deadline {
+
+  /**
+   * 当前线程的截止时间，嵌套时是最内层的
+   */
+  private static final ThreadLocal<Deadline> CURRENT = new NamedThreadLocal<>("MyBatis deadline");
+
+  /**
+   * 截止时间，System#nanoTime
+   */
+  private final long deadlineNanos;
+
+  /**
+   * 外层的范围
+   */
+  private final Deadline outer;
+
+  /**
+   * 范围内正在执行的 Statement
+   */
+  private final RunningStatements runningStatements = new RunningStatements();
+
+  private Deadline(long deadlineNanos, Deadline outer) {
+    this.deadlineNanos = deadlineNanos;
+    this.outer = outer;
+  }
+
+  /**
+   * 在截止时间范围内执行 action
+   */
+  public static void run(Duration timeout, Runnable action) {
+    notNull(action, "Action must not be null");
+    call(timeout, () -> {
+      action.run();
+      return null;
+    });
+  }
+
+  /**
+   * 在截止时间范围内执行 action，受检异常包装成 IllegalStateException 抛出
+   */
+  public static <T> T call(Duration timeout, Callable<T> action) {
+    notNull(timeout, "Timeout must not be null");
+    isTrue(!timeout.isNegative(), "Timeout must not be negative");
+    Deadline outer = CURRENT.get();
+    long deadlineNanos = System.nanoTime() + timeout.toNanos();
+    if (outer != null && outer.deadlineNanos - deadlineNanos < 0) {
+      deadlineNanos = outer.deadlineNanos;
+    }
+    Deadline deadline = new Deadline(deadlineNanos, outer);
+    ScheduledFuture<?> expiry = Watchdog.EXECUTOR.schedule(deadline::expire, deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    CURRENT.set(deadline);
+    try {
+      return action.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      expiry.cancel(false);
+      if (outer == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(outer);
+      }
+    }
+  }
+
+  /**
+   * 当前线程的截止时间，没有返回 null
+   */
+  public static Deadline current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * 当前线程的截止时间已经过了的话抛出 QueryTimeoutException，开始新的数据库工作之前调用
+   */
+  public static void checkCurrent() {
+    Deadline deadline = CURRENT.get();
+    if (deadline != null && deadline.isExpired()) {
+      throw new QueryTimeoutException("Deadline exceeded " + TimeUnit.NANOSECONDS.toMillis(-deadline.remainingNanos())
+          + " ms ago, refusing to start database work");
+    }
+  }
+
+  /**
+   * 剩余时间，纳秒，过期后为负数
+   */
+  public long remainingNanos() {
+    return this.deadlineNanos - System.nanoTime();
+  }
+
+  public boolean isExpired() {
+    return remainingNanos() <= 0;
+  }
+
+  /**
+   * 与Spring事务的超时合并，返回 Statement 的 queryTimeout，单位秒，至少为1(0 表示不超时)。
+   * 已经过期时抛出 SQLTimeoutException，由异常转换器转换为 QueryTimeoutException
+   */
+  Integer timeoutInSeconds(Integer transactionTimeout) throws SQLTimeoutException {
+    long remaining = remainingNanos();
+    if (remaining <= 0) {
+      throw new SQLTimeoutException("Deadline exceeded, refusing to execute statement");
+    }
+    long seconds = Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+    if (transactionTimeout != null && transactionTimeout < seconds) {
+      return transactionTimeout;
+    }
+    return (int) Math.min(Integer.MAX_VALUE, seconds);
+  }
+
+  /**
+   * 当前范围以及外层范围，Statement 执行期间登记到所有这些范围
+   */
+  void collect(List<RunningStatements> scopes) {
+    for (Deadline deadline = this; deadline != null; deadline = deadline.outer) {
+      scopes.add(deadline.runningStatements);
+    }
+  }
+
+  private void expire() {
+    this.runningStatements.cancel("deadline exceeded");
+  }
+
+  /**
+   * 到期时取消 Statement 的守护线程，第一次用到时随类初始化创建，不需要加锁
+   */
+  private static final class Watchdog {
+
+    static final ScheduledExecutorService EXECUTOR;
+
+    static {
+      CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mybatis-deadline-");
+      threadFactory.setDaemon(true);
+      ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, threadFactory);
+      // 绝大多数范围在到期前就结束了，取消的任务马上移出队列
+      scheduler.setRemoveOnCancelPolicy(true);
+      EXECUTOR = scheduler;
+    }
+  }
+
+}
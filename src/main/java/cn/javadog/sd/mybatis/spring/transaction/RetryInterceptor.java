@@ -0,0 +1,91 @@
+package cn.javadog.sd.mybatis.spring.transaction;
+
+import static org.springframework.util.Assert.notNull;
+
+import cn.javadog.sd.mybatis.spring.RetryPolicy;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.interceptor.TransactionAttribute;
+import org.springframework.transaction.interceptor.TransactionAttributeSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 15:10
+ *
+ * 在 @Transactional 边界外整体重试事务方法。
+ * 事务中的语句失败时事务已经不可用，只能在事务回滚之后把整个方法重新执行一遍，所以这个拦截器必须排在事务拦截器外面，
+ * 默认的顺序是 {@link Ordered#HIGHEST_PRECEDENCE}，事务拦截器的顺序要比它低(@EnableTransactionManagement 默认是最低优先级)。
+ * <p>
+ * 进入时已经处在事务中(嵌套调用)的话不重试，交给最外层的边界处理。
+ * 默认只重试只读的事务方法(@Transactional(readOnly = true))，其他方法要在 {@link RetryPolicy#setRetryWrites(boolean)} 打开后才重试。例如：
+ * <pre class="code">
+ *   &#64;Bean
+ *   public Advisor retryAdvisor() {
+ *     AnnotationMatchingPointcut pointcut = AnnotationMatchingPointcut.forMethodAnnotation(Transactional.class);
+ *     return new DefaultPointcutAdvisor(pointcut, new RetryInterceptor(new RetryPolicy()));
+ *   }
+ * </pre>
+ */
+public class RetryInterceptor implements MethodInterceptor, Ordered {
+
+  private final RetryPolicy retryPolicy;
+
+  private int order = Ordered.HIGHEST_PRECEDENCE;
+
+  /**
+   * 用来判断方法是否是只读事务
+   */
+  private TransactionAttributeSource transactionAttributeSource = new AnnotationTransactionAttributeSource();
+
+  public RetryInterceptor(RetryPolicy retryPolicy) {
+    notNull(retryPolicy, "Property 'retryPolicy' is required");
+    this.retryPolicy = retryPolicy;
+  }
+
+  public void setTransactionAttributeSource(TransactionAttributeSource transactionAttributeSource) {
+    notNull(transactionAttributeSource, "Property 'transactionAttributeSource' is required");
+    this.transactionAttributeSource = transactionAttributeSource;
+  }
+
+  public void setOrder(int order) {
+    this.order = order;
+  }
+
+  @Override
+  public int getOrder() {
+    return this.order;
+  }
+
+  @Override
+  public Object invoke(MethodInvocation invocation) throws Throwable {
+    if (TransactionSynchronizationManager.isActualTransactionActive() || !(invocation instanceof ProxyMethodInvocation)
+        || !(this.retryPolicy.isRetryWrites() || isReadOnly(invocation))) {
+      return invocation.proceed();
+    }
+    RetryPolicy.Retry retry = this.retryPolicy.start();
+    while (true) {
+      try {
+        // 每次用一个副本重新走一遍后面的拦截器链，包括事务拦截器
+        Object result = ((ProxyMethodInvocation) invocation).invocableClone().proceed();
+        this.retryPolicy.recordSuccess();
+        return result;
+      } catch (Throwable t) {
+        if (!retry.backOff(t)) {
+          throw t;
+        }
+      }
+    }
+  }
+
+  private boolean isReadOnly(MethodInvocation invocation) {
+    Class<?> targetClass = invocation.getThis() == null ? null : AopUtils.getTargetClass(invocation.getThis());
+    TransactionAttribute attribute = this.transactionAttributeSource.getTransactionAttribute(invocation.getMethod(), targetClass);
+    return attribute != null && attribute.isReadOnly();
+  }
+
+}
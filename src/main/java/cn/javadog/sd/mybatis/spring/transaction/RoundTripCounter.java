@@ -0,0 +1,314 @@
+package cn.javadog.sd.mybatis.spring.transaction;
+
+import static java.lang.reflect.Proxy.newProxyInstance;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.core.NamedThreadLocal;
+import org.springframework.jdbc.datasource.ConnectionProxy;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author 余勇
+ * @date 2019-12-23 10:20
+ *
+ * JDBC 往返次数计数器。
+ * 由 {@link SpringManagedTransaction#getConnection()} 对连接做一层代理，连接创建的 Statement、DatabaseMetaData 也一并代理，
+ * 统计 execute、executeBatch、commit/rollback、元数据调用，这些都是实打实和数据库交互的操作。
+ * <p>
+ * 统计结果有两个维度：
+ * 1. Spring事务维度，绑定到 {@code TransactionSynchronizationManager}，通过 {@link #currentTransaction()} 获取，事务结束时打印 debug 日志；
+ * 2. 线程维度，通过 {@link #count(Runnable)} 或 {@link #assertRoundTrips(long, Runnable)} 开启，可以嵌套。
+ * <p>
+ * 主要用于在测试中卡住 N+1 和啰嗦的DAO，例如：
+ * <pre class="code">
+ *   RoundTripCounter.assertRoundTrips(2, () -> userService.loadUserWithOrders(1L));
+ * </pre>
+ */
+public final class RoundTripCounter {
+
+  private static final Log LOGGER = LogFactory.getLog(RoundTripCounter.class);
+
+  /**
+   * 当前线程开启的统计范围，栈结构，支持嵌套
+   */
+  private static final ThreadLocal<Deque<RoundTrips>> THREAD_SCOPES = new NamedThreadLocal<>("MyBatis JDBC round-trip scopes");
+
+  /**
+   * 事务维度的统计绑定到 TransactionSynchronizationManager 时使用的 KEY
+   */
+  private static final Object TRANSACTION_KEY = new Object();
+
+  /**
+   * 不对外暴露的构造
+   */
+  private RoundTripCounter() {
+    // do nothing
+  }
+
+  /**
+   * 在当前线程上开启一个统计范围，执行 action，返回期间的往返次数。
+   * 范围开启期间，即使事务工厂没有打开计数，新获取的连接也会被代理
+   */
+  public static RoundTrips count(Runnable action) {
+    RoundTrips scope = new RoundTrips();
+    Deque<RoundTrips> scopes = THREAD_SCOPES.get();
+    if (scopes == null) {
+      scopes = new ArrayDeque<>();
+      THREAD_SCOPES.set(scopes);
+    }
+    scopes.push(scope);
+    try {
+      action.run();
+    } finally {
+      scopes.pop();
+      if (scopes.isEmpty()) {
+        THREAD_SCOPES.remove();
+      }
+    }
+    return scope;
+  }
+
+  /**
+   * 执行 action，如果期间的往返次数超过 max，抛出 AssertionError，测试用
+   */
+  public static RoundTrips assertRoundTrips(long max, Runnable action) {
+    RoundTrips roundTrips = count(action);
+    if (roundTrips.getTotal() > max) {
+      throw new AssertionError("Expected at most " + max + " JDBC round-trips but was " + roundTrips);
+    }
+    return roundTrips;
+  }
+
+  /**
+   * 获取当前Spring事务的统计，没有事务或者事务里没有被代理的连接时返回 null
+   */
+  public static RoundTrips currentTransaction() {
+    return (RoundTrips) TransactionSynchronizationManager.getResource(TRANSACTION_KEY);
+  }
+
+  /**
+   * 当前线程是否开启了统计范围
+   */
+  static boolean isThreadScopeActive() {
+    return THREAD_SCOPES.get() != null;
+  }
+
+  /**
+   * 代理连接。如果连接处于Spring事务中，同时将统计绑定到事务上
+   */
+  static Connection wrap(Connection connection, boolean transactional) {
+    RoundTrips transaction = transactional ? bindTransactionIfPossible() : null;
+    return (Connection) newProxyInstance(
+        RoundTripCounter.class.getClassLoader(),
+        new Class<?>[] { ConnectionProxy.class },
+        new CountingHandler(connection, null, transaction));
+  }
+
+  /**
+   * 拿到当前事务的统计，没有就创建并注册同步器
+   */
+  private static RoundTrips bindTransactionIfPossible() {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      return null;
+    }
+    RoundTrips transaction = currentTransaction();
+    if (transaction == null) {
+      transaction = new RoundTrips();
+      TransactionSynchronizationManager.bindResource(TRANSACTION_KEY, transaction);
+      TransactionSynchronizationManager.registerSynchronization(new RoundTripSynchronization(transaction));
+    }
+    return transaction;
+  }
+
+  /**
+   * 累加到事务维度和当前线程的所有统计范围
+   */
+  private static void record(RoundTrips transaction, Kind kind) {
+    if (transaction != null) {
+      kind.record(transaction);
+    }
+    Deque<RoundTrips> scopes = THREAD_SCOPES.get();
+    if (scopes != null) {
+      for (RoundTrips scope : scopes) {
+        kind.record(scope);
+      }
+    }
+  }
+
+  /**
+   * 往返的种类
+   */
+  private enum Kind {
+    EXECUTE {
+      @Override
+      void record(RoundTrips roundTrips) {
+        roundTrips.execute();
+      }
+    },
+    BATCH_EXECUTE {
+      @Override
+      void record(RoundTrips roundTrips) {
+        roundTrips.batchExecute();
+      }
+    },
+    COMMIT {
+      @Override
+      void record(RoundTrips roundTrips) {
+        roundTrips.commit();
+      }
+    },
+    ROLLBACK {
+      @Override
+      void record(RoundTrips roundTrips) {
+        roundTrips.rollback();
+      }
+    },
+    METADATA {
+      @Override
+      void record(RoundTrips roundTrips) {
+        roundTrips.metadataCall();
+      }
+    };
+
+    abstract void record(RoundTrips roundTrips);
+  }
+
+  /**
+   * Connection、Statement、DatabaseMetaData 共用的代理处理器
+   */
+  private static final class CountingHandler implements InvocationHandler {
+
+    /**
+     * 被代理的对象
+     */
+    private final Object target;
+
+    /**
+     * 创建当前对象的连接代理，Statement#getConnection 和 DatabaseMetaData#getConnection 要返回它，避免绕过统计
+     */
+    private final Connection connectionProxy;
+
+    /**
+     * 事务维度的统计，可以为 null
+     */
+    private final RoundTrips transaction;
+
+    CountingHandler(Object target, Connection connectionProxy, RoundTrips transaction) {
+      this.target = target;
+      this.connectionProxy = connectionProxy;
+      this.transaction = transaction;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      switch (name) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "getTargetConnection":
+          // ConnectionProxy 的方法，DataSourceUtils#releaseConnection 依靠它识别出原始连接
+          return this.target;
+        case "getConnection":
+          if (this.connectionProxy != null) {
+            return this.connectionProxy;
+          }
+          break;
+        default:
+          break;
+      }
+      // 先计数，哪怕执行失败，往返也已经发生了
+      Kind kind = kindOf(name);
+      if (kind != null) {
+        record(this.transaction, kind);
+      }
+      Object result;
+      try {
+        result = method.invoke(this.target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getTargetException();
+      }
+      // 连接创建出来的 Statement 和 DatabaseMetaData 也需要代理
+      if (this.target instanceof Connection && (result instanceof Statement || result instanceof DatabaseMetaData)) {
+        return newProxyInstance(
+            RoundTripCounter.class.getClassLoader(),
+            new Class<?>[] { method.getReturnType() },
+            new CountingHandler(result, (Connection) proxy, this.transaction));
+      }
+      return result;
+    }
+
+    /**
+     * 根据方法名判断往返的种类，不是往返返回 null
+     */
+    private Kind kindOf(String name) {
+      if (this.target instanceof Statement) {
+        if ("executeBatch".equals(name) || "executeLargeBatch".equals(name)) {
+          return Kind.BATCH_EXECUTE;
+        }
+        return name.startsWith("execute") ? Kind.EXECUTE : null;
+      }
+      if (this.target instanceof Connection) {
+        if ("commit".equals(name)) {
+          return Kind.COMMIT;
+        }
+        return "rollback".equals(name) ? Kind.ROLLBACK : null;
+      }
+      return this.target instanceof DatabaseMetaData ? Kind.METADATA : null;
+    }
+  }
+
+  /**
+   * 事务维度统计的同步器，跟随事务挂起/恢复，事务结束时记录提交或回滚，并解除绑定
+   * 事务的 commit/rollback 由Spring的事务管理器在原始连接上完成，代理感知不到，所以在这里补上
+   */
+  private static final class RoundTripSynchronization extends TransactionSynchronizationAdapter {
+
+    private final RoundTrips transaction;
+
+    RoundTripSynchronization(RoundTrips transaction) {
+      this.transaction = transaction;
+    }
+
+    @Override
+    public int getOrder() {
+      return DataSourceUtils.CONNECTION_SYNCHRONIZATION_ORDER + 1;
+    }
+
+    @Override
+    public void suspend() {
+      TransactionSynchronizationManager.unbindResource(TRANSACTION_KEY);
+    }
+
+    @Override
+    public void resume() {
+      TransactionSynchronizationManager.bindResource(TRANSACTION_KEY, this.transaction);
+    }
+
+    @Override
+    public void afterCompletion(int status) {
+      TransactionSynchronizationManager.unbindResourceIfPossible(TRANSACTION_KEY);
+      if (status == TransactionSynchronization.STATUS_COMMITTED) {
+        record(this.transaction, Kind.COMMIT);
+      } else if (status == TransactionSynchronization.STATUS_ROLLED_BACK) {
+        record(this.transaction, Kind.ROLLBACK);
+      }
+      LOGGER.debug("Spring transaction completed with " + this.transaction);
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+package cn.javadog.sd.mybatis.spring.transaction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author 余勇
+ * @date 2019-12-23 10:12
+ *
+ * JDBC 往返次数的统计结果，由 {@link RoundTripCounter} 负责累加。
+ * 一个实例要么对应一个Spring事务，要么对应一个线程范围(scope)。
+ * 统计可能在别的线程读取，比如事务结束时的回调，因此使用原子类
+ */
+public final class RoundTrips {
+
+  /**
+   * Statement#execute/executeQuery/executeUpdate 的次数
+   */
+  private final AtomicLong executes = new AtomicLong();
+
+  /**
+   * Statement#executeBatch 的次数，一次批量提交只算一次往返
+   */
+  private final AtomicLong batchExecutes = new AtomicLong();
+
+  /**
+   * 提交次数
+   */
+  private final AtomicLong commits = new AtomicLong();
+
+  /**
+   * 回滚次数
+   */
+  private final AtomicLong rollbacks = new AtomicLong();
+
+  /**
+   * DatabaseMetaData 上的方法调用次数
+   */
+  private final AtomicLong metadataCalls = new AtomicLong();
+
+  /*包内累加，外部只读*/
+
+  void execute() {
+    executes.incrementAndGet();
+  }
+
+  void batchExecute() {
+    batchExecutes.incrementAndGet();
+  }
+
+  void commit() {
+    commits.incrementAndGet();
+  }
+
+  void rollback() {
+    rollbacks.incrementAndGet();
+  }
+
+  void metadataCall() {
+    metadataCalls.incrementAndGet();
+  }
+
+  /*所有属性的get*/
+
+  public long getExecutes() {
+    return executes.get();
+  }
+
+  public long getBatchExecutes() {
+    return batchExecutes.get();
+  }
+
+  public long getCommits() {
+    return commits.get();
+  }
+
+  public long getRollbacks() {
+    return rollbacks.get();
+  }
+
+  public long getMetadataCalls() {
+    return metadataCalls.get();
+  }
+
+  /**
+   * 总往返次数
+   */
+  public long getTotal() {
+    return getExecutes() + getBatchExecutes() + getCommits() + getRollbacks() + getMetadataCalls();
+  }
+
+  @Override
+  public String toString() {
+    return "RoundTrips[total=" + getTotal()
+        + ", executes=" + getExecutes()
+        + ", batchExecutes=" + getBatchExecutes()
+        + ", commits=" + getCommits()
+        + ", rollbacks=" + getRollbacks()
+        + ", metadataCalls=" + getMetadataCalls() + "]";
+  }
+
+}
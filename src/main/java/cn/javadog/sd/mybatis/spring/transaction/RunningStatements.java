@@ -0,0 +1,186 @@
+package cn.javadog.sd.mybatis.spring.transaction;
+
+import static java.lang.reflect.Proxy.newProxyInstance;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.springframework.jdbc.datasource.ConnectionProxy;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 16:20
+ *
+ * 一个范围内正在执行的 Statement。
+ * 通过 {@link #track} 代理连接，连接创建的 Statement 在 execute* 期间登记到当时线程上的 {@link Deadline} 和
+ * {@link CancellationScope}，执行结束就移除，范围需要中止时(超过截止时间、线程被中断)由别的线程调用 {@link #cancel}，
+ * 对还在执行的 Statement 调用 {@link Statement#cancel()}。
+ * <p>
+ * 范围在每次 execute* 时才从线程上取，而不是在创建 Statement 时记下：ReuseExecutor 和 BatchExecutor 会跨越多次调用
+ * 复用同一个 Statement，创建它时所在的范围(或者没有范围)和之后执行时的不一定相同
+ */
+final class RunningStatements {
+
+  private static final Log LOGGER = LogFactory.getLog(RunningStatements.class);
+
+  private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+
+  /**
+   * 是否已经取消，取消之后开始执行的 Statement 也会马上被取消
+   */
+  private volatile boolean cancelled;
+
+  /**
+   * 代理连接，Statement 执行时登记到当前线程的范围里
+   */
+  static Connection track(Connection connection) {
+    return (Connection) newProxyInstance(
+        RunningStatements.class.getClassLoader(),
+        new Class<?>[] { ConnectionProxy.class },
+        new TrackingHandler(connection, null));
+  }
+
+  /**
+   * 当前线程的截止时间和可取消范围，连同它们的外层范围
+   */
+  private static List<RunningStatements> currentScopes() {
+    Deadline deadline = Deadline.current();
+    CancellationScope cancellationScope = CancellationScope.current();
+    if (deadline == null && cancellationScope == null) {
+      return Collections.emptyList();
+    }
+    List<RunningStatements> scopes = new ArrayList<>(2);
+    if (deadline != null) {
+      deadline.collect(scopes);
+    }
+    if (cancellationScope != null) {
+      cancellationScope.collect(scopes);
+    }
+    return scopes;
+  }
+
+  /**
+   * 取消所有正在执行的 Statement，可以从任意线程调用
+   */
+  void cancel(String reason) {
+    this.cancelled = true;
+    for (Statement statement : this.statements) {
+      cancel(statement, reason);
+    }
+  }
+
+  boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  /**
+   * 正在执行的 Statement 个数
+   */
+  int size() {
+    return this.statements.size();
+  }
+
+  private void started(Statement statement) {
+    this.statements.add(statement);
+    // 取消和登记有竞争，登记之后再检查一次
+    if (this.cancelled) {
+      cancel(statement, "scope already cancelled");
+    }
+  }
+
+  private void finished(Statement statement) {
+    this.statements.remove(statement);
+  }
+
+  private static void cancel(Statement statement, String reason) {
+    try {
+      LOGGER.debug("Cancelling JDBC Statement [" + statement + "]: " + reason);
+      statement.cancel();
+    } catch (SQLException | RuntimeException e) {
+      // 已经执行完或者已经关闭，忽略
+      LOGGER.debug("Failed to cancel JDBC Statement [" + statement + "]: " + e);
+    }
+  }
+
+  /**
+   * Connection 和 Statement 共用的代理处理器
+   */
+  private static final class TrackingHandler implements InvocationHandler {
+
+    private final Object target;
+
+    /**
+     * Statement#getConnection 返回的连接代理
+     */
+    private final Connection connectionProxy;
+
+    TrackingHandler(Object target, Connection connectionProxy) {
+      this.target = target;
+      this.connectionProxy = connectionProxy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      switch (name) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "getTargetConnection":
+          // ConnectionProxy 的方法，DataSourceUtils#releaseConnection 依靠它识别出原始连接
+          return this.target;
+        case "getConnection":
+          if (this.connectionProxy != null) {
+            return this.connectionProxy;
+          }
+          break;
+        default:
+          break;
+      }
+      List<RunningStatements> scopes = this.target instanceof Statement && name.startsWith("execute")
+          ? currentScopes() : Collections.emptyList();
+      for (RunningStatements scope : scopes) {
+        scope.started((Statement) this.target);
+      }
+      Object result;
+      try {
+        result = method.invoke(this.target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getTargetException();
+      } finally {
+        for (RunningStatements scope : scopes) {
+          scope.finished((Statement) this.target);
+        }
+      }
+      if (this.target instanceof Connection && result instanceof Statement) {
+        return newProxyInstance(
+            RunningStatements.class.getClassLoader(),
+            new Class<?>[] { statementType(result) },
+            new TrackingHandler(result, (Connection) proxy));
+      }
+      return result;
+    }
+
+    private static Class<?> statementType(Object statement) {
+      if (statement instanceof CallableStatement) {
+        return CallableStatement.class;
+      }
+      return statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+    }
+  }
+
+}
@@ -5,7 +5,10 @@ import static org.springframework.util.Assert.notNull;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 
+import cn.javadog.sd.mybatis.spring.audit.AsyncAuditLog;
+import cn.javadog.sd.mybatis.spring.audit.AuditEvent;
 import cn.javadog.sd.mybatis.support.logging.Log;
 import cn.javadog.sd.mybatis.support.logging.LogFactory;
 import cn.javadog.sd.mybatis.support.transaction.Transaction;
@@ -37,10 +40,15 @@ public class SpringManagedTransaction implements Transaction {
   private final DataSource dataSource;
 
   /**
-   * 连接对象
+   * 连接对象，交给 MyBatis 的是代理
    */
   private Connection connection;
 
+  /**
+   * DataSourceUtils 给出的连接，释放时用它，事务中的连接才能被识别出来而不是被关闭
+   */
+  private Connection targetConnection;
+
   /**
    * 当前连接是否处于事务中
    */
@@ -51,12 +59,26 @@ public class SpringManagedTransaction implements Transaction {
    */
   private boolean autoCommit;
 
+  /**
+   * 是否统计 JDBC 往返次数
+   */
+  private final boolean countRoundTrips;
+
   /**
    * 构造方法
    */
   public SpringManagedTransaction(DataSource dataSource) {
+    this(dataSource, false);
+  }
+
+  /**
+   * 构造方法
+   * @param countRoundTrips 是否统计 JDBC 往返次数，见 {@link RoundTripCounter}
+   */
+  public SpringManagedTransaction(DataSource dataSource, boolean countRoundTrips) {
     notNull(dataSource, "No DataSource specified");
     this.dataSource = dataSource;
+    this.countRoundTrips = countRoundTrips;
   }
 
   /**
@@ -64,6 +86,10 @@ public class SpringManagedTransaction implements Transaction {
    */
   @Override
   public Connection getConnection() throws SQLException {
+    Deadline deadline = Deadline.current();
+    if (deadline != null && deadline.isExpired()) {
+      throw new SQLTimeoutException("Deadline exceeded, refusing to hand out JDBC Connection");
+    }
     if (this.connection == null) {
       openConnection();
     }
@@ -78,11 +104,22 @@ public class SpringManagedTransaction implements Transaction {
    * 比较有趣的是，此处获取连接，不是通过 DataSource#getConnection() 方法，
    * 而是通过 org.springframework.jdbc.datasource.DataSourceUtils#getConnection(DataSource dataSource) 方法，获得 Connection 对象。
    * 而实际上，基于 Spring Transaction 体系，如果此处正在事务中时，已经有和当前线程绑定的 Connection 对象，就是存储在 ThreadLocal 中。
+   *
+   * 开启了往返统计，或者当前线程处于 {@link RoundTripCounter} 的统计范围时，返回的是计数代理，外面再包一层跟踪 Statement 的代理。
+   * DataSourceUtils#releaseConnection 只会拆开事务持有的连接，不会拆开传入的连接，所以释放时用的是原始连接
    */
   private void openConnection() throws SQLException {
     this.connection = DataSourceUtils.getConnection(this.dataSource);
+    this.targetConnection = this.connection;
     this.autoCommit = this.connection.getAutoCommit();
     this.isConnectionTransactional = DataSourceUtils.isConnectionTransactional(this.connection, this.dataSource);
+    AsyncAuditLog.event(AuditEvent.CONNECTION_OPEN, this.connection);
+    if (this.countRoundTrips || RoundTripCounter.isThreadScopeActive()) {
+      this.connection = RoundTripCounter.wrap(this.connection, this.isConnectionTransactional);
+    }
+    // 执行时处于截止时间或者可取消的范围内，就登记正在执行的 Statement。
+    // ReuseExecutor、BatchExecutor 复用的 Statement 可能在范围外创建，所以连接总是被代理，范围在执行时才取
+    this.connection = RunningStatements.track(this.connection);
 
     LOGGER.debug("JDBC Connection ["
             + this.connection
@@ -99,6 +136,7 @@ public class SpringManagedTransaction implements Transaction {
     if (this.connection != null && !this.isConnectionTransactional && !this.autoCommit) {
       LOGGER.debug("Committing JDBC Connection [" + this.connection + "]");
       this.connection.commit();
+      AsyncAuditLog.event(AuditEvent.CONNECTION_COMMIT, this.connection);
     }
   }
 
@@ -110,6 +148,7 @@ public class SpringManagedTransaction implements Transaction {
     if (this.connection != null && !this.isConnectionTransactional && !this.autoCommit) {
       LOGGER.debug("Rolling back JDBC Connection [" + this.connection + "]");
       this.connection.rollback();
+      AsyncAuditLog.event(AuditEvent.CONNECTION_ROLLBACK, this.connection);
     }
   }
 
@@ -118,19 +157,25 @@ public class SpringManagedTransaction implements Transaction {
    */
   @Override
   public void close() {
-    DataSourceUtils.releaseConnection(this.connection, this.dataSource);
+    DataSourceUtils.releaseConnection(this.targetConnection, this.dataSource);
+    if (this.connection != null) {
+      AsyncAuditLog.event(AuditEvent.CONNECTION_CLOSE, this.connection);
+    }
   }
     
   /**
-   * 获取连接超时时间
+   * 获取连接超时时间，MyBatis 用它设置 Statement 的 queryTimeout。
+   * 处于 {@link Deadline} 范围内时取Spring事务超时和截止时间剩余时间中较小的一个
    */
   @Override
-  public Integer getTimeout() {
+  public Integer getTimeout() throws SQLException {
+    Integer timeout = null;
     ConnectionHolder holder = (ConnectionHolder) TransactionSynchronizationManager.getResource(dataSource);
     if (holder != null && holder.hasTimeout()) {
-      return holder.getTimeToLiveInSeconds();
-    } 
-    return null;
+      timeout = holder.getTimeToLiveInSeconds();
+    }
+    Deadline deadline = Deadline.current();
+    return deadline == null ? timeout : deadline.timeoutInSeconds(timeout);
   }
 
 }
@@ -15,12 +15,24 @@ import cn.javadog.sd.mybatis.support.transaction.TransactionIsolationLevel;
  */
 public class SpringManagedTransactionFactory implements TransactionFactory {
 
+  /**
+   * 是否统计 JDBC 往返次数，默认不统计
+   */
+  private boolean countRoundTrips;
+
+  /**
+   * 开启后，每个连接都会被 {@link RoundTripCounter} 代理，可以按Spring事务拿到往返次数
+   */
+  public void setCountRoundTrips(boolean countRoundTrips) {
+    this.countRoundTrips = countRoundTrips;
+  }
+
   /**
    * 开启事务
    */
   @Override
   public Transaction newTransaction(DataSource dataSource, TransactionIsolationLevel level, boolean autoCommit) {
-    return new SpringManagedTransaction(dataSource);
+    return new SpringManagedTransaction(dataSource, this.countRoundTrips);
   }
 
   /**
@@ -0,0 +1,87 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import cn.javadog.sd.mybatis.spring.audit.AsyncAuditLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author 余勇
+ * @date 2019-12-24 16:20
+ * 异步审计日志
+ */
+class AsyncAuditLogTest extends AbstractMyBatisSpringTest {
+
+  private static final String INSERT = "cn.javadog.sd.mybatis.spring.TestMapper.insertTest";
+
+  @TempDir
+  Path tempDir;
+
+  /**
+   * 销毁时写完剩余事件，槽位不持有引用
+   */
+  @Test
+  void testWritesStatementAndSessionEvents() throws Exception {
+    Path file = tempDir.resolve("audit.log");
+    AsyncAuditLog auditLog = new AsyncAuditLog();
+    auditLog.setFile(file);
+    auditLog.setBufferSize(64);
+    auditLog.afterPropertiesSet();
+    try {
+      new SqlSessionTemplate(sqlSessionFactory).insert(INSERT, "test");
+    } finally {
+      auditLog.destroy();
+    }
+
+    String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    assertThat(content)
+        .contains("SESSION_OPEN")
+        .contains("CONNECTION_OPEN")
+        .contains("STATEMENT " + INSERT)
+        .contains("SESSION_CLOSE")
+        .contains("[thread-" + Thread.currentThread().getId() + "]");
+    assertThat(AsyncAuditLog.isEnabled()).isFalse();
+
+    // 槽位只有基本类型字段，等待写出的事件不持有线程、会话之类的引用
+    for (Field field : Class.forName(AsyncAuditLog.class.getName() + "$Slot").getDeclaredFields()) {
+      if (!field.isSynthetic()) {
+        assertThat(field.getType().isPrimitive()).as(field.getName()).isTrue();
+      }
+    }
+  }
+
+  /**
+   * 文件超过大小时滚动
+   */
+  @Test
+  void testRollsFile() throws Exception {
+    Path file = tempDir.resolve("audit.log");
+    AsyncAuditLog auditLog = new AsyncAuditLog();
+    auditLog.setFile(file);
+    auditLog.setMaxFileSize(200);
+    auditLog.setMaxBackups(1);
+    auditLog.afterPropertiesSet();
+    try {
+      SqlSessionTemplate template = new SqlSessionTemplate(sqlSessionFactory);
+      template.insert(INSERT, "test");
+      // 后台线程空闲时才批量写出，等第一批落盘后再写第二批，才会触发滚动
+      long deadline = System.currentTimeMillis() + 5000;
+      while (Files.size(file) == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      template.insert(INSERT, "test");
+    } finally {
+      auditLog.destroy();
+    }
+
+    assertThat(file.resolveSibling("audit.log.1")).exists();
+    assertThat(file.resolveSibling("audit.log.2")).doesNotExist();
+  }
+
+}
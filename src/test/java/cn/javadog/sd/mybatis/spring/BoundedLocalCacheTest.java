@@ -0,0 +1,86 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * @author 余勇
+ * @date 2019-12-29 18:00
+ * 有上限的一级缓存
+ */
+@ExtendWith(TransactionSynchronizationCleaner.class)
+class BoundedLocalCacheTest {
+
+  private static final String FIND_NAMES = "cn.javadog.sd.mybatis.spring.PaginationMapper.findNames";
+
+  private SingleConnectionDataSource dataSource;
+
+  private SqlSessionFactory sqlSessionFactory;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    dataSource = new SingleConnectionDataSource("jdbc:hsqldb:mem:local-cache", "sa", "", true);
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("CREATE TABLE person (id INT PRIMARY KEY, name VARCHAR(20))");
+    for (int i = 1; i <= 10; i++) {
+      jdbcTemplate.update("INSERT INTO person VALUES (?, ?)", i, "name-" + i);
+    }
+
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setMapperLocations(new Resource[] { new ClassPathResource("cn/javadog/sd/mybatis/spring/PaginationMapper.xml") });
+    factoryBean.setDataSource(dataSource);
+    factoryBean.setLocalCacheMaxEntries(3);
+    sqlSessionFactory = factoryBean.getObject();
+  }
+
+  @AfterEach
+  void tearDown() {
+    new JdbcTemplate(dataSource).execute("DROP TABLE person");
+    dataSource.destroy();
+  }
+
+  /**
+   * 长事务里超过上限的查询结果按 LRU 淘汰，最近用到的仍然命中
+   */
+  @Test
+  void testEvictsLeastRecentlyUsed() {
+    SqlSessionTemplate template = new SqlSessionTemplate(sqlSessionFactory);
+    BoundedLocalCacheInterceptor interceptor = BoundedLocalCacheInterceptor.forConfiguration(sqlSessionFactory.getConfiguration());
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+    new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(status -> {
+      assertThat(template.<String>selectList(FIND_NAMES, Collections.singletonList(1))).hasSize(9);
+      for (int i = 2; i <= 5; i++) {
+        template.selectList(FIND_NAMES, Collections.singletonList(i));
+      }
+      assertThat(interceptor.getEvictions()).isEqualTo(2);
+      assertThat(interceptor.getLargestSize()).isEqualTo(3);
+
+      jdbcTemplate.update("DELETE FROM person WHERE id = 10");
+      // 最近的结果还在缓存里，最早的已经被淘汰，重新查库
+      List<String> recent = template.selectList(FIND_NAMES, Collections.singletonList(5));
+      List<String> evicted = template.selectList(FIND_NAMES, Collections.singletonList(1));
+      assertThat(recent).hasSize(9);
+      assertThat(evicted).hasSize(8);
+      return null;
+    });
+
+    assertThat(interceptor.getEvictions()).isEqualTo(3);
+    assertThat(interceptor.getLargestSize()).isEqualTo(3);
+  }
+
+}
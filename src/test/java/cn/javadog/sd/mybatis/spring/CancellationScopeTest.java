@@ -0,0 +1,202 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cn.javadog.sd.mybatis.session.ExecutorType;
+import cn.javadog.sd.mybatis.spring.transaction.CancellationScope;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 10:30
+ * 线程中断、future 取消时取消正在执行的语句
+ */
+@ExtendWith(TransactionSynchronizationCleaner.class)
+class CancellationScopeTest {
+
+  private static final String INSERT = "cn.javadog.sd.mybatis.spring.TestMapper.insertTest";
+
+  private DataSource dataSource;
+
+  private Connection connection;
+
+  private PreparedStatement statement;
+
+  private SqlSessionTemplate template;
+
+  private ExecutorService executor;
+
+  /**
+   * 语句开始执行
+   */
+  private CountDownLatch executing;
+
+  /**
+   * 一直执行到被取消为止
+   */
+  private Answer<Boolean> runUntilCancelled;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    connection = mock(Connection.class);
+    statement = mock(PreparedStatement.class);
+    dataSource = TestMapperFixture.mockDataSource(connection, statement);
+
+    // 语句一直执行到被取消为止，和大多数驱动一样不响应中断
+    executing = new CountDownLatch(1);
+    CountDownLatch cancelled = new CountDownLatch(1);
+    runUntilCancelled = invocation -> {
+      executing.countDown();
+      awaitUninterruptibly(cancelled);
+      throw new SQLException("statement cancelled", "HY008");
+    };
+    when(statement.execute()).thenAnswer(runUntilCancelled);
+    doAnswer(invocation -> {
+      cancelled.countDown();
+      return null;
+    }).when(statement).cancel();
+
+    template = new SqlSessionTemplate(TestMapperFixture.sqlSessionFactory(dataSource));
+    template.setCancelOnInterrupt(true);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void testCancelsStatementWhenThreadInterrupted() throws Exception {
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread worker = new Thread(() -> {
+      try {
+        template.insert(INSERT, "test");
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    worker.start();
+    assertThat(executing.await(5, TimeUnit.SECONDS)).isTrue();
+
+    worker.interrupt();
+    worker.join(5000);
+
+    assertThat(worker.isAlive()).isFalse();
+    assertThat(failure.get()).isInstanceOf(DataAccessException.class);
+    verify(statement).cancel();
+    verify(connection, atLeastOnce()).close();
+  }
+
+  @Test
+  void testRefusesWorkWhenAlreadyInterrupted() throws Exception {
+    Thread.currentThread().interrupt();
+    try {
+      assertThatThrownBy(() -> template.insert(INSERT, "test")).isInstanceOf(CancellationException.class);
+    } finally {
+      assertThat(Thread.interrupted()).isTrue();
+    }
+    verify(dataSource, never()).getConnection();
+  }
+
+  @Test
+  void testCancelsStatementWhenFutureTimesOut() throws Exception {
+    CompletableFuture<Integer> future = CancellationScope.supplyAsync(() -> template.insert(INSERT, "test"), executor)
+        .orTimeout(200, TimeUnit.MILLISECONDS);
+
+    assertThatThrownBy(future::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(TimeoutException.class);
+    verify(statement, timeout(5000)).cancel();
+    verify(connection, timeout(5000).atLeastOnce()).close();
+  }
+
+  @Test
+  void testCancelsStatementWhenFutureCancelled() throws Exception {
+    CompletableFuture<Integer> future = CancellationScope.supplyAsync(() -> template.insert(INSERT, "test"), executor);
+    assertThat(executing.await(5, TimeUnit.SECONDS)).isTrue();
+
+    future.cancel(true);
+
+    verify(statement, timeout(5000)).cancel();
+    verify(connection, timeout(5000).atLeastOnce()).close();
+  }
+
+  /**
+   * ReuseExecutor 复用的 Statement 在范围外创建，之后在范围内执行时同样能被取消
+   */
+  @Test
+  void testCancelsReusedStatementCreatedOutsideScope() throws Exception {
+    doReturn(false).doAnswer(runUntilCancelled).when(statement).execute();
+    SqlSessionTemplate plain = new SqlSessionTemplate(template.getSqlSessionFactory(), ExecutorType.REUSE);
+    SqlSessionTemplate cancelling = new SqlSessionTemplate(template.getSqlSessionFactory(), ExecutorType.REUSE);
+    cancelling.setCancelOnInterrupt(true);
+    DataSourceTransactionManager txManager = new DataSourceTransactionManager(dataSource);
+
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread worker = new Thread(() -> {
+      try {
+        new TransactionTemplate(txManager).execute(status -> {
+          plain.insert(INSERT, "test");
+          return cancelling.insert(INSERT, "test");
+        });
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    worker.start();
+    assertThat(executing.await(5, TimeUnit.SECONDS)).isTrue();
+
+    worker.interrupt();
+    worker.join(5000);
+
+    assertThat(worker.isAlive()).isFalse();
+    assertThat(failure.get()).isInstanceOf(DataAccessException.class);
+    // 两次调用用的是同一个 Statement
+    verify(connection).prepareStatement(anyString());
+    verify(statement).cancel();
+  }
+
+  /**
+   * 像阻塞在 socket 上的驱动一样等待，不清除中断标记
+   */
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (latch.getCount() > 0) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("statement was not cancelled");
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.dao.DataAccessException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 19:10
+ * 断路器
+ */
+@ExtendWith(TransactionSynchronizationCleaner.class)
+class CircuitBreakerTest {
+
+  private static final String INSERT = "cn.javadog.sd.mybatis.spring.TestMapper.insertTest";
+
+  private volatile boolean databaseDown;
+
+  private final AtomicInteger connectionRequests = new AtomicInteger();
+
+  private PreparedStatement statement;
+
+  private SqlSessionTemplate template;
+
+  private CircuitBreaker breaker;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    DataSource dataSource = mock(DataSource.class);
+    Connection connection = mock(Connection.class);
+    statement = mock(PreparedStatement.class);
+    when(dataSource.getConnection()).thenAnswer(invocation -> {
+      connectionRequests.incrementAndGet();
+      if (databaseDown) {
+        throw new SQLTransientConnectionException("Connection is not available, request timed out");
+      }
+      return connection;
+    });
+    when(connection.prepareStatement(anyString())).thenReturn(statement);
+    when(connection.isValid(anyInt())).thenReturn(true);
+
+    SqlSessionFactory sqlSessionFactory = TestMapperFixture.sqlSessionFactory(dataSource);
+    template = new SqlSessionTemplate(sqlSessionFactory);
+
+    breaker = new CircuitBreaker();
+    breaker.setSqlSessionFactory(sqlSessionFactory);
+    breaker.setMinimumCalls(4);
+    breaker.setOpenDurationMillis(50);
+    breaker.afterPropertiesSet();
+  }
+
+  @AfterEach
+  void tearDown() {
+    breaker.destroy();
+  }
+
+  /**
+   * 连接失败率达到阈值后打开，直接失败，后台探测成功后关闭
+   */
+  @Test
+  void testOpensOnConnectionFailuresAndClosesAfterProbe() throws Exception {
+    databaseDown = true;
+    for (int i = 0; i < 4; i++) {
+      assertThatThrownBy(() -> template.insert(INSERT, "test")).isInstanceOf(DataAccessException.class);
+    }
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    int requests = connectionRequests.get();
+    assertThatThrownBy(() -> template.insert(INSERT, "test")).isInstanceOf(CircuitBreakerOpenException.class);
+    assertThat(connectionRequests.get()).isEqualTo(requests);
+    assertThat(breaker.getRejected()).isEqualTo(1);
+
+    databaseDown = false;
+    for (int i = 0; i < 200 && breaker.getState() != CircuitBreaker.State.CLOSED; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(template.insert(INSERT, "test")).isZero();
+  }
+
+  /**
+   * SQL 本身的错误不算连接失败
+   */
+  @Test
+  void testStatementErrorsDoNotOpen() throws Exception {
+    when(statement.execute()).thenThrow(new SQLSyntaxErrorException("You have an error in your SQL syntax"));
+    for (int i = 0; i < 10; i++) {
+      assertThatThrownBy(() -> template.insert(INSERT, "test")).isInstanceOf(DataAccessException.class);
+    }
+
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+}
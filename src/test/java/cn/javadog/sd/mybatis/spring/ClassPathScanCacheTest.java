@@ -0,0 +1,61 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.UUID;
+
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.spring.mapper.ClassPathMapperScanner;
+import cn.javadog.sd.mybatis.spring.support.ClassPathScanCache;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 20:10
+ * 别名、类型处理器、mapper 共用一次类路径遍历
+ */
+class ClassPathScanCacheTest {
+
+  private static final String BASE_PACKAGE = "cn.javadog.sd.mybatis.spring";
+
+  private static final String TYPE_PACKAGE = BASE_PACKAGE + ".type";
+
+  @Test
+  void testSinglePassMatchesMyBatisScanning() throws Exception {
+    DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+
+    // mapper 扫描先于 SqlSessionFactoryBean 执行，子包直接从已经遍历过的包根里过滤
+    ClassPathMapperScanner scanner = new ClassPathMapperScanner(beanFactory);
+    scanner.registerFilters();
+    scanner.doScan(BASE_PACKAGE, BASE_PACKAGE + ".mapper");
+
+    ClassPathScanCache cache = beanFactory.getBean(ClassPathScanCache.BEAN_NAME, ClassPathScanCache.class);
+    assertThat(beanFactory.containsBeanDefinition("testMapper")).isTrue();
+    assertThat(cache.getScannedPackages()).containsExactly(BASE_PACKAGE);
+
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setBeanFactory(beanFactory);
+    factoryBean.setDataSource(new PooledMockDataSource());
+    factoryBean.setTypeAliasesPackage(BASE_PACKAGE);
+    // 落在别名包下面，不再遍历
+    factoryBean.setTypeHandlersPackage(TYPE_PACKAGE);
+    Configuration configuration = factoryBean.getObject().getConfiguration();
+
+    // 与 MyBatis 自己通过 VFS 扫描的结果一致
+    Configuration expected = new Configuration();
+    expected.getTypeAliasRegistry().registerAliases(BASE_PACKAGE, Object.class);
+    expected.getTypeHandlerRegistry().register(TYPE_PACKAGE);
+    assertThat(configuration.getTypeAliasRegistry().getTypeAliases())
+        .isEqualTo(expected.getTypeAliasRegistry().getTypeAliases())
+        .containsKey("pooledmockdatasource");
+    assertThat(configuration.getTypeHandlerRegistry().getTypeHandlers())
+        .hasSameSizeAs(expected.getTypeHandlerRegistry().getTypeHandlers());
+    assertThat(configuration.getTypeHandlerRegistry().hasTypeHandler(UUID.class)).isTrue();
+
+    // 没有容器刷新事件，构建完成后由 SqlSessionFactoryBean 释放
+    assertThat(beanFactory.getBean(ClassPathScanCache.BEAN_NAME)).isSameAs(cache);
+    assertThat(cache.getScannedPackages()).isEmpty();
+  }
+
+}
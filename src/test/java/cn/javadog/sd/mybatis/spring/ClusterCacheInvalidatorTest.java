@@ -0,0 +1,198 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * @author 余勇
+ * @date 2019-12-30 18:30
+ * 集群缓存失效，两个 SqlSessionFactory 代表共享同一个数据库的两个节点
+ */
+@ExtendWith(TransactionSynchronizationCleaner.class)
+class ClusterCacheInvalidatorTest {
+
+  private static final String FIND_NAME = "cn.javadog.sd.mybatis.spring.ClusterCacheMapper.findName";
+
+  private static final String UPDATE_NAME = "cn.javadog.sd.mybatis.spring.ClusterCacheMapper.updateName";
+
+  private DriverManagerDataSource dataSource;
+
+  private JdbcTemplate jdbcTemplate;
+
+  private ClusterCacheInvalidator nodeA;
+
+  private ClusterCacheInvalidator nodeB;
+
+  private SqlSessionTemplate templateA;
+
+  private SqlSessionTemplate templateB;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    dataSource = new DriverManagerDataSource("jdbc:hsqldb:mem:cluster-cache", "sa", "");
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("CREATE TABLE person (id INT PRIMARY KEY, name VARCHAR(20))");
+    jdbcTemplate.update("INSERT INTO person VALUES (1, 'name-1')");
+
+    SqlSessionFactory factoryA = sqlSessionFactory();
+    SqlSessionFactory factoryB = sqlSessionFactory();
+    templateA = new SqlSessionTemplate(factoryA);
+    templateB = new SqlSessionTemplate(factoryB);
+    nodeA = invalidator(factoryA, "node-a");
+    nodeB = invalidator(factoryB, "node-b");
+  }
+
+  @AfterEach
+  void tearDown() {
+    nodeA.destroy();
+    nodeB.destroy();
+    jdbcTemplate.execute("DROP TABLE person");
+    jdbcTemplate.execute("DROP TABLE " + ClusterCacheInvalidator.DEFAULT_TABLE_NAME);
+  }
+
+  /**
+   * 事务提交后写入失效记录，另一个节点轮询后清掉本地缓存；回滚的事务不写
+   */
+  @Test
+  void testCommittedTransactionInvalidatesOtherNode() throws Exception {
+    assertThat(templateB.<String>selectOne(FIND_NAME, 1)).isEqualTo("name-1");
+
+    TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    transactionTemplate.execute(status -> templateA.update(UPDATE_NAME, name(1, "changed")));
+    nodeA.flush();
+    assertThat(nodeA.getPublished()).isEqualTo(1);
+
+    // 轮询之前还是旧数据
+    assertThat(templateB.<String>selectOne(FIND_NAME, 1)).isEqualTo("name-1");
+    nodeB.poll();
+    assertThat(templateB.<String>selectOne(FIND_NAME, 1)).isEqualTo("changed");
+    assertThat(nodeB.getInvalidations()).isEqualTo(1);
+
+    transactionTemplate.execute(status -> {
+      templateA.update(UPDATE_NAME, name(1, "rolled back"));
+      status.setRollbackOnly();
+      return null;
+    });
+    nodeA.flush();
+    assertThat(nodeA.getPublished()).isEqualTo(1);
+
+    // 自己写的记录跳过
+    nodeA.poll();
+    assertThat(nodeA.getInvalidations()).isZero();
+  }
+
+  /**
+   * 非事务的写操作提交后登记失效记录
+   */
+  @Test
+  void testNonTransactionalWrite() throws Exception {
+    assertThat(templateB.<String>selectOne(FIND_NAME, 1)).isEqualTo("name-1");
+
+    templateA.update(UPDATE_NAME, name(1, "changed"));
+    nodeA.flush();
+    nodeB.poll();
+
+    assertThat(nodeA.getPublished()).isEqualTo(1);
+    assertThat(templateB.<String>selectOne(FIND_NAME, 1)).isEqualTo("changed");
+  }
+
+  /**
+   * 失效记录由轮询线程写入，提交事务的线程不会再去借连接
+   */
+  @Test
+  void testPublishesOnPollerThread() throws Exception {
+    Queue<String> borrowers = new ConcurrentLinkedQueue<>();
+    nodeA.destroy();
+    nodeA = new ClusterCacheInvalidator();
+    nodeA.setSqlSessionFactory(templateA.getSqlSessionFactory());
+    nodeA.setNodeId("node-a");
+    nodeA.setPollIntervalMillis(3600000L);
+    nodeA.setDataSource(new DelegatingDataSource(dataSource) {
+      @Override
+      public Connection getConnection() throws SQLException {
+        borrowers.add(Thread.currentThread().getName());
+        return super.getConnection();
+      }
+    });
+    nodeA.afterPropertiesSet();
+    borrowers.clear();
+
+    TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    transactionTemplate.execute(status -> templateA.update(UPDATE_NAME, name(1, "changed")));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (nodeA.getPublished() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+
+    assertThat(nodeA.getPublished()).isEqualTo(1);
+    assertThat(borrowers).isNotEmpty().allMatch(name -> name.startsWith("mybatis-cache-invalidation-"));
+  }
+
+  /**
+   * 序号小的记录晚提交时，空洞补上之后仍然会被处理
+   */
+  @Test
+  void testLateCommitFillingGap() throws Exception {
+    long base = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(SEQ), 0) FROM " + ClusterCacheInvalidator.DEFAULT_TABLE_NAME, Long.class);
+    String insert = "INSERT INTO " + ClusterCacheInvalidator.DEFAULT_TABLE_NAME
+        + " (SEQ, CACHE_ID, NODE_ID, CREATED_AT) VALUES (?, 'cn.javadog.sd.mybatis.spring.ClusterCacheMapper', 'node-c', CURRENT_TIMESTAMP)";
+
+    jdbcTemplate.update(insert, base + 2);
+    nodeB.poll();
+    assertThat(nodeB.getInvalidations()).isEqualTo(1);
+
+    jdbcTemplate.update(insert, base + 1);
+    nodeB.poll();
+    assertThat(nodeB.getInvalidations()).isEqualTo(2);
+
+    // 两条都处理过了，不会再清一次
+    nodeB.poll();
+    assertThat(nodeB.getInvalidations()).isEqualTo(2);
+  }
+
+  private SqlSessionFactory sqlSessionFactory() throws Exception {
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setMapperLocations(new Resource[] { new ClassPathResource("cn/javadog/sd/mybatis/spring/ClusterCacheMapper.xml") });
+    factoryBean.setDataSource(dataSource);
+    return factoryBean.getObject();
+  }
+
+  private ClusterCacheInvalidator invalidator(SqlSessionFactory sqlSessionFactory, String nodeId) throws Exception {
+    ClusterCacheInvalidator invalidator = new ClusterCacheInvalidator();
+    invalidator.setSqlSessionFactory(sqlSessionFactory);
+    invalidator.setNodeId(nodeId);
+    invalidator.setCreateTable(true);
+    // 测试里手动轮询
+    invalidator.setPollIntervalMillis(3600000L);
+    invalidator.setGapTimeoutMillis(3600000L);
+    invalidator.afterPropertiesSet();
+    return invalidator;
+  }
+
+  private static Map<String, Object> name(int id, String name) {
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("id", id);
+    parameter.put("name", name);
+    return parameter;
+  }
+
+}
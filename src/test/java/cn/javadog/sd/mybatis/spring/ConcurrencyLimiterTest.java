@@ -0,0 +1,268 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import cn.javadog.sd.mybatis.session.ExecutorType;
+import cn.javadog.sd.mybatis.session.SqlSession;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 15:30
+ * 自适应并发限制
+ */
+@ExtendWith(TransactionSynchronizationCleaner.class)
+class ConcurrencyLimiterTest {
+
+  private DataSource dataSource;
+
+  private SqlSessionFactory sqlSessionFactory;
+
+  private ConcurrencyLimiter limiter;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(mock(Connection.class));
+    sqlSessionFactory = TestMapperFixture.sqlSessionFactory(dataSource);
+
+    limiter = new ConcurrencyLimiter();
+    limiter.setDataSource(dataSource);
+    limiter.setInitialLimit(1);
+    limiter.setMaxLimit(1);
+  }
+
+  @AfterEach
+  void tearDown() {
+    limiter.destroy();
+  }
+
+  @Test
+  void testFailFastWhenLimitReached() {
+    limiter.afterPropertiesSet();
+
+    SqlSession first = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    assertThatThrownBy(() -> SqlSessionUtils.getSqlSession(sqlSessionFactory))
+        .isInstanceOf(ConcurrencyLimitExceededException.class);
+    assertThat(limiter.getRejected()).isEqualTo(1);
+
+    SqlSessionUtils.closeSqlSession(first, sqlSessionFactory);
+    SqlSession second = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    assertThat(limiter.getInFlight()).isEqualTo(1);
+    SqlSessionUtils.closeSqlSession(second, sqlSessionFactory);
+    assertThat(limiter.getInFlight()).isZero();
+  }
+
+  /**
+   * 会话关闭失败时许可照样归还
+   */
+  @Test
+  void testReleasesPermitWhenCloseFails() {
+    limiter.afterPropertiesSet();
+    SqlSession session = mock(SqlSession.class);
+    doThrow(new IllegalStateException("close failed")).when(session).close();
+    SqlSessionFactory failingFactory = mock(SqlSessionFactory.class);
+    when(failingFactory.getConfiguration()).thenReturn(sqlSessionFactory.getConfiguration());
+    when(failingFactory.openSession(any(ExecutorType.class))).thenReturn(session);
+
+    SqlSession opened = SqlSessionUtils.getSqlSession(failingFactory);
+    assertThat(limiter.getInFlight()).isEqualTo(1);
+    assertThatThrownBy(() -> SqlSessionUtils.closeSqlSession(opened, failingFactory))
+        .isInstanceOf(IllegalStateException.class);
+    assertThat(limiter.getInFlight()).isZero();
+  }
+
+  /**
+   * 排队的调用等到许可归还，等不到的超时失败
+   */
+  @Test
+  void testBoundedQueue() throws Exception {
+    limiter.setMaxQueueSize(1);
+    limiter.setMaxQueueWaitMillis(2000);
+    limiter.afterPropertiesSet();
+
+    SqlSession first = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    CompletableFuture<SqlSession> queued = CompletableFuture.supplyAsync(() -> SqlSessionUtils.getSqlSession(sqlSessionFactory));
+    while (limiter.getQueued() == 0) {
+      Thread.sleep(5);
+    }
+    // 队列已满
+    assertThatThrownBy(() -> SqlSessionUtils.getSqlSession(sqlSessionFactory))
+        .isInstanceOf(ConcurrencyLimitExceededException.class)
+        .hasMessageContaining("queue is full");
+
+    SqlSessionUtils.closeSqlSession(first, sqlSessionFactory);
+    SqlSession second = queued.get(2, TimeUnit.SECONDS);
+    SqlSessionUtils.closeSqlSession(second, sqlSessionFactory);
+
+    limiter.setMaxQueueWaitMillis(20);
+    SqlSession third = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    assertThatThrownBy(() -> SqlSessionUtils.getSqlSession(sqlSessionFactory))
+        .isInstanceOf(ConcurrencyLimitExceededException.class)
+        .hasMessageContaining("timed out");
+    SqlSessionUtils.closeSqlSession(third, sqlSessionFactory);
+  }
+
+  /**
+   * 每个类别单独限制排队数，批处理排满了在线请求照样能排队
+   */
+  @Test
+  void testQueueSizePerWorkloadClass() throws Exception {
+    limiter.setMaxQueueSize(1);
+    limiter.setMaxQueueWaitMillis(2000);
+    limiter.afterPropertiesSet();
+
+    SqlSession first = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    CompletableFuture<SqlSession> batch = CompletableFuture.supplyAsync(
+        () -> WorkloadClass.call(WorkloadClass.BATCH, () -> SqlSessionUtils.getSqlSession(sqlSessionFactory)));
+    while (limiter.getQueued() == 0) {
+      Thread.sleep(5);
+    }
+    assertThatThrownBy(() -> WorkloadClass.call(WorkloadClass.BATCH, () -> SqlSessionUtils.getSqlSession(sqlSessionFactory)))
+        .isInstanceOf(ConcurrencyLimitExceededException.class)
+        .hasMessageContaining("BATCH call queue is full");
+
+    CompletableFuture<SqlSession> oltp = CompletableFuture.supplyAsync(() -> SqlSessionUtils.getSqlSession(sqlSessionFactory));
+    while (limiter.getQueued() == 1) {
+      Thread.sleep(5);
+    }
+    assertThat(limiter.getQueued()).isEqualTo(2);
+
+    SqlSessionUtils.closeSqlSession(first, sqlSessionFactory);
+    SqlSessionUtils.closeSqlSession(oltp.get(2, TimeUnit.SECONDS), sqlSessionFactory);
+    SqlSessionUtils.closeSqlSession(batch.get(2, TimeUnit.SECONDS), sqlSessionFactory);
+    assertThat(limiter.getInFlight()).isZero();
+  }
+
+  /**
+   * 争用时 OLTP 优先，批处理按权重也能拿到许可
+   */
+  @Test
+  void testOltpAdmittedBeforeBatch() throws Exception {
+    limiter.setMaxQueueSize(10);
+    limiter.setMaxQueueWaitMillis(5000);
+    limiter.afterPropertiesSet();
+    Queue<WorkloadClass> admitted = new ConcurrentLinkedQueue<>();
+    ExecutorService executor = Executors.newFixedThreadPool(10);
+    List<Future<?>> futures = new ArrayList<>();
+
+    SqlSession first = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    try {
+      // 批处理先排队
+      for (int i = 0; i < 10; i++) {
+        WorkloadClass workloadClass = i < 5 ? WorkloadClass.BATCH : WorkloadClass.OLTP;
+        futures.add(executor.submit(() -> WorkloadClass.run(workloadClass, () -> {
+          SqlSession session = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+          admitted.add(WorkloadClass.current());
+          SqlSessionUtils.closeSqlSession(session, sqlSessionFactory);
+        })));
+        while (limiter.getQueued() <= i) {
+          Thread.sleep(2);
+        }
+      }
+      SqlSessionUtils.closeSqlSession(first, sqlSessionFactory);
+      for (Future<?> future : futures) {
+        future.get(5, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // 9:1 的权重下，批处理在 OLTP 排空之前只拿到一个许可
+    List<WorkloadClass> order = new ArrayList<>(admitted);
+    assertThat(order.subList(0, 6)).containsOnlyOnce(WorkloadClass.BATCH);
+    assertThat(order).hasSize(10);
+  }
+
+  /**
+   * 模板上声明的类别优先于线程上的类别
+   */
+  @Test
+  void testTemplateWorkloadClass() {
+    limiter.afterPropertiesSet();
+    SqlSessionTemplate template = new SqlSessionTemplate(sqlSessionFactory);
+    template.setWorkloadClass(WorkloadClass.BATCH);
+
+    SqlSession first = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    WorkloadClass.run(WorkloadClass.OLTP, () -> assertThatThrownBy(() -> template.selectOne("any"))
+        .isInstanceOf(ConcurrencyLimitExceededException.class)
+        .hasMessageContaining("BATCH call"));
+    SqlSessionUtils.closeSqlSession(first, sqlSessionFactory);
+
+    assertThat(WorkloadClass.current()).isEqualTo(WorkloadClass.OLTP);
+  }
+
+  /**
+   * 一个事务只占一个许可，事务结束时归还
+   */
+  @Test
+  void testTransactionHoldsOnePermit() {
+    limiter.afterPropertiesSet();
+    TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+    transactionTemplate.execute(status -> {
+      SqlSession session = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+      SqlSessionUtils.closeSqlSession(session, sqlSessionFactory);
+      SqlSession again = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+      SqlSessionUtils.closeSqlSession(again, sqlSessionFactory);
+      assertThat(limiter.getInFlight()).isEqualTo(1);
+      return null;
+    });
+
+    assertThat(limiter.getInFlight()).isZero();
+    assertThat(TransactionSynchronizationManager.hasResource(limiter)).isFalse();
+  }
+
+  /**
+   * 延迟接近基线时增大限制，排队严重时减小限制
+   */
+  @Test
+  void testVegasAdjustsLimitByLatency() {
+    limiter.setInitialLimit(20);
+    limiter.setMaxLimit(100);
+    limiter.afterPropertiesSet();
+    long baseline = TimeUnit.MILLISECONDS.toNanos(10);
+
+    limiter.onSample(baseline, 20);
+    for (int i = 0; i < 5; i++) {
+      limiter.onSample(baseline, limiter.getLimit());
+    }
+    int grown = limiter.getLimit();
+    assertThat(grown).isGreaterThan(20);
+
+    for (int i = 0; i < 20; i++) {
+      limiter.onSample(baseline * 10, limiter.getLimit());
+    }
+    assertThat(limiter.getLimit()).isLessThan(grown);
+
+    // 并发没有用满时不调整
+    int limit = limiter.getLimit();
+    limiter.onSample(baseline * 10, 1);
+    assertThat(limiter.getLimit()).isEqualTo(limit);
+  }
+
+}
@@ -0,0 +1,316 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import cn.javadog.sd.mybatis.builder.StaticSqlSource;
+import cn.javadog.sd.mybatis.mapping.BoundSql;
+import cn.javadog.sd.mybatis.mapping.MappedStatement;
+import cn.javadog.sd.mybatis.mapping.ParameterMapping;
+import cn.javadog.sd.mybatis.mapping.ResultMap;
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.support.type.BaseTypeHandler;
+import cn.javadog.sd.mybatis.support.type.JdbcType;
+import cn.javadog.sd.mybatis.support.type.MappedTypes;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * @author 余勇
+ * @date 2019-12-25 19:30
+ * mapper 文件解析结果的磁盘快照
+ */
+class ConfigurationSnapshotTest {
+
+  private static final String NAMESPACE = "snapshot.DynamicMapper";
+
+  private static final String DYNAMIC_MAPPER = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+      + "<mapper namespace=\"" + NAMESPACE + "\">\n"
+      + "  <cache-ref namespace=\"cn.javadog.sd.mybatis.spring.TestMapper\"/>\n"
+      + "  <parameterMap id=\"byId\" type=\"map\"><parameter property=\"id\" javaType=\"int\"/></parameterMap>\n"
+      + "  <resultMap id=\"user\" type=\"map\">\n"
+      + "    <id column=\"id\" property=\"id\" javaType=\"int\"/>\n"
+      + "    <result column=\"name\" property=\"name\" javaType=\"string\"/>\n"
+      + "    <discriminator column=\"kind\" javaType=\"int\"><case value=\"1\" resultMap=\"user\"/></discriminator>\n"
+      + "  </resultMap>\n"
+      + "  <sql id=\"columns\">id, name, kind</sql>\n"
+      + "  <select id=\"find\" resultMap=\"user\">\n"
+      + "    <bind name=\"pattern\" value=\"'%' + name + '%'\"/>\n"
+      + "    SELECT <include refid=\"columns\"/> FROM users\n"
+      + "    <where>\n"
+      + "      <if test=\"id != null\">id = #{id}</if>\n"
+      + "      <if test=\"name != null\">AND name LIKE #{pattern}</if>\n"
+      + "      <if test=\"ids != null\">AND id IN <foreach collection=\"ids\" item=\"i\" open=\"(\" separator=\",\" close=\")\">#{i}</foreach></if>\n"
+      + "    </where>\n"
+      + "    <choose><when test=\"kind == 1\">ORDER BY id</when><otherwise>ORDER BY name</otherwise></choose>\n"
+      + "  </select>\n"
+      + "  <select id=\"findById\" parameterMap=\"byId\" resultType=\"map\">SELECT * FROM users WHERE id = ?</select>\n"
+      + "  <update id=\"update\">\n"
+      + "    UPDATE users <set><if test=\"name != null\">name = #{name},</if></set>\n"
+      + "    <trim prefix=\"WHERE\" prefixOverrides=\"AND |OR \">AND id = #{id, jdbcType=INTEGER}</trim>\n"
+      + "  </update>\n"
+      + "  <insert id=\"insert\" useGeneratedKeys=\"true\" keyProperty=\"id\">INSERT INTO users (name) VALUES (#{name})</insert>\n"
+      + "</mapper>\n";
+
+  @TempDir
+  Path tempDir;
+
+  private Path snapshotDirectory;
+
+  private Path mapperFile;
+
+  @BeforeEach
+  void writeMapper() throws Exception {
+    snapshotDirectory = tempDir.resolve("snapshots");
+    mapperFile = tempDir.resolve("DynamicMapper.xml");
+    Files.write(mapperFile, DYNAMIC_MAPPER.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * 冷启动写快照，热启动从快照恢复，结果与解析一致
+   */
+  @Test
+  void testRestoresIdenticalConfiguration() throws Exception {
+    SqlSessionFactoryBean cold = newFactoryBean();
+    Configuration parsed = cold.getObject().getConfiguration();
+    assertThat(phases(cold, StartupTimingReport.PHASE_SNAPSHOT_WRITE)).isEqualTo(1);
+    assertThat(snapshots()).hasSize(1);
+
+    SqlSessionFactoryBean warm = newFactoryBean();
+    Configuration restored = warm.getObject().getConfiguration();
+    assertThat(phases(warm, StartupTimingReport.PHASE_SNAPSHOT_LOAD)).isEqualTo(1);
+    assertThat(phases(warm, StartupTimingReport.PHASE_MAPPER_PARSE)).isZero();
+
+    assertThat(restored.getMappedStatementNames()).containsExactlyInAnyOrderElementsOf(parsed.getMappedStatementNames());
+    assertThat(restored.getResultMapNames()).containsExactlyInAnyOrderElementsOf(parsed.getResultMapNames());
+    assertThat(restored.getSqlFragments()).containsKey(NAMESPACE + ".columns");
+    assertThat(restored.hasMapper(TestMapper.class)).isTrue();
+    assertThat(restored.getMappedStatement("cn.javadog.sd.mybatis.spring.TestMapper.findTest").getSqlSource())
+        .isInstanceOf(StaticSqlSource.class);
+
+    Map<String, Object> parameter = parameter();
+    for (String id : parsed.getMappedStatementNames()) {
+      if (!id.contains(".")) {
+        continue;
+      }
+      MappedStatement expected = parsed.getMappedStatement(id);
+      MappedStatement actual = restored.getMappedStatement(id);
+      assertThat(actual.getSqlCommandType()).as(id).isEqualTo(expected.getSqlCommandType());
+      assertThat(actual.getKeyGenerator()).as(id).isSameAs(expected.getKeyGenerator());
+      assertThat(actual.getCache().getId()).as(id).isEqualTo(expected.getCache().getId());
+      assertThat(resultMapIds(actual)).as(id).isEqualTo(resultMapIds(expected));
+      assertThat(actual.getParameterMap().getId()).as(id).isEqualTo(expected.getParameterMap().getId());
+      BoundSql expectedSql = expected.getBoundSql(parameter);
+      BoundSql actualSql = actual.getBoundSql(parameter);
+      assertThat(actualSql.getSql()).as(id).isEqualTo(expectedSql.getSql());
+      assertThat(properties(actualSql)).as(id).isEqualTo(properties(expectedSql));
+    }
+    ResultMap user = restored.getResultMap(NAMESPACE + ".user");
+    assertThat(user.getDiscriminator().getMapIdFor("1")).isEqualTo(NAMESPACE + ".user");
+    assertThat(user.getIdResultMappings()).extracting(mapping -> mapping.getColumn()).containsExactly("id");
+  }
+
+  /**
+   * mapper 文件变了，快照不再命中，重新解析并替换旧快照
+   */
+  @Test
+  void testChangedMapperInvalidatesSnapshot() throws Exception {
+    newFactoryBean().getObject();
+    List<Path> before = snapshots();
+
+    Files.write(mapperFile, DYNAMIC_MAPPER.replace("ORDER BY id", "ORDER BY kind").getBytes(StandardCharsets.UTF_8));
+    SqlSessionFactoryBean changed = newFactoryBean();
+    Configuration configuration = changed.getObject().getConfiguration();
+
+    assertThat(phases(changed, StartupTimingReport.PHASE_MAPPER_PARSE)).isEqualTo(2);
+    assertThat(configuration.getMappedStatement(NAMESPACE + ".find").getBoundSql(parameter()).getSql())
+        .contains("ORDER BY kind");
+    assertThat(snapshots()).hasSize(1).doesNotContainAnyElementsOf(before);
+  }
+
+  /**
+   * 快照损坏时回退到正常解析
+   */
+  @Test
+  void testCorruptSnapshotFallsBackToParsing() throws Exception {
+    newFactoryBean().getObject();
+    Path snapshot = snapshots().get(0);
+    Files.write(snapshot, new byte[] { 1, 2, 3 });
+
+    SqlSessionFactoryBean factoryBean = newFactoryBean();
+    Configuration configuration = factoryBean.getObject().getConfiguration();
+
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_PARSE)).isEqualTo(2);
+    assertThat(configuration.hasStatement(NAMESPACE + ".find")).isTrue();
+  }
+
+  /**
+   * 快照由别的 MyBatis 核心写出时作废，回退到正常解析
+   */
+  @Test
+  void testCoreVersionMismatchFallsBackToParsing() throws Exception {
+    newFactoryBean().getObject();
+    Path snapshot = snapshots().get(0);
+    byte[] content = Files.readAllBytes(snapshot);
+    // 魔数、格式版本、核心版本的长度之后就是核心版本
+    content[12] ^= 1;
+    Files.write(snapshot, content);
+
+    SqlSessionFactoryBean factoryBean = newFactoryBean();
+    Configuration configuration = factoryBean.getObject().getConfiguration();
+
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_PARSE)).isEqualTo(2);
+    assertThat(configuration.hasStatement(NAMESPACE + ".find")).isTrue();
+  }
+
+  /**
+   * 快照依赖的类变了，比如 mapper 接口改了注解，快照作废，回退到正常解析
+   */
+  @Test
+  void testChangedClassInvalidatesSnapshot() throws Exception {
+    newFactoryBean().getObject();
+    Path snapshot = snapshots().get(0);
+    byte[] content = Files.readAllBytes(snapshot);
+    // 文件末尾是最后一个类文件的摘要
+    content[content.length - 1] = (byte) (content[content.length - 1] == '0' ? '1' : '0');
+    Files.write(snapshot, content);
+
+    SqlSessionFactoryBean factoryBean = newFactoryBean();
+    Configuration configuration = factoryBean.getObject().getConfiguration();
+
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_PARSE)).isEqualTo(2);
+    assertThat(configuration.hasStatement(NAMESPACE + ".find")).isTrue();
+  }
+
+  /**
+   * 类型处理器的类文件计入内容哈希
+   */
+  @Test
+  void testContentHashCoversTypeHandlerClasses() throws Exception {
+    Configuration configuration = new Configuration();
+    String before = ConfigurationSnapshot.contentHash(null, new Resource[0], configuration);
+    configuration.getTypeHandlerRegistry().register(SnapshotTypeHandler.class);
+
+    assertThat(ConfigurationSnapshot.contentHash(null, new Resource[0], configuration)).isNotEqualTo(before);
+    assertThat(ConfigurationSnapshot.classDigest(SnapshotTypeHandler.class)).hasSize(64);
+  }
+
+  /**
+   * 装配在临时的 Configuration 上演练失败时，真正的 Configuration 不会被改动，正常解析不会因为重复注册而启动失败
+   */
+  @Test
+  void testFailedApplyFallsBackToParsing() throws Exception {
+    Configuration parsed = newFactoryBean().getObject().getConfiguration();
+
+    FailingConfiguration.failed.set(false);
+    SqlSessionFactoryBean factoryBean = newFactoryBean();
+    factoryBean.setConfiguration(new FailingConfiguration());
+    Configuration configuration = factoryBean.getObject().getConfiguration();
+
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_PARSE)).isEqualTo(2);
+    assertThat(configuration.getMappedStatementNames()).containsExactlyInAnyOrderElementsOf(parsed.getMappedStatementNames());
+    assertThat(configuration.getCacheNames()).containsExactlyInAnyOrderElementsOf(parsed.getCacheNames());
+    assertThat(configuration.hasMapper(TestMapper.class)).isTrue();
+    assertThat(FailingConfiguration.failed).isTrue();
+  }
+
+  private SqlSessionFactoryBean newFactoryBean() throws Exception {
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setDataSource(new PooledMockDataSource());
+    factoryBean.setMapperLocations(new Resource[] {
+        new ClassPathResource("cn/javadog/sd/mybatis/spring/TestMapper.xml"),
+        new FileSystemResource(mapperFile.toFile()) });
+    factoryBean.setSnapshotDirectory(snapshotDirectory);
+    return factoryBean;
+  }
+
+  private List<Path> snapshots() throws Exception {
+    try (Stream<Path> files = Files.list(snapshotDirectory)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  private static long phases(SqlSessionFactoryBean factoryBean, String phase) {
+    return factoryBean.getStartupTimingReport().getPhases().stream().filter(p -> p.getName().equals(phase)).count();
+  }
+
+  private static List<String> resultMapIds(MappedStatement statement) {
+    return statement.getResultMaps().stream().map(ResultMap::getId).collect(Collectors.toList());
+  }
+
+  private static List<String> properties(BoundSql boundSql) {
+    return boundSql.getParameterMappings().stream().map(ParameterMapping::getProperty).collect(Collectors.toList());
+  }
+
+  private static Map<String, Object> parameter() {
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("id", 1);
+    parameter.put("name", "n");
+    parameter.put("ids", Arrays.asList(1, 2));
+    parameter.put("kind", 1);
+    return parameter;
+  }
+
+  /**
+   * 第一次 addMapper 失败，演练装配时用的也是这个类
+   */
+  public static class FailingConfiguration extends Configuration {
+
+    static final AtomicBoolean failed = new AtomicBoolean();
+
+    @Override
+    public <T> void addMapper(Class<T> type) {
+      if (failed.compareAndSet(false, true)) {
+        throw new IllegalStateException("addMapper failed");
+      }
+      super.addMapper(type);
+    }
+  }
+
+  @MappedTypes(StringBuilder.class)
+  public static class SnapshotTypeHandler extends BaseTypeHandler<StringBuilder> {
+
+    @Override
+    public void setNonNullParameter(PreparedStatement ps, int i, StringBuilder parameter, JdbcType jdbcType)
+        throws SQLException {
+      ps.setString(i, parameter.toString());
+    }
+
+    @Override
+    public StringBuilder getNullableResult(ResultSet rs, String columnName) throws SQLException {
+      String value = rs.getString(columnName);
+      return value == null ? null : new StringBuilder(value);
+    }
+
+    @Override
+    public StringBuilder getNullableResult(ResultSet rs, int columnIndex) throws SQLException {
+      String value = rs.getString(columnIndex);
+      return value == null ? null : new StringBuilder(value);
+    }
+
+    @Override
+    public StringBuilder getNullableResult(CallableStatement cs, int columnIndex) throws SQLException {
+      String value = cs.getString(columnIndex);
+      return value == null ? null : new StringBuilder(value);
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cn.javadog.sd.mybatis.spring.transaction.Deadline;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 17:40
+ * 线程范围的截止时间
+ */
+@ExtendWith(TransactionSynchronizationCleaner.class)
+class DeadlineTest {
+
+  private static final String INSERT = "cn.javadog.sd.mybatis.spring.TestMapper.insertTest";
+
+  private DataSource dataSource;
+
+  private Connection connection;
+
+  private PreparedStatement statement;
+
+  private SqlSessionTemplate template;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    connection = mock(Connection.class);
+    statement = mock(PreparedStatement.class);
+    dataSource = TestMapperFixture.mockDataSource(connection, statement);
+    template = new SqlSessionTemplate(TestMapperFixture.sqlSessionFactory(dataSource));
+  }
+
+  /**
+   * queryTimeout 是剩余时间向上取整
+   */
+  @Test
+  void testQueryTimeoutFromRemainingBudget() throws Exception {
+    Deadline.run(Duration.ofMillis(1500), () -> template.insert(INSERT, "test"));
+
+    verify(statement).setQueryTimeout(2);
+    assertThat(Deadline.current()).isNull();
+  }
+
+  /**
+   * 嵌套的范围不会晚于外层
+   */
+  @Test
+  void testNestedDeadlineNotLaterThanOuter() throws Exception {
+    Deadline.run(Duration.ofMillis(900), () -> Deadline.run(Duration.ofSeconds(30), () -> template.insert(INSERT, "test")));
+
+    verify(statement).setQueryTimeout(1);
+  }
+
+  @Test
+  void testRefusesWorkAfterDeadline() throws Exception {
+    Deadline.run(Duration.ZERO, () -> assertThatThrownBy(() -> template.insert(INSERT, "test"))
+        .isInstanceOf(QueryTimeoutException.class));
+
+    verify(dataSource, never()).getConnection();
+  }
+
+  /**
+   * 到期时取消还在执行的语句，连接随之释放
+   */
+  @Test
+  void testCancelsRunningStatementOnExpiry() throws Exception {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    when(statement.execute()).thenAnswer(invocation -> {
+      if (!cancelled.await(10, TimeUnit.SECONDS)) {
+        throw new AssertionError("statement was not cancelled");
+      }
+      throw new SQLException("statement cancelled", "HY008");
+    });
+    doAnswer(invocation -> {
+      cancelled.countDown();
+      return null;
+    }).when(statement).cancel();
+
+    long start = System.nanoTime();
+    Deadline.run(Duration.ofMillis(200), () -> assertThatThrownBy(() -> template.insert(INSERT, "test"))
+        .isInstanceOf(DataAccessException.class));
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5000);
+    verify(statement).cancel();
+    verify(connection, atLeastOnce()).close();
+  }
+
+}
@@ -0,0 +1,260 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.BadSqlGrammarException;
+
+/**
+ * @author 余勇
+ * @date 2019-12-29 11:30
+ * 副本上的对冲查询
+ */
+class HedgedReadTemplateTest {
+
+  private static final String FIND = "cn.javadog.sd.mybatis.spring.TestMapper.findTest";
+
+  private final CountDownLatch slowCancelled = new CountDownLatch(1);
+
+  private DataSource slowDataSource;
+
+  private PreparedStatement slowStatement;
+
+  private DataSource fastDataSource;
+
+  private PreparedStatement fastStatement;
+
+  private HedgedReadTemplate hedgedReadTemplate;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    slowStatement = replica();
+    slowDataSource = TestMapperFixture.mockDataSource(mock(Connection.class), slowStatement);
+    // 慢副本一直执行到被取消
+    when(slowStatement.execute()).thenAnswer(invocation -> {
+      if (!slowCancelled.await(5, TimeUnit.SECONDS)) {
+        return false;
+      }
+      throw new SQLException("Query execution was interrupted", "70100", 1317);
+    });
+    doAnswer(invocation -> {
+      slowCancelled.countDown();
+      return null;
+    }).when(slowStatement).cancel();
+
+    fastStatement = replica();
+    fastDataSource = TestMapperFixture.mockDataSource(mock(Connection.class), fastStatement);
+  }
+
+  @AfterEach
+  void tearDown() {
+    hedgedReadTemplate.destroy();
+  }
+
+  /**
+   * 首选副本迟迟不返回，对冲到另一个副本，慢的被取消
+   */
+  @Test
+  void testHedgesToSecondReplica() throws Exception {
+    hedgedReadTemplate = hedgedReadTemplate(slowDataSource, fastDataSource, 20);
+    hedgedReadTemplate.setMaxHedgeRatio(1);
+
+    long startNanos = System.nanoTime();
+    List<Integer> result = hedgedReadTemplate.selectList(FIND);
+
+    assertThat(result).isEmpty();
+    assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos)).isLessThan(4);
+    assertThat(hedgedReadTemplate.getHedgedRequests()).isEqualTo(1);
+    verify(fastStatement).execute();
+    verify(slowStatement, timeout(2000)).cancel();
+  }
+
+  /**
+   * 被取消的输家也计入延迟分布，不会只剩下快的样本
+   */
+  @Test
+  void testRecordsCancelledAttempt() throws Exception {
+    hedgedReadTemplate = hedgedReadTemplate(slowDataSource, fastDataSource, 20);
+    hedgedReadTemplate.setMaxHedgeRatio(1);
+    hedgedReadTemplate.setMinSamples(2);
+
+    hedgedReadTemplate.selectList(FIND);
+
+    // 输家在取消之后才记录
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (hedgedReadTemplate.hedgeDelayMicros(FIND) == 20000 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(hedgedReadTemplate.hedgeDelayMicros(FIND)).isGreaterThan(20000);
+  }
+
+  /**
+   * 首选副本连不上时马上转到下一个副本，不等对冲，不消耗令牌；失败至少按对冲等待时间计入分布
+   */
+  @Test
+  void testFailsOverOnConnectionFailure() throws Exception {
+    DataSource downDataSource = mock(DataSource.class);
+    when(downDataSource.getConnection()).thenThrow(new SQLTransientConnectionException("Connection is not available, request timed out"));
+    hedgedReadTemplate = hedgedReadTemplate(downDataSource, fastDataSource, 2000);
+    // 把令牌用完，转移不靠令牌
+    hedgedReadTemplate.setMaxHedgeRatio(0);
+    hedgedReadTemplate.setMaxHedgeTokens(1);
+    hedgedReadTemplate.tryHedge();
+    hedgedReadTemplate.setMinSamples(2);
+
+    long startNanos = System.nanoTime();
+    List<Integer> result = hedgedReadTemplate.selectList(FIND);
+
+    assertThat(result).isEmpty();
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)).isLessThan(1000);
+    assertThat(hedgedReadTemplate.getFailedOverRequests()).isEqualTo(1);
+    verify(fastStatement).execute();
+    assertThat(hedgedReadTemplate.hedgeDelayMicros(FIND)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toMicros(2000));
+  }
+
+  /**
+   * 不是连接级的失败照常抛出，不转到下一个副本
+   */
+  @Test
+  void testOtherFailuresAreNotFailedOver() throws Exception {
+    when(fastStatement.execute()).thenThrow(new SQLSyntaxErrorException("Unknown column", "42S22", 1054));
+    hedgedReadTemplate = hedgedReadTemplate(fastDataSource, slowDataSource, 2000);
+
+    assertThatThrownBy(() -> hedgedReadTemplate.selectList(FIND)).isInstanceOf(BadSqlGrammarException.class);
+    assertThat(hedgedReadTemplate.getFailedOverRequests()).isZero();
+    verify(slowDataSource, never()).getConnection();
+  }
+
+  /**
+   * 首选副本及时返回时不对冲
+   */
+  @Test
+  void testNoHedgeWhenPrimaryAnswersInTime() throws Exception {
+    hedgedReadTemplate = hedgedReadTemplate(fastDataSource, slowDataSource, 2000);
+
+    hedgedReadTemplate.selectList(FIND);
+
+    assertThat(hedgedReadTemplate.getHedgedRequests()).isZero();
+    verify(slowDataSource, never()).getConnection();
+  }
+
+  /**
+   * 令牌按查询次数慢慢攒，最多攒 maxHedgeTokens 个，很久不对冲也攒不出一大笔额度
+   */
+  @Test
+  void testHedgeBudget() throws Exception {
+    hedgedReadTemplate = hedgedReadTemplate(fastDataSource, slowDataSource, 50);
+    hedgedReadTemplate.setMaxHedgeRatio(0.5);
+    hedgedReadTemplate.setMaxHedgeTokens(1);
+
+    assertThat(hedgedReadTemplate.tryHedge()).isTrue();
+    assertThat(hedgedReadTemplate.tryHedge()).isFalse();
+    hedgedReadTemplate.depositHedgeToken();
+    assertThat(hedgedReadTemplate.tryHedge()).isFalse();
+    hedgedReadTemplate.depositHedgeToken();
+    assertThat(hedgedReadTemplate.tryHedge()).isTrue();
+
+    for (int i = 0; i < 1000; i++) {
+      hedgedReadTemplate.depositHedgeToken();
+    }
+    assertThat(hedgedReadTemplate.tryHedge()).isTrue();
+    assertThat(hedgedReadTemplate.tryHedge()).isFalse();
+    assertThat(hedgedReadTemplate.getHedgedRequests()).isEqualTo(3);
+  }
+
+  /**
+   * executor 拒绝时不对冲，在调用线程上查询
+   */
+  @Test
+  void testQueriesOnCallingThreadWhenExecutorSaturated() throws Exception {
+    hedgedReadTemplate = new HedgedReadTemplate();
+    hedgedReadTemplate.setReplicas(Arrays.asList(TestMapperFixture.sqlSessionFactory(fastDataSource), TestMapperFixture.sqlSessionFactory(slowDataSource)));
+    hedgedReadTemplate.setExecutor(command -> {
+      throw new RejectedExecutionException("saturated");
+    });
+    hedgedReadTemplate.afterPropertiesSet();
+
+    assertThat(hedgedReadTemplate.<Integer>selectList(FIND)).isEmpty();
+    assertThat(hedgedReadTemplate.getHedgedRequests()).isZero();
+    verify(fastStatement).execute();
+  }
+
+  /**
+   * 多个线程同时记录样本，穿插着衰减，分布依然正确
+   */
+  @Test
+  void testConcurrentRecordAndDecay() throws Exception {
+    hedgedReadTemplate = hedgedReadTemplate(fastDataSource, slowDataSource, 50);
+    hedgedReadTemplate.setMinSamples(100);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < 5000; j++) {
+          hedgedReadTemplate.recordLatency(FIND, TimeUnit.MILLISECONDS.toNanos(2));
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(hedgedReadTemplate.hedgeDelayMicros(FIND)).isBetween(2000L, 2500L);
+  }
+
+  /**
+   * 样本足够时按分位延迟对冲
+   */
+  @Test
+  void testHedgeDelayFromPercentile() throws Exception {
+    hedgedReadTemplate = hedgedReadTemplate(fastDataSource, slowDataSource, 50);
+    hedgedReadTemplate.setMinSamples(100);
+    for (int i = 0; i < 99; i++) {
+      hedgedReadTemplate.recordLatency(FIND, TimeUnit.MILLISECONDS.toNanos(i < 95 ? 2 : 40));
+    }
+    assertThat(hedgedReadTemplate.hedgeDelayMicros(FIND)).isEqualTo(50000);
+
+    hedgedReadTemplate.recordLatency(FIND, TimeUnit.MILLISECONDS.toNanos(2));
+    // 2ms 所在桶的上界，误差不超过 25%
+    assertThat(hedgedReadTemplate.hedgeDelayMicros(FIND)).isBetween(2000L, 2500L);
+  }
+
+  private HedgedReadTemplate hedgedReadTemplate(DataSource first, DataSource second, long defaultHedgeDelayMillis) throws Exception {
+    HedgedReadTemplate template = new HedgedReadTemplate();
+    template.setReplicas(Arrays.asList(TestMapperFixture.sqlSessionFactory(first), TestMapperFixture.sqlSessionFactory(second)));
+    template.setDefaultHedgeDelayMillis(defaultHedgeDelayMillis);
+    template.afterPropertiesSet();
+    return template;
+  }
+
+  /**
+   * 查询没有结果集的副本
+   */
+  private static PreparedStatement replica() throws SQLException {
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(statement.getUpdateCount()).thenReturn(-1);
+    return statement;
+  }
+
+}
@@ -0,0 +1,144 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cn.javadog.sd.mybatis.session.Configuration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 11:40
+ * 按需解析 mapper 文件
+ */
+class LazyMapperParsingTest {
+
+  private static final String TEST_MAPPER = "cn.javadog.sd.mybatis.spring.TestMapper";
+
+  /**
+   * 并发测试用的合成 mapper 数量
+   */
+  private static final int MAPPER_COUNT = 50;
+
+  @TempDir
+  Path tempDir;
+
+  private final List<Resource> mapperLocations = new ArrayList<>();
+
+  @BeforeEach
+  void writeMappers() throws Exception {
+    mapperLocations.add(new ClassPathResource("cn/javadog/sd/mybatis/spring/TestMapper.xml"));
+    write("A", "  <resultMap id=\"user\" type=\"map\" extends=\"lazy.B.base\">\n"
+        + "    <result column=\"name\" property=\"name\"/>\n"
+        + "  </resultMap>\n"
+        + "  <select id=\"find\" resultMap=\"user\">SELECT <include refid=\"lazy.B.columns\"/> FROM users</select>\n");
+    write("B", "  <resultMap id=\"base\" type=\"map\"><id column=\"id\" property=\"id\"/></resultMap>\n"
+        + "  <sql id=\"columns\">id, name</sql>\n");
+    write("C", "  <select id=\"count\" resultType=\"int\">SELECT COUNT(*) FROM users</select>\n");
+  }
+
+  /**
+   * 启动时只建索引，第一次访问时解析，并递归解析被引用的 namespace
+   */
+  @Test
+  void testParsesNamespaceOnFirstUse() throws Exception {
+    SqlSessionFactoryBean factoryBean = newFactoryBean(mapperLocations);
+    LazyMapperConfiguration configuration = (LazyMapperConfiguration) factoryBean.getObject().getConfiguration();
+
+    assertThat(configuration.getPendingNamespaces()).containsExactlyInAnyOrder(TEST_MAPPER, "lazy.A", "lazy.B", "lazy.C");
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_INDEX)).isEqualTo(4);
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_PARSE)).isZero();
+    // namespace 对应的 mapper 接口启动时就已经注册
+    assertThat(configuration.hasMapper(TestMapper.class)).isTrue();
+
+    assertThat(configuration.getMappedStatement("lazy.A.find").getBoundSql(null).getSql()).contains("id, name");
+    assertThat(configuration.getResultMap("lazy.A.user").getIdResultMappings()).hasSize(1);
+    assertThat(configuration.getPendingNamespaces()).containsExactlyInAnyOrder(TEST_MAPPER, "lazy.C");
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_PARSE)).isEqualTo(2);
+
+    // 短 id 通过索引找到 namespace
+    assertThat(configuration.hasStatement("findTest")).isTrue();
+    assertThat(configuration.getPendingNamespaces()).containsExactly("lazy.C");
+
+    assertThat(configuration.getMappedStatementNames()).contains("lazy.C.count");
+    assertThat(configuration.getPendingNamespaces()).isEmpty();
+  }
+
+  /**
+   * failFast 时立即解析
+   */
+  @Test
+  void testFailFastParsesEagerly() throws Exception {
+    SqlSessionFactoryBean factoryBean = newFactoryBean(mapperLocations);
+    factoryBean.setFailFast(true);
+    LazyMapperConfiguration configuration = (LazyMapperConfiguration) factoryBean.getObject().getConfiguration();
+
+    assertThat(configuration.getPendingNamespaces()).isEmpty();
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_PARSE)).isEqualTo(4);
+    assertThat(phases(factoryBean, StartupTimingReport.PHASE_MAPPER_INDEX)).isZero();
+  }
+
+  /**
+   * 多个线程同时触发不同 namespace 的解析，结果完整
+   */
+  @Test
+  void testConcurrentFirstUse() throws Exception {
+    List<Resource> locations = new ArrayList<>();
+    for (int m = 0; m < MAPPER_COUNT; m++) {
+      locations.add(write("M" + m, "  <select id=\"find\" resultType=\"map\">"
+          + "SELECT <include refid=\"lazy.B.columns\"/> FROM t" + m + "</select>\n"));
+    }
+    locations.add(mapperLocations.get(2));
+    Configuration configuration = newFactoryBean(locations).getObject().getConfiguration();
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> futures = new ArrayList<>();
+      for (int i = 0; i < MAPPER_COUNT * 4; i++) {
+        String id = "lazy.M" + (i % MAPPER_COUNT) + ".find";
+        futures.add(executor.submit(() -> configuration.getMappedStatement(id).getBoundSql(null).getSql()));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        assertThat(futures.get(i).get()).contains("id, name").endsWith("FROM t" + (i % MAPPER_COUNT));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(((LazyMapperConfiguration) configuration).getPendingNamespaces()).isEmpty();
+  }
+
+  private Resource write(String name, String body) throws Exception {
+    Path file = tempDir.resolve(name + ".xml");
+    String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<mapper namespace=\"lazy." + name + "\">\n" + body + "</mapper>\n";
+    Files.write(file, xml.getBytes(StandardCharsets.UTF_8));
+    Resource resource = new FileSystemResource(file.toFile());
+    mapperLocations.add(resource);
+    return resource;
+  }
+
+  private static SqlSessionFactoryBean newFactoryBean(List<Resource> mapperLocations) {
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setDataSource(new PooledMockDataSource());
+    factoryBean.setMapperLocations(mapperLocations.toArray(new Resource[0]));
+    factoryBean.setLazyMapperParsing(true);
+    return factoryBean;
+  }
+
+  private static long phases(SqlSessionFactoryBean factoryBean, String phase) {
+    return factoryBean.getStartupTimingReport().getPhases().stream().filter(p -> p.getName().equals(phase)).count();
+  }
+
+}
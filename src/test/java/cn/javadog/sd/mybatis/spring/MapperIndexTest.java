@@ -0,0 +1,121 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import cn.javadog.sd.mybatis.spring.mapper.ClassPathMapperScanner;
+import cn.javadog.sd.mybatis.spring.mapper.MapperIndex;
+import cn.javadog.sd.mybatis.spring.mapper.MapperIndexProcessor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 16:10
+ * 编译期生成的 mapper 索引
+ */
+class MapperIndexTest {
+
+  @TempDir
+  Path tempDir;
+
+  private Path classes;
+
+  /**
+   * 带上处理器编译几个接口
+   */
+  @BeforeEach
+  void compile() throws Exception {
+    Path sources = tempDir.resolve("src");
+    classes = Files.createDirectories(tempDir.resolve("classes"));
+    List<Path> files = Arrays.asList(
+        source(sources, "idx/Marker.java", "package idx; public interface Marker {}"),
+        source(sources, "idx/Repo.java", "package idx; @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)"
+            + " public @interface Repo {}"),
+        source(sources, "idx/a/UserMapper.java", "package idx.a; @idx.Repo public interface UserMapper {}"),
+        source(sources, "idx/a/OrderMapper.java", "package idx.a; public interface OrderMapper extends idx.Marker {}"),
+        source(sources, "idx/b/Service.java", "package idx.b; public class Service { public interface Callback {} }"));
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+      JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null,
+          Arrays.asList("--release", "8", "-d", classes.toString()), null,
+          fileManager.getJavaFileObjectsFromFiles(files.stream().map(Path::toFile).collect(Collectors.toList())));
+      task.setProcessors(Collections.singletonList(new MapperIndexProcessor()));
+      assertThat(task.call()).isTrue();
+    }
+  }
+
+  @Test
+  void testProcessorWritesIndex() throws Exception {
+    List<String> lines = Files.readAllLines(classes.resolve(MapperIndex.INDEX_LOCATION));
+
+    assertThat(lines).containsExactly(
+        "idx.Marker=",
+        "idx.a.OrderMapper=idx.Marker",
+        "idx.a.UserMapper=idx.Repo",
+        "idx.b.Service$Callback=");
+  }
+
+  /**
+   * 有索引时按索引注册，索引里没有的接口不会被发现
+   */
+  @Test
+  void testScannerUsesIndex() throws Exception {
+    try (URLClassLoader classLoader = newClassLoader()) {
+      assertThat(scan(classLoader, null, null, "idx.a")).containsExactlyInAnyOrder("userMapper", "orderMapper");
+      assertThat(scan(classLoader, classLoader.loadClass("idx.Marker"), null, "idx")).containsExactly("orderMapper");
+      assertThat(scan(classLoader, null, repo(classLoader), "idx.*")).containsExactly("userMapper");
+    }
+
+    Files.write(classes.resolve(MapperIndex.INDEX_LOCATION), "idx.a.UserMapper=idx.Repo\n".getBytes(StandardCharsets.ISO_8859_1));
+    try (URLClassLoader classLoader = newClassLoader()) {
+      assertThat(scan(classLoader, null, null, "idx")).containsExactly("userMapper");
+    }
+  }
+
+  private URLClassLoader newClassLoader() throws Exception {
+    return new URLClassLoader(new URL[] { classes.toUri().toURL() }, getClass().getClassLoader());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Class<? extends Annotation> repo(ClassLoader classLoader) throws Exception {
+    return (Class<? extends Annotation>) classLoader.loadClass("idx.Repo");
+  }
+
+  private static List<String> scan(ClassLoader classLoader, Class<?> markerInterface,
+      Class<? extends Annotation> annotationClass, String basePackage) {
+    DefaultListableBeanFactory registry = new DefaultListableBeanFactory();
+    ClassPathMapperScanner scanner = new ClassPathMapperScanner(registry);
+    scanner.setResourceLoader(new DefaultResourceLoader(classLoader));
+    scanner.setMarkerInterface(markerInterface);
+    scanner.setAnnotationClass(annotationClass);
+    scanner.registerFilters();
+    scanner.doScan(basePackage);
+    return Arrays.asList(registry.getBeanDefinitionNames());
+  }
+
+  private static Path source(Path root, String name, String content) throws Exception {
+    Path file = root.resolve(name);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+}
@@ -0,0 +1,74 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.spring.annotation.MapperScan;
+import cn.javadog.sd.mybatis.spring.mapper.MapperScannerConfigurer;
+import cn.javadog.sd.mybatis.spring.scan.LazyMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.support.GenericApplicationContext;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 22:20
+ * mapper bean 懒加载
+ */
+class MapperLazyInitializationTest {
+
+  @Test
+  void testMapperScanLazyInitialization() {
+    try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(LazyConfig.class)) {
+      assertLazy(context);
+    }
+  }
+
+  @Test
+  void testMapperScannerConfigurerLazyInitialization() {
+    try (GenericApplicationContext context = new GenericApplicationContext()) {
+      context.registerBeanDefinition("mapperScanner", BeanDefinitionBuilder.genericBeanDefinition(MapperScannerConfigurer.class)
+          .addPropertyValue("basePackage", "cn.javadog.sd.mybatis.spring.scan")
+          .addPropertyValue("lazyInitialization", "true")
+          .getBeanDefinition());
+      context.registerBeanDefinition("sqlSessionFactory", BeanDefinitionBuilder.genericBeanDefinition(SqlSessionFactoryBean.class)
+          .addPropertyValue("dataSource", new PooledMockDataSource())
+          .getBeanDefinition());
+      context.refresh();
+      assertLazy(context);
+    }
+  }
+
+  /**
+   * 刷新后 MapperFactoryBean 没有创建，按类型查找也不会创建，第一次 getBean 时才 addMapper
+   */
+  private static void assertLazy(ConfigurableApplicationContext context) {
+    Configuration configuration = context.getBean(SqlSessionFactory.class).getConfiguration();
+
+    assertThat(context.getBeanFactory().getBeanDefinition("lazyMapper").isLazyInit()).isTrue();
+    assertThat(context.getBeanFactory().containsSingleton("lazyMapper")).isFalse();
+    assertThat(context.getBeanNamesForType(LazyMapper.class)).containsExactly("lazyMapper");
+    assertThat(context.getBeanFactory().containsSingleton("lazyMapper")).isFalse();
+    assertThat(configuration.hasMapper(LazyMapper.class)).isFalse();
+
+    assertThat(context.getBean(LazyMapper.class)).isNotNull();
+    assertThat(configuration.hasMapper(LazyMapper.class)).isTrue();
+  }
+
+  @org.springframework.context.annotation.Configuration
+  @MapperScan(basePackages = "cn.javadog.sd.mybatis.spring.scan", lazyInitialization = "${mybatis.lazy-initialization:true}")
+  static class LazyConfig {
+
+    @Bean
+    public SqlSessionFactoryBean sqlSessionFactory() {
+      SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+      factoryBean.setDataSource(new PooledMockDataSource());
+      return factoryBean;
+    }
+  }
+
+}
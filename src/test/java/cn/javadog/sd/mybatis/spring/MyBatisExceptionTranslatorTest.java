@@ -0,0 +1,87 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+
+import cn.javadog.sd.mybatis.support.exceptions.PersistenceException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
+import org.springframework.jdbc.support.SQLErrorCodes;
+import org.springframework.jdbc.support.SQLErrorCodesFactory;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 12:10
+ * 预先展开错误码表的异常转换
+ */
+class MyBatisExceptionTranslatorTest {
+
+  private DataSource dataSource;
+
+  @BeforeEach
+  void registerDatabase() {
+    dataSource = new PooledMockDataSource();
+    SQLErrorCodesFactory.getInstance().registerDatabase(dataSource, "MySQL");
+  }
+
+  @AfterEach
+  void unregisterDatabase() {
+    SQLErrorCodesFactory.getInstance().unregisterDatabase(dataSource);
+  }
+
+  /**
+   * 所有错误码的转换结果与 Spring 的转换器一致
+   */
+  @Test
+  void testSameResultAsSpring() {
+    MyBatisExceptionTranslator translator = new MyBatisExceptionTranslator(dataSource, false);
+    SQLErrorCodeSQLExceptionTranslator spring = new SQLErrorCodeSQLExceptionTranslator(dataSource);
+    SQLErrorCodes sqlErrorCodes = spring.getSqlErrorCodes();
+
+    for (SqlErrorCategory category : SqlErrorCategory.values()) {
+      for (String code : category.codes(sqlErrorCodes)) {
+        assertSameAsSpring(translator, spring, new SQLException("error " + code, "S1000", Integer.parseInt(code)));
+      }
+    }
+    // 表里没有的错误码
+    assertSameAsSpring(translator, spring, new SQLException("unknown", "S1000", 99999));
+    assertSameAsSpring(translator, spring, new SQLException("state only", "08001", 0));
+  }
+
+  @Test
+  void testStacklessErrorCodes() {
+    MyBatisExceptionTranslator translator = new MyBatisExceptionTranslator(dataSource, true);
+    translator.setStacklessErrorCodes("1062");
+
+    DataAccessException duplicate = translator.translateExceptionIfPossible(persistenceException(1062));
+    assertThat(duplicate).isInstanceOf(DuplicateKeyException.class);
+    assertThat(duplicate.getStackTrace()).isEmpty();
+
+    // 没有配置的错误码照常填充异常栈
+    DataAccessException other = translator.translateExceptionIfPossible(persistenceException(1064));
+    assertThat(other).isInstanceOf(BadSqlGrammarException.class);
+    assertThat(other.getStackTrace()).isNotEmpty();
+  }
+
+  private static void assertSameAsSpring(MyBatisExceptionTranslator translator, SQLErrorCodeSQLExceptionTranslator spring,
+      SQLException sqlException) {
+    PersistenceException persistenceException = new PersistenceException("mapper failed", sqlException);
+    DataAccessException expected = spring.translate(persistenceException.getMessage() + "\n", null, sqlException);
+    DataAccessException actual = translator.translateExceptionIfPossible(persistenceException);
+
+    assertThat(actual).isExactlyInstanceOf(expected.getClass()).hasMessage(expected.getMessage());
+    assertThat(actual.getCause()).isSameAs(sqlException);
+  }
+
+  private static PersistenceException persistenceException(int errorCode) {
+    return new PersistenceException("mapper failed", new SQLException("error", "23000", errorCode));
+  }
+
+}
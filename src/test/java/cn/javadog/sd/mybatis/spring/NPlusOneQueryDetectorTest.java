@@ -0,0 +1,93 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * @author 余勇
+ * @date 2019-12-23 15:10
+ * N+1 查询检测
+ */
+class NPlusOneQueryDetectorTest extends AbstractMyBatisSpringTest {
+
+  private static final String INSERT = "cn.javadog.sd.mybatis.spring.TestMapper.insertTest";
+
+  private SqlSessionTemplate template;
+
+  @BeforeEach
+  void setupTemplate() {
+    NPlusOneQueryDetector detector = new NPlusOneQueryDetector();
+    detector.setThreshold(2);
+    detector.setFailFast(true);
+    template = new SqlSessionTemplate(sqlSessionFactory);
+    template.setNPlusOneQueryDetector(detector);
+  }
+
+  /**
+   * 事务内超过阈值，直接失败
+   */
+  @Test
+  void testFailFastWithinTx() {
+    TransactionStatus status = txManager.getTransaction(new DefaultTransactionDefinition());
+    try {
+      template.insert(INSERT, "test1");
+      template.insert(INSERT, "test2");
+      // 相同的参数不算
+      template.insert(INSERT, "test2");
+      NPlusOneQueryException e = assertThrows(NPlusOneQueryException.class, () -> template.insert(INSERT, "test3"));
+      assertThat(e.getMessage()).contains(INSERT).contains(NPlusOneQueryDetectorTest.class.getName());
+    } finally {
+      txManager.rollback(status);
+    }
+    assertExecuteCount(3);
+  }
+
+  /**
+   * 没有重写 equals/hashCode 的参数，按绑定的值判断是否相同
+   */
+  @Test
+  void testParameterWithoutEquals() {
+    TransactionStatus status = txManager.getTransaction(new DefaultTransactionDefinition());
+    try {
+      template.insert(INSERT, new TestParameter("test1"));
+      template.insert(INSERT, new TestParameter("test2"));
+      template.insert(INSERT, new TestParameter("test2"));
+      template.insert(INSERT, new TestParameter("test1"));
+      assertThrows(NPlusOneQueryException.class, () -> template.insert(INSERT, new TestParameter("test3")));
+    } finally {
+      txManager.rollback(status);
+    }
+    assertExecuteCount(4);
+  }
+
+  /**
+   * 事务外不检测
+   */
+  @Test
+  void testIgnoredWithoutTx() {
+    template.getNPlusOneQueryDetector().setThreshold(1);
+    // 数据源里只有两个连接，每次调用各用一个
+    template.insert(INSERT, "test1");
+    template.insert(INSERT, "test2");
+    assertConnectionClosed(connectionTwo);
+  }
+
+  public static class TestParameter {
+
+    private final String test;
+
+    TestParameter(String test) {
+      this.test = test;
+    }
+
+    public String getTest() {
+      return test;
+    }
+  }
+
+}
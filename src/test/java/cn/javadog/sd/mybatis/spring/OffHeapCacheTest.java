@@ -0,0 +1,97 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import cn.javadog.sd.mybatis.support.cache.CacheKey;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author 余勇
+ * @date 2019-12-30 14:20
+ * 堆外二级缓存
+ */
+class OffHeapCacheTest {
+
+  @Test
+  void testPutGetRemove() {
+    OffHeapCache cache = new OffHeapCache("test");
+    CacheKey key = new CacheKey(new Object[] { "findTest", 1, 10 });
+    List<String> value = new ArrayList<>(Arrays.asList("a", "b", "c"));
+
+    assertThat(cache.getObject(key)).isNull();
+    cache.putObject(key, value);
+
+    Object cached = cache.getObject(new CacheKey(new Object[] { "findTest", 1, 10 }));
+    assertThat(cached).isEqualTo(value).isNotSameAs(value);
+    assertThat(cache.getSize()).isEqualTo(1);
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1);
+
+    cache.removeObject(key);
+    assertThat(cache.getObject(key)).isNull();
+    assertThat(cache.getSize()).isZero();
+    assertThat(cache.getUsedBytes()).isZero();
+
+    cache.putObject(key, value);
+    cache.clear();
+    assertThat(cache.getObject(key)).isNull();
+    assertThatThrownBy(() -> cache.setBlockSize(128)).isInstanceOf(IllegalStateException.class);
+  }
+
+  /**
+   * 超过阈值的值压缩后存放
+   */
+  @Test
+  void testCompressesLargeValues() {
+    List<String> value = new ArrayList<>(Collections.nCopies(2000, "repeated row content"));
+    OffHeapCache plain = new OffHeapCache("plain");
+    OffHeapCache compressed = new OffHeapCache("compressed");
+    compressed.setCompressionThreshold(1024);
+
+    plain.putObject("key", value);
+    compressed.putObject("key", value);
+
+    assertThat(compressed.getObject("key")).isEqualTo(value);
+    assertThat(compressed.getUsedBytes()).isLessThan(plain.getUsedBytes());
+  }
+
+  /**
+   * 空间不够时低频的扫描条目被淘汰，热点条目留下
+   */
+  @Test
+  void testFrequencyBasedEviction() {
+    OffHeapCache cache = new OffHeapCache("small");
+    cache.setSegmentCount(1);
+    cache.setBlockSize(128);
+    cache.setCapacityBytes(64 * 128);
+
+    for (int round = 0; round < 5; round++) {
+      for (int hot = 0; hot < 10; hot++) {
+        if (cache.getObject("hot-" + hot) == null) {
+          cache.putObject("hot-" + hot, hot);
+        }
+      }
+    }
+    for (int scan = 0; scan < 500; scan++) {
+      cache.putObject("scan-" + scan, scan);
+    }
+
+    for (int hot = 0; hot < 10; hot++) {
+      assertThat(cache.getObject("hot-" + hot)).isEqualTo(hot);
+    }
+    assertThat(cache.getEvictions()).isGreaterThan(0);
+    assertThat(cache.getSize()).isLessThanOrEqualTo(64);
+  }
+
+  @Test
+  void testEqualsById() {
+    assertThat(new OffHeapCache("ns")).isEqualTo(new OffHeapCache("ns"));
+  }
+
+}
@@ -0,0 +1,202 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import cn.javadog.sd.mybatis.cursor.Cursor;
+import cn.javadog.sd.mybatis.session.RowBounds;
+import cn.javadog.sd.mybatis.session.SqlSession;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+/**
+ * @author 余勇
+ * @date 2019-12-29 15:10
+ * 物理分页
+ */
+class PaginationInterceptorTest {
+
+  private static final String FIND_NAMES = "cn.javadog.sd.mybatis.spring.PaginationMapper.findNames";
+
+  private static final List<Integer> EXCLUDED = Arrays.asList(2, 4);
+
+  private SingleConnectionDataSource dataSource;
+
+  private PaginationInterceptor interceptor;
+
+  /**
+   * 交给 JDBC 驱动执行的 SQL
+   */
+  private final List<String> preparedSql = new CopyOnWriteArrayList<>();
+
+  @BeforeEach
+  void setUp() {
+    interceptor = new PaginationInterceptor();
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (dataSource != null) {
+      dataSource.destroy();
+    }
+  }
+
+  /**
+   * HSQLDB 上改写成 OFFSET/FETCH
+   */
+  @Test
+  void testHsqldbPagination() throws Exception {
+    dataSource = dataSource("jdbc:hsqldb:mem:pagination");
+    assertPagination(sqlSessionFactory(dataSource));
+    assertThat(interceptor.getDialect()).isNull();
+  }
+
+  /**
+   * 游标查询同样改写
+   */
+  @Test
+  void testCursorPagination() throws Exception {
+    dataSource = dataSource("jdbc:hsqldb:mem:pagination-cursor");
+    SqlSessionFactory sqlSessionFactory = sqlSessionFactory(dataSource);
+
+    try (SqlSession session = sqlSessionFactory.openSession(true)) {
+      List<String> page = new ArrayList<>();
+      try (Cursor<String> cursor = session.selectCursor(FIND_NAMES, EXCLUDED, new RowBounds(2, 3))) {
+        cursor.forEach(page::add);
+      }
+      assertThat(page).containsExactly("name-5", "name-6", "name-7");
+      assertThat(lastPreparedSql()).endsWith("OFFSET 2 ROWS FETCH NEXT 3 ROWS ONLY");
+    }
+  }
+
+  /**
+   * Derby 上改写成 OFFSET/FETCH
+   */
+  @Test
+  void testDerbyPagination() throws Exception {
+    dataSource = dataSource("jdbc:derby:memory:pagination;create=true");
+    assertPagination(sqlSessionFactory(dataSource));
+  }
+
+  /**
+   * 缓存的总数在过期之前不会重新查询
+   */
+  @Test
+  void testCachedCount() throws Exception {
+    dataSource = dataSource("jdbc:hsqldb:mem:pagination-count");
+    interceptor.setCountCacheMillis(60000);
+    SqlSessionFactory sqlSessionFactory = sqlSessionFactory(dataSource);
+
+    try (SqlSession session = sqlSessionFactory.openSession(true)) {
+      assertThat(interceptor.count(session, FIND_NAMES, EXCLUDED)).isEqualTo(8);
+      assertThat(preparedSql).hasSize(1);
+      new JdbcTemplate(dataSource).update("INSERT INTO person VALUES (11, 'name-11')");
+      assertThat(interceptor.count(session, FIND_NAMES, EXCLUDED)).isEqualTo(8);
+      // 参数不同是另一个总数
+      assertThat(interceptor.count(session, FIND_NAMES, Arrays.asList(1))).isEqualTo(10);
+      assertThat(preparedSql).hasSize(2);
+    }
+
+    interceptor.clearCountCache();
+    // 换一个会话，避开一级缓存
+    try (SqlSession session = sqlSessionFactory.openSession(true)) {
+      assertThat(interceptor.count(session, FIND_NAMES, EXCLUDED)).isEqualTo(9);
+    }
+  }
+
+  /**
+   * 两种语法的改写结果
+   */
+  @Test
+  void testDialects() {
+    assertThat(PaginationInterceptor.Dialect.OFFSET_FETCH.paginate("SELECT 1", 20, 10))
+        .isEqualTo("SELECT 1 OFFSET 20 ROWS FETCH NEXT 10 ROWS ONLY");
+    assertThat(PaginationInterceptor.Dialect.LIMIT_OFFSET.paginate("SELECT 1", 20, 10))
+        .isEqualTo("SELECT 1 LIMIT 10 OFFSET 20");
+    assertThat(PaginationInterceptor.Dialect.forDatabaseProductName("Apache Derby"))
+        .isEqualTo(PaginationInterceptor.Dialect.OFFSET_FETCH);
+    assertThat(PaginationInterceptor.Dialect.forDatabaseProductName("MySQL"))
+        .isEqualTo(PaginationInterceptor.Dialect.LIMIT_OFFSET);
+  }
+
+  private void assertPagination(SqlSessionFactory sqlSessionFactory) {
+    try (SqlSession session = sqlSessionFactory.openSession(true)) {
+      List<String> page = session.selectList(FIND_NAMES, EXCLUDED, new RowBounds(2, 3));
+      assertThat(page).containsExactly("name-5", "name-6", "name-7");
+      assertThat(lastPreparedSql()).endsWith("OFFSET 2 ROWS FETCH NEXT 3 ROWS ONLY");
+
+      List<String> tail = session.selectList(FIND_NAMES, EXCLUDED, new RowBounds(6, RowBounds.NO_ROW_LIMIT));
+      assertThat(tail).containsExactly("name-9", "name-10");
+      assertThat(lastPreparedSql()).endsWith("OFFSET 6 ROWS").doesNotContain("FETCH");
+
+      assertThat(session.<String>selectList(FIND_NAMES, EXCLUDED)).hasSize(8);
+      assertThat(lastPreparedSql()).doesNotContain("OFFSET");
+
+      assertThat(interceptor.count(session, FIND_NAMES, EXCLUDED)).isEqualTo(8);
+      assertThat(lastPreparedSql()).startsWith("SELECT COUNT(*) FROM (");
+      // 总数查询不注册到 Configuration
+      assertThat(session.getConfiguration().hasStatement(FIND_NAMES + PaginationInterceptor.COUNT_SUFFIX, false)).isFalse();
+    }
+  }
+
+  private String lastPreparedSql() {
+    assertThat(preparedSql).isNotEmpty();
+    return preparedSql.get(preparedSql.size() - 1).replaceAll("\\s+", " ").trim();
+  }
+
+  private SqlSessionFactory sqlSessionFactory(DataSource dataSource) throws Exception {
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setMapperLocations(new Resource[] { new ClassPathResource("cn/javadog/sd/mybatis/spring/PaginationMapper.xml") });
+    factoryBean.setDataSource(dataSource);
+    factoryBean.setPlugins(new PaginationInterceptor[] { interceptor });
+    return factoryBean.getObject();
+  }
+
+  /**
+   * 建表并插入 10 行，记下之后交给驱动执行的 SQL
+   */
+  private SingleConnectionDataSource dataSource(String url) {
+    SingleConnectionDataSource dataSource = new SingleConnectionDataSource(url, "sa", "", true) {
+      @Override
+      protected Connection getCloseSuppressingConnectionProxy(Connection target) {
+        return super.getCloseSuppressingConnectionProxy(recording(target));
+      }
+    };
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("CREATE TABLE person (id INT PRIMARY KEY, name VARCHAR(20))");
+    for (int i = 1; i <= 10; i++) {
+      jdbcTemplate.update("INSERT INTO person VALUES (?, ?)", i, "name-" + i);
+    }
+    preparedSql.clear();
+    return dataSource;
+  }
+
+  private Connection recording(Connection target) {
+    return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+        (proxy, method, args) -> {
+          if (method.getName().equals("prepareStatement")) {
+            preparedSql.add((String) args[0]);
+          }
+          try {
+            return method.invoke(target, args);
+          } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+          }
+        });
+  }
+
+}
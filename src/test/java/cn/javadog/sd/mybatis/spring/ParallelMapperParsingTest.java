@@ -0,0 +1,107 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TreeSet;
+
+import cn.javadog.sd.mybatis.session.Configuration;
+import cn.javadog.sd.mybatis.support.logging.Log;
+import cn.javadog.sd.mybatis.support.logging.LogFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * @author 余勇
+ * @date 2019-12-25 15:30
+ * 并行解析 mapper 文件，顺带做个启动耗时的对比
+ */
+class ParallelMapperParsingTest {
+
+  private static final Log LOGGER = LogFactory.getLog(ParallelMapperParsingTest.class);
+
+  /**
+   * 合成 mapper 的数量
+   */
+  private static final int MAPPER_COUNT = 300;
+
+  /**
+   * 每个 mapper 里的 statement 数量
+   */
+  private static final int STATEMENT_COUNT = 10;
+
+  @TempDir
+  Path tempDir;
+
+  /**
+   * 并行解析的结果与串行完全一致，包括跨文件引用的 sql 片段
+   */
+  @Test
+  void testParallelParsingMatchesSerial() throws Exception {
+    Resource[] mapperLocations = generateMappers();
+
+    long start = System.nanoTime();
+    Configuration serial = build(mapperLocations, 1).getObject().getConfiguration();
+    long serialMillis = (System.nanoTime() - start) / 1_000_000;
+
+    start = System.nanoTime();
+    SqlSessionFactoryBean parallelFactoryBean = build(mapperLocations, Runtime.getRuntime().availableProcessors());
+    Configuration parallel = parallelFactoryBean.getObject().getConfiguration();
+    long parallelMillis = (System.nanoTime() - start) / 1_000_000;
+
+    assertThat(new TreeSet<>(parallel.getMappedStatementNames()))
+        .isEqualTo(new TreeSet<>(serial.getMappedStatementNames()))
+        .filteredOn(name -> name.startsWith("bench."))
+        .hasSize(MAPPER_COUNT * STATEMENT_COUNT * 2);
+    assertThat(parallel.getMappedStatement("bench.Mapper299.select0").getBoundSql(null).getSql())
+        .contains("id, name, value");
+    assertThat(parallelFactoryBean.getStartupTimingReport().getPhases())
+        .filteredOn(p -> StartupTimingReport.PHASE_MAPPER_LOAD.equals(p.getName()))
+        .hasSize(MAPPER_COUNT);
+
+    LOGGER.debug(MAPPER_COUNT + " mappers: serial " + serialMillis + " ms, parallel " + parallelMillis + " ms");
+  }
+
+  private SqlSessionFactoryBean build(Resource[] mapperLocations, int threads) throws Exception {
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setDataSource(new PooledMockDataSource());
+    factoryBean.setMapperLocations(mapperLocations);
+    factoryBean.setMapperParsingThreads(threads);
+    factoryBean.afterPropertiesSet();
+    return factoryBean;
+  }
+
+  /**
+   * 生成合成 mapper，第 0 个声明公共的 sql 片段，其它的都通过 namespace 引用它
+   */
+  private Resource[] generateMappers() throws Exception {
+    Resource[] resources = new Resource[MAPPER_COUNT];
+    for (int m = 0; m < MAPPER_COUNT; m++) {
+      StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n")
+          .append("<mapper namespace=\"bench.Mapper").append(m).append("\">\n");
+      if (m == 0) {
+        xml.append("  <sql id=\"columns\">id, name, value</sql>\n");
+      }
+      for (int s = 0; s < STATEMENT_COUNT; s++) {
+        xml.append("  <select id=\"select").append(s).append("\" resultType=\"map\">\n")
+            .append("    SELECT <include refid=\"bench.Mapper0.columns\"/> FROM t").append(m)
+            .append(" <where><if test=\"id != null\">id = #{id}</if></where>\n")
+            .append("  </select>\n")
+            .append("  <update id=\"update").append(s).append("\">\n")
+            .append("    UPDATE t").append(m).append(" <set><if test=\"name != null\">name = #{name},</if></set>")
+            .append(" WHERE id = #{id}\n")
+            .append("  </update>\n");
+      }
+      xml.append("</mapper>\n");
+      Path file = tempDir.resolve("Mapper" + m + ".xml");
+      Files.write(file, xml.toString().getBytes(StandardCharsets.UTF_8));
+      resources[m] = new FileSystemResource(file.toFile());
+    }
+    return resources;
+  }
+
+}
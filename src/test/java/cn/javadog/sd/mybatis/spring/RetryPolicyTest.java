@@ -0,0 +1,202 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.javadog.sd.mybatis.session.ExecutorType;
+import cn.javadog.sd.mybatis.session.SqlSession;
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.spring.transaction.RetryInterceptor;
+import cn.javadog.sd.mybatis.support.exceptions.PersistenceException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 15:40
+ * 瞬时故障的重试
+ */
+class RetryPolicyTest {
+
+  private static final PersistenceExceptionTranslator TRANSLATOR = e -> e.getMessage().startsWith("deadlock")
+      ? new DeadlockLoserDataAccessException(e.getMessage(), e) : new DataIntegrityViolationException(e.getMessage(), e);
+
+  private SqlSessionFactory sqlSessionFactory;
+
+  private SqlSession session;
+
+  private RetryPolicy retryPolicy;
+
+  @BeforeEach
+  void setUp() {
+    sqlSessionFactory = mock(SqlSessionFactory.class);
+    session = mock(SqlSession.class);
+    when(sqlSessionFactory.openSession(any(ExecutorType.class))).thenReturn(session);
+    retryPolicy = new RetryPolicy();
+    retryPolicy.setInitialBackoff(1);
+  }
+
+  @Test
+  void testRetriesTransientFailure() {
+    when(session.selectOne("find")).thenThrow(new PersistenceException("deadlock 1")).thenThrow(new PersistenceException("deadlock 2"))
+        .thenReturn("ok");
+
+    assertThat(template().<String>selectOne("find")).isEqualTo("ok");
+    verify(session, times(3)).selectOne("find");
+    // 每次都用新的会话
+    verify(session, times(3)).close();
+  }
+
+  @Test
+  void testGivesUpAfterMaxAttempts() {
+    when(session.selectOne("find")).thenThrow(new PersistenceException("deadlock"));
+
+    assertThatThrownBy(() -> template().selectOne("find")).isInstanceOf(DeadlockLoserDataAccessException.class);
+    verify(session, times(3)).selectOne("find");
+  }
+
+  @Test
+  void testDoesNotRetryOtherFailures() {
+    when(session.selectOne("find")).thenThrow(new PersistenceException("constraint"));
+
+    assertThatThrownBy(() -> template().selectOne("find")).isInstanceOf(DataIntegrityViolationException.class);
+    verify(session, times(1)).selectOne("find");
+  }
+
+  /**
+   * 写操作失败时可能已经生效，默认不重试
+   */
+  @Test
+  void testDoesNotRetryWritesByDefault() {
+    when(session.insert("save")).thenThrow(new PersistenceException("deadlock"));
+
+    assertThatThrownBy(() -> template().insert("save")).isInstanceOf(DeadlockLoserDataAccessException.class);
+    verify(session, times(1)).insert("save");
+  }
+
+  @Test
+  void testRetriesWritesWhenEnabled() {
+    retryPolicy.setRetryWrites(true);
+    when(session.update("save")).thenThrow(new PersistenceException("deadlock")).thenReturn(1);
+
+    assertThat(template().update("save")).isEqualTo(1);
+    verify(session, times(2)).update("save");
+  }
+
+  @Test
+  void testDoesNotRetryInTransaction() {
+    when(session.selectOne("find")).thenThrow(new PersistenceException("deadlock"));
+    TransactionSynchronizationManager.initSynchronization();
+    SqlSessionHolder holder = new SqlSessionHolder(session, ExecutorType.SIMPLE, TRANSLATOR);
+    holder.setSynchronizedWithTransaction(true);
+    TransactionSynchronizationManager.bindResource(sqlSessionFactory, holder);
+    try {
+      assertThatThrownBy(() -> template().selectOne("find")).isInstanceOf(DeadlockLoserDataAccessException.class);
+      verify(session, times(1)).selectOne("find");
+    } finally {
+      TransactionSynchronizationManager.unbindResource(sqlSessionFactory);
+      TransactionSynchronizationManager.clearSynchronization();
+    }
+  }
+
+  /**
+   * 令牌用完后不再重试，成功的调用慢慢把令牌攒回来
+   */
+  @Test
+  void testRetryBudget() {
+    retryPolicy.setMaxRetryTokens(1);
+    when(session.selectOne("find")).thenThrow(new PersistenceException("deadlock"));
+    SqlSessionTemplate template = template();
+
+    assertThatThrownBy(() -> template.selectOne("find")).isInstanceOf(DeadlockLoserDataAccessException.class);
+    verify(session, times(2)).selectOne("find");
+    assertThat(retryPolicy.getAvailableRetryTokens()).isZero();
+
+    assertThatThrownBy(() -> template.selectOne("find")).isInstanceOf(DeadlockLoserDataAccessException.class);
+    verify(session, times(3)).selectOne("find");
+
+    for (int i = 0; i < 10; i++) {
+      retryPolicy.recordSuccess();
+    }
+    assertThat(retryPolicy.getAvailableRetryTokens()).isEqualTo(1.0);
+  }
+
+  @Test
+  void testRetryInterceptorRetriesWholeMethod() {
+    Service target = new Service(3);
+    service(target).read();
+
+    assertThat(target.calls).hasValue(3);
+  }
+
+  /**
+   * 非只读的事务方法默认不重试，打开 retryWrites 后才重试
+   */
+  @Test
+  void testRetryInterceptorRetriesWritesOnlyWhenEnabled() {
+    Service target = new Service(2);
+    assertThatThrownBy(() -> service(target).write()).isInstanceOf(DeadlockLoserDataAccessException.class);
+    assertThat(target.calls).hasValue(1);
+
+    retryPolicy.setRetryWrites(true);
+    service(target).write();
+    assertThat(target.calls).hasValue(2);
+  }
+
+  private Service service(Service target) {
+    ProxyFactory proxyFactory = new ProxyFactory(target);
+    proxyFactory.setProxyTargetClass(true);
+    proxyFactory.addAdvice(new RetryInterceptor(retryPolicy));
+    return (Service) proxyFactory.getProxy();
+  }
+
+  private SqlSessionTemplate template() {
+    SqlSessionTemplate template = new SqlSessionTemplate(sqlSessionFactory, ExecutorType.SIMPLE, TRANSLATOR);
+    template.setRetryPolicy(retryPolicy);
+    return template;
+  }
+
+  /**
+   * 前 failures - 1 次调用抛出死锁异常
+   */
+  static class Service {
+
+    final AtomicInteger calls = new AtomicInteger();
+
+    private final int failures;
+
+    Service(int failures) {
+      this.failures = failures;
+    }
+
+    @Transactional(readOnly = true)
+    public void read() {
+      fail();
+    }
+
+    @Transactional
+    public void write() {
+      fail();
+    }
+
+    private void fail() {
+      if (calls.incrementAndGet() < failures) {
+        throw new DeadlockLoserDataAccessException("deadlock", null);
+      }
+    }
+  }
+
+}
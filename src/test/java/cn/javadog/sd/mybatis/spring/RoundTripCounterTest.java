@@ -0,0 +1,69 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import cn.javadog.sd.mybatis.spring.transaction.RoundTripCounter;
+import cn.javadog.sd.mybatis.spring.transaction.RoundTrips;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * @author 余勇
+ * @date 2019-12-23 11:02
+ * JDBC 往返计数
+ */
+class RoundTripCounterTest extends AbstractMyBatisSpringTest {
+
+  private static final String INSERT = "cn.javadog.sd.mybatis.spring.TestMapper.insertTest";
+
+  /**
+   * 非事务：一次执行 + 一次提交
+   */
+  @Test
+  void testCountWithoutTx() {
+    SqlSessionTemplate template = new SqlSessionTemplate(sqlSessionFactory);
+
+    RoundTrips roundTrips = RoundTripCounter.assertRoundTrips(2, () -> template.insert(INSERT, "test"));
+
+    assertThat(roundTrips.getExecutes()).isEqualTo(1);
+    assertThat(roundTrips.getCommits()).isEqualTo(connection.getNumberCommits());
+  }
+
+  /**
+   * 超出预算时报错
+   */
+  @Test
+  void testAssertRoundTripsFails() {
+    SqlSessionTemplate template = new SqlSessionTemplate(sqlSessionFactory);
+
+    assertThrows(AssertionError.class, () -> RoundTripCounter.assertRoundTrips(0, () -> template.insert(INSERT, "test")));
+  }
+
+  /**
+   * 事务维度的统计，事务提交也算一次往返
+   */
+  @Test
+  void testCountWithinTx() {
+    SqlSessionTemplate template = new SqlSessionTemplate(sqlSessionFactory);
+
+    RoundTrips roundTrips = RoundTripCounter.count(() -> {
+      TransactionStatus status = txManager.getTransaction(new DefaultTransactionDefinition());
+      template.insert(INSERT, "test1");
+      template.insert(INSERT, "test2");
+
+      RoundTrips transaction = RoundTripCounter.currentTransaction();
+      assertThat(transaction).isNotNull();
+      assertThat(transaction.getExecutes()).isEqualTo(2);
+
+      txManager.commit(status);
+      assertThat(RoundTripCounter.currentTransaction()).isNull();
+    });
+
+    assertThat(roundTrips.getExecutes()).isEqualTo(2);
+    assertThat(roundTrips.getCommits()).isEqualTo(1);
+    assertCommitJdbc();
+  }
+
+}
@@ -0,0 +1,110 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import cn.javadog.sd.mybatis.cursor.Cursor;
+import cn.javadog.sd.mybatis.session.SqlSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author 余勇
+ * @date 2019-12-24 10:30
+ * 会话泄漏检测
+ */
+class SqlSessionLeakDetectorTest extends AbstractMyBatisSpringTest {
+
+  private SqlSessionLeakDetector detector;
+
+  @BeforeEach
+  void installDetector() {
+    detector = new SqlSessionLeakDetector();
+    detector.setSamplingRate(1);
+    detector.setLeakThresholdMillis(0);
+    // 不启动后台线程，手动检查
+    detector.setCheckIntervalMillis(0);
+    detector.afterPropertiesSet();
+  }
+
+  @AfterEach
+  void uninstallDetector() {
+    detector.destroy();
+  }
+
+  /**
+   * 打开太久没关闭的会话会被报告，关闭后不再跟踪
+   */
+  @Test
+  void testReportsSessionOpenTooLong() throws Exception {
+    SqlSession session = SqlSessionUtils.getSqlSession(sqlSessionFactory);
+    session.getMapper(TestMapper.class).findTest();
+    assertThat(detector.getTrackedCount()).isEqualTo(1);
+
+    Thread.sleep(5);
+    detector.checkLeaks();
+    assertThat(detector.getReportedLeaks()).isEqualTo(1);
+
+    SqlSessionUtils.closeSqlSession(session, sqlSessionFactory);
+    assertThat(detector.getTrackedCount()).isEqualTo(0);
+  }
+
+  /**
+   * 通过模板使用，会话总是被释放
+   */
+  @Test
+  void testTemplateDoesNotLeak() throws Exception {
+    new SqlSessionTemplate(sqlSessionFactory).insert("cn.javadog.sd.mybatis.spring.TestMapper.insertTest", "test");
+
+    Thread.sleep(5);
+    detector.checkLeaks();
+    assertThat(detector.getTrackedCount()).isEqualTo(0);
+    assertThat(detector.getReportedLeaks()).isEqualTo(0);
+  }
+
+  /**
+   * 通过包装对象关闭的游标立即停止跟踪，之后被回收也不会误报
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  void testClosedCursorIsNotReported() throws Exception {
+    Cursor<Object> cursor = mock(Cursor.class);
+    Cursor<Object> tracked = detector.track(cursor);
+    assertThat(detector.getTrackedCount()).isEqualTo(1);
+
+    tracked.close();
+    verify(cursor).close();
+    assertThat(detector.getTrackedCount()).isEqualTo(0);
+
+    detector.checkLeaks();
+    assertThat(detector.getReportedLeaks()).isEqualTo(0);
+    // 没有用到连接
+    connection = null;
+  }
+
+  /**
+   * 随会话一起关闭的游标，检查时停止跟踪，没有关闭的游标会被报告
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  void testCursorClosedWithSession() throws Exception {
+    Cursor<Object> closedWithSession = mock(Cursor.class);
+    Cursor<Object> open = mock(Cursor.class);
+    when(open.isOpen()).thenReturn(true);
+    Cursor<Object> trackedOpen = detector.track(open);
+    detector.track(closedWithSession);
+    assertThat(detector.getTrackedCount()).isEqualTo(2);
+
+    Thread.sleep(5);
+    detector.checkLeaks();
+    assertThat(detector.getTrackedCount()).isEqualTo(1);
+    assertThat(detector.getReportedLeaks()).isEqualTo(1);
+    trackedOpen.close();
+    // 没有用到连接
+    connection = null;
+  }
+
+}
@@ -0,0 +1,195 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import cn.javadog.sd.mybatis.spring.mapper.ClassPathMapperScanner;
+import cn.javadog.sd.mybatis.spring.mapper.MapperFactoryBean;
+import cn.javadog.sd.mybatis.support.exceptions.PersistenceException;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * @author 余勇
+ * @date 2019-12-27 10:40
+ * 同一个工厂的 mapper 共用 SqlSessionTemplate 和异常转换器
+ */
+class SqlSessionTemplateRegistryTest {
+
+  private static final int MAPPERS = 200;
+
+  @Test
+  void testSharedTemplatePerFactory() throws Exception {
+    SqlSessionFactory sqlSessionFactory = newSqlSessionFactory();
+
+    Set<SqlSessionTemplate> shared = templates(sqlSessionFactory, true);
+    Set<SqlSessionTemplate> own = templates(sqlSessionFactory, false);
+
+    assertThat(shared).hasSize(1).containsExactly(SqlSessionTemplateRegistry.getSqlSessionTemplate(sqlSessionFactory));
+    assertThat(own).hasSize(MAPPERS);
+    // 不共享模板时，各自持有自己的转换器，不会用到进程级共享的转换器
+    Set<Object> translators = Collections.newSetFromMap(new IdentityHashMap<>());
+    own.forEach(template -> translators.add(template.getPersistenceExceptionTranslator()));
+    assertThat(translators).hasSize(MAPPERS)
+        .doesNotContain(shared.iterator().next().getPersistenceExceptionTranslator());
+
+    assertThat(SqlSessionTemplateRegistry.getSqlSessionTemplate(newSqlSessionFactory()))
+        .isNotSameAs(SqlSessionTemplateRegistry.getSqlSessionTemplate(sqlSessionFactory));
+  }
+
+  /**
+   * 共享的模板不允许修改配置，否则会悄悄影响同一个工厂的所有 mapper
+   */
+  @Test
+  void testSharedTemplateRefusesChanges() throws Exception {
+    SqlSessionTemplate shared = SqlSessionTemplateRegistry.getSqlSessionTemplate(newSqlSessionFactory());
+
+    assertThatThrownBy(() -> shared.setNPlusOneQueryDetector(new NPlusOneQueryDetector()))
+        .isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> shared.setRetryPolicy(new RetryPolicy())).isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> shared.setCancelOnInterrupt(true)).isInstanceOf(IllegalStateException.class);
+    assertThatThrownBy(() -> shared.setWorkloadClass(WorkloadClass.BATCH)).isInstanceOf(IllegalStateException.class);
+    assertThat(shared.getNPlusOneQueryDetector()).isNull();
+    assertThat(shared.getRetryPolicy()).isNull();
+    assertThat(shared.isCancelOnInterrupt()).isFalse();
+    assertThat(shared.getWorkloadClass()).isNull();
+  }
+
+  /**
+   * N 个 mapper 各自转换一次 SQLException，统计模板、转换器、错误码表和读取数据库元数据的次数
+   */
+  @Test
+  void testCountsPerMapper() throws Exception {
+    Footprint shared = footprint(true);
+    Footprint own = footprint(false);
+
+    assertThat(shared.templates).isEqualTo(1);
+    assertThat(shared.translators).isEqualTo(1);
+    assertThat(shared.errorCodeTables).isEqualTo(1);
+    assertThat(shared.metadataLookups).isEqualTo(1);
+
+    assertThat(own.templates).isEqualTo(MAPPERS);
+    assertThat(own.translators).isEqualTo(MAPPERS);
+    assertThat(own.errorCodeTables).isEqualTo(MAPPERS);
+    // SQLErrorCodesFactory 按数据源缓存了元数据，不共享时多出来的是模板、转换器和错误码表，而不是元数据查询
+    assertThat(own.metadataLookups).isEqualTo(1);
+  }
+
+  @Test
+  void testScannerSharesByDefault() {
+    assertThat(scan(null).getBeanDefinition("lazyMapper").getPropertyValues().get("shareSqlSessionTemplate")).isEqualTo(true);
+    assertThat(scan(false).getBeanDefinition("lazyMapper").getPropertyValues().get("shareSqlSessionTemplate")).isEqualTo(false);
+  }
+
+  /**
+   * 共享与否和 sqlSessionFactory 的设置顺序无关
+   */
+  @Test
+  void testShareIndependentOfPropertyOrder() throws Exception {
+    SqlSessionFactory sqlSessionFactory = newSqlSessionFactory();
+    MapperFactoryBean<TestMapper> factoryBean = new MapperFactoryBean<>(TestMapper.class);
+    factoryBean.setSqlSessionFactory(sqlSessionFactory);
+    factoryBean.setShareSqlSessionTemplate(true);
+    factoryBean.afterPropertiesSet();
+
+    assertThat(factoryBean.getSqlSessionTemplate()).isSameAs(SqlSessionTemplateRegistry.getSqlSessionTemplate(sqlSessionFactory));
+  }
+
+  private static DefaultListableBeanFactory scan(Boolean share) {
+    DefaultListableBeanFactory registry = new DefaultListableBeanFactory();
+    ClassPathMapperScanner scanner = new ClassPathMapperScanner(registry);
+    if (share != null) {
+      scanner.setShareSqlSessionTemplate(share);
+    }
+    scanner.registerFilters();
+    scanner.doScan("cn.javadog.sd.mybatis.spring.scan");
+    return registry;
+  }
+
+  private static Set<SqlSessionTemplate> templates(SqlSessionFactory sqlSessionFactory, boolean share) {
+    Set<SqlSessionTemplate> templates = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < MAPPERS; i++) {
+      MapperFactoryBean<TestMapper> factoryBean = new MapperFactoryBean<>(TestMapper.class);
+      factoryBean.setShareSqlSessionTemplate(share);
+      factoryBean.setSqlSessionFactory(sqlSessionFactory);
+      templates.add(factoryBean.getSqlSessionTemplate());
+    }
+    return templates;
+  }
+
+  private static SqlSessionFactory newSqlSessionFactory() throws Exception {
+    return newSqlSessionFactory(new PooledMockDataSource());
+  }
+
+  private static SqlSessionFactory newSqlSessionFactory(DataSource dataSource) throws Exception {
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setDataSource(dataSource);
+    return factoryBean.getObject();
+  }
+
+  private static Footprint footprint(boolean share) throws Exception {
+    DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+    when(metaData.getDatabaseProductName()).thenReturn("HSQL Database Engine");
+    Connection connection = mock(Connection.class);
+    when(connection.getMetaData()).thenReturn(metaData);
+    DataSource dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+    SqlSessionFactory sqlSessionFactory = newSqlSessionFactory(dataSource);
+
+    Set<SqlSessionTemplate> templates = Collections.newSetFromMap(new IdentityHashMap<>());
+    Set<Object> translators = Collections.newSetFromMap(new IdentityHashMap<>());
+    Set<Object> errorCodeTables = Collections.newSetFromMap(new IdentityHashMap<>());
+    Field errorCodeTable = ReflectionUtils.findField(MyBatisExceptionTranslator.class, "errorCodeTable");
+    ReflectionUtils.makeAccessible(errorCodeTable);
+    for (int i = 0; i < MAPPERS; i++) {
+      MapperFactoryBean<TestMapper> factoryBean = new MapperFactoryBean<>(TestMapper.class);
+      factoryBean.setSqlSessionFactory(sqlSessionFactory);
+      factoryBean.setShareSqlSessionTemplate(share);
+      factoryBean.afterPropertiesSet();
+      SqlSessionTemplate template = factoryBean.getSqlSessionTemplate();
+      PersistenceExceptionTranslator translator = template.getPersistenceExceptionTranslator();
+      assertThat(translator.translateExceptionIfPossible(
+          new PersistenceException(new SQLException("duplicate key", "23505", -104)))).isNotNull();
+      templates.add(template);
+      translators.add(translator);
+      errorCodeTables.add(ReflectionUtils.getField(errorCodeTable, translator));
+    }
+    int metadataLookups = mockingDetails(connection).getInvocations().stream()
+        .filter(invocation -> invocation.getMethod().getName().equals("getMetaData")).mapToInt(invocation -> 1).sum();
+    return new Footprint(templates.size(), translators.size(), errorCodeTables.size(), metadataLookups);
+  }
+
+  private static final class Footprint {
+
+    private final int templates;
+
+    private final int translators;
+
+    private final int errorCodeTables;
+
+    private final int metadataLookups;
+
+    Footprint(int templates, int translators, int errorCodeTables, int metadataLookups) {
+      this.templates = templates;
+      this.translators = translators;
+      this.errorCodeTables = errorCodeTables;
+      this.metadataLookups = metadataLookups;
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import cn.javadog.sd.mybatis.spring.mapper.MapperFactoryBean;
+import cn.javadog.sd.mybatis.spring.scan.LazyMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * @author 余勇
+ * @date 2019-12-25 11:00
+ * 启动耗时报告
+ */
+class StartupTimingReportTest {
+
+  /**
+   * 构建过程的各个阶段都有记录，容器刷新后补上 mapper 的注册耗时，并注册为单例bean
+   */
+  @Test
+  void testRecordsPhasesAndMappers() {
+    try (GenericApplicationContext context = new GenericApplicationContext()) {
+      context.registerBeanDefinition("sqlSessionFactory", BeanDefinitionBuilder.genericBeanDefinition(SqlSessionFactoryBean.class)
+          .addPropertyValue("dataSource", new PooledMockDataSource())
+          .addPropertyValue("typeAliasesPackage", "cn.javadog.sd.mybatis.spring.type")
+          .addPropertyValue("mapperLocations", new Resource[] { new ClassPathResource("cn/javadog/sd/mybatis/spring/TestMapper.xml") })
+          .getBeanDefinition());
+      context.registerBeanDefinition("lazyMapper", BeanDefinitionBuilder.genericBeanDefinition(MapperFactoryBean.class)
+          .addPropertyValue("mapperInterface", LazyMapper.class)
+          .addPropertyValue("sqlSessionFactory", new RuntimeBeanReference("sqlSessionFactory"))
+          .getBeanDefinition());
+      context.refresh();
+
+      SqlSessionFactoryBean factoryBean = context.getBean("&sqlSessionFactory", SqlSessionFactoryBean.class);
+      StartupTimingReport report = factoryBean.getStartupTimingReport();
+      assertThat(context.getBean("sqlSessionFactory.startupTimingReport")).isSameAs(report);
+
+      assertThat(report.getPhases())
+          .extracting(StartupTimingReport.Phase::getName)
+          .contains(StartupTimingReport.PHASE_TYPE_ALIASES_PACKAGE, StartupTimingReport.PHASE_MAPPER_PARSE,
+              StartupTimingReport.PHASE_BUILD, StartupTimingReport.PHASE_ADD_MAPPER);
+      assertThat(report.getPhases())
+          .filteredOn(p -> StartupTimingReport.PHASE_MAPPER_PARSE.equals(p.getName()))
+          .extracting(StartupTimingReport.Phase::getTarget)
+          .hasSize(1)
+          .allMatch(target -> target.contains("TestMapper.xml"));
+      assertThat(report.getPhases())
+          .filteredOn(p -> StartupTimingReport.PHASE_ADD_MAPPER.equals(p.getName()))
+          .extracting(StartupTimingReport.Phase::getTarget)
+          .containsExactly(LazyMapper.class.getName());
+      assertThat(report.toString()).startsWith("MyBatis startup timing: total ");
+    }
+  }
+
+}
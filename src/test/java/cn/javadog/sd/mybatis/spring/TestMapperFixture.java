@@ -0,0 +1,46 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import cn.javadog.sd.mybatis.session.SqlSessionFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * @author 余勇
+ * @date 2019-12-30 10:30
+ * 基于 TestMapper.xml 的会话工厂和 mock 数据源
+ */
+final class TestMapperFixture {
+
+  private TestMapperFixture() {
+  }
+
+  /**
+   * 加载了 TestMapper.xml 的会话工厂
+   */
+  static SqlSessionFactory sqlSessionFactory(DataSource dataSource) throws Exception {
+    SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setMapperLocations(new Resource[] { new ClassPathResource("cn/javadog/sd/mybatis/spring/TestMapper.xml") });
+    factoryBean.setDataSource(dataSource);
+    return factoryBean.getObject();
+  }
+
+  /**
+   * 总是返回 connection 的数据源，connection 预编译任何语句都返回 statement
+   */
+  static DataSource mockDataSource(Connection connection, PreparedStatement statement) throws SQLException {
+    DataSource dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(connection);
+    when(connection.prepareStatement(anyString())).thenReturn(statement);
+    return dataSource;
+  }
+
+}
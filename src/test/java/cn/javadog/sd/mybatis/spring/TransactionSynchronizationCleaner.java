@@ -0,0 +1,36 @@
+package cn.javadog.sd.mybatis.spring;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * @author 余勇
+ * @date 2019-12-30 10:30
+ * 清理当前线程上的事务同步和绑定的资源。测试结束后清理一次，保证自己不留下状态；
+ * 开始前也清理一次，防止没有用这个扩展的测试异常退出时遗留的状态影响本测试
+ */
+class TransactionSynchronizationCleaner implements BeforeEachCallback, AfterEachCallback {
+
+  @Override
+  public void beforeEach(ExtensionContext context) {
+    clear();
+  }
+
+  @Override
+  public void afterEach(ExtensionContext context) {
+    clear();
+  }
+
+  static void clear() {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.clear();
+    }
+    new ArrayList<>(TransactionSynchronizationManager.getResourceMap().keySet())
+        .forEach(TransactionSynchronizationManager::unbindResource);
+  }
+
+}
@@ -0,0 +1,326 @@
+package cn.javadog.sd.mybatis.spring;
+
+import static java.lang.reflect.Proxy.newProxyInstance;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import cn.javadog.sd.mybatis.spring.audit.AsyncAuditLog;
+import cn.javadog.sd.mybatis.spring.config.MapperScannerBeanDefinitionParser;
+import cn.javadog.sd.mybatis.spring.mapper.MapperFactoryBean;
+import cn.javadog.sd.mybatis.spring.transaction.CancellationScope;
+import cn.javadog.sd.mybatis.spring.transaction.Deadline;
+import cn.javadog.sd.mybatis.spring.transaction.RoundTripCounter;
+import cn.javadog.sd.mybatis.spring.transaction.SpringManagedTransaction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.asm.ClassReader;
+import org.springframework.asm.ClassVisitor;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.asm.SpringAsmInfo;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * @author 余勇
+ * @date 2019-12-28 11:20
+ * 虚拟线程下的会话绑定，请求路径上不能有钉住载体线程的 synchronized。
+ * 桩 JDBC 用 JDK 代理而不用 Mockito，Mockito 记录调用时自己会加锁。
+ * 项目按 1.8 编译，JFR 的事件流(JDK 14)和虚拟线程(JDK 21)都通过反射访问，低版本 JDK 上对应的测试跳过
+ */
+@ExtendWith(TransactionSynchronizationCleaner.class)
+class VirtualThreadTest {
+
+  private static final String INSERT = "cn.javadog.sd.mybatis.spring.TestMapper.insertTest";
+
+  private static final int TASKS = 5000;
+
+  /**
+   * 请求路径上的类，包括内部类和匿名类
+   */
+  private static final String[] REQUEST_PATH = {
+      SqlSessionTemplate.class.getName(),
+      SqlSessionUtils.class.getName(),
+      SqlSessionHolder.class.getName(),
+      SqlSessionTemplateRegistry.class.getName(),
+      ConcurrencyLimiter.class.getName(),
+      HedgedReadTemplate.class.getName(),
+      WorkloadClass.class.getName(),
+      CircuitBreaker.class.getName(),
+      PaginationInterceptor.class.getName(),
+      BoundedLocalCacheInterceptor.class.getName(),
+      OffHeapCache.class.getName(),
+      ClusterCacheInvalidator.class.getName(),
+      SqlSessionLeakDetector.class.getName(),
+      NPlusOneQueryDetector.class.getName(),
+      MyBatisExceptionTranslator.class.getName(),
+      SqlErrorCategory.class.getName(),
+      RetryPolicy.class.getName(),
+      MapperFactoryBean.class.getName(),
+      MapperScannerBeanDefinitionParser.class.getName(),
+      SpringManagedTransaction.class.getName(),
+      Deadline.class.getName(),
+      CancellationScope.class.getName(),
+      RoundTripCounter.class.getName(),
+      AsyncAuditLog.class.getName(),
+      "cn.javadog.sd.mybatis.spring.transaction.RunningStatements" };
+
+  private final AtomicInteger executed = new AtomicInteger();
+
+  private DataSource dataSource;
+
+  private SqlSessionTemplate template;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    dataSource = stubDataSource();
+    template = SqlSessionTemplateRegistry.getSqlSessionTemplate(TestMapperFixture.sqlSessionFactory(dataSource));
+  }
+
+  /**
+   * 请求路径上的类不能有 synchronized 方法或者 synchronized 块
+   */
+  @Test
+  void testNoMonitorsOnRequestPath() throws Exception {
+    List<String> monitors = new ArrayList<>();
+    for (String className : REQUEST_PATH) {
+      scanMonitors(className, monitors);
+    }
+    assertThat(monitors).isEmpty();
+  }
+
+  /**
+   * 几千个线程同时调用，有的在事务里，有的在截止时间范围里，结束后线程上不能遗留任何绑定
+   */
+  @Test
+  void testThousandsOfConcurrentCalls() throws Exception {
+    Queue<String> leaks = new ConcurrentLinkedQueue<>();
+    ExecutorService executor = virtualThreadExecutor();
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(200);
+    }
+    try {
+      runAll(executor, leaks);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(leaks).isEmpty();
+    assertThat(executed.get()).isEqualTo(TASKS);
+  }
+
+  /**
+   * 每次执行 Statement 都 sleep 一下，虚拟线程此时让出载体线程，持有监视器的话 JFR 会记录 jdk.VirtualThreadPinned
+   */
+  @Test
+  void testNoPinningOnVirtualThreads() throws Exception {
+    ExecutorService executor = virtualThreadExecutor();
+    assumeTrue(executor != null, "Virtual threads are not available on this JDK");
+    // 类初始化会钉住载体线程，先在平台线程上跑一遍
+    template.insert(INSERT, "warm up");
+
+    Queue<String> pinned = new ConcurrentLinkedQueue<>();
+    Class<?> streamType = Class.forName("jdk.jfr.consumer.RecordingStream");
+    try (AutoCloseable recording = (AutoCloseable) streamType.getConstructor().newInstance()) {
+      Object settings = streamType.getMethod("enable", String.class).invoke(recording, "jdk.VirtualThreadPinned");
+      Class<?> settingsType = Class.forName("jdk.jfr.EventSettings");
+      settingsType.getMethod("withThreshold", Duration.class).invoke(settings, Duration.ZERO);
+      settingsType.getMethod("withStackTrace").invoke(settings);
+      Consumer<Object> onPinned = event -> {
+        List<String> frames = frameTypes(event);
+        if (frames.stream().anyMatch(type -> type.startsWith("cn.javadog.sd.mybatis"))) {
+          pinned.add(frames.toString());
+        }
+      };
+      streamType.getMethod("onEvent", String.class, Consumer.class).invoke(recording, "jdk.VirtualThreadPinned", onPinned);
+      streamType.getMethod("startAsync").invoke(recording);
+      try {
+        runAll(executor, new ConcurrentLinkedQueue<>());
+      } finally {
+        executor.shutdown();
+      }
+      // stop 把缓冲的事件交给 onEvent 之后才返回
+      streamType.getMethod("stop").invoke(recording);
+    }
+
+    assertThat(pinned).isEmpty();
+  }
+
+  /**
+   * 事件栈上每一帧所在的类，没有栈时为空
+   */
+  private static List<String> frameTypes(Object event) {
+    List<String> types = new ArrayList<>();
+    try {
+      Object stackTrace = Class.forName("jdk.jfr.consumer.RecordedEvent").getMethod("getStackTrace").invoke(event);
+      if (stackTrace == null) {
+        return types;
+      }
+      List<?> frames = (List<?>) Class.forName("jdk.jfr.consumer.RecordedStackTrace").getMethod("getFrames").invoke(stackTrace);
+      for (Object frame : frames) {
+        Object method = Class.forName("jdk.jfr.consumer.RecordedFrame").getMethod("getMethod").invoke(frame);
+        Object type = Class.forName("jdk.jfr.consumer.RecordedMethod").getMethod("getType").invoke(method);
+        types.add((String) Class.forName("jdk.jfr.consumer.RecordedClass").getMethod("getName").invoke(type));
+      }
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+    return types;
+  }
+
+  private void runAll(ExecutorService executor, Queue<String> leaks) throws Exception {
+    TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    List<Future<?>> futures = new ArrayList<>(TASKS);
+    for (int i = 0; i < TASKS; i++) {
+      int task = i;
+      futures.add(executor.submit(() -> {
+        switch (task % 3) {
+          case 0:
+            transactionTemplate.execute(status -> template.insert(INSERT, task));
+            break;
+          case 1:
+            Deadline.run(Duration.ofSeconds(10), () -> template.insert(INSERT, task));
+            break;
+          default:
+            template.insert(INSERT, task);
+            break;
+        }
+        if (!TransactionSynchronizationManager.getResourceMap().isEmpty()
+            || TransactionSynchronizationManager.isSynchronizationActive()
+            || Deadline.current() != null) {
+          leaks.add("task " + task);
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  /**
+   * JDK 21 以上返回每个任务一个虚拟线程的 executor，否则返回 null
+   */
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private DataSource stubDataSource() {
+    PreparedStatement statement = stub(PreparedStatement.class, (method, args) -> {
+      if (method.getName().startsWith("execute")) {
+        Thread.sleep(1L);
+        executed.incrementAndGet();
+      }
+      return method.getName().equals("getUpdateCount") ? 1 : null;
+    });
+    Connection connection = stub(Connection.class, (method, args) -> {
+      if (method.getName().equals("prepareStatement")) {
+        return statement;
+      }
+      return method.getName().equals("getAutoCommit") ? Boolean.TRUE : null;
+    });
+    return stub(DataSource.class, (method, args) -> method.getName().equals("getConnection") ? connection : null);
+  }
+
+  /**
+   * 只实现需要的方法，其余返回默认值
+   */
+  private static <T> T stub(Class<T> type, StubAnswer answer) {
+    return type.cast(newProxyInstance(VirtualThreadTest.class.getClassLoader(), new Class[] { type }, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return type.getSimpleName() + " stub";
+        default:
+          break;
+      }
+      Object result = answer.answer(method, args);
+      if (result == null && method.getReturnType().isPrimitive()) {
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+          return false;
+        }
+        if (returnType == void.class) {
+          return null;
+        }
+        return returnType == long.class ? 0L : 0;
+      }
+      return result;
+    }));
+  }
+
+  private interface StubAnswer {
+
+    Object answer(Method method, Object[] args) throws Exception;
+  }
+
+  /**
+   * 扫描类以及它的内部类、匿名类的字节码，找出 synchronized 方法和 monitorenter 指令
+   */
+  private static void scanMonitors(String className, List<String> monitors) throws IOException {
+    String resource = className.replace('.', '/') + ".class";
+    try (InputStream in = VirtualThreadTest.class.getClassLoader().getResourceAsStream(resource)) {
+      if (in == null) {
+        return;
+      }
+      new ClassReader(in).accept(new ClassVisitor(SpringAsmInfo.ASM_VERSION) {
+
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+          String inner = name.replace('/', '.');
+          if (inner.startsWith(className + "$")) {
+            try {
+              scanMonitors(inner, monitors);
+            } catch (IOException e) {
+              throw new IllegalStateException(e);
+            }
+          }
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+          String location = className + "#" + name;
+          if (Modifier.isSynchronized(access)) {
+            monitors.add("synchronized method " + location);
+          }
+          return new MethodVisitor(SpringAsmInfo.ASM_VERSION) {
+            @Override
+            public void visitInsn(int opcode) {
+              if (opcode == Opcodes.MONITORENTER) {
+                monitors.add("synchronized block in " + location);
+              }
+            }
+          };
+        }
+      }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+  }
+
+}
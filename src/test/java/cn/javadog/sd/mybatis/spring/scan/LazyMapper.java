@@ -0,0 +1,9 @@
+package cn.javadog.sd.mybatis.spring.scan;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 22:10
+ * 懒加载测试用的 mapper
+ */
+public interface LazyMapper {
+}
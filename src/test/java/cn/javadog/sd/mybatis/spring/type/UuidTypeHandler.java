@@ -0,0 +1,45 @@
+package cn.javadog.sd.mybatis.spring.type;
+
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import cn.javadog.sd.mybatis.support.type.BaseTypeHandler;
+import cn.javadog.sd.mybatis.support.type.JdbcType;
+import cn.javadog.sd.mybatis.support.type.MappedTypes;
+
+/**
+ * @author 余勇
+ * @date 2019-12-26 20:30
+ * 包扫描注册的类型处理器
+ */
+@MappedTypes(UUID.class)
+public class UuidTypeHandler extends BaseTypeHandler<UUID> {
+
+  @Override
+  public void setNonNullParameter(PreparedStatement ps, int i, UUID parameter, JdbcType jdbcType) throws SQLException {
+    ps.setString(i, parameter.toString());
+  }
+
+  @Override
+  public UUID getNullableResult(ResultSet rs, String columnName) throws SQLException {
+    return toUuid(rs.getString(columnName));
+  }
+
+  @Override
+  public UUID getNullableResult(ResultSet rs, int columnIndex) throws SQLException {
+    return toUuid(rs.getString(columnIndex));
+  }
+
+  @Override
+  public UUID getNullableResult(CallableStatement cs, int columnIndex) throws SQLException {
+    return toUuid(cs.getString(columnIndex));
+  }
+
+  private static UUID toUuid(String value) {
+    return value == null ? null : UUID.fromString(value);
+  }
+
+}